@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2017 IBM Corp. All rights reserved.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.cordova;
+
+import android.util.Base64;
+
+import com.cloudant.sync.documentstore.Attachment;
+import com.cloudant.sync.documentstore.DocumentBodyFactory;
+import com.cloudant.sync.documentstore.DocumentRevision;
+import com.cloudant.sync.documentstore.UnsavedStreamAttachment;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The ConversionBenchmark class measures the conversions between bridge JSON and document
+ * revisions that run on every document call, and their CBOR counterparts for datastores opened
+ * with the binary option. Methods which modify their JSON argument are given a freshly parsed
+ * document, as they are over the bridge; parseArguments measures that parse on its own so it can
+ * be subtracted.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConversionBenchmark {
+
+    private static final String ATTACHMENT_NAME = "photo.jpg";
+    private static final String ATTACHMENT_TYPE = "image/jpeg";
+    private static final int BATCH_DOCUMENT_SIZE = 1024;
+
+    @Param({"FLAT", "NESTED"})
+    public Documents.Shape shape;
+
+    @Param({"1024", "65536", "1048576"})
+    public int size;
+
+    @Param({"0", "65536"})
+    public int attachmentSize;
+
+    private CloudantSyncPlugin plugin;
+
+    // The document revision as sent over the bridge, including any inline attachment
+    private String revisionJSON;
+
+    // The same document revision as sent over the bridge by a binary datastore: CBOR, which the
+    // bridge carries as base64
+    private String revisionCbor;
+
+    // The document body without special fields, for the non-modifying conversions
+    private JSONObject body;
+
+    // Documents of about 1 KB adding up to the document size, as in a batch of results
+    private JSONArray batch;
+
+    private DocumentRevision revision;
+    private byte[] attachment;
+
+    @Setup
+    public void setUp() throws Exception {
+        plugin = new CloudantSyncPlugin();
+
+        body = Documents.generate(shape, size, 42);
+        batch = Documents.batch(shape, Math.max(1, size / BATCH_DOCUMENT_SIZE), BATCH_DOCUMENT_SIZE, 42);
+        attachment = Documents.bytes(attachmentSize, 42);
+
+        JSONObject json = new JSONObject(body.toString());
+        json.put("_id", "doc-1");
+        json.put("_rev", "1-" + Integer.toHexString(size));
+        if (attachmentSize > 0) {
+            json.put("_attachments", new JSONObject().put(ATTACHMENT_NAME, new JSONObject()
+                .put("content_type", ATTACHMENT_TYPE)
+                .put("data", Base64.encodeToString(attachment, Base64.NO_WRAP))));
+        }
+        revisionJSON = json.toString();
+        revisionCbor = Base64.encodeToString(CborCodec.encode(json), Base64.NO_WRAP);
+
+        byte[] bodyBytes = plugin.getDocumentBodyBytesFromJSONObject(new JSONObject(body.toString()));
+        revision = new DocumentRevision("doc-1", "1-" + Integer.toHexString(size), DocumentBodyFactory.create(bodyBytes));
+    }
+
+    @Benchmark
+    public JSONObject parseArguments() throws Exception {
+        return new JSONObject(revisionJSON);
+    }
+
+    @Benchmark
+    public DocumentRevision buildDocRevision() throws Exception {
+        return plugin.buildDocRevision(new JSONObject(revisionJSON));
+    }
+
+    @Benchmark
+    public DocumentRevision buildDocRevisionFromCbor() throws Exception {
+        return plugin.buildDocRevision(CloudantSyncPlugin.decodeDocument(revisionCbor));
+    }
+
+    @Benchmark
+    public byte[] getDocumentBodyBytesFromJSONObject() throws Exception {
+        return plugin.getDocumentBodyBytesFromJSONObject(new JSONObject(revisionJSON));
+    }
+
+    @Benchmark
+    public JSONObject buildJSON() throws Exception {
+        return plugin.buildJSON(withAttachment(), false);
+    }
+
+    @Benchmark
+    public String buildJSONAndEncode() throws Exception {
+        // PluginResult encodes JSON messages to a String before sending them to the WebView
+        return plugin.buildJSON(withAttachment(), false).toString();
+    }
+
+    @Benchmark
+    public String buildMapAndEncodeCbor() throws Exception {
+        // PluginResult encodes binary messages to base64 before sending them to the WebView
+        return Base64.encodeToString(CborCodec.encode(plugin.buildMap(withAttachment(), false)), Base64.NO_WRAP);
+    }
+
+    @Benchmark
+    public Map<String, Object> toMap() throws Exception {
+        return plugin.toMap(body);
+    }
+
+    @Benchmark
+    public List<Object> toList() throws Exception {
+        return plugin.toList(batch);
+    }
+
+    // Attachment streams can only be read once, so each call is given a new stream over the
+    // same bytes
+    private DocumentRevision withAttachment() {
+        if (attachmentSize > 0) {
+            Map<String, Attachment> attachments = Collections.<String, Attachment>singletonMap(ATTACHMENT_NAME,
+                new UnsavedStreamAttachment(new ByteArrayInputStream(attachment), ATTACHMENT_TYPE));
+            revision.setAttachments(attachments);
+        }
+        return revision;
+    }
+}
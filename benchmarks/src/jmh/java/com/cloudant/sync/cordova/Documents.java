@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2017 IBM Corp. All rights reserved.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.cordova;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Random;
+
+/**
+ * The Documents class generates deterministic JSON documents of a given shape and approximate
+ * serialized size for the benchmarks
+ */
+public final class Documents {
+
+    /**
+     * The shape of a generated document
+     */
+    public enum Shape {
+        /**
+         * Top level string, number and boolean fields only
+         */
+        FLAT,
+        /**
+         * Sections of objects nested several levels deep, containing arrays of small objects
+         */
+        NESTED
+    }
+
+    private static final int NESTING_DEPTH = 6;
+    private static final String ALPHABET = "abcdefghijklmnopqrstuvwxyz ABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789";
+
+    private Documents() {
+    }
+
+    /**
+     * @param shape - The shape of the document
+     * @param size - The approximate length of the serialized document in characters
+     * @param seed - The seed for the generated values
+     * @return - The generated document, without _id or _rev
+     * @throws JSONException
+     */
+    static JSONObject generate(Shape shape, int size, long seed) throws JSONException {
+        Random random = new Random(seed);
+        JSONObject document = new JSONObject();
+        int field = 0;
+        // The length is checked after each chunk of fields rather than each field, as serializing
+        // a large document for every field would make setup quadratic
+        while (document.toString().length() < size) {
+            if (shape == Shape.FLAT) {
+                for (int i = 0; i < 32; i++, field++) {
+                    document.put("field" + field, scalar(random, field));
+                }
+            } else {
+                document.put("section" + field, nested(random, NESTING_DEPTH));
+                field++;
+            }
+        }
+        return document;
+    }
+
+    /**
+     * @param shape - The shape of the documents
+     * @param count - The number of documents
+     * @param size - The approximate length of each serialized document in characters
+     * @param seed - The seed for the generated values
+     * @return - An array of generated documents with IDs and revisions
+     * @throws JSONException
+     */
+    static JSONArray batch(Shape shape, int count, int size, long seed) throws JSONException {
+        JSONArray documents = new JSONArray();
+        for (int i = 0; i < count; i++) {
+            JSONObject document = generate(shape, size, seed + i);
+            document.put("_id", "doc-" + i);
+            document.put("_rev", "1-" + Integer.toHexString(i));
+            documents.put(document);
+        }
+        return documents;
+    }
+
+    /**
+     * @param size - The number of bytes
+     * @param seed - The seed for the generated bytes
+     * @return - Random bytes, standing in for an incompressible binary attachment
+     */
+    static byte[] bytes(int size, long seed) {
+        byte[] bytes = new byte[size];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    private static Object scalar(Random random, int field) {
+        switch (field % 4) {
+            case 0:
+                return string(random, 8 + random.nextInt(32));
+            case 1:
+                return random.nextInt(1000000);
+            case 2:
+                return random.nextDouble() * 1000;
+            default:
+                return random.nextBoolean();
+        }
+    }
+
+    private static JSONObject nested(Random random, int depth) throws JSONException {
+        JSONObject object = new JSONObject();
+        object.put("name", string(random, 12));
+        object.put("count", random.nextInt(1000));
+        object.put("enabled", random.nextBoolean());
+        if (depth > 0) {
+            JSONArray items = new JSONArray();
+            for (int i = 0; i < 2; i++) {
+                items.put(new JSONObject()
+                    .put("id", random.nextInt(100000))
+                    .put("label", string(random, 8))
+                    .put("tags", new JSONArray().put(string(random, 4)).put(string(random, 4))));
+            }
+            object.put("items", items);
+            object.put("child", nested(random, depth - 1));
+        }
+        return object;
+    }
+
+    private static String string(Random random, int length) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2017 IBM Corp. All rights reserved.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.cordova;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The QueryBenchmark class measures the conversion of find arguments into a CloudantQuery
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QueryBenchmark {
+
+    /**
+     * The shape of a query
+     */
+    public enum QueryShape {
+        /**
+         * A bare selector on a single field
+         */
+        EQUALITY,
+        /**
+         * A combination of operators with fields, sort, limit and skip
+         */
+        COMPOUND,
+        /**
+         * A selector matching one of 1000 IDs
+         */
+        IN_1000
+    }
+
+    @Param({"EQUALITY", "COMPOUND", "IN_1000"})
+    public QueryShape query;
+
+    private CloudantSyncPlugin plugin;
+    private String queryJSON;
+    private JSONObject parsed;
+
+    @Setup
+    public void setUp() throws Exception {
+        plugin = new CloudantSyncPlugin();
+
+        JSONObject q;
+        switch (query) {
+            case EQUALITY:
+                q = new JSONObject().put("type", "album");
+                break;
+            case COMPOUND:
+                q = new JSONObject()
+                    .put("selector", new JSONObject().put("$and", new JSONArray()
+                        .put(new JSONObject().put("type", "album"))
+                        .put(new JSONObject().put("year", new JSONObject().put("$gt", 1990)))
+                        .put(new JSONObject().put("$or", new JSONArray()
+                            .put(new JSONObject().put("artist", "Pixies"))
+                            .put(new JSONObject().put("rating", new JSONObject().put("$gte", 4)))))))
+                    .put("fields", new JSONArray().put("name").put("artist").put("year"))
+                    .put("sort", new JSONArray()
+                        .put(new JSONObject().put("year", "desc"))
+                        .put(new JSONObject().put("name", "asc")))
+                    .put("limit", 50)
+                    .put("skip", 100);
+                break;
+            default:
+                JSONArray ids = new JSONArray();
+                for (int i = 0; i < 1000; i++) {
+                    ids.put("doc-" + i);
+                }
+                q = new JSONObject().put("selector", new JSONObject().put("_id", new JSONObject().put("$in",
+                    ids)));
+                break;
+        }
+        queryJSON = q.toString();
+        parsed = new JSONObject(queryJSON);
+    }
+
+    @Benchmark
+    public CloudantQuery parseAndConvert() throws Exception {
+        return new CloudantQuery(plugin.convertJSONtoMap(new JSONObject(queryJSON)));
+    }
+
+    @Benchmark
+    public CloudantQuery convert() throws Exception {
+        return new CloudantQuery(plugin.convertJSONtoMap(parsed));
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2017 IBM Corp. All rights reserved.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package android.content;
+
+import android.content.res.AssetManager;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A JVM stand-in for android.content.Context which keeps application directories, and the assets
+ * in an assets directory, under a base directory. Registered ComponentCallbacks can be sent memory
+ * pressure with trimMemory, which plays the part of the Android system.
+ */
+public class Context {
+    public static final int MODE_PRIVATE = 0;
+
+    private final File baseDir;
+    private final List<ComponentCallbacks> callbacks = new CopyOnWriteArrayList<ComponentCallbacks>();
+
+    public Context(File baseDir) {
+        this.baseDir = baseDir;
+    }
+
+    public Context getApplicationContext() {
+        return this;
+    }
+
+    public File getDir(String name, int mode) {
+        return mkdirs(new File(baseDir, "app_" + name));
+    }
+
+    public File getFilesDir() {
+        return mkdirs(new File(baseDir, "files"));
+    }
+
+    public File getCacheDir() {
+        return mkdirs(new File(baseDir, "cache"));
+    }
+
+    public AssetManager getAssets() {
+        return new AssetManager(new File(baseDir, "assets"));
+    }
+
+    public void registerComponentCallbacks(ComponentCallbacks callback) {
+        callbacks.add(callback);
+    }
+
+    public void unregisterComponentCallbacks(ComponentCallbacks callback) {
+        callbacks.remove(callback);
+    }
+
+    /**
+     * Sends a trim level to the registered callbacks, as Android does under memory pressure
+     * @param level - The ComponentCallbacks2 trim level
+     */
+    public void trimMemory(int level) {
+        for (ComponentCallbacks callback : callbacks) {
+            if (callback instanceof ComponentCallbacks2) {
+                ((ComponentCallbacks2) callback).onTrimMemory(level);
+            }
+        }
+    }
+
+    private static File mkdirs(File dir) {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IllegalStateException("Failed to create directory " + dir);
+        }
+        return dir;
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2017 IBM Corp. All rights reserved.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+
+package android.content.res;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A JVM stand-in for android.content.res.AssetManager which reads the assets from a directory
+ */
+public class AssetManager {
+    public static final int ACCESS_UNKNOWN = 0;
+    public static final int ACCESS_RANDOM = 1;
+    public static final int ACCESS_STREAMING = 2;
+    public static final int ACCESS_BUFFER = 3;
+
+    private final File assetsDir;
+
+    public AssetManager(File assetsDir) {
+        this.assetsDir = assetsDir;
+    }
+
+    public String[] list(String path) throws IOException {
+        String[] children = new File(assetsDir, path).list();
+        return children == null ? new String[0] : children;
+    }
+
+    public InputStream open(String fileName) throws IOException {
+        return open(fileName, ACCESS_STREAMING);
+    }
+
+    public InputStream open(String fileName, int accessMode) throws IOException {
+        return new FileInputStream(new File(assetsDir, fileName));
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) 2017 IBM Corp. All rights reserved.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package android.os;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * A JVM stand-in for the android.os.Process methods used by the plugin
+ */
+public class Process {
+    private static final int PID = parsePid(ManagementFactory.getRuntimeMXBean().getName());
+
+    private Process() {
+    }
+
+    public static int myPid() {
+        return PID;
+    }
+
+    // The runtime name is usually pid@hostname
+    private static int parsePid(String name) {
+        try {
+            return Integer.parseInt(name.substring(0, name.indexOf('@')));
+        } catch (RuntimeException e) {
+            return 0;
+        }
+    }
+}
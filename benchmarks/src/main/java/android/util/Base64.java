@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2017 IBM Corp. All rights reserved.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package android.util;
+
+import java.nio.charset.Charset;
+
+/**
+ * A JVM stand-in for android.util.Base64 supporting the flags used by the plugin
+ */
+public class Base64 {
+    public static final int DEFAULT = 0;
+    public static final int NO_PADDING = 1;
+    public static final int NO_WRAP = 2;
+    public static final int URL_SAFE = 8;
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    private Base64() {
+    }
+
+    public static byte[] decode(String str, int flags) {
+        return decoder(flags).decode(str);
+    }
+
+    public static byte[] decode(byte[] input, int flags) {
+        return decoder(flags).decode(input);
+    }
+
+    public static String encodeToString(byte[] input, int flags) {
+        return new String(encode(input, flags), US_ASCII);
+    }
+
+    public static byte[] encode(byte[] input, int flags) {
+        java.util.Base64.Encoder encoder;
+        if ((flags & URL_SAFE) != 0) {
+            encoder = java.util.Base64.getUrlEncoder();
+        } else if ((flags & NO_WRAP) != 0) {
+            encoder = java.util.Base64.getEncoder();
+        } else {
+            // Android wraps lines at 76 characters unless NO_WRAP is given
+            encoder = java.util.Base64.getMimeEncoder(76, new byte[]{'\n'});
+        }
+        if ((flags & NO_PADDING) != 0) {
+            encoder = encoder.withoutPadding();
+        }
+        return encoder.encode(input);
+    }
+
+    private static java.util.Base64.Decoder decoder(int flags) {
+        return (flags & URL_SAFE) != 0 ? java.util.Base64.getUrlDecoder() : java.util.Base64.getMimeDecoder();
+    }
+}
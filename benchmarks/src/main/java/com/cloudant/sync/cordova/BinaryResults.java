@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2017 IBM Corp. All rights reserved.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.cordova;
+
+import android.util.Base64;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+
+/**
+ * The BinaryResults class decodes the ArrayBuffer results the plugin sends for calls made with an
+ * encoding, as www/datastoremanager.js does, so headless tools can read them. It lives in the
+ * plugin package to reach the package-private CborCodec.
+ */
+public final class BinaryResults {
+
+    private BinaryResults() {
+    }
+
+    /**
+     * @param message - The message of an ArrayBuffer PluginResult, which is base64 encoded
+     * @return - The decoded result as JSONObjects, JSONArrays and JSON values
+     * @throws IOException - If the result is not valid CBOR
+     * @throws JSONException - If the result cannot be represented as JSON
+     */
+    public static Object decode(String message) throws IOException, JSONException {
+        return CborCodec.toJSON(CborCodec.decode(Base64.decode(message, Base64.DEFAULT)));
+    }
+}
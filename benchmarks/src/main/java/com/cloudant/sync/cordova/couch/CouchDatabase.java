@@ -0,0 +1,399 @@
+/*
+ * Copyright (c) 2017 IBM Corp. All rights reserved.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.cordova.couch;
+
+import android.util.Base64;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+
+/**
+ * The CouchDatabase class is an in-memory database of a CouchServer. It keeps the revision history
+ * and the body of every leaf revision of each document, which is what the replication protocol
+ * needs, and the _local documents used for replication checkpoints. Attachments are kept inline
+ * in the revision bodies.
+ */
+public class CouchDatabase {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final String name;
+
+    // Guarded by this
+    private final Map<String, Document> documents = new HashMap<String, Document>();
+    private final TreeMap<Long, String> changes = new TreeMap<Long, String>();
+    private final Map<String, JSONObject> localDocuments = new HashMap<String, JSONObject>();
+    private long updateSeq;
+
+    /**
+     * The revisions of a document
+     */
+    private static class Document {
+        final String id;
+        // Every revision id known, including those of which no body is kept
+        final Set<String> history = new HashSet<String>();
+        // The bodies of the leaf revisions, by revision id
+        final Map<String, JSONObject> leaves = new HashMap<String, JSONObject>();
+        long seq;
+
+        Document(String id) {
+            this.id = id;
+        }
+
+        String winner() {
+            String winner = null;
+            boolean winnerDeleted = true;
+            for (Map.Entry<String, JSONObject> leaf : leaves.entrySet()) {
+                boolean deleted = leaf.getValue().optBoolean("_deleted");
+                if (winner == null || (winnerDeleted && !deleted)
+                    || (winnerDeleted == deleted && compare(leaf.getKey(), winner) > 0)) {
+                    winner = leaf.getKey();
+                    winnerDeleted = deleted;
+                }
+            }
+            return winner;
+        }
+    }
+
+    CouchDatabase(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return - The name of the database
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return - The number of documents, including deleted documents
+     */
+    public synchronized int size() {
+        return documents.size();
+    }
+
+    /**
+     * @return - The sequence number of the last change
+     */
+    public synchronized long getUpdateSeq() {
+        return updateSeq;
+    }
+
+    /**
+     * Creates or updates a document as a client would, generating its next revision
+     * @param doc - The document body, with an optional _id and the _rev it updates
+     * @return - The new revision id
+     * @throws JSONException
+     */
+    public synchronized String put(JSONObject doc) throws JSONException {
+        String id = doc.has("_id") ? doc.getString("_id") : UUID.randomUUID().toString();
+        String parent = doc.optString("_rev", null);
+        JSONObject body = new JSONObject(doc.toString());
+        body.remove("_revisions");
+
+        List<String> ids = new ArrayList<String>();
+        int generation = 1;
+        if (parent != null) {
+            Document document = documents.get(id);
+            JSONObject previous = document == null ? null : document.leaves.get(parent);
+            if (previous == null) {
+                throw new IllegalArgumentException("Revision " + parent + " of " + id + " is not a leaf");
+            }
+            JSONObject revisions = previous.getJSONObject("_revisions");
+            JSONArray previousIds = revisions.getJSONArray("ids");
+            for (int i = 0; i < previousIds.length(); i++) {
+                ids.add(previousIds.getString(i));
+            }
+            generation = revisions.getInt("start") + 1;
+        }
+        ids.add(0, digest(body.toString() + parent));
+
+        JSONObject revisions = new JSONObject();
+        revisions.put("start", generation);
+        revisions.put("ids", new JSONArray(ids));
+        body.put("_id", id);
+        body.put("_rev", generation + "-" + ids.get(0));
+        body.put("_revisions", revisions);
+        insert(body);
+        return body.getString("_rev");
+    }
+
+    /**
+     * Stores a revision with its history as given, as the replicator does with new_edits=false
+     * @param doc - The revision body with its _id, _rev and _revisions
+     * @throws JSONException
+     */
+    public synchronized void insert(JSONObject doc) throws JSONException {
+        String id = doc.getString("_id");
+        String rev = doc.getString("_rev");
+        List<String> history = history(doc);
+        if (history.isEmpty() || !history.get(0).equals(rev)) {
+            throw new IllegalArgumentException("Revision " + rev + " of " + id + " has no matching _revisions");
+        }
+
+        Document document = documents.get(id);
+        if (document == null) {
+            document = new Document(id);
+            documents.put(id, document);
+        }
+        if (document.history.contains(rev)) {
+            return;
+        }
+        for (int i = 1; i < history.size(); i++) {
+            document.leaves.remove(history.get(i));
+        }
+        document.history.addAll(history);
+        document.leaves.put(rev, stored(doc));
+
+        changes.remove(document.seq);
+        document.seq = ++updateSeq;
+        changes.put(document.seq, id);
+    }
+
+    /**
+     * @param id - The document id
+     * @return - The winning revision of the document, or null if it does not exist or is deleted
+     */
+    public synchronized JSONObject get(String id) {
+        Document document = documents.get(id);
+        if (document == null) {
+            return null;
+        }
+        JSONObject winner = document.leaves.get(document.winner());
+        return winner.optBoolean("_deleted") ? null : winner;
+    }
+
+    /**
+     * @param id - The document id
+     * @param revs - The requested revision ids, or null for all leaf revisions
+     * @return - The found revision bodies, or the missing revision ids, in the format of an
+     * open_revs request
+     * @throws JSONException
+     */
+    synchronized JSONArray openRevisions(String id, Collection<String> revs) throws JSONException {
+        Document document = documents.get(id);
+        JSONArray r = new JSONArray();
+        Collection<String> requested = revs != null ? revs : document == null ?
+            new ArrayList<String>() : document.leaves.keySet();
+        for (String rev : requested) {
+            JSONObject body = document == null ? null : document.leaves.get(rev);
+            if (body != null) {
+                r.put(new JSONObject().put("ok", body));
+            } else {
+                r.put(new JSONObject().put("missing", rev));
+            }
+        }
+        return r;
+    }
+
+    /**
+     * @param since - The sequence number after which to return changes
+     * @param limit - The maximum number of changes to return, or 0 for no limit
+     * @param docIds - The ids of the documents to return changes of, or null for all documents
+     * @return - The changes in the format of a _changes response
+     * @throws JSONException
+     */
+    synchronized JSONObject changes(long since, int limit, Set<String> docIds) throws JSONException {
+        JSONArray results = new JSONArray();
+        long lastSeq = since;
+        for (Map.Entry<Long, String> change : changes.tailMap(since, false).entrySet()) {
+            if (docIds != null && !docIds.contains(change.getValue())) {
+                continue;
+            }
+            Document document = documents.get(change.getValue());
+            JSONArray revs = new JSONArray();
+            for (String rev : document.leaves.keySet()) {
+                revs.put(new JSONObject().put("rev", rev));
+            }
+            JSONObject result = new JSONObject();
+            result.put("seq", change.getKey());
+            result.put("id", document.id);
+            result.put("changes", revs);
+            if (document.leaves.get(document.winner()).optBoolean("_deleted")) {
+                result.put("deleted", true);
+            }
+            results.put(result);
+            lastSeq = change.getKey();
+            if (limit > 0 && results.length() == limit) {
+                break;
+            }
+        }
+        if (results.length() == 0 || limit <= 0 || results.length() < limit) {
+            lastSeq = Math.max(lastSeq, updateSeq);
+        }
+        return new JSONObject().put("results", results).put("last_seq", lastSeq);
+    }
+
+    /**
+     * @param revs - The revision ids to check, by document id
+     * @return - The missing revision ids, in the format of a _revs_diff response
+     * @throws JSONException
+     */
+    synchronized JSONObject revsDiff(JSONObject revs) throws JSONException {
+        JSONObject r = new JSONObject();
+        Iterator<String> ids = revs.keys();
+        while (ids.hasNext()) {
+            String id = ids.next();
+            Document document = documents.get(id);
+            JSONArray missing = new JSONArray();
+            JSONArray candidates = revs.getJSONArray(id);
+            for (int i = 0; i < candidates.length(); i++) {
+                String rev = candidates.getString(i);
+                if (document == null || !document.history.contains(rev)) {
+                    missing.put(rev);
+                }
+            }
+            if (missing.length() > 0) {
+                r.put(id, new JSONObject().put("missing", missing));
+            }
+        }
+        return r;
+    }
+
+    /**
+     * @param id - The id of the _local document, without the _local/ prefix
+     * @return - The _local document, or null
+     */
+    synchronized JSONObject getLocal(String id) {
+        return localDocuments.get(id);
+    }
+
+    /**
+     * @param id - The id of the _local document, without the _local/ prefix
+     * @param doc - The _local document
+     * @return - The new revision id of the _local document
+     * @throws JSONException
+     */
+    synchronized String putLocal(String id, JSONObject doc) throws JSONException {
+        JSONObject previous = localDocuments.get(id);
+        int generation = previous == null ? 1 : Integer.parseInt(previous.getString("_rev").substring(2)) + 1;
+        String rev = "0-" + generation;
+        doc.put("_id", "_local/" + id);
+        doc.put("_rev", rev);
+        localDocuments.put(id, doc);
+        return rev;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * @return - The revision ids of the document's history, newest first
+     */
+    private static List<String> history(JSONObject doc) throws JSONException {
+        List<String> r = new ArrayList<String>();
+        JSONObject revisions = doc.optJSONObject("_revisions");
+        if (revisions == null) {
+            r.add(doc.getString("_rev"));
+            return r;
+        }
+        int start = revisions.getInt("start");
+        JSONArray ids = revisions.getJSONArray("ids");
+        for (int i = 0; i < ids.length(); i++) {
+            r.add((start - i) + "-" + ids.getString(i));
+        }
+        return r;
+    }
+
+    /**
+     * @return - The body to keep for a revision, with _revisions and full attachments
+     */
+    private static JSONObject stored(JSONObject doc) throws JSONException {
+        JSONObject body = new JSONObject(doc.toString());
+        if (!body.has("_revisions")) {
+            String rev = body.getString("_rev");
+            int dash = rev.indexOf('-');
+            body.put("_revisions", new JSONObject()
+                .put("start", Integer.parseInt(rev.substring(0, dash)))
+                .put("ids", new JSONArray().put(rev.substring(dash + 1))));
+        }
+        JSONObject attachments = body.optJSONObject("_attachments");
+        if (attachments != null) {
+            int generation = body.getJSONObject("_revisions").getInt("start");
+            Iterator<String> names = attachments.keys();
+            while (names.hasNext()) {
+                JSONObject attachment = attachments.getJSONObject(names.next());
+                if (attachment.has("data")) {
+                    byte[] data = Base64.decode(attachment.getString("data"), Base64.NO_WRAP);
+                    attachment.put("length", data.length);
+                    attachment.put("digest", "md5-" + Base64.encodeToString(md5(data), Base64.NO_WRAP));
+                    if (!attachment.has("revpos")) {
+                        attachment.put("revpos", generation);
+                    }
+                }
+                attachment.remove("follows");
+            }
+        }
+        return body;
+    }
+
+    /**
+     * Orders revision ids by generation and then by hash, as CouchDB picks winning revisions
+     */
+    private static int compare(String rev1, String rev2) {
+        int generation1 = Integer.parseInt(rev1.substring(0, rev1.indexOf('-')));
+        int generation2 = Integer.parseInt(rev2.substring(0, rev2.indexOf('-')));
+        if (generation1 != generation2) {
+            return generation1 < generation2 ? -1 : 1;
+        }
+        return rev1.compareTo(rev2);
+    }
+
+    private static String digest(String s) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : md5(s.getBytes(UTF_8))) {
+            sb.append(String.format("%02x", b & 0xff));
+        }
+        return sb.toString();
+    }
+
+    static byte[] md5(byte[] data) {
+        try {
+            return MessageDigest.getInstance("MD5").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param docIds - The document ids, or null
+     * @return - The ids as a set, or null
+     */
+    static Set<String> idSet(JSONArray docIds) throws JSONException {
+        if (docIds == null) {
+            return null;
+        }
+        Set<String> r = new LinkedHashSet<String>();
+        for (int i = 0; i < docIds.length(); i++) {
+            r.add(docIds.getString(i));
+        }
+        return r;
+    }
+}
@@ -0,0 +1,628 @@
+/*
+ * Copyright (c) 2017 IBM Corp. All rights reserved.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.cordova.couch;
+
+import android.util.Base64;
+import android.util.Log;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.apache.commons.io.IOUtils;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The CouchServer class is an in-process stand-in for CouchDB, serving in-memory databases over
+ * HTTP on the loopback interface. It implements the subset of the CouchDB API which the
+ * sync-android replicator uses:
+ * <ul>
+ * <li>GET, PUT and DELETE /{db}</li>
+ * <li>GET and PUT /{db}/_local/{id} for replication checkpoints</li>
+ * <li>GET and POST /{db}/_changes, with the _doc_ids filter</li>
+ * <li>POST /{db}/_revs_diff</li>
+ * <li>POST /{db}/_bulk_docs, with new_edits=false</li>
+ * <li>POST /{db}/_bulk_get</li>
+ * <li>GET /{db}/{id} with open_revs, revs, attachments and atts_since</li>
+ * <li>PUT /{db}/{id}?new_edits=false, with attachments in a multipart/related body</li>
+ * <li>GET /{db}/{id}/{attachment}</li>
+ * </ul>
+ * Latency, bandwidth limits and errors are injected according to the server's Faults.
+ */
+public class CouchServer {
+    private static final String TAG = CouchServer.class.getCanonicalName();
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Map<String, CouchDatabase> databases = new HashMap<String, CouchDatabase>();
+    private final Faults faults;
+    private final boolean bulkGet;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private HttpServer server;
+    private ExecutorService executor;
+
+    /**
+     * @param faults - The faults to inject
+     * @param bulkGet - true to serve _bulk_get, false to make the replicator fetch revisions one
+     *                document at a time
+     */
+    public CouchServer(Faults faults, boolean bulkGet) {
+        this.faults = faults;
+        this.bulkGet = bulkGet;
+    }
+
+    /**
+     * Starts serving on an ephemeral port of the loopback interface
+     * @param threads - The number of threads handling requests
+     * @throws IOException
+     */
+    public synchronized void start(int threads) throws IOException {
+        executor = Executors.newFixedThreadPool(threads);
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setExecutor(executor);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * Stops serving
+     */
+    public synchronized void stop() {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdownNow();
+            server = null;
+        }
+    }
+
+    /**
+     * @return - The root URI of the server
+     */
+    public synchronized URI getURI() {
+        InetSocketAddress address = server.getAddress();
+        return URI.create("http://" + address.getHostString() + ":" + address.getPort());
+    }
+
+    /**
+     * @return - The faults injected by the server
+     */
+    public Faults getFaults() {
+        return faults;
+    }
+
+    /**
+     * @param name - The database name
+     * @return - The database, which is created if it does not exist
+     */
+    public synchronized CouchDatabase database(String name) {
+        CouchDatabase database = databases.get(name);
+        if (database == null) {
+            database = new CouchDatabase(name);
+            databases.put(name, database);
+        }
+        return database;
+    }
+
+    /**
+     * @return - The number of requests, injected errors, request bytes and response bytes served
+     */
+    public long[] getCounters() {
+        return new long[]{requests.get(), errors.get(), bytesIn.get(), bytesOut.get()};
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * An HTTP error response
+     */
+    private static class HttpError extends Exception {
+        final int status;
+        final String error;
+
+        HttpError(int status, String error, String reason) {
+            super(reason);
+            this.status = status;
+            this.error = error;
+        }
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        try {
+            byte[] body = IOUtils.toByteArray(exchange.getRequestBody());
+            bytesIn.addAndGet(body.length);
+            faults.transfer(body.length);
+            faults.delay();
+
+            int status = faults.error(exchange.getRequestURI().getRawPath());
+            if (status != 0) {
+                errors.incrementAndGet();
+                throw new HttpError(status, "injected_error", "Injected by the stand-in server");
+            }
+            route(exchange, body);
+        } catch (HttpError e) {
+            respond(exchange, e.status, new JSONObject().put("error", e.error).put("reason", e.getMessage()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            exchange.close();
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to serve " + exchange.getRequestURI(), e);
+            respond(exchange, 500, new JSONObject().put("error", "internal_server_error").put("reason",
+                String.valueOf(e.getMessage())));
+        }
+    }
+
+    private void route(HttpExchange exchange, byte[] body) throws Exception {
+        String method = exchange.getRequestMethod();
+        List<String> path = segments(exchange.getRequestURI().getRawPath());
+        Map<String, String> query = query(exchange.getRequestURI().getRawQuery());
+
+        if (path.isEmpty()) {
+            respond(exchange, 200, new JSONObject().put("couchdb", "Welcome").put("version", "2.1.0"));
+            return;
+        }
+
+        String name = path.get(0);
+        CouchDatabase database;
+        synchronized (this) {
+            database = databases.get(name);
+        }
+        if (path.size() == 1) {
+            if ("PUT".equals(method)) {
+                if (database != null) {
+                    throw new HttpError(412, "file_exists", "The database could not be created, the file already exists.");
+                }
+                database(name);
+                respond(exchange, 201, new JSONObject().put("ok", true));
+            } else if ("DELETE".equals(method)) {
+                synchronized (this) {
+                    databases.remove(name);
+                }
+                respond(exchange, 200, new JSONObject().put("ok", true));
+            } else {
+                found(database);
+                respond(exchange, 200, new JSONObject()
+                    .put("db_name", name)
+                    .put("doc_count", database.size())
+                    .put("update_seq", database.getUpdateSeq()));
+            }
+            return;
+        }
+
+        found(database);
+        String id = path.get(1);
+        if ("_changes".equals(id)) {
+            changes(exchange, database, query, body);
+        } else if ("_revs_diff".equals(id)) {
+            respond(exchange, 200, database.revsDiff(json(body)));
+        } else if ("_bulk_docs".equals(id)) {
+            bulkDocs(exchange, database, json(body));
+        } else if ("_bulk_get".equals(id)) {
+            if (!bulkGet) {
+                throw new HttpError(404, "not_found", "missing");
+            }
+            if (!"POST".equals(method)) {
+                throw new HttpError(405, "method_not_allowed", "Only POST allowed");
+            }
+            bulkGet(exchange, database, query, json(body));
+        } else if ("_ensure_full_commit".equals(id)) {
+            respond(exchange, 201, new JSONObject().put("ok", true));
+        } else if ("_local".equals(id) && path.size() == 3) {
+            local(exchange, database, method, path.get(2), body);
+        } else if (path.size() == 2) {
+            document(exchange, database, method, id, query, body);
+        } else if (path.size() == 3 && "GET".equals(method)) {
+            attachment(exchange, database, id, path.get(2), query);
+        } else {
+            throw new HttpError(404, "not_found", "missing");
+        }
+    }
+
+    private void changes(HttpExchange exchange, CouchDatabase database, Map<String, String> query,
+                         byte[] body) throws Exception {
+        JSONObject request = body.length > 0 ? json(body) : new JSONObject();
+        String filter = query.get("filter");
+        Set<String> docIds = null;
+        if ("_doc_ids".equals(filter)) {
+            docIds = query.containsKey("doc_ids") ?
+                CouchDatabase.idSet(new JSONArray(query.get("doc_ids"))) :
+                CouchDatabase.idSet(request.optJSONArray("doc_ids"));
+        } else if (filter != null) {
+            throw new HttpError(400, "bad_request", "The stand-in server only supports the _doc_ids filter");
+        }
+        String since = query.containsKey("since") ? query.get("since") : "0";
+        int limit = query.containsKey("limit") ? Integer.parseInt(query.get("limit")) : 0;
+        respond(exchange, 200, database.changes("now".equals(since) ? database.getUpdateSeq() :
+            Long.parseLong(since.replaceAll("^\"|\"$", "")), limit, docIds));
+    }
+
+    private void bulkDocs(HttpExchange exchange, CouchDatabase database, JSONObject request) throws Exception {
+        JSONArray docs = request.getJSONArray("docs");
+        boolean newEdits = request.optBoolean("new_edits", true);
+        JSONArray r = new JSONArray();
+        for (int i = 0; i < docs.length(); i++) {
+            JSONObject doc = docs.getJSONObject(i);
+            if (newEdits) {
+                String rev = database.put(doc);
+                r.put(new JSONObject().put("ok", true).put("id", doc.optString("_id")).put("rev", rev));
+            } else {
+                database.insert(doc);
+            }
+        }
+        respond(exchange, 201, r);
+    }
+
+    private void bulkGet(HttpExchange exchange, CouchDatabase database, Map<String, String> query,
+                         JSONObject request) throws Exception {
+        boolean revs = "true".equals(query.get("revs"));
+        boolean attachments = "true".equals(query.get("attachments"));
+        JSONArray docs = request.getJSONArray("docs");
+        JSONArray results = new JSONArray();
+        for (int i = 0; i < docs.length(); i++) {
+            JSONObject doc = docs.getJSONObject(i);
+            String id = doc.getString("id");
+            Set<String> attsSince = strings(doc.optJSONArray("atts_since"));
+            JSONArray found = database.openRevisions(id, doc.has("rev") ?
+                Arrays.asList(doc.getString("rev")) : null);
+            JSONArray revisions = new JSONArray();
+            for (int j = 0; j < found.length(); j++) {
+                JSONObject revision = found.getJSONObject(j);
+                if (revision.has("ok")) {
+                    revisions.put(new JSONObject().put("ok",
+                        present(revision.getJSONObject("ok"), revs, attachments, attsSince)));
+                } else {
+                    revisions.put(new JSONObject().put("error", new JSONObject()
+                        .put("id", id)
+                        .put("rev", revision.getString("missing"))
+                        .put("error", "not_found")
+                        .put("reason", "missing")));
+                }
+            }
+            results.put(new JSONObject().put("id", id).put("docs", revisions));
+        }
+        respond(exchange, 200, new JSONObject().put("results", results));
+    }
+
+    private void local(HttpExchange exchange, CouchDatabase database, String method, String id, byte[] body)
+        throws Exception {
+        if ("PUT".equals(method)) {
+            String rev = database.putLocal(id, json(body));
+            respond(exchange, 201, new JSONObject().put("ok", true).put("id", "_local/" + id).put("rev", rev));
+        } else {
+            JSONObject doc = database.getLocal(id);
+            if (doc == null) {
+                throw new HttpError(404, "not_found", "missing");
+            }
+            respond(exchange, 200, doc);
+        }
+    }
+
+    private void document(HttpExchange exchange, CouchDatabase database, String method, String id,
+                          Map<String, String> query, byte[] body) throws Exception {
+        if ("PUT".equals(method)) {
+            String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+            JSONObject doc = contentType != null && contentType.startsWith("multipart/related") ?
+                multipart(contentType, body) : json(body);
+            doc.put("_id", id);
+            if ("false".equals(query.get("new_edits"))) {
+                database.insert(doc);
+                respond(exchange, 201, new JSONObject().put("ok", true).put("id", id).put("rev",
+                    doc.getString("_rev")));
+            } else {
+                String rev = database.put(doc);
+                respond(exchange, 201, new JSONObject().put("ok", true).put("id", id).put("rev", rev));
+            }
+            return;
+        }
+        if (!"GET".equals(method)) {
+            throw new HttpError(405, "method_not_allowed", "Only GET and PUT allowed");
+        }
+
+        boolean revs = "true".equals(query.get("revs"));
+        boolean attachments = "true".equals(query.get("attachments"));
+        Set<String> attsSince = query.containsKey("atts_since") ?
+            strings(new JSONArray(query.get("atts_since"))) : null;
+        String openRevs = query.get("open_revs");
+        if (openRevs != null) {
+            JSONArray found = database.openRevisions(id, "all".equals(openRevs) ? null :
+                strings(new JSONArray(openRevs)));
+            JSONArray r = new JSONArray();
+            for (int i = 0; i < found.length(); i++) {
+                JSONObject revision = found.getJSONObject(i);
+                r.put(revision.has("ok") ? new JSONObject().put("ok",
+                    present(revision.getJSONObject("ok"), revs, attachments, attsSince)) : revision);
+            }
+            respond(exchange, 200, r);
+            return;
+        }
+
+        JSONObject doc = revision(database, id, query.get("rev"));
+        respond(exchange, 200, present(doc, revs, attachments, attsSince));
+    }
+
+    private void attachment(HttpExchange exchange, CouchDatabase database, String id, String name,
+                            Map<String, String> query) throws Exception {
+        JSONObject doc = revision(database, id, query.get("rev"));
+        JSONObject attachments = doc.optJSONObject("_attachments");
+        JSONObject attachment = attachments == null ? null : attachments.optJSONObject(name);
+        if (attachment == null || !attachment.has("data")) {
+            throw new HttpError(404, "not_found", "Document is missing attachment");
+        }
+        byte[] data = Base64.decode(attachment.getString("data"), Base64.NO_WRAP);
+        respond(exchange, 200, attachment.optString("content_type", "application/octet-stream"), data);
+    }
+
+    private JSONObject revision(CouchDatabase database, String id, String rev) throws Exception {
+        JSONObject doc;
+        if (rev == null) {
+            doc = database.get(id);
+        } else {
+            JSONObject found = database.openRevisions(id, Arrays.asList(rev)).getJSONObject(0);
+            doc = found.optJSONObject("ok");
+        }
+        if (doc == null) {
+            throw new HttpError(404, "not_found", "missing");
+        }
+        return doc;
+    }
+
+    /**
+     * @return - A copy of a stored revision body as requested: with or without its _revisions, and
+     * with its attachments inline, or as stubs if not requested or already held by the client
+     */
+    private static JSONObject present(JSONObject stored, boolean revs, boolean attachments,
+                                      Set<String> attsSince) throws JSONException {
+        JSONObject doc = new JSONObject(stored.toString());
+        if (!revs) {
+            doc.remove("_revisions");
+        }
+        JSONObject inline = doc.optJSONObject("_attachments");
+        if (inline == null) {
+            return doc;
+        }
+
+        // The client holds the attachments which existed at the newest ancestor it has
+        int held = 0;
+        if (attsSince != null) {
+            JSONObject revisions = stored.getJSONObject("_revisions");
+            int start = revisions.getInt("start");
+            JSONArray ids = revisions.getJSONArray("ids");
+            for (int i = 0; i < ids.length() && held == 0; i++) {
+                if (attsSince.contains((start - i) + "-" + ids.getString(i))) {
+                    held = start - i;
+                }
+            }
+        }
+        Iterator<String> names = inline.keys();
+        while (names.hasNext()) {
+            JSONObject attachment = inline.getJSONObject(names.next());
+            if (!attachments || attachment.optInt("revpos") <= held) {
+                attachment.remove("data");
+                attachment.put("stub", true);
+            }
+        }
+        return doc;
+    }
+
+    /**
+     * Parses a multipart/related document body: a JSON part followed by one part for each
+     * attachment marked with follows, in the order the attachments appear in the JSON
+     */
+    private static JSONObject multipart(String contentType, byte[] body) throws Exception {
+        String boundary = null;
+        for (String parameter : contentType.split(";")) {
+            parameter = parameter.trim();
+            if (parameter.startsWith("boundary=")) {
+                boundary = parameter.substring("boundary=".length()).replace("\"", "");
+            }
+        }
+        if (boundary == null) {
+            throw new HttpError(400, "bad_request", "Missing multipart boundary");
+        }
+
+        List<byte[]> parts = new ArrayList<byte[]>();
+        byte[] delimiter = ("--" + boundary).getBytes(UTF_8);
+        int start = indexOf(body, delimiter, 0);
+        while (start >= 0) {
+            int headersStart = start + delimiter.length;
+            if (headersStart + 1 < body.length && body[headersStart] == '-' && body[headersStart + 1] == '-') {
+                break;
+            }
+            int contentStart = indexOf(body, "\r\n\r\n".getBytes(UTF_8), headersStart);
+            int end = indexOf(body, delimiter, headersStart);
+            if (contentStart < 0 || end < 0) {
+                throw new HttpError(400, "bad_request", "Malformed multipart body");
+            }
+            // Each part ends with the CRLF which precedes the next delimiter
+            parts.add(Arrays.copyOfRange(body, contentStart + 4, end - 2));
+            start = end;
+        }
+        if (parts.isEmpty()) {
+            throw new HttpError(400, "bad_request", "Empty multipart body");
+        }
+
+        String json = new String(parts.get(0), UTF_8);
+        JSONObject doc = new JSONObject(json);
+        int part = 1;
+        for (String name : attachmentNames(json)) {
+            JSONObject attachment = doc.getJSONObject("_attachments").getJSONObject(name);
+            if (attachment.optBoolean("follows")) {
+                if (part >= parts.size()) {
+                    throw new HttpError(400, "bad_request", "Missing attachment part for " + name);
+                }
+                attachment.put("data", Base64.encodeToString(parts.get(part++), Base64.NO_WRAP));
+            }
+        }
+        return doc;
+    }
+
+    /**
+     * @return - The names of the attachments in a document, in the order they appear in its JSON
+     */
+    private static List<String> attachmentNames(String json) throws JSONException {
+        List<String> r = new ArrayList<String>();
+        JSONTokener tokener = new JSONTokener(json);
+        if (tokener.nextClean() != '{') {
+            return r;
+        }
+        char c = tokener.nextClean();
+        while (c != '}' && c != 0) {
+            tokener.back();
+            String key = tokener.nextValue().toString();
+            tokener.nextClean(); // ':'
+            c = tokener.nextClean();
+            if ("_attachments".equals(key) && c == '{') {
+                c = tokener.nextClean();
+                while (c != '}' && c != 0) {
+                    tokener.back();
+                    r.add(tokener.nextValue().toString());
+                    tokener.nextClean(); // ':'
+                    tokener.nextValue();
+                    c = tokener.nextClean();
+                    if (c == ',') {
+                        c = tokener.nextClean();
+                    }
+                }
+                return r;
+            }
+            tokener.back();
+            tokener.nextValue();
+            c = tokener.nextClean();
+            if (c == ',') {
+                c = tokener.nextClean();
+            }
+        }
+        return r;
+    }
+
+    private static int indexOf(byte[] data, byte[] pattern, int from) {
+        outer:
+        for (int i = from; i <= data.length - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static void found(CouchDatabase database) throws HttpError {
+        if (database == null) {
+            throw new HttpError(404, "not_found", "Database does not exist.");
+        }
+    }
+
+    private static JSONObject json(byte[] body) throws HttpError {
+        try {
+            return new JSONObject(new String(body, UTF_8));
+        } catch (JSONException e) {
+            throw new HttpError(400, "bad_request", "invalid UTF-8 JSON");
+        }
+    }
+
+    private static Set<String> strings(JSONArray array) throws JSONException {
+        if (array == null) {
+            return null;
+        }
+        Set<String> r = new HashSet<String>();
+        for (int i = 0; i < array.length(); i++) {
+            r.add(array.getString(i));
+        }
+        return r;
+    }
+
+    private static List<String> segments(String rawPath) throws UnsupportedEncodingException {
+        List<String> r = new ArrayList<String>();
+        for (String segment : rawPath.split("/")) {
+            if (!segment.isEmpty()) {
+                r.add(URLDecoder.decode(segment.replace("+", "%2B"), "UTF-8"));
+            }
+        }
+        // Design document ids contain a slash
+        if (r.size() > 2 && "_design".equals(r.get(1))) {
+            r.set(1, "_design/" + r.remove(2));
+        }
+        return r;
+    }
+
+    private static Map<String, String> query(String rawQuery) throws UnsupportedEncodingException {
+        Map<String, String> r = new HashMap<String, String>();
+        if (rawQuery == null) {
+            return r;
+        }
+        for (String parameter : rawQuery.split("&")) {
+            int equals = parameter.indexOf('=');
+            if (equals > 0) {
+                r.put(URLDecoder.decode(parameter.substring(0, equals), "UTF-8"),
+                    URLDecoder.decode(parameter.substring(equals + 1), "UTF-8"));
+            }
+        }
+        return r;
+    }
+
+    private void respond(HttpExchange exchange, int status, Object json) throws IOException {
+        respond(exchange, status, "application/json", json.toString().getBytes(UTF_8));
+    }
+
+    private void respond(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+        try {
+            faults.transfer(body.length);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        bytesOut.addAndGet(body.length);
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.getResponseHeaders().set("Server", "CouchDB stand-in");
+        exchange.sendResponseHeaders(status, body.length);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(body);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2017 IBM Corp. All rights reserved.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.cordova.couch;
+
+import java.util.Random;
+import java.util.regex.Pattern;
+
+/**
+ * The Faults class configures the latency, bandwidth and errors injected by a CouchServer. All
+ * settings may be changed while the server runs.
+ */
+public class Faults {
+    private volatile long latencyMillis;
+    private volatile long jitterMillis;
+    private volatile long bytesPerSecond;
+    private volatile double errorRate;
+    private volatile int errorStatus = 503;
+    private volatile Pattern errorPaths;
+    private final Random random;
+
+    /**
+     * @param seed - The seed for the injected jitter and errors
+     */
+    public Faults(long seed) {
+        this.random = new Random(seed);
+    }
+
+    /**
+     * @param latencyMillis - The delay added before each response
+     * @param jitterMillis - The maximum random delay added on top of the latency
+     * @return - These Faults
+     */
+    public Faults latency(long latencyMillis, long jitterMillis) {
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+        return this;
+    }
+
+    /**
+     * @param bytesPerSecond - The rate at which request and response bodies are transferred, or 0
+     *                       for no limit
+     * @return - These Faults
+     */
+    public Faults bandwidth(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        return this;
+    }
+
+    /**
+     * @param errorRate - The probability that a request fails without being handled
+     * @param errorStatus - The HTTP status of failed requests
+     * @param errorPaths - A pattern matched against request paths to select the requests which may
+     *                   fail, or null for all requests
+     * @return - These Faults
+     */
+    public Faults errors(double errorRate, int errorStatus, String errorPaths) {
+        this.errorRate = errorRate;
+        this.errorStatus = errorStatus;
+        this.errorPaths = errorPaths == null ? null : Pattern.compile(errorPaths);
+        return this;
+    }
+
+    /**
+     * Sleeps for the configured latency
+     * @throws InterruptedException
+     */
+    void delay() throws InterruptedException {
+        long delay = latencyMillis;
+        if (jitterMillis > 0) {
+            synchronized (random) {
+                delay += (long) (random.nextDouble() * jitterMillis);
+            }
+        }
+        if (delay > 0) {
+            Thread.sleep(delay);
+        }
+    }
+
+    /**
+     * Sleeps for the time the given number of bytes take to transfer at the configured bandwidth
+     * @param bytes - The number of bytes transferred
+     * @throws InterruptedException
+     */
+    void transfer(long bytes) throws InterruptedException {
+        long rate = bytesPerSecond;
+        if (rate > 0 && bytes > 0) {
+            Thread.sleep(bytes * 1000 / rate);
+        }
+    }
+
+    /**
+     * @param path - The request path
+     * @return - The HTTP status to fail the request with, or 0 to handle it
+     */
+    int error(String path) {
+        double rate = errorRate;
+        Pattern paths = errorPaths;
+        if (rate <= 0 || (paths != null && !paths.matcher(path).find())) {
+            return 0;
+        }
+        synchronized (random) {
+            return random.nextDouble() < rate ? errorStatus : 0;
+        }
+    }
+}
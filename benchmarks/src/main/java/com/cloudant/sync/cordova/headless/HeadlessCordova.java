@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2017 IBM Corp. All rights reserved.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.cordova.headless;
+
+import android.app.Activity;
+import android.content.Context;
+
+import org.apache.cordova.CordovaInterface;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The HeadlessCordova class provides the CordovaInterface of a plugin running on a plain JVM. As
+ * in Cordova, plugins share a cached thread pool, and application directories are kept under a
+ * base directory.
+ */
+public class HeadlessCordova implements CordovaInterface {
+    private final Activity activity;
+    private final ExecutorService threadPool;
+
+    /**
+     * @param baseDir - The directory holding the application directories
+     */
+    public HeadlessCordova(File baseDir) {
+        this.activity = new Activity(baseDir);
+        this.threadPool = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "pool-cordova-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    @Override
+    public Activity getActivity() {
+        return activity;
+    }
+
+    @Override
+    public Context getContext() {
+        return activity;
+    }
+
+    @Override
+    public ExecutorService getThreadPool() {
+        return threadPool;
+    }
+}
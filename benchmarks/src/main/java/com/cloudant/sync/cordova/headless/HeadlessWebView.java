@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2017 IBM Corp. All rights reserved.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.cordova.headless;
+
+import android.util.Log;
+
+import org.apache.cordova.CordovaWebView;
+import org.apache.cordova.PluginResult;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The HeadlessWebView class stands in for the WebView receiving plugin results, passing each result
+ * to the listener registered for its callback id
+ */
+public class HeadlessWebView implements CordovaWebView {
+    private static final String TAG = HeadlessWebView.class.getCanonicalName();
+
+    /**
+     * Receives the results sent for a callback id
+     */
+    public interface ResultListener {
+        /**
+         * @param result - The result sent by the plugin
+         */
+        void onResult(PluginResult result);
+    }
+
+    private final Map<String, ResultListener> listeners = new ConcurrentHashMap<String, ResultListener>();
+
+    /**
+     * @param callbackId - The callback id
+     * @param listener - The listener to pass the results for the callback id to
+     */
+    public void register(String callbackId, ResultListener listener) {
+        listeners.put(callbackId, listener);
+    }
+
+    /**
+     * @param callbackId - The callback id to stop listening to
+     */
+    public void unregister(String callbackId) {
+        listeners.remove(callbackId);
+    }
+
+    @Override
+    public void sendPluginResult(PluginResult result, String callbackId) {
+        ResultListener listener = listeners.get(callbackId);
+        if (listener == null) {
+            Log.w(TAG, "Dropped result for unknown callback " + callbackId);
+            return;
+        }
+        if (!result.getKeepCallback()) {
+            listeners.remove(callbackId);
+        }
+        listener.onResult(result);
+    }
+}
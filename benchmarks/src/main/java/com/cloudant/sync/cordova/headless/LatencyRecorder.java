@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2017 IBM Corp. All rights reserved.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.cordova.headless;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The LatencyRecorder class records the latency of every call per action and reports exact
+ * percentiles. Recording is synchronized per action; latencies are kept in growing arrays, which
+ * is small compared to the datastore for the run lengths the harness is meant for.
+ */
+public class LatencyRecorder {
+    private final Map<String, Latencies> actions = new TreeMap<String, Latencies>();
+
+    private static class Latencies {
+        long[] nanos = new long[1024];
+        int count;
+        long errors;
+
+        synchronized void record(long latencyNanos, boolean error) {
+            if (count == nanos.length) {
+                nanos = Arrays.copyOf(nanos, count * 2);
+            }
+            nanos[count++] = latencyNanos;
+            if (error) {
+                errors++;
+            }
+        }
+
+        synchronized long[] sorted() {
+            long[] copy = Arrays.copyOf(nanos, count);
+            Arrays.sort(copy);
+            return copy;
+        }
+    }
+
+    /**
+     * @param action - The action called
+     * @param latencyNanos - The time from the call until its final result
+     * @param error - true if the call completed with an error
+     */
+    public void record(String action, long latencyNanos, boolean error) {
+        latencies(action).record(latencyNanos, error);
+    }
+
+    /**
+     * @param elapsedNanos - The duration of the measurement
+     * @return - The JSON count, errors, throughput and latency percentiles in milliseconds of
+     * each action and of all actions
+     * @throws JSONException
+     */
+    public JSONObject toJSON(long elapsedNanos) throws JSONException {
+        JSONObject r = new JSONObject();
+        long[] all = new long[0];
+        long allErrors = 0;
+        for (Map.Entry<String, Latencies> entry : snapshot().entrySet()) {
+            long[] sorted = entry.getValue().sorted();
+            long errors;
+            synchronized (entry.getValue()) {
+                errors = entry.getValue().errors;
+            }
+            r.put(entry.getKey(), summary(sorted, errors, elapsedNanos));
+            all = merge(all, sorted);
+            allErrors += errors;
+        }
+        r.put("all", summary(all, allErrors, elapsedNanos));
+        return r;
+    }
+
+    /**
+     * @param elapsedNanos - The duration of the measurement
+     * @return - A table of the count, errors, throughput and latency percentiles of each action
+     * @throws JSONException
+     */
+    public String format(long elapsedNanos) throws JSONException {
+        JSONObject json = toJSON(elapsedNanos);
+        StringBuilder sb = new StringBuilder(String.format(Locale.ROOT,
+            "%-36s %9s %7s %10s %9s %9s %9s %9s %9s %9s%n", "action", "count", "errors", "ops/s", "mean ms",
+            "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms"));
+        for (String action : JSONObject.getNames(json)) {
+            JSONObject s = json.getJSONObject(action);
+            sb.append(String.format(Locale.ROOT, "%-36s %9d %7d %10.1f %9.3f %9.3f %9.3f %9.3f %9.3f %9.3f%n", action,
+                s.getLong("count"), s.getLong("errors"), s.getDouble("throughput"), s.getDouble("mean"),
+                s.getDouble("p50"), s.getDouble("p90"), s.getDouble("p99"), s.getDouble("p999"),
+                s.getDouble("max")));
+        }
+        return sb.toString();
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    private synchronized Latencies latencies(String action) {
+        Latencies l = actions.get(action);
+        if (l == null) {
+            l = new Latencies();
+            actions.put(action, l);
+        }
+        return l;
+    }
+
+    private synchronized Map<String, Latencies> snapshot() {
+        return new TreeMap<String, Latencies>(actions);
+    }
+
+    private static JSONObject summary(long[] sorted, long errors, long elapsedNanos) throws JSONException {
+        long sum = 0;
+        for (long l : sorted) {
+            sum += l;
+        }
+        JSONObject s = new JSONObject();
+        s.put("count", sorted.length);
+        s.put("errors", errors);
+        s.put("throughput", elapsedNanos == 0 ? 0 : sorted.length * 1e9 / elapsedNanos);
+        s.put("mean", sorted.length == 0 ? 0 : millis(sum / sorted.length));
+        s.put("p50", millis(percentile(sorted, 0.5)));
+        s.put("p90", millis(percentile(sorted, 0.9)));
+        s.put("p99", millis(percentile(sorted, 0.99)));
+        s.put("p999", millis(percentile(sorted, 0.999)));
+        s.put("max", sorted.length == 0 ? 0 : millis(sorted[sorted.length - 1]));
+        return s;
+    }
+
+    // Nearest-rank percentile
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(p * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static long[] merge(long[] a, long[] b) {
+        long[] r = new long[a.length + b.length];
+        int i = 0, j = 0, k = 0;
+        while (i < a.length && j < b.length) {
+            r[k++] = a[i] <= b[j] ? a[i++] : b[j++];
+        }
+        while (i < a.length) {
+            r[k++] = a[i++];
+        }
+        while (j < b.length) {
+            r[k++] = b[j++];
+        }
+        return r;
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright (c) 2017 IBM Corp. All rights reserved.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.cordova.headless;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The LoadTest class drives CloudantSyncPlugin through a PluginHost from many concurrent clients
+ * and reports the throughput and latency percentiles of each operation. Each client calls an
+ * operation, waits for its result and calls the next, picking operations by weight from the mix:
+ * <ul>
+ * <li>getDocument - getDocument of a random existing document</li>
+ * <li>create - createOrUpdateDocumentFromRevision creating a new document</li>
+ * <li>update - createOrUpdateDocumentFromRevision updating a random document with its last known
+ * revision; concurrent updates of the same document fail with a conflict and count as errors</li>
+ * <li>find - find of up to 20 documents in a random group, using a JSON index</li>
+ * </ul>
+ * Usage: LoadTest [--clients 16] [--duration 30] [--warmup 5] [--documents 1000] [--size 1024]
+ * [--mix getDocument=60,create=10,update=10,find=20] [--dir path] [--json path] [--metrics]
+ */
+public class LoadTest {
+    private static final String STORE = "loadtest";
+    private static final int GROUPS = 100;
+    private static final long TIMEOUT_MILLIS = 60000;
+
+    private int clients = 16;
+    private int durationSeconds = 30;
+    private int warmupSeconds = 5;
+    private int documents = 1000;
+    private int size = 1024;
+    private final Map<String, Integer> mix = new LinkedHashMap<String, Integer>();
+    private File dir;
+    private File json;
+    private boolean metrics;
+
+    private PluginHost host;
+    private final List<String> ids = new ArrayList<String>();
+    private final Map<String, String> revisions = new ConcurrentHashMap<String, String>();
+    private final LatencyRecorder recorder = new LatencyRecorder();
+
+    public static void main(String[] args) throws Exception {
+        LoadTest test = new LoadTest();
+        test.parse(args);
+        test.run();
+    }
+
+    private void parse(String[] args) throws Exception {
+        mix.put("getDocument", 60);
+        mix.put("create", 10);
+        mix.put("update", 10);
+        mix.put("find", 20);
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if ("--metrics".equals(arg)) {
+                metrics = true;
+                continue;
+            }
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + arg);
+            }
+            String value = args[++i];
+            if ("--clients".equals(arg)) {
+                clients = Integer.parseInt(value);
+            } else if ("--duration".equals(arg)) {
+                durationSeconds = Integer.parseInt(value);
+            } else if ("--warmup".equals(arg)) {
+                warmupSeconds = Integer.parseInt(value);
+            } else if ("--documents".equals(arg)) {
+                documents = Integer.parseInt(value);
+            } else if ("--size".equals(arg)) {
+                size = Integer.parseInt(value);
+            } else if ("--mix".equals(arg)) {
+                mix.clear();
+                for (String entry : value.split(",")) {
+                    String[] pair = entry.split("=");
+                    if (!isOperation(pair[0])) {
+                        throw new IllegalArgumentException("Unknown operation in mix: " + pair[0]);
+                    }
+                    mix.put(pair[0], Integer.parseInt(pair[1]));
+                }
+            } else if ("--dir".equals(arg)) {
+                dir = new File(value);
+            } else if ("--json".equals(arg)) {
+                json = new File(value);
+            } else {
+                throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+    }
+
+    private void run() throws Exception {
+        if (dir == null) {
+            dir = Files.createTempDirectory("cloudant-sync-loadtest").toFile();
+        }
+        host = new PluginHost(dir);
+        try {
+            setUp();
+
+            final long measureFrom = System.nanoTime() + TimeUnit.SECONDS.toNanos(warmupSeconds);
+            final long stopAt = measureFrom + TimeUnit.SECONDS.toNanos(durationSeconds);
+            final CountDownLatch finished = new CountDownLatch(clients);
+            for (int c = 0; c < clients; c++) {
+                final Random random = new Random(c);
+                Thread client = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            while (System.nanoTime() < stopAt) {
+                                String operation = pick(random);
+                                long started = System.nanoTime();
+                                PluginHost.PluginCall call = call(operation, random);
+                                if (!call.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                                    throw new Exception(operation + " timed out");
+                                }
+                                completed(operation, call);
+                                // Only calls started within the measurement window are recorded
+                                if (started >= measureFrom && started < stopAt) {
+                                    recorder.record(operation, call.getLatencyNanos(), call.isError());
+                                }
+                            }
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                        } finally {
+                            finished.countDown();
+                        }
+                    }
+                }, "LoadTest-client-" + c);
+                client.setDaemon(true);
+                client.start();
+            }
+            finished.await();
+
+            long elapsed = TimeUnit.SECONDS.toNanos(durationSeconds);
+            System.out.printf("%d clients, %ds measured after %ds warmup, %d preloaded documents of %d bytes%n%n",
+                clients, durationSeconds, warmupSeconds, documents, size);
+            System.out.print(recorder.format(elapsed));
+            if (json != null) {
+                writeJSON(elapsed);
+            }
+        } finally {
+            host.close();
+        }
+    }
+
+    private void setUp() throws Exception {
+        host.openDocumentStore(STORE);
+        host.callAndWait("ensureIndexed", new JSONArray().put(STORE).put("groupIndex")
+            .put(new JSONArray().put("group")), TIMEOUT_MILLIS);
+        if (metrics) {
+            host.callAndWait("setMetricsEnabled", new JSONArray().put(true), TIMEOUT_MILLIS);
+        }
+
+        Random random = new Random(-1);
+        for (int i = 0; i < documents; i++) {
+            PluginHost.PluginCall call = call("create", random);
+            call.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            call.getValue();
+            completed("create", call);
+        }
+    }
+
+    private PluginHost.PluginCall call(String operation, Random random) throws Exception {
+        if ("getDocument".equals(operation)) {
+            return host.call("getDocument", new JSONArray().put(STORE).put(randomId(random)));
+        } else if ("create".equals(operation)) {
+            return host.call("createOrUpdateDocumentFromRevision", new JSONArray().put(STORE).put(document(random,
+                null, null)).put(true));
+        } else if ("update".equals(operation)) {
+            String id = randomId(random);
+            return host.call("createOrUpdateDocumentFromRevision", new JSONArray().put(STORE).put(document(random,
+                id, revisions.get(id))).put(false));
+        } else {
+            JSONObject query = new JSONObject()
+                .put("selector", new JSONObject().put("group", random.nextInt(GROUPS)))
+                .put("limit", 20);
+            return host.call("find", new JSONArray().put(STORE).put(query));
+        }
+    }
+
+    // Remembers the IDs and revisions of written documents
+    private void completed(String operation, PluginHost.PluginCall call) throws Exception {
+        if (("create".equals(operation) || "update".equals(operation)) && !call.isError()) {
+            JSONObject saved = (JSONObject) call.getValue();
+            String id = saved.getString("_id");
+            if (revisions.put(id, saved.getString("_rev")) == null) {
+                synchronized (ids) {
+                    ids.add(id);
+                }
+            }
+        }
+    }
+
+    private JSONObject document(Random random, String id, String rev) throws Exception {
+        JSONObject document = new JSONObject();
+        if (id != null) {
+            document.put("_id", id);
+            document.put("_rev", rev);
+        }
+        document.put("group", random.nextInt(GROUPS));
+        document.put("updated", System.currentTimeMillis());
+        StringBuilder payload = new StringBuilder();
+        while (payload.length() < size) {
+            payload.append(Long.toString(random.nextLong(), 36));
+        }
+        document.put("payload", payload.substring(0, size));
+        return document;
+    }
+
+    private String randomId(Random random) {
+        synchronized (ids) {
+            return ids.get(random.nextInt(ids.size()));
+        }
+    }
+
+    private String pick(Random random) {
+        int total = 0;
+        for (int weight : mix.values()) {
+            total += weight;
+        }
+        int r = random.nextInt(total);
+        for (Map.Entry<String, Integer> entry : mix.entrySet()) {
+            r -= entry.getValue();
+            if (r < 0) {
+                return entry.getKey();
+            }
+        }
+        throw new IllegalStateException();
+    }
+
+    private static boolean isOperation(String name) {
+        return "getDocument".equals(name) || "create".equals(name) || "update".equals(name) || "find".equals(name);
+    }
+
+    private void writeJSON(long elapsed) throws Exception {
+        JSONObject r = new JSONObject();
+        r.put("config", new JSONObject()
+            .put("clients", clients)
+            .put("duration", durationSeconds)
+            .put("warmup", warmupSeconds)
+            .put("documents", documents)
+            .put("size", size)
+            .put("mix", new JSONObject(mix)));
+        r.put("results", recorder.toJSON(elapsed));
+        if (metrics) {
+            r.put("pluginMetrics", host.callAndWait("getMetrics", new JSONArray(), TIMEOUT_MILLIS));
+        }
+        Writer writer = new OutputStreamWriter(new FileOutputStream(json), "UTF-8");
+        try {
+            writer.write(r.toString(2));
+        } finally {
+            writer.close();
+        }
+    }
+}
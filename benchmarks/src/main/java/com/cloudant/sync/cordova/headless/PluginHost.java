@@ -0,0 +1,286 @@
+/*
+ * Copyright (c) 2017 IBM Corp. All rights reserved.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.cordova.headless;
+
+import com.cloudant.sync.cordova.BinaryResults;
+import com.cloudant.sync.cordova.CloudantSyncPlugin;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The PluginHost class runs CloudantSyncPlugin on a plain JVM. Calls are passed to the plugin as
+ * the Cordova PluginManager does: on a single bridge thread, with the arguments as JSON text, and
+ * with a new CallbackContext whose results are delivered to the HeadlessWebView.
+ */
+public class PluginHost {
+    private static final String SERVICE = "CloudantSync";
+
+    private final HeadlessCordova cordova;
+    private final HeadlessWebView webView = new HeadlessWebView();
+    private final CloudantSyncPlugin plugin = new CloudantSyncPlugin();
+    private final AtomicInteger callbackIds = new AtomicInteger();
+
+    // Stands in for the thread on which the WebView calls into the plugins
+    private final ExecutorService bridge = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "JavaBridge");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /**
+     * Thrown when a call completes with an error result
+     */
+    public static class PluginException extends Exception {
+        PluginException(String action, Object message) {
+            super(action + " failed: " + message);
+        }
+    }
+
+    /**
+     * A call of a plugin action and its final result
+     */
+    public static class PluginCall implements HeadlessWebView.ResultListener {
+        private final String action;
+        private final String callbackId;
+        private final HeadlessWebView.ResultListener progress;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private final long started = System.nanoTime();
+        private volatile long finished;
+        private volatile PluginResult result;
+
+        PluginCall(String action, String callbackId, HeadlessWebView.ResultListener progress) {
+            this.action = action;
+            this.callbackId = callbackId;
+            this.progress = progress;
+        }
+
+        @Override
+        public void onResult(PluginResult pluginResult) {
+            if (pluginResult.getKeepCallback()) {
+                if (progress != null) {
+                    progress.onResult(pluginResult);
+                }
+                return;
+            }
+            finished = System.nanoTime();
+            result = pluginResult;
+            done.countDown();
+        }
+
+        /**
+         * @param timeout - The maximum time to wait
+         * @param unit - The unit of the timeout
+         * @return - true if the call completed
+         * @throws InterruptedException
+         */
+        public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+            return done.await(timeout, unit);
+        }
+
+        /**
+         * @return - The action called
+         */
+        public String getAction() {
+            return action;
+        }
+
+        /**
+         * @return - The callback id of the call
+         */
+        public String getCallbackId() {
+            return callbackId;
+        }
+
+        /**
+         * @return - The final result, or null if the call has not completed
+         */
+        public PluginResult getResult() {
+            return result;
+        }
+
+        /**
+         * @return - true if the call completed with an error
+         */
+        public boolean isError() {
+            PluginResult r = result;
+            return r != null && r.getStatus() != PluginResult.Status.OK.ordinal() &&
+                r.getStatus() != PluginResult.Status.NO_RESULT.ordinal();
+        }
+
+        /**
+         * @return - The time from the call until its final result, in nanoseconds
+         */
+        public long getLatencyNanos() {
+            return finished - started;
+        }
+
+        /**
+         * @return - The decoded message of the final result
+         * @throws PluginException - If the call completed with an error
+         * @throws JSONException - If the message cannot be decoded
+         */
+        public Object getValue() throws PluginException, JSONException {
+            Object value = decode(result);
+            if (isError()) {
+                throw new PluginException(action, value);
+            }
+            return value;
+        }
+    }
+
+    /**
+     * @param baseDir - The directory holding the application directories, including the default
+     *                DocumentStore directory
+     */
+    public PluginHost(File baseDir) {
+        this.cordova = new HeadlessCordova(baseDir);
+        plugin.privateInitialize(cordova, webView);
+    }
+
+    /**
+     * @return - The hosted plugin
+     */
+    public CloudantSyncPlugin getPlugin() {
+        return plugin;
+    }
+
+    /**
+     * @return - The WebView receiving plugin results
+     */
+    public HeadlessWebView getWebView() {
+        return webView;
+    }
+
+    /**
+     * @param action - The action to call
+     * @param args - The arguments of the action
+     * @return - The call, completed when the plugin sends a final result
+     */
+    public PluginCall call(String action, JSONArray args) {
+        return call(action, args, null);
+    }
+
+    /**
+     * @param action - The action to call
+     * @param args - The arguments of the action
+     * @param progress - The listener for results sent with keepCallback, or null
+     * @return - The call, completed when the plugin sends a final result
+     */
+    public PluginCall call(final String action, JSONArray args, HeadlessWebView.ResultListener progress) {
+        final String callbackId = SERVICE + callbackIds.incrementAndGet();
+        final String rawArgs = args.toString();
+        final PluginCall call = new PluginCall(action, callbackId, progress);
+        webView.register(callbackId, call);
+
+        bridge.execute(new Runnable() {
+            @Override
+            public void run() {
+                CallbackContext callbackContext = new CallbackContext(callbackId, webView);
+                try {
+                    if (!plugin.execute(action, rawArgs, callbackContext)) {
+                        callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.INVALID_ACTION));
+                    }
+                } catch (JSONException e) {
+                    callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.JSON_EXCEPTION));
+                } catch (Exception e) {
+                    callbackContext.error(e.getMessage());
+                }
+            }
+        });
+        return call;
+    }
+
+    /**
+     * Calls an action and waits for its final result
+     * @param action - The action to call
+     * @param args - The arguments of the action
+     * @param timeoutMillis - The maximum time to wait
+     * @return - The decoded message of the final result
+     * @throws Exception - If the call fails or times out
+     */
+    public Object callAndWait(String action, JSONArray args, long timeoutMillis) throws Exception {
+        PluginCall call = call(action, args);
+        if (!call.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+            webView.unregister(call.getCallbackId());
+            throw new Exception(action + " timed out after " + timeoutMillis + "ms");
+        }
+        return call.getValue();
+    }
+
+    /**
+     * Opens a DocumentStore in the default DocumentStore directory
+     * @param name - The name of the DocumentStore
+     * @throws Exception - If the DocumentStore cannot be opened
+     */
+    public void openDocumentStore(String name) throws Exception {
+        JSONObject path = (JSONObject) callAndWait("createDatastoreManager", new JSONArray().put(JSONObject.NULL),
+            30000);
+        callAndWait("openDatastore", new JSONArray().put(path.getInt("id")).put(name), 30000);
+    }
+
+    /**
+     * Stops the bridge and thread pool threads
+     */
+    public void close() {
+        plugin.onDestroy();
+        bridge.shutdownNow();
+        cordova.getThreadPool().shutdownNow();
+    }
+
+    /**
+     * @param result - A plugin result
+     * @return - The decoded message of the result, or null
+     * @throws JSONException - If the message cannot be decoded
+     */
+    static Object decode(PluginResult result) throws JSONException {
+        if (result == null || result.getMessage() == null) {
+            return null;
+        }
+        switch (result.getMessageType()) {
+            case PluginResult.MESSAGE_TYPE_JSON:
+            case PluginResult.MESSAGE_TYPE_STRING:
+            case PluginResult.MESSAGE_TYPE_NUMBER:
+            case PluginResult.MESSAGE_TYPE_BOOLEAN:
+            case PluginResult.MESSAGE_TYPE_NULL:
+                return new JSONTokener(result.getMessage()).nextValue();
+            case PluginResult.MESSAGE_TYPE_ARRAYBUFFER:
+                // Documents requested with an encoding
+                try {
+                    return BinaryResults.decode(result.getMessage());
+                } catch (IOException e) {
+                    throw new JSONException("Invalid binary result: " + e.getMessage());
+                }
+            default:
+                return result.getMessage();
+        }
+    }
+}
@@ -0,0 +1,414 @@
+/*
+ * Copyright (c) 2017 IBM Corp. All rights reserved.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.cordova.headless;
+
+import com.cloudant.sync.cordova.couch.CouchServer;
+import com.cloudant.sync.cordova.couch.Faults;
+
+import org.apache.cordova.PluginResult;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The Replay class replays a recording made with the startRecording action against fresh
+ * datastores through a PluginHost, and reports the latency of each action. Calls are made at the
+ * recorded times, divided by the speed, without waiting for earlier calls to complete, so the
+ * recorded concurrency is kept. A speed of 0 makes each call as soon as the previous one was made.
+ * <p>
+ * Calls are adapted to the replay environment:
+ * <ul>
+ * <li>createDatastoreManager uses the default directory and openDatastore the replay's manager</li>
+ * <li>datastores used but not opened in the recording are opened before the replay starts</li>
+ * <li>document updates and deletes use the latest revision the replay has seen of the document,
+ * since the recorded revisions do not exist in the fresh datastores</li>
+ * <li>replicators replicate with an in-process CouchServer, and their HTTP interceptor events are
+ * unlocked at once, as replicator.js does when no interceptors are registered; the recorded
+ * unlockInterceptor calls are skipped</li>
+ * <li>dumpTrace writes to the default file, and startRecording and stopRecording are skipped</li>
+ * <li>seedDatastore is skipped, since the app assets are not available, and the seeded datastore
+ * is opened empty</li>
+ * </ul>
+ * Calls which refer to state created before the recording started, such as documents read but not
+ * written in the recording, complete with errors and are counted as such.
+ * <p>
+ * Usage: Replay --file recording.ndjson [--speed 1] [--dir path] [--json path]
+ */
+public class Replay {
+    private static final long TIMEOUT_MILLIS = 600000;
+
+    private static final Set<String> SKIPPED = new HashSet<String>(Arrays.asList(
+        "startRecording", "stopRecording", "unlockInterceptor", "seedDatastore"));
+
+    private static final Set<String> STORE_ACTIONS = new HashSet<String>(Arrays.asList(
+        "createOrUpdateDocumentFromRevision", "getDocument", "deleteDocumentFromRevision", "ensureIndexed",
+        "deleteIndexNamed", "find", "getConflictedDocumentIds", "resolveConflictsForDocument",
+        "resolveAllConflicts", "resolveConflictsInBatches", "countConflicts", "streamConflictedDocumentIds",
+        "adviseIndexes", "ensureTextIndexed", "patchDocument", "getDocuments", "setWriteBehind", "flush",
+        "getWriteBehindStatus", "transaction"));
+
+    private File file;
+    private double speed = 1;
+    private File dir;
+    private File json;
+
+    private PluginHost host;
+    private CouchServer server;
+    private int managerId;
+    private final Map<String, String> revisions = new ConcurrentHashMap<String, String>();
+    private final LatencyRecorder recorder = new LatencyRecorder();
+
+    /**
+     * A recorded call
+     */
+    private static class Call {
+        final long atMicros;
+        final String action;
+        final JSONArray args;
+
+        Call(long atMicros, String action, JSONArray args) {
+            this.atMicros = atMicros;
+            this.action = action;
+            this.args = args;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Replay replay = new Replay();
+        replay.parse(args);
+        replay.run();
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + arg);
+            }
+            String value = args[++i];
+            if ("--file".equals(arg)) {
+                file = new File(value);
+            } else if ("--speed".equals(arg)) {
+                speed = Double.parseDouble(value);
+            } else if ("--dir".equals(arg)) {
+                dir = new File(value);
+            } else if ("--json".equals(arg)) {
+                json = new File(value);
+            } else {
+                throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+        if (file == null) {
+            throw new IllegalArgumentException("Missing --file");
+        }
+        if (speed < 0) {
+            throw new IllegalArgumentException("--speed must not be negative");
+        }
+    }
+
+    private void run() throws Exception {
+        JSONObject header = new JSONObject();
+        List<Call> calls = read(header);
+        if (dir == null) {
+            dir = Files.createTempDirectory("cloudant-sync-replay").toFile();
+        }
+        server = new CouchServer(new Faults(0), true);
+        server.start(8);
+        host = new PluginHost(dir);
+        ExecutorService waiters = Executors.newCachedThreadPool();
+        try {
+            setUp(calls);
+
+            long started = System.nanoTime();
+            long maxLagNanos = 0;
+            long totalLagNanos = 0;
+            int made = 0;
+            for (final Call call : calls) {
+                if (SKIPPED.contains(call.action)) {
+                    continue;
+                }
+                long due = started + (speed == 0 ? 0 : (long) (call.atMicros * 1000 / speed));
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                long lag = Math.max(0, System.nanoTime() - due);
+                maxLagNanos = Math.max(maxLagNanos, lag);
+                totalLagNanos += lag;
+                made++;
+                dispatch(call, waiters);
+            }
+            waiters.shutdown();
+            if (!waiters.awaitTermination(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                System.out.println("Some calls did not complete within " + TIMEOUT_MILLIS + "ms");
+            }
+            long elapsed = System.nanoTime() - started;
+
+            long recordedMicros = calls.isEmpty() ? 0 : calls.get(calls.size() - 1).atMicros;
+            System.out.printf("%s: %d calls over %.3fs recorded with %s payloads, replayed %d at speed %s in %.3fs%n",
+                file.getName(), calls.size(), recordedMicros / 1e6, header.optString("payloads"), made,
+                speed == 0 ? "max" : String.valueOf(speed), elapsed / 1e9);
+            System.out.printf("dispatch lag behind the recorded schedule: mean %.3fms, max %.3fms%n%n",
+                made == 0 ? 0 : totalLagNanos / 1e6 / made, maxLagNanos / 1e6);
+            System.out.print(recorder.format(elapsed));
+
+            if (json != null) {
+                JSONObject r = new JSONObject();
+                r.put("recording", new JSONObject(header.toString())
+                    .put("file", file.getAbsolutePath())
+                    .put("calls", calls.size())
+                    .put("durationMicros", recordedMicros));
+                r.put("speed", speed);
+                r.put("replayed", made);
+                r.put("meanLagMicros", made == 0 ? 0 : totalLagNanos / 1000 / made);
+                r.put("maxLagMicros", maxLagNanos / 1000);
+                r.put("results", recorder.toJSON(elapsed));
+                Writer writer = new OutputStreamWriter(new FileOutputStream(json), "UTF-8");
+                try {
+                    writer.write(r.toString(2));
+                } finally {
+                    writer.close();
+                }
+            }
+        } finally {
+            waiters.shutdownNow();
+            host.close();
+            server.stop();
+        }
+    }
+
+    /**
+     * Reads a recording
+     * @param header - The object to copy the recording header into
+     * @return - The calls, with their times relative to the first call
+     */
+    private List<Call> read(JSONObject header) throws Exception {
+        List<Call> r = new ArrayList<Call>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line = reader.readLine();
+            JSONObject h = line == null ? null : new JSONObject(line);
+            if (h == null || !"cloudant-sync-recording".equals(h.optString("format"))) {
+                throw new Exception(file + " is not a recording");
+            }
+            if (h.getInt("version") != 1) {
+                throw new Exception("Unsupported recording version " + h.getInt("version"));
+            }
+            for (String key : h.keySet()) {
+                header.put(key, h.get(key));
+            }
+
+            long at = 0;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                JSONArray entry = new JSONArray(line);
+                at = r.isEmpty() ? 0 : at + entry.getLong(0);
+                r.add(new Call(at, entry.getString(1), entry.getJSONArray(2)));
+            }
+        } finally {
+            reader.close();
+        }
+        return r;
+    }
+
+    /**
+     * Creates the replay's DocumentStore manager and opens the datastores which the recording uses
+     * without opening them
+     */
+    private void setUp(List<Call> calls) throws Exception {
+        JSONObject manager = (JSONObject) host.callAndWait("createDatastoreManager",
+            new JSONArray().put(JSONObject.NULL), TIMEOUT_MILLIS);
+        managerId = manager.getInt("id");
+
+        Set<String> opened = new HashSet<String>();
+        Set<String> used = new LinkedHashSet<String>();
+        for (Call call : calls) {
+            if ("openDatastore".equals(call.action) && call.args.opt(1) instanceof String) {
+                opened.add(call.args.getString(1));
+            } else if (STORE_ACTIONS.contains(call.action) && call.args.opt(0) instanceof String &&
+                !opened.contains(call.args.getString(0))) {
+                used.add(call.args.getString(0));
+            }
+        }
+        for (String store : used) {
+            host.callAndWait("openDatastore", new JSONArray().put(managerId).put(store), TIMEOUT_MILLIS);
+        }
+    }
+
+    /**
+     * Makes a call, adapted to the replay, and records its latency when it completes
+     */
+    private void dispatch(final Call call, ExecutorService waiters) throws Exception {
+        JSONArray args = new JSONArray(call.args.toString());
+        if ("createDatastoreManager".equals(call.action)) {
+            args.put(0, JSONObject.NULL);
+        } else if ("openDatastore".equals(call.action)) {
+            args.put(0, managerId);
+        } else if ("dumpTrace".equals(call.action) && args.length() > 0) {
+            args.put(0, JSONObject.NULL);
+        } else if ("createOrUpdateDocumentFromRevision".equals(call.action) ||
+            "deleteDocumentFromRevision".equals(call.action)) {
+            JSONObject doc = args.optJSONObject(1);
+            String rev = doc == null ? null : revisions.get(doc.optString("_id"));
+            if (rev != null && doc.has("_rev")) {
+                doc.put("_rev", rev);
+            }
+        } else if ("patchDocument".equals(call.action) ||
+            ("getDocument".equals(call.action) && !args.isNull(3))) {
+            // The revision patched, or the revision known to the caller of a conditional get
+            int revIndex = "patchDocument".equals(call.action) ? 2 : 3;
+            String rev = revisions.get(args.optString(1));
+            if (rev != null) {
+                args.put(revIndex, rev);
+            }
+        } else if ("getDocuments".equals(call.action)) {
+            JSONArray requests = args.optJSONArray(1);
+            for (int i = 0; requests != null && i < requests.length(); i++) {
+                JSONObject request = requests.optJSONObject(i);
+                String rev = request == null ? null : revisions.get(request.optString("_id"));
+                if (rev != null && request.has("_rev")) {
+                    request.put("_rev", rev);
+                }
+            }
+        } else if ("transaction".equals(call.action)) {
+            JSONArray ops = args.optJSONArray(1);
+            for (int i = 0; ops != null && i < ops.length(); i++) {
+                JSONObject op = ops.optJSONObject(i);
+                JSONObject doc = op == null ? null : op.optJSONObject("document");
+                String rev = doc == null ? null : revisions.get(doc.optString("_id"));
+                if (rev != null && doc.has("_rev")) {
+                    doc.put("_rev", rev);
+                }
+            }
+        } else if ("createReplicator".equals(call.action)) {
+            replicate(call, args);
+            return;
+        } else if ("scheduleReplication".equals(call.action)) {
+            JSONObject replicator = args.optJSONObject(0);
+            if (replicator != null && replicator.has("uri")) {
+                replicator.put("uri", remote(replicator));
+            }
+        }
+
+        final PluginHost.PluginCall pluginCall = host.call(call.action, args);
+        waiters.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (!pluginCall.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                        recorder.record(call.action, TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS), true);
+                        return;
+                    }
+                    recorder.record(call.action, pluginCall.getLatencyNanos(), pluginCall.isError());
+                    if (!pluginCall.isError()) {
+                        track(call.action, pluginCall.getValue());
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    /**
+     * Creates a replicator against the CouchServer. Its latency is the time until it is created,
+     * since its callback is kept for replication events.
+     */
+    private void replicate(final Call call, JSONArray args) throws Exception {
+        final JSONObject replicator = args.getJSONObject(0);
+        replicator.put("uri", remote(replicator));
+        final int token = replicator.getInt("token");
+        final long started = System.nanoTime();
+        final AtomicBoolean created = new AtomicBoolean();
+        host.call(call.action, args, new HeadlessWebView.ResultListener() {
+            @Override
+            public void onResult(PluginResult pluginResult) {
+                try {
+                    Object message = PluginHost.decode(pluginResult);
+                    if (!(message instanceof JSONArray)) {
+                        if (created.compareAndSet(false, true)) {
+                            recorder.record(call.action, System.nanoTime() - started, false);
+                        }
+                        return;
+                    }
+                    JSONArray event = (JSONArray) message;
+                    String type = event.getString(0);
+                    if ("request".equals(type) || "response".equals(type)) {
+                        host.call("unlockInterceptor", new JSONArray().put(token).put(type).put(JSONObject.NULL)
+                            .put(JSONObject.NULL).put(event.getString(event.length() - 1)));
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    /**
+     * @return - The URI of the CouchServer database replicated with by a replicator
+     */
+    private String remote(JSONObject replicator) {
+        String name = "replay" + replicator.optInt("token");
+        server.database(name);
+        return server.getURI() + "/" + name;
+    }
+
+    /**
+     * Keeps the latest revision of documents written or read
+     */
+    private void track(String action, Object value) {
+        if ("transaction".equals(action) && value instanceof JSONArray) {
+            JSONArray results = (JSONArray) value;
+            for (int i = 0; i < results.length(); i++) {
+                JSONObject result = results.optJSONObject(i);
+                if (result != null) {
+                    revisions.put(result.optString("_id"), result.optString("_rev"));
+                }
+            }
+            return;
+        }
+        if (!(value instanceof JSONObject)) {
+            return;
+        }
+        JSONObject doc = (JSONObject) value;
+        if (("createOrUpdateDocumentFromRevision".equals(action) || "getDocument".equals(action) ||
+            "deleteDocumentFromRevision".equals(action) || "patchDocument".equals(action)) && doc.has("_id") &&
+            doc.has("_rev")) {
+            revisions.put(doc.optString("_id"), doc.optString("_rev"));
+        }
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright (c) 2017 IBM Corp. All rights reserved.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.cordova.headless;
+
+import android.util.Base64;
+
+import com.cloudant.sync.cordova.couch.CouchDatabase;
+import com.cloudant.sync.cordova.couch.CouchServer;
+import com.cloudant.sync.cordova.couch.Faults;
+
+import org.apache.cordova.PluginResult;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The ReplicationBenchmark class measures push and pull replication throughput through the
+ * plugin's real replication path against an in-process CouchServer. Replicators are created with
+ * the createReplicator action, so every HTTP request of the replicator goes through
+ * SyncPluginInterceptor, which sends it to the bridge and waits for unlockInterceptor.
+ * <p>
+ * The benchmark plays the JavaScript side of the bridge in two ways: without interceptors it
+ * unlocks each request at once with no context, as replicator.js does when no interceptors are
+ * registered; with interceptors it waits the given JavaScript time and unlocks with a context
+ * which adds a request header, as an interceptor setting an authorization header would.
+ * <p>
+ * Usage: ReplicationBenchmark [--documents 1000] [--size 1024] [--attachment 0] [--runs 3]
+ * [--directions push,pull] [--interceptors none,js] [--js-delay-micros 200] [--latency 0]
+ * [--jitter 0] [--bandwidth 0] [--error-rate 0] [--bulk-get true] [--dir path] [--json path]
+ */
+public class ReplicationBenchmark {
+    private static final long TIMEOUT_MILLIS = 600000;
+    private static final String SERVER_DATABASE = "benchmark";
+
+    private int documents = 1000;
+    private int size = 1024;
+    private int attachment;
+    private int runs = 3;
+    private String[] directions = {"push", "pull"};
+    private String[] interceptors = {"none", "js"};
+    private long jsDelayMicros = 200;
+    private long latencyMillis;
+    private long jitterMillis;
+    private long bandwidth;
+    private double errorRate;
+    private boolean bulkGet = true;
+    private File dir;
+    private File json;
+
+    private PluginHost host;
+    private CouchServer server;
+    private final AtomicInteger tokens = new AtomicInteger();
+
+    public static void main(String[] args) throws Exception {
+        ReplicationBenchmark benchmark = new ReplicationBenchmark();
+        benchmark.parse(args);
+        benchmark.run();
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + arg);
+            }
+            String value = args[++i];
+            if ("--documents".equals(arg)) {
+                documents = Integer.parseInt(value);
+            } else if ("--size".equals(arg)) {
+                size = Integer.parseInt(value);
+            } else if ("--attachment".equals(arg)) {
+                attachment = Integer.parseInt(value);
+            } else if ("--runs".equals(arg)) {
+                runs = Integer.parseInt(value);
+            } else if ("--directions".equals(arg)) {
+                directions = value.split(",");
+            } else if ("--interceptors".equals(arg)) {
+                interceptors = value.split(",");
+            } else if ("--js-delay-micros".equals(arg)) {
+                jsDelayMicros = Long.parseLong(value);
+            } else if ("--latency".equals(arg)) {
+                latencyMillis = Long.parseLong(value);
+            } else if ("--jitter".equals(arg)) {
+                jitterMillis = Long.parseLong(value);
+            } else if ("--bandwidth".equals(arg)) {
+                bandwidth = Long.parseLong(value);
+            } else if ("--error-rate".equals(arg)) {
+                errorRate = Double.parseDouble(value);
+            } else if ("--bulk-get".equals(arg)) {
+                bulkGet = Boolean.parseBoolean(value);
+            } else if ("--dir".equals(arg)) {
+                dir = new File(value);
+            } else if ("--json".equals(arg)) {
+                json = new File(value);
+            } else {
+                throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+    }
+
+    private void run() throws Exception {
+        if (dir == null) {
+            dir = Files.createTempDirectory("cloudant-sync-replication").toFile();
+        }
+        server = new CouchServer(new Faults(42)
+            .latency(latencyMillis, jitterMillis)
+            .bandwidth(bandwidth)
+            .errors(errorRate, 503, null), bulkGet);
+        server.start(8);
+        host = new PluginHost(dir);
+        try {
+            System.out.printf("%d documents of %d bytes, %d byte attachments, %dms latency, %dms jitter, " +
+                    "%s bandwidth, %.3f error rate, _bulk_get %s%n%n", documents, size, attachment, latencyMillis,
+                jitterMillis, bandwidth > 0 ? bandwidth + "B/s" : "unlimited", errorRate,
+                bulkGet ? "enabled" : "disabled");
+            System.out.printf("%-6s %-12s %8s %10s %10s %10s %10s%n", "type", "interceptors", "run", "docs",
+                "seconds", "docs/sec", "requests");
+
+            JSONArray results = new JSONArray();
+            int run = 0;
+            for (String direction : directions) {
+                for (String mode : interceptors) {
+                    for (int i = 0; i < runs; i++) {
+                        JSONObject result = replicate(direction, "js".equals(mode), run++);
+                        result.put("run", i + 1);
+                        results.put(result);
+                        System.out.printf("%-6s %-12s %8d %10d %10.3f %10.1f %10d%n", direction, mode, i + 1,
+                            result.getInt("documents"), result.getDouble("seconds"),
+                            result.getDouble("docsPerSecond"), result.getLong("requests"));
+                        if (!result.isNull("error")) {
+                            System.out.println("    failed: " + result.get("error"));
+                        }
+                    }
+                }
+            }
+
+            if (json != null) {
+                Writer writer = new OutputStreamWriter(new FileOutputStream(json), "UTF-8");
+                try {
+                    writer.write(results.toString(2));
+                } finally {
+                    writer.close();
+                }
+            }
+        } finally {
+            host.close();
+            server.stop();
+        }
+    }
+
+    /**
+     * Runs one replication in a fresh local DocumentStore and remote database
+     * @return - The result of the run
+     */
+    private JSONObject replicate(String direction, boolean js, int run) throws Exception {
+        String store = direction + run;
+        String database = SERVER_DATABASE + run;
+        host.openDocumentStore(store);
+        CouchDatabase remote = server.database(database);
+
+        Random random = new Random(run);
+        if ("push".equals(direction)) {
+            for (int i = 0; i < documents; i++) {
+                host.callAndWait("createOrUpdateDocumentFromRevision", new JSONArray().put(store)
+                    .put(document(random, i)).put(true), TIMEOUT_MILLIS);
+            }
+        } else {
+            for (int i = 0; i < documents; i++) {
+                remote.put(document(random, i));
+            }
+        }
+
+        final int token = tokens.incrementAndGet();
+        JSONObject replicator = new JSONObject()
+            .put("token", token)
+            .put("datastore", new JSONObject().put("name", store))
+            .put("uri", server.getURI() + "/" + database)
+            .put("type", direction);
+
+        final CountDownLatch created = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(1);
+        final AtomicReference<JSONArray> outcome = new AtomicReference<JSONArray>();
+        final boolean intercept = js;
+        host.call("createReplicator", new JSONArray().put(replicator), new HeadlessWebView.ResultListener() {
+            @Override
+            public void onResult(PluginResult pluginResult) {
+                try {
+                    Object message = PluginHost.decode(pluginResult);
+                    if (!(message instanceof JSONArray)) {
+                        created.countDown();
+                        return;
+                    }
+                    JSONArray event = (JSONArray) message;
+                    String type = event.getString(0);
+                    if ("request".equals(type) || "response".equals(type)) {
+                        unlock(token, type, event, intercept);
+                    } else {
+                        outcome.set(event);
+                        finished.countDown();
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        if (!created.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+            throw new Exception("createReplicator timed out");
+        }
+
+        long[] before = server.getCounters();
+        long started = System.nanoTime();
+        host.callAndWait("startReplication", new JSONArray().put(new JSONObject().put("token", token)),
+            TIMEOUT_MILLIS);
+        if (!finished.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+            throw new Exception(direction + " replication timed out");
+        }
+        long elapsed = System.nanoTime() - started;
+        long[] after = server.getCounters();
+        host.callAndWait("destroyReplicator", new JSONArray().put(new JSONObject().put("token", token)),
+            TIMEOUT_MILLIS);
+
+        // Injected errors may make the replication fail, which is reported rather than retried
+        JSONArray event = outcome.get();
+        boolean complete = "complete".equals(event.getString(0));
+        int replicated = complete ? event.getInt(1) : 0;
+        double seconds = elapsed / 1e9;
+        return new JSONObject()
+            .put("error", complete ? JSONObject.NULL : event.opt(1))
+            .put("type", direction)
+            .put("interceptors", js ? "js" : "none")
+            .put("documents", replicated)
+            .put("remoteDocuments", remote.size())
+            .put("seconds", seconds)
+            .put("docsPerSecond", replicated / seconds)
+            .put("requests", after[0] - before[0])
+            .put("injectedErrors", after[1] - before[1])
+            .put("requestBytes", after[2] - before[2])
+            .put("responseBytes", after[3] - before[3]);
+    }
+
+    /**
+     * Answers an interceptor event as replicator.js does
+     */
+    private void unlock(int token, String type, JSONArray event, boolean intercept) throws Exception {
+        Object context = JSONObject.NULL;
+        if (intercept) {
+            // Interceptors run in the WebView, after the event has crossed the bridge
+            if (jsDelayMicros > 0) {
+                TimeUnit.MICROSECONDS.sleep(jsDelayMicros);
+            }
+            JSONObject request = event.optJSONObject(1);
+            if (request != null && "request".equals(type)) {
+                JSONObject headers = request.optJSONObject("headers");
+                if (headers == null) {
+                    headers = new JSONObject();
+                    request.put("headers", headers);
+                }
+                headers.put("x-benchmark", String.valueOf(token));
+            }
+            context = new JSONObject()
+                .put("request", request == null ? new JSONObject().put("headers", new JSONObject()) : request)
+                .put("response", event.isNull(2) ? JSONObject.NULL : event.get(2))
+                .put("replayRequest", event.optBoolean(3));
+        }
+        host.call("unlockInterceptor", new JSONArray().put(token).put(type).put(context).put(JSONObject.NULL)
+            .put(event.getString(event.length() - 1)));
+    }
+
+    private JSONObject document(Random random, int i) throws Exception {
+        JSONObject body = new JSONObject()
+            .put("_id", String.format("doc%08d", i))
+            .put("group", random.nextInt(100))
+            .put("payload", payload(random, size));
+        if (attachment > 0) {
+            byte[] data = new byte[attachment];
+            random.nextBytes(data);
+            JSONObject att = new JSONObject()
+                .put("content_type", "application/octet-stream")
+                .put("data", Base64.encodeToString(data, Base64.NO_WRAP));
+            body.put("_attachments", new JSONObject().put("data.bin", att));
+        }
+        return body;
+    }
+
+    private static String payload(Random random, int size) {
+        StringBuilder sb = new StringBuilder(size);
+        for (int i = 0; i < size; i++) {
+            sb.append((char) ('a' + random.nextInt(26)));
+        }
+        return sb.toString();
+    }
+}
@@ -29,6 +29,20 @@ exports.defineProperty = function(object, key, options) {
     }
 };
 
+// Checks a native conflict resolution strategy, which is either a strategy
+// name or an Object with the strategy name and field.
+exports.validateConflictStrategy = function(strategy) {
+    var name = typeof strategy === 'string' ? strategy :
+        (strategy && typeof strategy === 'object' ? strategy.name : undefined);
+    if (['deterministic', 'latest', 'merge'].indexOf(name) === -1) {
+        throw new Error('strategy must be one of deterministic, latest or merge');
+    }
+
+    if (name === 'latest' && typeof strategy.field !== 'string') {
+        throw new Error('latest strategy field must be a String');
+    }
+};
+
 exports.generateToken = function () {
     return checkTimestamp((new Date()).getTime());
 };
@@ -0,0 +1,401 @@
+/*
+ * Copyright (c) 2017 IBM Corp. All rights reserved.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+
+package com.cloudant.sync.cordova;
+
+import android.util.Log;
+
+import com.cloudant.sync.documentstore.DocumentStore;
+import com.cloudant.sync.event.Subscribe;
+import com.cloudant.sync.event.notifications.ReplicationCompleted;
+
+import org.apache.cordova.PluginResult;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The BackgroundIndexer class keeps the query indexes of DocumentStores up to date on a low
+ * priority thread, so that the indexing after a large pull or many writes does not stall the
+ * next find. Writes made through the plugin schedule a refresh after a debounce period, which
+ * further writes extend up to a maximum delay; a completed replication which changed documents
+ * schedules one straight away. DocumentStores closed in the meantime are skipped, as their next
+ * find refreshes the indexes.
+ * <p>
+ * sync-android 2.0 brings every index up to date within Query.find, so a find cannot read an
+ * index without refreshing it. A stale find is instead answered from the result of the last
+ * identical stale find, kept until the next background refresh of its DocumentStore completes:
+ * it reflects the indexes as last refreshed, as a CouchDB stale view does. With background
+ * indexing disabled, writes discard the kept results.
+ */
+class BackgroundIndexer {
+    private static final String TAG = BackgroundIndexer.class.getCanonicalName();
+
+    static final String STALE_OK = "ok";
+    static final String STALE_UPDATE_AFTER = "update_after";
+
+    static final String ENABLED_KEY = "enabled";
+    static final String DEBOUNCE_KEY = "debounce";
+    static final String MAX_DELAY_KEY = "maxDelay";
+
+    static final long DEFAULT_DEBOUNCE = 1000;
+    static final long DEFAULT_MAX_DELAY = 10000;
+
+    // The stale results kept per DocumentStore, least recently used first
+    private static final int MAX_STALE_RESULTS = 20;
+
+    /**
+     * Acquires the DocumentStores to refresh, so they are not closed while idle during a refresh
+     */
+    interface DocumentStores {
+        /**
+         * @param documentStoreName - The name of the DocumentStore
+         * @return - The DocumentStore, acquired until it is released, or null if it is not open
+         */
+        DocumentStore acquireIfOpen(String documentStoreName);
+
+        /**
+         * @param documentStoreName - The name of a DocumentStore acquired
+         */
+        void release(String documentStoreName);
+    }
+
+    private final DocumentStores documentStores;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "CloudantSync-BackgroundIndexer");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        }
+    });
+
+    // Guarded by this
+    private boolean enabled = true;
+    private long debounce = DEFAULT_DEBOUNCE;
+    private long maxDelay = DEFAULT_MAX_DELAY;
+    private final Map<String, Pending> pending = new HashMap<String, Pending>();
+    private final Map<String, Map<String, PluginResult>> staleResults = new HashMap<String, Map<String,
+        PluginResult>>();
+
+    // Counters since the plugin was loaded
+    private long refreshes;
+    private long failures;
+    private long totalRefreshNanos;
+    private long lastRefreshNanos;
+    private long staleHits;
+    private long staleMisses;
+
+    /**
+     * A refresh waiting to run
+     */
+    private static class Pending {
+        private final long dirtySince;
+        private ScheduledFuture<?> future;
+
+        Pending(long dirtySince) {
+            this.dirtySince = dirtySince;
+        }
+    }
+
+    /**
+     * Schedules a refresh when a replication into a DocumentStore completes
+     */
+    public class ReplicationListener {
+        private final String documentStoreName;
+
+        ReplicationListener(String documentStoreName) {
+            this.documentStoreName = documentStoreName;
+        }
+
+        @Subscribe
+        public void complete(ReplicationCompleted event) {
+            if (event.documentsReplicated > 0) {
+                modified(documentStoreName, 0);
+            }
+        }
+    }
+
+    /**
+     * @param documentStores - Acquires the plugin's open DocumentStores
+     */
+    BackgroundIndexer(DocumentStores documentStores) {
+        this.documentStores = documentStores;
+    }
+
+    /**
+     * @param stale - The stale option of a find, or null
+     * @return - true if the option allows a stale result
+     * @throws Exception - If the option is not one of "ok" or "update_after"
+     */
+    static boolean isStale(String stale) throws Exception {
+        if (stale == null) {
+            return false;
+        }
+        if (!STALE_OK.equals(stale) && !STALE_UPDATE_AFTER.equals(stale)) {
+            throw new Exception("stale must be either \"" + STALE_OK + "\" or \"" + STALE_UPDATE_AFTER + "\"");
+        }
+        return true;
+    }
+
+    /**
+     * @param documentStoreName - The name of the DocumentStore replicated into
+     * @return - A listener to register with the Replicator
+     */
+    ReplicationListener listener(String documentStoreName) {
+        return new ReplicationListener(documentStoreName);
+    }
+
+    /**
+     * Schedules a debounced refresh after a write to a DocumentStore
+     * @param documentStoreName - The name of the DocumentStore written
+     */
+    void documentStoreModified(String documentStoreName) {
+        long delay;
+        synchronized (this) {
+            delay = debounce;
+        }
+        modified(documentStoreName, delay);
+    }
+
+    /**
+     * @param documentStoreName - The name of the DocumentStore queried
+     * @param request - The query and result encoding
+     * @return - The kept result of the identical stale find, or null
+     */
+    synchronized PluginResult staleResult(String documentStoreName, String request) {
+        Map<String, PluginResult> results = staleResults.get(documentStoreName);
+        PluginResult result = results == null ? null : results.get(request);
+        if (result == null) {
+            staleMisses++;
+        } else {
+            staleHits++;
+        }
+        return result;
+    }
+
+    /**
+     * Keeps the result of a stale find for identical stale finds until the next refresh
+     * @param documentStoreName - The name of the DocumentStore queried
+     * @param request - The query and result encoding
+     * @param result - The result of the find
+     */
+    synchronized void keep(String documentStoreName, String request, PluginResult result) {
+        Map<String, PluginResult> results = staleResults.get(documentStoreName);
+        if (results == null) {
+            results = new LinkedHashMap<String, PluginResult>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PluginResult> eldest) {
+                    return size() > MAX_STALE_RESULTS;
+                }
+            };
+            staleResults.put(documentStoreName, results);
+        }
+        results.put(request, result);
+    }
+
+    /**
+     * Brings forward a pending refresh after a find with stale "update_after"
+     * @param documentStoreName - The name of the DocumentStore queried
+     */
+    void updateAfter(String documentStoreName) {
+        boolean due;
+        synchronized (this) {
+            due = pending.containsKey(documentStoreName);
+        }
+        if (due) {
+            schedule(documentStoreName, 0);
+        }
+    }
+
+    /**
+     * Cancels the pending refresh and discards the stale results of a DocumentStore which is
+     * closed or deleted
+     * @param documentStoreName - The name of the DocumentStore
+     */
+    synchronized void forget(String documentStoreName) {
+        Pending p = pending.remove(documentStoreName);
+        if (p != null) {
+            p.future.cancel(false);
+        }
+        staleResults.remove(documentStoreName);
+    }
+
+    /**
+     * Discards every kept stale result
+     * @return - The number of results discarded
+     */
+    synchronized int clearStaleResults() {
+        int count = 0;
+        for (Map<String, PluginResult> results : staleResults.values()) {
+            count += results.size();
+        }
+        staleResults.clear();
+        return count;
+    }
+
+    /**
+     * Sets whether and when indexes are refreshed in the background. Disabling background
+     * indexing cancels pending refreshes and discards the stale results.
+     * @param options - Any of enabled, debounce and maxDelay in milliseconds
+     * @throws Exception - If a delay is negative
+     */
+    synchronized void configure(JSONObject options) throws Exception {
+        long newDebounce = options.optLong(DEBOUNCE_KEY, debounce);
+        long newMaxDelay = options.optLong(MAX_DELAY_KEY, maxDelay);
+        if (newDebounce < 0 || newMaxDelay < 0) {
+            throw new Exception(DEBOUNCE_KEY + " and " + MAX_DELAY_KEY + " must not be negative");
+        }
+        debounce = newDebounce;
+        maxDelay = newMaxDelay;
+        enabled = options.optBoolean(ENABLED_KEY, enabled);
+        if (!enabled) {
+            for (Pending p : pending.values()) {
+                p.future.cancel(false);
+            }
+            pending.clear();
+            staleResults.clear();
+        }
+    }
+
+    /**
+     * @return - The JSON settings, pending refreshes and counters
+     * @throws JSONException
+     */
+    synchronized JSONObject toJSON() throws JSONException {
+        int kept = 0;
+        for (Map<String, PluginResult> results : staleResults.values()) {
+            kept += results.size();
+        }
+        JSONObject r = new JSONObject();
+        r.put(ENABLED_KEY, enabled);
+        r.put(DEBOUNCE_KEY, debounce);
+        r.put(MAX_DELAY_KEY, maxDelay);
+        r.put("pending", new JSONArray(new TreeSet<String>(pending.keySet())));
+        r.put("refreshes", refreshes);
+        r.put("failures", failures);
+        r.put("totalRefreshMillis", TimeUnit.NANOSECONDS.toMillis(totalRefreshNanos));
+        r.put("lastRefreshMillis", TimeUnit.NANOSECONDS.toMillis(lastRefreshNanos));
+        r.put("staleHits", staleHits);
+        r.put("staleMisses", staleMisses);
+        r.put("staleResults", kept);
+        return r;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Schedules a refresh of a changed DocumentStore or, with background indexing disabled,
+     * discards its stale results as no refresh will
+     * @param documentStoreName - The name of the DocumentStore
+     * @param delay - The delay in milliseconds
+     */
+    private void modified(String documentStoreName, long delay) {
+        synchronized (this) {
+            if (!enabled) {
+                staleResults.remove(documentStoreName);
+                return;
+            }
+        }
+        schedule(documentStoreName, delay);
+    }
+
+    /**
+     * Schedules a refresh of a DocumentStore, no later than the maximum delay after the first
+     * write it covers
+     * @param documentStoreName - The name of the DocumentStore
+     * @param delay - The delay in milliseconds
+     */
+    private synchronized void schedule(final String documentStoreName, long delay) {
+        if (!enabled) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Pending p = pending.get(documentStoreName);
+        if (p == null) {
+            p = new Pending(now);
+            pending.put(documentStoreName, p);
+        } else {
+            delay = Math.max(0, Math.min(delay, p.dirtySince + maxDelay - now));
+            p.future.cancel(false);
+        }
+        final Pending scheduled = p;
+        p.future = executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                refresh(documentStoreName, scheduled);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Refreshes the indexes of a DocumentStore and discards its stale results
+     * @param documentStoreName - The name of the DocumentStore
+     * @param scheduled - The pending refresh being run
+     */
+    private void refresh(String documentStoreName, Pending scheduled) {
+        synchronized (this) {
+            if (pending.get(documentStoreName) != scheduled) {
+                // Rescheduled or forgotten since
+                return;
+            }
+            // Writes from now on schedule another refresh
+            pending.remove(documentStoreName);
+        }
+
+        // A DocumentStore closed while idle is refreshed when it is next written
+        DocumentStore ds = documentStores.acquireIfOpen(documentStoreName);
+        if (ds == null) {
+            synchronized (this) {
+                staleResults.remove(documentStoreName);
+            }
+            return;
+        }
+
+        long started = System.nanoTime();
+        long traced = PluginTracer.start();
+        try {
+            ds.query().refreshAllIndexes();
+            long elapsed = System.nanoTime() - started;
+            synchronized (this) {
+                refreshes++;
+                totalRefreshNanos += elapsed;
+                lastRefreshNanos = elapsed;
+                staleResults.remove(documentStoreName);
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Failed to refresh the indexes of " + documentStoreName, e);
+            // Nothing else is pending to discard the results kept before the failed refresh
+            synchronized (this) {
+                failures++;
+                staleResults.remove(documentStoreName);
+            }
+        } finally {
+            PluginTracer.end(traced, PluginTracer.CATEGORY_DATABASE, "refreshAllIndexes");
+            documentStores.release(documentStoreName);
+        }
+    }
+}
@@ -0,0 +1,396 @@
+/*
+ * Copyright (c) 2017 IBM Corp. All rights reserved.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.cordova;
+
+import android.util.Base64;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The CborCodec class converts documents to and from CBOR (RFC 7049), the binary encoding used
+ * between the plugin and www/datastoremanager.js when a datastore is opened with the binary option.
+ * Only the JSON data model is supported: maps with string keys, arrays, strings, numbers, booleans
+ * and null. Integers are encoded in the fewest bytes and other numbers as 64 bit floats. Byte
+ * strings and tags are accepted when decoding, but indefinite lengths are not, as the JavaScript
+ * encoder never writes them.
+ */
+final class CborCodec {
+
+    static final String ENCODING = "cbor";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int MAJOR_UNSIGNED = 0;
+    private static final int MAJOR_NEGATIVE = 1;
+    private static final int MAJOR_BYTES = 2;
+    private static final int MAJOR_TEXT = 3;
+    private static final int MAJOR_ARRAY = 4;
+    private static final int MAJOR_MAP = 5;
+    private static final int MAJOR_TAG = 6;
+    private static final int MAJOR_SIMPLE = 7;
+
+    private static final int FALSE = 0xf4;
+    private static final int TRUE = 0xf5;
+    private static final int NULL = 0xf6;
+    private static final int UNDEFINED = 0xf7;
+    private static final int FLOAT64 = 0xfb;
+
+    private CborCodec() {
+    }
+
+    /**
+     * @param value - A Map, List, String, Number, Boolean or null, or the org.json equivalents,
+     *              nested to any depth
+     * @return - The CBOR encoding of the value
+     * @throws IOException - If the value, or a value nested in it, cannot be encoded
+     */
+    static byte[] encode(Object value) throws IOException {
+        Output out = new Output();
+        write(out, value);
+        return out.toByteArray();
+    }
+
+    /**
+     * @param bytes - A CBOR data item
+     * @return - The decoded value: Maps with String keys, Lists, Strings, Longs, Doubles, Booleans,
+     * byte arrays or null
+     * @throws IOException - If the bytes are not a single well formed CBOR data item
+     */
+    static Object decode(byte[] bytes) throws IOException {
+        Input in = new Input(bytes);
+        Object value = read(in);
+        if (in.position != bytes.length) {
+            throw new IOException("Unexpected data after CBOR item at offset " + in.position);
+        }
+        return value;
+    }
+
+    /**
+     * @param decoded - A value returned by decode
+     * @return - The value with Maps and Lists converted to JSONObjects and JSONArrays, byte arrays
+     * to base64 Strings and null to JSONObject.NULL
+     * @throws JSONException
+     */
+    static Object toJSON(Object decoded) throws JSONException {
+        if (decoded == null) {
+            return JSONObject.NULL;
+        } else if (decoded instanceof Map) {
+            JSONObject json = new JSONObject();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) decoded).entrySet()) {
+                json.put(String.valueOf(entry.getKey()), toJSON(entry.getValue()));
+            }
+            return json;
+        } else if (decoded instanceof List) {
+            JSONArray json = new JSONArray();
+            for (Object item : (List<?>) decoded) {
+                json.put(toJSON(item));
+            }
+            return json;
+        } else if (decoded instanceof byte[]) {
+            return Base64.encodeToString((byte[]) decoded, Base64.NO_WRAP);
+        }
+        return decoded;
+    }
+
+    ////////
+
+    private static void write(Output out, Object value) throws IOException {
+        if (value == null || JSONObject.NULL.equals(value)) {
+            out.write(NULL);
+        } else if (value instanceof String) {
+            byte[] utf8 = ((String) value).getBytes(UTF_8);
+            writeHead(out, MAJOR_TEXT, utf8.length);
+            out.write(utf8, 0, utf8.length);
+        } else if (value instanceof Boolean) {
+            out.write((Boolean) value ? TRUE : FALSE);
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short ||
+            value instanceof Byte) {
+            writeInteger(out, ((Number) value).longValue());
+        } else if (value instanceof BigInteger && ((BigInteger) value).bitLength() < 64) {
+            writeInteger(out, ((BigInteger) value).longValue());
+        } else if (value instanceof Number) {
+            out.write(FLOAT64);
+            out.writeLong(Double.doubleToLongBits(((Number) value).doubleValue()));
+        } else if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            writeHead(out, MAJOR_MAP, map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                write(out, String.valueOf(entry.getKey()));
+                write(out, entry.getValue());
+            }
+        } else if (value instanceof Collection) {
+            Collection<?> list = (Collection<?>) value;
+            writeHead(out, MAJOR_ARRAY, list.size());
+            for (Object item : list) {
+                write(out, item);
+            }
+        } else if (value instanceof JSONObject) {
+            JSONObject json = (JSONObject) value;
+            writeHead(out, MAJOR_MAP, json.length());
+            Iterator<String> keys = json.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                write(out, key);
+                write(out, json.opt(key));
+            }
+        } else if (value instanceof JSONArray) {
+            JSONArray json = (JSONArray) value;
+            writeHead(out, MAJOR_ARRAY, json.length());
+            for (int i = 0; i < json.length(); i++) {
+                write(out, json.opt(i));
+            }
+        } else if (value instanceof byte[]) {
+            byte[] bytes = (byte[]) value;
+            writeHead(out, MAJOR_BYTES, bytes.length);
+            out.write(bytes, 0, bytes.length);
+        } else {
+            throw new IOException("Cannot encode " + value.getClass().getName() + " as CBOR");
+        }
+    }
+
+    private static void writeInteger(Output out, long value) {
+        if (value < 0) {
+            // Negative integers are encoded as -1 - n
+            writeHead(out, MAJOR_NEGATIVE, -1 - value);
+        } else {
+            writeHead(out, MAJOR_UNSIGNED, value);
+        }
+    }
+
+    private static void writeHead(Output out, int major, long length) {
+        int type = major << 5;
+        if (length < 24) {
+            out.write(type | (int) length);
+        } else if (length < 0x100) {
+            out.write(type | 24);
+            out.write((int) length);
+        } else if (length < 0x10000) {
+            out.write(type | 25);
+            out.write((int) (length >> 8));
+            out.write((int) length);
+        } else if (length < 0x100000000L) {
+            out.write(type | 26);
+            out.writeInt((int) length);
+        } else {
+            out.write(type | 27);
+            out.writeLong(length);
+        }
+    }
+
+    private static Object read(Input in) throws IOException {
+        int initial = in.read();
+        int major = initial >> 5;
+        int info = initial & 0x1f;
+
+        if (major == MAJOR_SIMPLE) {
+            switch (initial) {
+                case FALSE:
+                    return Boolean.FALSE;
+                case TRUE:
+                    return Boolean.TRUE;
+                case NULL:
+                case UNDEFINED:
+                    return null;
+                case 0xf9:
+                    return halfToDouble(in.readUnsigned(2));
+                case 0xfa:
+                    return (double) Float.intBitsToFloat((int) in.readUnsigned(4));
+                case FLOAT64:
+                    return Double.longBitsToDouble(in.readUnsigned(8));
+                default:
+                    throw new IOException("Unsupported CBOR simple value " + info + " at offset " +
+                        (in.position - 1));
+            }
+        }
+
+        long length = readLength(in, info);
+        switch (major) {
+            case MAJOR_UNSIGNED:
+                if (length < 0) {
+                    throw new IOException("CBOR integer out of range at offset " + in.position);
+                }
+                return length;
+            case MAJOR_NEGATIVE:
+                if (length < 0) {
+                    throw new IOException("CBOR integer out of range at offset " + in.position);
+                }
+                return -1 - length;
+            case MAJOR_BYTES:
+                return in.readBytes(size(length, in));
+            case MAJOR_TEXT:
+                int n = size(length, in);
+                String text = new String(in.bytes, in.position, n, UTF_8);
+                in.skip(n);
+                return text;
+            case MAJOR_ARRAY:
+                int count = size(length, in);
+                List<Object> list = new ArrayList<Object>(Math.min(count, 1024));
+                for (int i = 0; i < count; i++) {
+                    list.add(read(in));
+                }
+                return list;
+            case MAJOR_MAP:
+                int entries = size(length, in);
+                Map<String, Object> map = new LinkedHashMap<String, Object>();
+                for (int i = 0; i < entries; i++) {
+                    Object key = read(in);
+                    if (!(key instanceof String)) {
+                        throw new IOException("CBOR map keys must be strings, at offset " + in.position);
+                    }
+                    map.put((String) key, read(in));
+                }
+                return map;
+            default:
+                // MAJOR_TAG: tags such as dates carry no meaning in documents, so only the
+                // tagged value is kept
+                return read(in);
+        }
+    }
+
+    private static long readLength(Input in, int info) throws IOException {
+        if (info < 24) {
+            return info;
+        }
+        switch (info) {
+            case 24:
+                return in.readUnsigned(1);
+            case 25:
+                return in.readUnsigned(2);
+            case 26:
+                return in.readUnsigned(4);
+            case 27:
+                return in.readUnsigned(8);
+            default:
+                throw new IOException("Indefinite length CBOR items are not supported, at offset " +
+                    (in.position - 1));
+        }
+    }
+
+    private static int size(long length, Input in) throws IOException {
+        if (length < 0 || length > in.bytes.length - in.position) {
+            throw new IOException("CBOR item length " + length + " exceeds the data at offset " +
+                in.position);
+        }
+        return (int) length;
+    }
+
+    private static double halfToDouble(long half) {
+        int exponent = (int) (half >> 10) & 0x1f;
+        int mantissa = (int) half & 0x3ff;
+        double value;
+        if (exponent == 0) {
+            value = mantissa * Math.pow(2, -24);
+        } else if (exponent == 0x1f) {
+            value = mantissa == 0 ? Double.POSITIVE_INFINITY : Double.NaN;
+        } else {
+            value = (mantissa + 1024) * Math.pow(2, exponent - 25);
+        }
+        return (half & 0x8000) != 0 ? -value : value;
+    }
+
+    /**
+     * A growable byte buffer, without the synchronization of ByteArrayOutputStream
+     */
+    private static final class Output {
+        private byte[] bytes = new byte[256];
+        private int length;
+
+        void write(int b) {
+            ensure(1);
+            bytes[length++] = (byte) b;
+        }
+
+        void write(byte[] b, int offset, int count) {
+            ensure(count);
+            System.arraycopy(b, offset, bytes, length, count);
+            length += count;
+        }
+
+        void writeInt(int v) {
+            ensure(4);
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                bytes[length++] = (byte) (v >> shift);
+            }
+        }
+
+        void writeLong(long v) {
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                bytes[length++] = (byte) (v >> shift);
+            }
+        }
+
+        byte[] toByteArray() {
+            byte[] r = new byte[length];
+            System.arraycopy(bytes, 0, r, 0, length);
+            return r;
+        }
+
+        private void ensure(int count) {
+            if (length + count > bytes.length) {
+                byte[] grown = new byte[Math.max(bytes.length * 2, length + count)];
+                System.arraycopy(bytes, 0, grown, 0, length);
+                bytes = grown;
+            }
+        }
+    }
+
+    private static final class Input {
+        private final byte[] bytes;
+        private int position;
+
+        Input(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        int read() throws IOException {
+            if (position >= bytes.length) {
+                throw new IOException("Unexpected end of CBOR data");
+            }
+            return bytes[position++] & 0xff;
+        }
+
+        long readUnsigned(int count) throws IOException {
+            long v = 0;
+            for (int i = 0; i < count; i++) {
+                v = (v << 8) | read();
+            }
+            return v;
+        }
+
+        byte[] readBytes(int count) {
+            byte[] r = new byte[count];
+            System.arraycopy(bytes, position, r, 0, count);
+            position += count;
+            return r;
+        }
+
+        void skip(int count) {
+            position += count;
+        }
+    }
+}
@@ -14,7 +14,9 @@
 
 package com.cloudant.sync.cordova;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.util.Base64;
 import android.util.Log;
 
@@ -30,9 +32,13 @@ import com.cloudant.sync.documentstore.UnsavedStreamAttachment;
 import com.cloudant.sync.query.FieldSort;
 import com.cloudant.sync.query.Query;
 import com.cloudant.sync.query.QueryResult;
+import com.cloudant.sync.query.Tokenizer;
+import com.cloudant.sync.replication.PullFilter;
+import com.cloudant.sync.replication.PushAttachmentsInline;
 import com.cloudant.sync.replication.Replicator;
 import com.cloudant.sync.replication.ReplicatorBuilder;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.cordova.CallbackContext;
 import org.apache.cordova.CordovaPlugin;
@@ -49,23 +55,35 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 public class CloudantSyncPlugin extends CordovaPlugin {
     private static final String TAG = CloudantSyncPlugin.class.getCanonicalName();
 
     private static final String ACTION_SET_DOCUMENT_STORE_PATH = "createDatastoreManager";
     private static final String ACTION_OPEN_DOCUMENT_STORE = "openDatastore";
+    private static final String ACTION_SEED_DOCUMENT_STORE = "seedDatastore";
     private static final String ACTION_CLOSE_DOCUMENT_STORE = "closeDatastore";
     private static final String ACTION_DELETE_DOCUMENT_STORE = "deleteDatastore";
     private static final String ACTION_CREATE_OR_UPDATE_DOCUMENT_FROM_REVISION = "createOrUpdateDocumentFromRevision";
     private static final String ACTION_GET_DOCUMENT = "getDocument";
+    private static final String ACTION_GET_DOCUMENTS = "getDocuments";
+    private static final String ACTION_PATCH_DOCUMENT = "patchDocument";
+    private static final String ACTION_TRANSACTION = "transaction";
     private static final String ACTION_DELETE_DOCUMENT_FROM_REVISION = "deleteDocumentFromRevision";
     private static final String ACTION_ENSURE_INDEXED = "ensureIndexed";
+    private static final String ACTION_ENSURE_TEXT_INDEXED = "ensureTextIndexed";
     private static final String ACTION_DELETE_INDEX_NAMED = "deleteIndexNamed";
     private static final String ACTION_FIND = "find";
     private static final String ACTION_CREATE_REPLICATOR = "createReplicator";
@@ -77,12 +95,44 @@ public class CloudantSyncPlugin extends CordovaPlugin {
     private static final String ACTION_GET_CONFLICTED_DOCUMENT_IDS = "getConflictedDocumentIds";
     private static final String ACTION_RESOLVE_CONFLICTS_FOR_DOCUMENT = "resolveConflictsForDocument";
     private static final String ACTION_RETURN_RESOLVED_DOCUMENT = "returnResolvedDocument";
+    private static final String ACTION_SCHEDULE_REPLICATION = "scheduleReplication";
+    private static final String ACTION_UNSCHEDULE_REPLICATION = "unscheduleReplication";
+    private static final String ACTION_GET_REPLICATION_SCHEDULE = "getReplicationSchedule";
+    private static final String ACTION_SET_MAX_CONCURRENT_REPLICATIONS = "setMaxConcurrentReplications";
+    private static final String ACTION_GET_REPLICATION_QUEUE_METRICS = "getReplicationQueueMetrics";
+    private static final String ACTION_RESOLVE_ALL_CONFLICTS = "resolveAllConflicts";
+    private static final String ACTION_COUNT_CONFLICTS = "countConflicts";
+    private static final String ACTION_STREAM_CONFLICTED_DOCUMENT_IDS = "streamConflictedDocumentIds";
+    private static final String ACTION_SET_METRICS_ENABLED = "setMetricsEnabled";
+    private static final String ACTION_GET_METRICS = "getMetrics";
+    private static final String ACTION_RESET_METRICS = "resetMetrics";
+    private static final String ACTION_SET_TRACING_ENABLED = "setTracingEnabled";
+    private static final String ACTION_GET_TRACE = "getTrace";
+    private static final String ACTION_DUMP_TRACE = "dumpTrace";
+    private static final String ACTION_CLEAR_TRACE = "clearTrace";
+    private static final String ACTION_START_RECORDING = "startRecording";
+    private static final String ACTION_STOP_RECORDING = "stopRecording";
+    private static final String ACTION_GET_MEMORY_USAGE = "getMemoryUsage";
+    private static final String ACTION_TRIM_MEMORY = "trimMemory";
+    private static final String ACTION_SET_MEMORY_POLICY = "setMemoryPolicy";
+    private static final String ACTION_GET_SLOW_QUERIES = "getSlowQueries";
+    private static final String ACTION_SET_SLOW_QUERY_LOG = "setSlowQueryLog";
+    private static final String ACTION_CLEAR_SLOW_QUERIES = "clearSlowQueries";
+    private static final String ACTION_ADVISE_INDEXES = "adviseIndexes";
+    private static final String ACTION_GET_BACKGROUND_INDEXING = "getBackgroundIndexing";
+    private static final String ACTION_SET_BACKGROUND_INDEXING = "setBackgroundIndexing";
+    private static final String ACTION_SET_WRITE_BEHIND = "setWriteBehind";
+    private static final String ACTION_FLUSH = "flush";
+    private static final String ACTION_GET_WRITE_BEHIND_STATUS = "getWriteBehindStatus";
+    private static final String ACTION_RESOLVE_CONFLICTS_IN_BATCHES = "resolveConflictsInBatches";
+    private static final String ACTION_RETURN_RESOLVED_DOCUMENTS = "returnResolvedDocuments";
 
     private static final String DOCUMENT_STORE_NAME = "name";
 
     private static final String DOC_ID = "_id";
     private static final String DOC_REV = "_rev";
     private static final String DOC_DELETED = "_deleted";
+    private static final String DOC_NOT_MODIFIED = "_notModified";
     private static final String DOC_ATTACHMENTS = "_attachments";
     private static final String DOC_ATTACHMENTS_CONTENT_TYPE = "content_type";
     private static final String DOC_ATTACHMENTS_DATA = "data";
@@ -91,6 +141,22 @@ public class CloudantSyncPlugin extends CordovaPlugin {
     private static final String REPLICATOR_DOCUMENT_STORE = "datastore";
     private static final String REPLICATOR_URI = "uri";
     private static final String REPLICATOR_TYPE = "type";
+    private static final String REPLICATOR_SELECTOR = "selector";
+    private static final String REPLICATOR_FILTER = "filter";
+    private static final String REPLICATOR_FILTER_NAME = "name";
+    private static final String REPLICATOR_FILTER_PARAMS = "params";
+    private static final String REPLICATOR_DOC_IDS = "doc_ids";
+    private static final String REPLICATOR_CHANGE_LIMIT_PER_BATCH = "changeLimitPerBatch";
+    private static final String REPLICATOR_BATCH_LIMIT_PER_RUN = "batchLimitPerRun";
+    private static final String REPLICATOR_INSERT_BATCH_SIZE = "insertBatchSize";
+    private static final String REPLICATOR_ATTACHMENTS_INLINE = "attachmentsInline";
+    private static final String REPLICATOR_PRIORITY = "priority";
+    private static final String REPLICATOR_CONFLICT_RESOLUTION = "conflictResolution";
+    private static final String REPLICATOR_HAS_INTERCEPTORS = "hasInterceptors";
+
+    private static final String QUERY_STALE = "stale";
+
+    private static final String DOC_IDS_FILTER_NAME = "_doc_ids";
 
     private static final String SQLITEDATABASE_CANONICAL_NAME = "net.sqlcipher.database.SQLiteDatabase";
     private static final String SQLITEDATABASE_LOADLIBS_METHOD_NAME = "loadLibs";
@@ -106,6 +172,79 @@ public class CloudantSyncPlugin extends CordovaPlugin {
     private static Map<Integer, SyncPluginInterceptor> interceptors = Collections.synchronizedMap(new HashMap<Integer, SyncPluginInterceptor>());
     private static Map<Integer, String> documentStorePaths = Collections.synchronizedMap(new HashMap<Integer,String>());
     private static Map<String, ConflictResolverWrapper> resolverMap = Collections.synchronizedMap(new HashMap<String, ConflictResolverWrapper>());
+    private static Map<String, BatchConflictResolution> batchResolutions = Collections.synchronizedMap(new HashMap<String, BatchConflictResolution>());
+    private static ScheduledExecutorService batchTimeouts = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "CloudantSync-ConflictBatchTimeouts");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    private static ReplicationLimiter replicationLimiter = new ReplicationLimiter();
+    private static ReplicationScheduler replicationScheduler = new ReplicationScheduler(replicationLimiter);
+    private static BackgroundIndexer backgroundIndexer = new BackgroundIndexer(new BackgroundIndexer.DocumentStores() {
+        @Override
+        public DocumentStore acquireIfOpen(String documentStoreName) {
+            return memoryManager.acquireIfOpen(documentStoreName);
+        }
+
+        @Override
+        public void release(String documentStoreName) {
+            memoryManager.release(documentStoreName);
+        }
+    });
+    private static MemoryManager memoryManager = new MemoryManager(documentStores, replicationLimiter,
+        backgroundIndexer);
+    private static ReadCoalescer readCoalescer = new ReadCoalescer();
+    private static SlowQueryLog slowQueryLog = new SlowQueryLog();
+    // The DocumentStores acquired by the action running on the current thread
+    private static final ThreadLocal<List<String>> acquiredStores = new ThreadLocal<List<String>>();
+    private static WriteBehind writeBehind = new WriteBehind(new WriteBehind.Writer() {
+        @Override
+        public DocumentRevision write(String documentStoreName, DocumentRevision rev, boolean isCreate) throws
+            Exception {
+            // Flushes run on the WriteBehind thread as well as on actions
+            DocumentStore ds = memoryManager.acquire(documentStoreName);
+            if (ds == null) {
+                throw new Exception("No DocumentStore found with name: " + documentStoreName);
+            }
+            long traced = PluginTracer.start();
+            try {
+                return isCreate ? ds.database().create(rev) : ds.database().update(rev);
+            } finally {
+                PluginTracer.end(traced, PluginTracer.CATEGORY_DATABASE, isCreate ? "create" : "update");
+                memoryManager.release(documentStoreName);
+            }
+        }
+
+        @Override
+        public void flushed(String documentStoreName) {
+            documentStoreModified(documentStoreName);
+        }
+    });
+
+    // Passes memory pressure from Android to the MemoryManager
+    private final ComponentCallbacks2 memoryCallbacks = new ComponentCallbacks2() {
+        @Override
+        public void onTrimMemory(final int level) {
+            cordova.getThreadPool().execute(new Runnable() {
+                @Override
+                public void run() {
+                    memoryManager.trim(level);
+                }
+            });
+        }
+
+        @Override
+        public void onLowMemory() {
+            onTrimMemory(TRIM_MEMORY_COMPLETE);
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration configuration) {
+        }
+    };
 
     private class ConflictResolverWrapper implements ConflictResolver {
 
@@ -179,6 +318,342 @@ public class CloudantSyncPlugin extends CordovaPlugin {
        }
     }
 
+    /**
+     * Records the conflicting revisions of a document without resolving them
+     */
+    private static class ConflictCollector implements ConflictResolver {
+        List<? extends DocumentRevision> conflicts;
+
+        public DocumentRevision resolve(String docId, List<? extends DocumentRevision> conflicts) {
+            this.conflicts = conflicts;
+            return null;
+        }
+    }
+
+    /**
+     * Resolves a document's conflicts with a revision returned from the JavaScript layer, provided
+     * the revision is still one of the conflicting revisions
+     */
+    private static class ResolvedRevisionApplier implements ConflictResolver {
+        private final DocumentRevision resolved;
+        boolean stale;
+
+        ResolvedRevisionApplier(DocumentRevision resolved) {
+            this.resolved = resolved;
+        }
+
+        public DocumentRevision resolve(String docId, List<? extends DocumentRevision> conflicts) {
+            for (DocumentRevision docRev : conflicts) {
+                if (docRev.getRevision().equals(resolved.getRevision())) {
+                    docRev.setBody(resolved.getBody());
+                    docRev.setAttachments(resolved.getAttachments());
+                    return docRev;
+                }
+            }
+            stale = true;
+            return null;
+        }
+    }
+
+    /**
+     * Resolves the conflicts of all conflicted documents in a DocumentStore with a JavaScript
+     * resolver, sending the conflicts of batchSize documents in each message. At most concurrency
+     * batches are waiting for the JavaScript layer at a time. The conflicts are read when a batch
+     * is sent and the returned revisions are applied when it comes back, so no thread waits for
+     * the JavaScript layer. A batch which is not returned within the timeout is skipped.
+     */
+    private class BatchConflictResolution {
+        private final String id;
+        private final String documentStoreName;
+        private final DocumentStore ds;
+        private final CallbackContext callbackContext;
+        private final Iterator<String> ids;
+        private final int batchSize;
+        private final int concurrency;
+        private final long timeout;
+
+        private final Map<Integer, Map<String, List<? extends DocumentRevision>>> outstanding = new
+            HashMap<Integer, Map<String, List<? extends DocumentRevision>>>();
+        private final Map<Integer, ScheduledFuture<?>> timeouts = new HashMap<Integer, ScheduledFuture<?>>();
+        private int nextBatchId;
+        // The batches being read outside the lock, which count towards the concurrency
+        private int building;
+        private int applying;
+        private boolean finished;
+
+        private int conflicted;
+        private int resolved;
+        private int unchanged;
+        private int failed;
+        private int timedOut;
+        private final JSONArray errors = new JSONArray();
+
+        BatchConflictResolution(String documentStoreName, DocumentStore ds, CallbackContext callbackContext,
+                                JSONObject options) throws Exception {
+            this.id = callbackContext.getCallbackId();
+            this.documentStoreName = documentStoreName;
+            this.ds = ds;
+            this.callbackContext = callbackContext;
+            this.batchSize = options.optInt("batchSize", 50);
+            this.concurrency = options.optInt("concurrency", 2);
+            this.timeout = options.optLong("timeout", 30000);
+
+            if (batchSize < 1 || concurrency < 1 || timeout < 1) {
+                throw new Exception("batchSize, concurrency and timeout must be positive");
+            }
+
+            List<String> conflictedIds = new ArrayList<String>();
+            for (String docId : ds.database().getConflictedIds()) {
+                conflictedIds.add(docId);
+            }
+            this.ids = conflictedIds.iterator();
+
+            // Held until the resolution finishes, across the round trips to the JavaScript layer
+            memoryManager.acquire(documentStoreName);
+        }
+
+        /**
+         * Sends batches to the JavaScript layer until concurrency batches are outstanding, and
+         * sends the summary once every batch has been returned or timed out. The conflicts are
+         * read and sent without holding the resolution lock, so apply and timedOut are not held
+         * up by other batches.
+         */
+        void fill() throws Exception {
+            while (true) {
+                List<String> docIds = new ArrayList<String>();
+                synchronized (this) {
+                    if (finished || outstanding.size() + building >= concurrency || !ids.hasNext()) {
+                        break;
+                    }
+                    while (docIds.size() < batchSize && ids.hasNext()) {
+                        docIds.add(ids.next());
+                    }
+                    building++;
+                }
+
+                Map<String, List<? extends DocumentRevision>> batch = new HashMap<String, List<? extends
+                    DocumentRevision>>();
+                JSONArray documents = new JSONArray();
+                try {
+                    for (String docId : docIds) {
+                        ConflictCollector collector = new ConflictCollector();
+                        ds.database().resolveConflicts(docId, collector);
+
+                        // The document may have been resolved since the conflicted IDs were read
+                        if (collector.conflicts == null || collector.conflicts.size() < 2) {
+                            continue;
+                        }
+
+                        JSONArray jsonConflicts = new JSONArray();
+                        for (DocumentRevision docRev : collector.conflicts) {
+                            jsonConflicts.put(buildJSON(docRev, false));
+                        }
+                        JSONObject document = new JSONObject();
+                        document.put("docId", docId);
+                        document.put("conflicts", jsonConflicts);
+                        documents.put(document);
+                        batch.put(docId, collector.conflicts);
+                    }
+                } catch (Exception e) {
+                    synchronized (this) {
+                        building--;
+                    }
+                    throw e;
+                }
+
+                final int batchId;
+                synchronized (this) {
+                    // Together with outstanding, so the summary is not sent before this batch is
+                    building--;
+                    if (finished) {
+                        return;
+                    }
+                    if (batch.isEmpty()) {
+                        continue;
+                    }
+                    batchId = nextBatchId++;
+                    conflicted += batch.size();
+                    outstanding.put(batchId, batch);
+                    timeouts.put(batchId, batchTimeouts.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            timedOut(batchId);
+                        }
+                    }, timeout, TimeUnit.MILLISECONDS));
+                }
+
+                JSONObject message = new JSONObject();
+                message.put("resolverId", id);
+                message.put("batchId", batchId);
+                message.put("documents", documents);
+                PluginResult r = new PluginResult(PluginResult.Status.OK, message);
+                r.setKeepCallback(true);
+                callbackContext.sendPluginResult(r);
+            }
+
+            JSONObject summary;
+            synchronized (this) {
+                if (finished || !outstanding.isEmpty() || applying > 0 || building > 0 || ids.hasNext()) {
+                    return;
+                }
+                finish();
+
+                summary = new JSONObject();
+                summary.put("conflicted", conflicted);
+                summary.put("resolved", resolved);
+                summary.put("unchanged", unchanged);
+                summary.put("failed", failed);
+                summary.put("timedOut", timedOut);
+                summary.put("errors", errors);
+                summary.put("batches", nextBatchId);
+            }
+
+            if (summary.getInt("resolved") > 0) {
+                documentStoreModified(documentStoreName);
+            }
+            callbackContext.success(summary);
+        }
+
+        /**
+         * Applies the revisions returned for a batch by the JavaScript layer
+         * @param batchId - The ID of the batch
+         * @param documents - The resolved revision for each document in the batch, in the order
+         *                  they were sent, or null to leave a document unchanged
+         * @throws Exception - If the batch is unknown, already returned or timed out
+         */
+        void apply(int batchId, JSONArray documents) throws Exception {
+            Map<String, List<? extends DocumentRevision>> batch;
+            synchronized (this) {
+                batch = outstanding.remove(batchId);
+                if (batch == null) {
+                    throw new Exception("Conflict batch " + batchId + " timed out or was already returned");
+                }
+                timeouts.remove(batchId).cancel(false);
+                applying++;
+            }
+
+            int batchResolved = 0;
+            int batchUnchanged = 0;
+            List<JSONObject> batchErrors = new ArrayList<JSONObject>();
+            for (int i = 0; i < documents.length(); i++) {
+                if (documents.isNull(i)) {
+                    batchUnchanged++;
+                    continue;
+                }
+
+                String docId = null;
+                try {
+                    DocumentRevision revision = buildDocRevision(documents.getJSONObject(i));
+                    docId = revision.getId();
+                    if (docId == null || !batch.containsKey(docId)) {
+                        throw new Exception("Resolved document " + docId + " is not in conflict batch " + batchId);
+                    }
+
+                    ResolvedRevisionApplier applier = new ResolvedRevisionApplier(revision);
+                    ds.database().resolveConflicts(docId, applier);
+                    if (applier.stale) {
+                        throw new Exception("Revision " + revision.getRevision() + " is no longer in conflict");
+                    }
+                    batchResolved++;
+                } catch (Exception e) {
+                    Log.e(TAG, "Failed to resolve conflicts for: " + docId, e);
+                    JSONObject error = new JSONObject();
+                    error.put("id", docId == null ? JSONObject.NULL : docId);
+                    error.put("error", String.valueOf(e.getMessage()));
+                    batchErrors.add(error);
+                }
+            }
+
+            synchronized (this) {
+                applying--;
+                resolved += batchResolved;
+                unchanged += batchUnchanged + Math.max(0, batch.size() - documents.length());
+                failed += batchErrors.size();
+                for (JSONObject error : batchErrors) {
+                    if (errors.length() < 50) {
+                        errors.put(error);
+                    }
+                }
+            }
+            fillOrFail();
+        }
+
+        // Runs on the shared batchTimeouts thread, so the next batch is read on the thread pool
+        private void timedOut(int batchId) {
+            synchronized (this) {
+                Map<String, List<? extends DocumentRevision>> batch = outstanding.remove(batchId);
+                timeouts.remove(batchId);
+                if (batch == null) {
+                    return;
+                }
+
+                Log.e(TAG, "Conflict batch " + batchId + " timed out in the JavaScript layer after " + timeout +
+                    "ms.");
+                timedOut += batch.size();
+            }
+
+            threadPool().execute(new Runnable() {
+                @Override
+                public void run() {
+                    fillOrFail();
+                }
+            });
+        }
+
+        // Must be called while holding the resolution lock
+        private void finish() {
+            finished = true;
+            batchResolutions.remove(id);
+            memoryManager.release(documentStoreName);
+        }
+
+        // Ends the resolution with an error if the next batch cannot be read
+        private void fillOrFail() {
+            try {
+                fill();
+            } catch (Exception e) {
+                Log.e(TAG, "Batch conflict resolution failed", e);
+                synchronized (this) {
+                    if (finished) {
+                        return;
+                    }
+                    finish();
+                    for (ScheduledFuture<?> future : timeouts.values()) {
+                        future.cancel(false);
+                    }
+                }
+                callbackContext.error(e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    protected void pluginInitialize() {
+        cordova.getActivity().getApplicationContext().registerComponentCallbacks(memoryCallbacks);
+    }
+
+    @Override
+    public void onResume(boolean multitasking) {
+        memoryManager.relieve();
+    }
+
+    @Override
+    public void onPause(boolean multitasking) {
+        // The process may be stopped while the app is in the background
+        cordova.getThreadPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                writeBehind.flushAll();
+            }
+        });
+    }
+
+    @Override
+    public void onDestroy() {
+        cordova.getActivity().getApplicationContext().unregisterComponentCallbacks(memoryCallbacks);
+        writeBehind.flushAll();
+    }
+
     /**
      * Executes the request and returns PluginResult.
      *
@@ -188,6 +663,29 @@ public class CloudantSyncPlugin extends CordovaPlugin {
      * @return True if the action was valid, false if not.
      */
     public boolean execute(String action, JSONArray args, final CallbackContext callbackContext) throws JSONException {
+        if (PluginRecorder.isEnabled()) {
+            PluginRecorder.record(action, args);
+        }
+        if (!PluginMetrics.isActive()) {
+            return dispatch(action, args, callbackContext);
+        }
+
+        try {
+            return dispatch(action, args, PluginMetrics.begin(action, args, callbackContext, webView));
+        } finally {
+            PluginMetrics.end();
+        }
+    }
+
+    /**
+     * Executes the action with its arguments
+     *
+     * @param action          The action to execute.
+     * @param args            JSONArray of arguments for the plugin.
+     * @param callbackContext The callback id used when calling back into JavaScript.
+     * @return True if the action was valid, false if not.
+     */
+    private boolean dispatch(String action, JSONArray args, final CallbackContext callbackContext) throws JSONException {
         if (ACTION_SET_DOCUMENT_STORE_PATH.equals(action)) {
             setDocumentStorePath(args,callbackContext);
         } else if (ACTION_OPEN_DOCUMENT_STORE.equals(action)) {
@@ -197,6 +695,13 @@ public class CloudantSyncPlugin extends CordovaPlugin {
 
             openDocumentStore(documentStorePathId, documentStoreName, callbackContext);
 
+        } else if (ACTION_SEED_DOCUMENT_STORE.equals(action)) {
+            final int documentStorePathId = args.getInt(0);
+            final String documentStoreName = JSONObject.NULL.equals(args.get(1)) ? null : args.getString(1);
+            final JSONObject options = JSONObject.NULL.equals(args.get(2)) ? null : args.getJSONObject(2);
+
+            seedDocumentStore(documentStorePathId, documentStoreName, options, callbackContext);
+
         } else if (ACTION_CLOSE_DOCUMENT_STORE.equals(action)) {
             closeDocumentStore(args, callbackContext);
         } else if (ACTION_DELETE_DOCUMENT_STORE.equals(action)) {
@@ -206,17 +711,44 @@ public class CloudantSyncPlugin extends CordovaPlugin {
 
         } else if (ACTION_CREATE_OR_UPDATE_DOCUMENT_FROM_REVISION.equals(action)) {
             final String documentStoreName = JSONObject.NULL.equals(args.get(0)) ? null : args.getString(0);
-            final JSONObject docRev = JSONObject.NULL.equals(args.get(1)) ? null : args.getJSONObject(1);
+            final String encoding = args.length() < 4 || JSONObject.NULL.equals(args.get(3)) ? null : args.getString(3);
+            // With an encoding, the document is either JSON or an encoded ArrayBuffer, which
+            // arrives as a base64 String
+            final Object docRev = JSONObject.NULL.equals(args.get(1)) ? null : encoding == null ? args
+                .getJSONObject(1) : args.get(1);
             final boolean isCreate = JSONObject.NULL.equals(args.get(2)) ? null : args.getBoolean(2);
 
-            createOrUpdateDocumentFromRevision(documentStoreName, docRev, callbackContext, isCreate);
+            createOrUpdateDocumentFromRevision(documentStoreName, docRev, callbackContext, isCreate, encoding);
 
         } else if (ACTION_GET_DOCUMENT.equals(action)) {
             final String documentStoreName = JSONObject.NULL.equals(args.get(0)) ? null : args
                 .getString(0);
             final String docId = JSONObject.NULL.equals(args.get(1)) ? null : args.getString(1);
+            final String encoding = args.length() < 3 || JSONObject.NULL.equals(args.get(2)) ? null : args.getString(2);
+            final String knownRev = args.length() < 4 || JSONObject.NULL.equals(args.get(3)) ? null : args.getString(3);
+
+            getDocument(documentStoreName, docId, encoding, knownRev, callbackContext);
+
+        } else if (ACTION_GET_DOCUMENTS.equals(action)) {
+            final String documentStoreName = JSONObject.NULL.equals(args.get(0)) ? null : args.getString(0);
+            final JSONArray requests = JSONObject.NULL.equals(args.get(1)) ? null : args.getJSONArray(1);
+            final String encoding = args.length() < 3 || JSONObject.NULL.equals(args.get(2)) ? null : args.getString(2);
+
+            getDocuments(documentStoreName, requests, encoding, callbackContext);
+
+        } else if (ACTION_PATCH_DOCUMENT.equals(action)) {
+            final String documentStoreName = JSONObject.NULL.equals(args.get(0)) ? null : args.getString(0);
+            final String docId = JSONObject.NULL.equals(args.get(1)) ? null : args.getString(1);
+            final String rev = JSONObject.NULL.equals(args.get(2)) ? null : args.getString(2);
+            final JSONArray ops = JSONObject.NULL.equals(args.get(3)) ? null : args.getJSONArray(3);
+
+            patchDocument(documentStoreName, docId, rev, ops, callbackContext);
 
-            getDocument(documentStoreName, docId, callbackContext);
+        } else if (ACTION_TRANSACTION.equals(action)) {
+            final String documentStoreName = JSONObject.NULL.equals(args.get(0)) ? null : args.getString(0);
+            final JSONArray ops = JSONObject.NULL.equals(args.get(1)) ? null : args.getJSONArray(1);
+
+            transaction(documentStoreName, ops, callbackContext);
 
         } else if (ACTION_DELETE_DOCUMENT_FROM_REVISION.equals(action)) {
             final String documentStoreName = JSONObject.NULL.equals(args.get(0)) ? null : args.getString(0);
@@ -231,6 +763,20 @@ public class CloudantSyncPlugin extends CordovaPlugin {
 
             ensureIndexed(documentStoreName, fields, indexName, callbackContext);
 
+        } else if (ACTION_ENSURE_TEXT_INDEXED.equals(action)) {
+            final String documentStoreName = JSONObject.NULL.equals(args.get(0)) ? null : args.getString(0);
+            final String indexName = JSONObject.NULL.equals(args.get(1)) ? null : args.getString(1);
+            final JSONArray fields = JSONObject.NULL.equals(args.get(2)) ? null : args.getJSONArray(2);
+            final String tokenizer = args.length() < 4 || JSONObject.NULL.equals(args.get(3)) ? null : args.getString(3);
+
+            ensureTextIndexed(documentStoreName, fields, indexName, tokenizer, callbackContext);
+
+        } else if (ACTION_ADVISE_INDEXES.equals(action)) {
+            final String documentStoreName = JSONObject.NULL.equals(args.get(0)) ? null : args.getString(0);
+            final JSONObject options = args.length() < 2 || JSONObject.NULL.equals(args.get(1)) ? new JSONObject() : args.getJSONObject(1);
+
+            adviseIndexes(documentStoreName, options, callbackContext);
+
         } else if (ACTION_DELETE_INDEX_NAMED.equals(action)) {
             final String documentStoreName = JSONObject.NULL.equals(args.get(0)) ? null : args.getString(0);
             final String indexName = JSONObject.NULL.equals(args.get(1)) ? null : args.getString(1);
@@ -240,8 +786,9 @@ public class CloudantSyncPlugin extends CordovaPlugin {
         } else if (ACTION_FIND.equals(action)) {
             final String documentStoreName = JSONObject.NULL.equals(args.get(0)) ? null : args.getString(0);
             final JSONObject query = JSONObject.NULL.equals(args.get(1)) ? null : args.getJSONObject(1);
+            final String encoding = args.length() < 3 || JSONObject.NULL.equals(args.get(2)) ? null : args.getString(2);
 
-            find(documentStoreName, query, callbackContext);
+            find(documentStoreName, query, encoding, callbackContext);
 
         } else if (ACTION_CREATE_REPLICATOR.equals(action)) {
             final JSONObject replicatorJson = JSONObject.NULL.equals(args.get(0)) ? new JSONObject() : args.getJSONObject(0);
@@ -251,7 +798,7 @@ public class CloudantSyncPlugin extends CordovaPlugin {
             final String type = JSONObject.NULL.equals(replicatorJson.get(REPLICATOR_TYPE)) ? null : replicatorJson.getString(REPLICATOR_TYPE);
             final Integer timestamp = JSONObject.NULL.equals(replicatorJson.get(REPLICATOR_TOKEN)) ? null : replicatorJson.getInt(REPLICATOR_TOKEN);
 
-            createReplicator(documentStoreName, remoteUrl, type, timestamp, callbackContext);
+            createReplicator(documentStoreName, remoteUrl, type, timestamp, replicatorJson, callbackContext);
 
         } else if (ACTION_DESTROY_REPLICATOR.equals(action)) {
             final JSONObject replicatorJson = JSONObject.NULL.equals(args.get(0)) ? new JSONObject() : args.getJSONObject(0);
@@ -268,8 +815,9 @@ public class CloudantSyncPlugin extends CordovaPlugin {
         } else if (ACTION_GET_REPLICATION_STATUS.equals(action)) {
             final JSONObject replicatorJson = JSONObject.NULL.equals(args.get(0)) ? new JSONObject() : args.getJSONObject(0);
             final Integer token = JSONObject.NULL.equals(replicatorJson.get(REPLICATOR_TOKEN)) ? null : replicatorJson.getInt(REPLICATOR_TOKEN);
+            final boolean detailed = args.length() > 1 && args.optBoolean(1);
 
-            getReplicationStatus(token, callbackContext);
+            getReplicationStatus(token, detailed, callbackContext);
 
         } else if (ACTION_STOP_REPLICATION.equals(action)) {
             final JSONObject replicatorJson = JSONObject.NULL.equals(args.get(0)) ? new JSONObject() : args.getJSONObject(0);
@@ -287,18 +835,159 @@ public class CloudantSyncPlugin extends CordovaPlugin {
             unlockInterceptor(token, type, httpContext, timeout, uuid, callbackContext);
         } else if (ACTION_GET_CONFLICTED_DOCUMENT_IDS.equals(action)) {
             final String documentStoreName = JSONObject.NULL.equals(args.get(0)) ? null : args.getString(0);
+            final int offset = args.length() < 2 || JSONObject.NULL.equals(args.get(1)) ? 0 : args.getInt(1);
+            final int limit = args.length() < 3 || JSONObject.NULL.equals(args.get(2)) ? Integer.MAX_VALUE : args.getInt(2);
+
+            getConflictedDocumentIds(documentStoreName, offset, limit, callbackContext);
+        } else if (ACTION_COUNT_CONFLICTS.equals(action)) {
+            final String documentStoreName = JSONObject.NULL.equals(args.get(0)) ? null : args.getString(0);
+
+            countConflicts(documentStoreName, callbackContext);
+        } else if (ACTION_STREAM_CONFLICTED_DOCUMENT_IDS.equals(action)) {
+            final String documentStoreName = JSONObject.NULL.equals(args.get(0)) ? null : args.getString(0);
+            final int chunkSize = args.length() < 2 || JSONObject.NULL.equals(args.get(1)) ? 500 : args.getInt(1);
+
+            streamConflictedDocumentIds(documentStoreName, chunkSize, callbackContext);
+        } else if (ACTION_SET_METRICS_ENABLED.equals(action)) {
+            PluginMetrics.setEnabled(args.optBoolean(0));
+            callbackContext.success();
+        } else if (ACTION_GET_METRICS.equals(action)) {
+            JSONObject metrics = PluginMetrics.toJSON();
+            metrics.put("coalescing", readCoalescer.metrics());
+            callbackContext.success(metrics);
+        } else if (ACTION_RESET_METRICS.equals(action)) {
+            PluginMetrics.reset();
+            readCoalescer.resetMetrics();
+            callbackContext.success();
+        } else if (ACTION_SET_TRACING_ENABLED.equals(action)) {
+            final int capacity = args.length() < 2 || JSONObject.NULL.equals(args.get(1)) ? PluginTracer
+                .DEFAULT_CAPACITY : args.getInt(1);
+            try {
+                PluginTracer.setEnabled(args.optBoolean(0), capacity);
+                callbackContext.success();
+            } catch (Exception e) {
+                callbackContext.error(e.getMessage());
+            }
+        } else if (ACTION_GET_TRACE.equals(action)) {
+            getTrace(callbackContext);
+        } else if (ACTION_DUMP_TRACE.equals(action)) {
+            final String path = args.length() < 1 || JSONObject.NULL.equals(args.get(0)) ? null : args.getString(0);
+
+            dumpTrace(path, callbackContext);
+        } else if (ACTION_CLEAR_TRACE.equals(action)) {
+            PluginTracer.clear();
+            callbackContext.success();
+        } else if (ACTION_START_RECORDING.equals(action)) {
+            final String path = args.length() < 1 || JSONObject.NULL.equals(args.get(0)) ? null : args.getString(0);
+            final JSONObject options = args.length() < 2 || JSONObject.NULL.equals(args.get(1)) ? new JSONObject() : args.getJSONObject(1);
+
+            startRecording(path, options, callbackContext);
+        } else if (ACTION_STOP_RECORDING.equals(action)) {
+            stopRecording(callbackContext);
+        } else if (ACTION_GET_SLOW_QUERIES.equals(action)) {
+            final String documentStoreName = args.length() < 1 || JSONObject.NULL.equals(args.get(0)) ? null : args.getString(0);
+
+            callbackContext.success(slowQueryLog.toJSON(documentStoreName));
+        } else if (ACTION_SET_SLOW_QUERY_LOG.equals(action)) {
+            final JSONObject options = JSONObject.NULL.equals(args.get(0)) ? new JSONObject() : args.getJSONObject(0);
+            try {
+                slowQueryLog.configure(options);
+                callbackContext.success();
+            } catch (Exception e) {
+                callbackContext.error(e.getMessage());
+            }
+        } else if (ACTION_CLEAR_SLOW_QUERIES.equals(action)) {
+            slowQueryLog.clear();
+            callbackContext.success();
+        } else if (ACTION_GET_BACKGROUND_INDEXING.equals(action)) {
+            callbackContext.success(backgroundIndexer.toJSON());
+        } else if (ACTION_SET_BACKGROUND_INDEXING.equals(action)) {
+            final JSONObject options = JSONObject.NULL.equals(args.get(0)) ? new JSONObject() : args.getJSONObject(0);
+            try {
+                backgroundIndexer.configure(options);
+                callbackContext.success(backgroundIndexer.toJSON());
+            } catch (Exception e) {
+                callbackContext.error(e.getMessage());
+            }
+        } else if (ACTION_SET_WRITE_BEHIND.equals(action)) {
+            final String name = JSONObject.NULL.equals(args.get(0)) ? null : args.getString(0);
+            final JSONObject options = JSONObject.NULL.equals(args.get(1)) ? null : args.getJSONObject(1);
+
+            this.setWriteBehind(name, options, callbackContext);
+        } else if (ACTION_FLUSH.equals(action)) {
+            final String name = JSONObject.NULL.equals(args.get(0)) ? null : args.getString(0);
+
+            this.flush(name, callbackContext);
+        } else if (ACTION_GET_WRITE_BEHIND_STATUS.equals(action)) {
+            final String name = JSONObject.NULL.equals(args.get(0)) ? null : args.getString(0);
+
+            this.getWriteBehindStatus(name, callbackContext);
+        } else if (ACTION_GET_MEMORY_USAGE.equals(action)) {
+            getMemoryUsage(callbackContext);
+        } else if (ACTION_TRIM_MEMORY.equals(action)) {
+            final int level = JSONObject.NULL.equals(args.get(0)) ? ComponentCallbacks2.TRIM_MEMORY_COMPLETE : args.getInt(0);
 
-            getConflictedDocumentIds(documentStoreName, callbackContext);
+            trimMemory(level, callbackContext);
+        } else if (ACTION_SET_MEMORY_POLICY.equals(action)) {
+            final JSONObject options = JSONObject.NULL.equals(args.get(0)) ? new JSONObject() : args.getJSONObject(0);
+
+            setMemoryPolicy(options, callbackContext);
         } else if (ACTION_RESOLVE_CONFLICTS_FOR_DOCUMENT.equals(action)) {
             final String documentStoreName = JSONObject.NULL.equals(args.get(0)) ? null : args.getString(0);
             final String documentId = JSONObject.NULL.equals(args.get(1)) ? null : args.getString(1);
 
             resolveConflictsForDocument(documentStoreName, documentId, callbackContext);
+        } else if (ACTION_RESOLVE_ALL_CONFLICTS.equals(action)) {
+            final String documentStoreName = JSONObject.NULL.equals(args.get(0)) ? null : args.getString(0);
+            final Object strategy = JSONObject.NULL.equals(args.get(1)) ? null : args.get(1);
+            final JSONObject options = args.length() < 3 || JSONObject.NULL.equals(args.get(2)) ? new JSONObject() : args.getJSONObject(2);
+
+            resolveAllConflicts(documentStoreName, strategy, options, callbackContext);
+        } else if (ACTION_RESOLVE_CONFLICTS_IN_BATCHES.equals(action)) {
+            final String documentStoreName = JSONObject.NULL.equals(args.get(0)) ? null : args.getString(0);
+            final JSONObject options = args.length() < 2 || JSONObject.NULL.equals(args.get(1)) ? new JSONObject() : args.getJSONObject(1);
+
+            resolveConflictsInBatches(documentStoreName, options, callbackContext);
+        } else if (ACTION_RETURN_RESOLVED_DOCUMENTS.equals(action)) {
+            final String resolverId = JSONObject.NULL.equals(args.get(0)) ? null : args.getString(0);
+            final Integer batchId = JSONObject.NULL.equals(args.get(1)) ? null : args.getInt(1);
+            final JSONArray documents = JSONObject.NULL.equals(args.get(2)) ? new JSONArray() : args.getJSONArray(2);
+
+            returnResolvedDocuments(resolverId, batchId, documents, callbackContext);
         } else if (ACTION_RETURN_RESOLVED_DOCUMENT.equals(action)) {
             final JSONObject docRev = JSONObject.NULL.equals(args.get(0)) ? null : args.getJSONObject(0);
             final String resolverId = JSONObject.NULL.equals(args.get(1)) ? null : args.getString(1);
 
             returnResolvedDocument(docRev, resolverId, callbackContext);
+        } else if (ACTION_SCHEDULE_REPLICATION.equals(action)) {
+            final JSONObject replicatorJson = JSONObject.NULL.equals(args.get(0)) ? new JSONObject() : args.getJSONObject(0);
+            final Integer token = JSONObject.NULL.equals(replicatorJson.get(REPLICATOR_TOKEN)) ? null : replicatorJson.getInt(REPLICATOR_TOKEN);
+            final JSONObject documentStore = JSONObject.NULL.equals(replicatorJson.get(REPLICATOR_DOCUMENT_STORE)) ? new JSONObject() : replicatorJson.getJSONObject(REPLICATOR_DOCUMENT_STORE);
+            final String documentStoreName = JSONObject.NULL.equals(documentStore.get(DOCUMENT_STORE_NAME)) ? null : documentStore.getString(DOCUMENT_STORE_NAME);
+            final JSONObject options = JSONObject.NULL.equals(args.get(1)) ? new JSONObject() : args.getJSONObject(1);
+            final boolean runNow = !JSONObject.NULL.equals(args.get(2)) && args.getBoolean(2);
+
+            scheduleReplication(token, documentStoreName, options, runNow, callbackContext);
+        } else if (ACTION_UNSCHEDULE_REPLICATION.equals(action)) {
+            final JSONObject replicatorJson = JSONObject.NULL.equals(args.get(0)) ? new JSONObject() : args.getJSONObject(0);
+            final Integer token = JSONObject.NULL.equals(replicatorJson.get(REPLICATOR_TOKEN)) ? null : replicatorJson.getInt(REPLICATOR_TOKEN);
+
+            unscheduleReplication(token, callbackContext);
+        } else if (ACTION_GET_REPLICATION_SCHEDULE.equals(action)) {
+            final JSONObject replicatorJson = JSONObject.NULL.equals(args.get(0)) ? new JSONObject() : args.getJSONObject(0);
+            final Integer token = JSONObject.NULL.equals(replicatorJson.get(REPLICATOR_TOKEN)) ? null : replicatorJson.getInt(REPLICATOR_TOKEN);
+
+            getReplicationSchedule(token, callbackContext);
+
+        } else if (ACTION_SET_MAX_CONCURRENT_REPLICATIONS.equals(action)) {
+            final Integer maxConcurrent = JSONObject.NULL.equals(args.get(0)) ? null : args.getInt(0);
+
+            setMaxConcurrentReplications(maxConcurrent, callbackContext);
+
+        } else if (ACTION_GET_REPLICATION_QUEUE_METRICS.equals(action)) {
+            final boolean reset = args.length() > 0 && args.optBoolean(0);
+
+            getReplicationQueueMetrics(reset, callbackContext);
         } else {
             return false;
         }
@@ -323,7 +1012,7 @@ public class CloudantSyncPlugin extends CordovaPlugin {
             path = args.getString(0);
         }
 
-        cordova.getThreadPool().execute(new Runnable (){
+        threadPool().execute(new Runnable (){
             @Override
             public void run(){
                 int id = documentStorePaths.size();
@@ -350,15 +1039,93 @@ public class CloudantSyncPlugin extends CordovaPlugin {
     private void openDocumentStore(final int documentStorePathId, final String documentStoreName,
                                    final
     CallbackContext callbackContext) {
-        cordova.getThreadPool().execute(new Runnable() {
+        threadPool().execute(new Runnable() {
             @Override
             public void run() {
                 try {
                     String path = documentStorePaths.get(documentStorePathId);
-                    DocumentStore ds = DocumentStore.getInstance(new File(path, documentStoreName));
+                    File location = new File(path, documentStoreName);
+                    DocumentStore ds = DocumentStore.getInstance(location);
                     documentStores.put(documentStoreName, ds);
+                    memoryManager.opened(documentStoreName, location);
+                    JSONObject r = new JSONObject();
+                    r.put("name", documentStoreName);
+                    callbackContext.success(r);
+                } catch (Exception e) {
+                    callbackContext.error(e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Seeds a DocumentStore which does not exist yet from the app assets, then opens it. See
+     * DatastoreSeeder for the seed formats.
+     * @param documentStorePathId - The id of the directory holding the DocumentStore
+     * @param documentStoreName - The name of the DocumentStore to seed and open
+     * @param options - asset, the path of the seed in the assets, and optionally its format,
+     *                datastore or ndjson
+     * @param callbackContext - The javascript callback to execute when complete or errored
+     */
+    private void seedDocumentStore(final int documentStorePathId, final String documentStoreName,
+                                   final JSONObject options, final CallbackContext callbackContext) {
+        threadPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (documentStoreName == null) {
+                        throw new Exception("DocumentStore name cannot be null");
+                    }
+                    String asset = options == null ? null : options.optString("asset", null);
+                    if (asset == null) {
+                        throw new Exception("asset cannot be null");
+                    }
+                    String format = options.optString("format", DatastoreSeeder.formatOf(asset));
+                    if (!DatastoreSeeder.FORMAT_DATASTORE.equals(format) &&
+                        !DatastoreSeeder.FORMAT_NDJSON.equals(format)) {
+                        throw new Exception("Unsupported seed format: " + format);
+                    }
+
+                    File location = new File(documentStorePaths.get(documentStorePathId), documentStoreName);
                     JSONObject r = new JSONObject();
                     r.put("name", documentStoreName);
+                    r.put("seeded", false);
+                    // Concurrent seeds of the same DocumentStore would remove each other's work
+                    synchronized (DatastoreSeeder.lockFor(location)) {
+                        if (!documentStores.containsKey(documentStoreName) && !DatastoreSeeder.exists(location)) {
+                            DatastoreSeeder seeder = new DatastoreSeeder(cordova.getActivity().getAssets());
+                            File seeding = DatastoreSeeder.seedingLocation(location);
+                            long traced = PluginTracer.start();
+                            try {
+                                if (DatastoreSeeder.FORMAT_DATASTORE.equals(format)) {
+                                    r.put("files", seeder.copyDatastore(asset, seeding));
+                                } else {
+                                    final DocumentStore seed = DocumentStore.getInstance(seeding);
+                                    try {
+                                        r.put("documents", seeder.importNdjson(asset, new DatastoreSeeder.Importer() {
+                                            @Override
+                                            public void importDocument(JSONObject document) throws Exception {
+                                                seed.database().create(buildDocRevision(document));
+                                            }
+                                        }));
+                                    } finally {
+                                        seed.close();
+                                    }
+                                }
+                                DatastoreSeeder.install(seeding, location);
+                            } catch (Exception e) {
+                                FileUtils.deleteQuietly(seeding);
+                                throw e;
+                            } finally {
+                                PluginTracer.end(traced, PluginTracer.CATEGORY_DATABASE, "seed");
+                            }
+                            r.put("seeded", true);
+                        }
+
+                        DocumentStore ds = DocumentStore.getInstance(location);
+                        documentStores.put(documentStoreName, ds);
+                        memoryManager.opened(documentStoreName, location);
+                    }
                     callbackContext.success(r);
                 } catch (Exception e) {
                     callbackContext.error(e.getMessage());
@@ -368,13 +1135,21 @@ public class CloudantSyncPlugin extends CordovaPlugin {
     }
 
     private void closeDocumentStore(final JSONArray args, final CallbackContext callbackContext) {
-        cordova.getThreadPool().execute(new Runnable(){
+        threadPool().execute(new Runnable(){
             @Override
             public void run() {
                 try{
+                    // Queued writes are saved before the DocumentStore is closed
+                    writeBehind.disable(args.getString(0));
                     DocumentStore ds = documentStores.remove(args.getString(0));
+                    boolean closedWhileIdle = memoryManager.forget(args.getString(0));
+                    backgroundIndexer.forget(args.getString(0));
                     if(ds == null){
-                        callbackContext.error("DocumentStore is not open");
+                        if (closedWhileIdle) {
+                            callbackContext.success();
+                        } else {
+                            callbackContext.error("DocumentStore is not open");
+                        }
                         return;
                     }
 
@@ -394,13 +1169,16 @@ public class CloudantSyncPlugin extends CordovaPlugin {
      */
     private void deleteDocumentStore(final String documentStoreName,
                                   final CallbackContext callbackContext) {
-        cordova.getThreadPool().execute(new Runnable() {
+        threadPool().execute(new Runnable() {
             @Override
             public void run() {
                 if (documentStoreName == null) {
                     callbackContext.error("DocumentStore name cannot be null");
                 } else {
 
+                    // Queued writes are dropped with the DocumentStore
+                    writeBehind.discard(documentStoreName);
+
                     // Clear from cache
                     try {
                         DocumentStore ds = getDocumentStore(documentStoreName);
@@ -411,6 +1189,10 @@ public class CloudantSyncPlugin extends CordovaPlugin {
 
                     documentStores.remove(documentStoreName);
                     queries.remove(documentStoreName);
+                    memoryManager.forget(documentStoreName);
+                    readCoalescer.documentStoreModified(documentStoreName);
+                    slowQueryLog.forget(documentStoreName);
+                    backgroundIndexer.forget(documentStoreName);
 
                     callbackContext.success();
                 }
@@ -425,24 +1207,41 @@ public class CloudantSyncPlugin extends CordovaPlugin {
      * @param callbackContext - The javascript callback to execute when complete or errored
      * @param isCreate - if true, indicates we are creating a document and if false, indicates
      *        we are updating a document.
+     * @param encoding - The encoding of the document and result, or null for JSON
      */
-    private void createOrUpdateDocumentFromRevision(final String documentStoreName, final JSONObject docRev, final CallbackContext callbackContext, final boolean isCreate) {
-        cordova.getThreadPool().execute(new Runnable() {
+    private void createOrUpdateDocumentFromRevision(final String documentStoreName, final Object docRev, final CallbackContext callbackContext, final boolean isCreate, final String encoding) {
+        threadPool().execute(new Runnable() {
             @Override
             public void run() {
                 try {
+                    boolean binary = isBinary(encoding);
+                    if (writeBehind.isEnabled(documentStoreName)) {
+                        queueDocumentRevision(documentStoreName, docRev, isCreate, binary, callbackContext);
+                        return;
+                    }
                     DocumentStore ds = getDocumentStore(documentStoreName);
-                    DocumentRevision rev = buildDocRevision(docRev);
+                    DocumentRevision rev = docRev instanceof String ? buildDocRevision(decodeDocument((String) docRev))
+                        : buildDocRevision((JSONObject) docRev);
 
                     DocumentRevision result;
 
-                    if (isCreate) {
-                        result = ds.database().create(rev);
+                    long traced = PluginTracer.start();
+                    try {
+                        if (isCreate) {
+                            result = ds.database().create(rev);
+                        } else {
+                            result = ds.database().update(rev);
+                        }
+                    } finally {
+                        PluginTracer.end(traced, PluginTracer.CATEGORY_DATABASE, isCreate ? "create" : "update");
+                    }
+                    documentStoreModified(documentStoreName);
+                    if (binary) {
+                        callbackContext.sendPluginResult(encodedResult(buildMap(result, isCreate)));
                     } else {
-                        result = ds.database().update(rev);
+                        JSONObject r = buildJSON(result, isCreate);
+                        callbackContext.success(r);
                     }
-                    JSONObject r = buildJSON(result, isCreate);
-                    callbackContext.success(r);
                 } catch (Exception e) {
                     callbackContext.error(e.getMessage());
                 }
@@ -451,20 +1250,69 @@ public class CloudantSyncPlugin extends CordovaPlugin {
     }
 
     /**
-     * Fetches a document revision
+     * Queues a create or update for a DocumentStore with write-behind enabled, acknowledging it
+     * with the document ID and a queued marker in place of the saved revision
      * @param documentStoreName - The name of the DocumentStore
-     * @param docId - The ID of the document to fetch
+     * @param docRev - The JSON document revision, or the encoded document, to save
+     * @param isCreate - true to create the document, false to update it
+     * @param binary - true if the document and result are encoded
      * @param callbackContext - The javascript callback to execute when complete or errored
+     * @throws Exception - If the revision is invalid or the queue stays full
      */
-    private void getDocument(final String documentStoreName, final String docId, final CallbackContext callbackContext) {
-        cordova.getThreadPool().execute(new Runnable() {
+    private void queueDocumentRevision(String documentStoreName, Object docRev, boolean isCreate, boolean binary,
+                                       CallbackContext callbackContext) throws Exception {
+        cachedDocumentStore(documentStoreName);
+        DocumentRevision rev;
+        if (docRev instanceof String) {
+            Map<String, Object> document = decodeDocument((String) docRev);
+            if (isCreate && document.get(DOC_ID) == null) {
+                document.put(DOC_ID, WriteBehind.generateDocumentId());
+            }
+            rev = buildDocRevision(document);
+        } else {
+            JSONObject document = (JSONObject) docRev;
+            if (isCreate && !document.has(DOC_ID)) {
+                document.put(DOC_ID, WriteBehind.generateDocumentId());
+            }
+            rev = buildDocRevision(document);
+        }
+        if (rev.getId() == null) {
+            throw new Exception("Document ID cannot be null");
+        }
+
+        writeBehind.enqueue(documentStoreName, rev, isCreate);
+        // Reads joining a flight started before the write would not see it
+        readCoalescer.documentStoreModified(documentStoreName);
+
+        Map<String, Object> queued = new HashMap<String, Object>();
+        queued.put(DOC_ID, rev.getId());
+        queued.put(WriteBehind.QUEUED_KEY, true);
+        if (binary) {
+            callbackContext.sendPluginResult(encodedResult(queued));
+        } else {
+            callbackContext.success(new JSONObject(queued));
+        }
+    }
+
+    /**
+     * Enables or changes write-behind for a DocumentStore, or flushes and disables it
+     * @param documentStoreName - The name of the DocumentStore
+     * @param options - The write-behind settings, or null to disable it
+     * @param callbackContext - The javascript callback to execute when complete or errored
+     */
+    private void setWriteBehind(final String documentStoreName, final JSONObject options,
+                                final CallbackContext callbackContext) {
+        threadPool().execute(new Runnable() {
             @Override
             public void run() {
                 try {
-                    DocumentStore ds = getDocumentStore(documentStoreName);
-                    DocumentRevision result = ds.database().read(docId);
-                    JSONObject r = buildJSON(result, false);
-                    callbackContext.success(r);
+                    cachedDocumentStore(documentStoreName);
+                    if (options == null) {
+                        writeBehind.disable(documentStoreName);
+                    } else {
+                        writeBehind.enable(documentStoreName, options);
+                    }
+                    callbackContext.success(writeBehind.status(documentStoreName));
                 } catch (Exception e) {
                     callbackContext.error(e.getMessage());
                 }
@@ -473,21 +1321,17 @@ public class CloudantSyncPlugin extends CordovaPlugin {
     }
 
     /**
-     * Deletes a document revision
+     * Writes the queued writes of a DocumentStore
      * @param documentStoreName - The name of the DocumentStore
-     * @param docRev - The ID of the document to delete
      * @param callbackContext - The javascript callback to execute when complete or errored
      */
-    private void deleteDocumentFromRevision(final String documentStoreName, final JSONObject docRev, final CallbackContext callbackContext) {
-        cordova.getThreadPool().execute(new Runnable() {
+    private void flush(final String documentStoreName, final CallbackContext callbackContext) {
+        threadPool().execute(new Runnable() {
             @Override
             public void run() {
                 try {
-                    DocumentStore ds = getDocumentStore(documentStoreName);
-                    DocumentRevision rev = buildDocRevision(docRev);
-
-                    DocumentRevision deletedRevision = ds.database().delete(rev);
-                    callbackContext.success(buildJSON(deletedRevision, false));
+                    cachedDocumentStore(documentStoreName);
+                    callbackContext.success(writeBehind.flush(documentStoreName));
                 } catch (Exception e) {
                     callbackContext.error(e.getMessage());
                 }
@@ -496,28 +1340,343 @@ public class CloudantSyncPlugin extends CordovaPlugin {
     }
 
     /**
-     * Adds a single, possibly compound, index for the given field names
+     * Gets the write-behind settings and counters of a DocumentStore
      * @param documentStoreName - The name of the DocumentStore
-     * @param fields - The list of fields to index
-     * @param indexName - The name of the index
      * @param callbackContext - The javascript callback to execute when complete or errored
      */
-    private void ensureIndexed(final String documentStoreName, final JSONArray fields, final String indexName, final CallbackContext callbackContext) {
-        cordova.getThreadPool().execute(new Runnable() {
+    private void getWriteBehindStatus(final String documentStoreName, final CallbackContext callbackContext) {
+        threadPool().execute(new Runnable() {
             @Override
             public void run() {
                 try {
-                    if (indexName == null || fields == null) {
-                        throw new Exception("indexName and fields cannot be null");
+                    cachedDocumentStore(documentStoreName);
+                    callbackContext.success(writeBehind.status(documentStoreName));
+                } catch (Exception e) {
+                    callbackContext.error(e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Fetches the current revisions of several documents in one read, returning a not modified
+     * marker for each document whose known revision is still current
+     * @param documentStoreName - The name of the DocumentStore
+     * @param requests - The documents to fetch, each either an ID or an object with the _id and
+     *                 optionally the known _rev
+     * @param encoding - The encoding of the result, or null for JSON
+     * @param callbackContext - The javascript callback to execute when complete or errored
+     */
+    private void getDocuments(final String documentStoreName, final JSONArray requests, final String encoding,
+                              final CallbackContext callbackContext) {
+        threadPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    boolean binary = isBinary(encoding);
+                    if (requests == null) {
+                        throw new Exception("Document requests cannot be null");
+                    }
+
+                    List<String> ids = new ArrayList<String>();
+                    List<String> knownRevs = new ArrayList<String>();
+                    for (int i = 0; i < requests.length(); i++) {
+                        Object request = requests.get(i);
+                        if (request instanceof JSONObject) {
+                            JSONObject r = (JSONObject) request;
+                            ids.add(r.getString(DOC_ID));
+                            knownRevs.add(r.isNull(DOC_REV) ? null : r.getString(DOC_REV));
+                        } else {
+                            ids.add(requests.getString(i));
+                            knownRevs.add(null);
+                        }
+                    }
+
+                    DocumentStore ds = getDocumentStore(documentStoreName);
+                    List<DocumentRevision> revs;
+                    long traced = PluginTracer.start();
+                    try {
+                        revs = ds.database().read(ids);
+                    } finally {
+                        PluginTracer.end(traced, PluginTracer.CATEGORY_DATABASE, "read");
+                    }
+                    Map<String, DocumentRevision> byId = new HashMap<String, DocumentRevision>();
+                    for (DocumentRevision rev : revs) {
+                        byId.put(rev.getId(), rev);
+                    }
+
+                    // Results are in the order requested, with null for documents not found
+                    JSONArray r = new JSONArray();
+                    List<Map<String, Object>> documents = new ArrayList<Map<String, Object>>();
+                    for (int i = 0; i < ids.size(); i++) {
+                        DocumentRevision rev = byId.get(ids.get(i));
+                        Map<String, Object> marker = null;
+                        if (rev != null && rev.getRevision().equals(knownRevs.get(i))) {
+                            marker = notModified(rev);
+                        }
+                        if (binary) {
+                            documents.add(rev == null ? null : marker != null ? marker : buildMap(rev, false));
+                        } else {
+                            r.put(rev == null ? JSONObject.NULL : marker != null ? new JSONObject(marker) :
+                                buildJSON(rev, false));
+                        }
+                    }
+                    if (binary) {
+                        callbackContext.sendPluginResult(encodedResult(documents));
+                    } else {
+                        callbackContext.success(r);
+                    }
+                } catch (Exception e) {
+                    callbackContext.error(e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Applies set, unset, increment and append operations to the body of a document's current
+     * revision, keeping its attachments
+     * @param documentStoreName - The name of the DocumentStore
+     * @param docId - The ID of the document to patch
+     * @param rev - The revision the operations apply to, which must be the current revision
+     * @param ops - The operations to apply, in order
+     * @param callbackContext - The javascript callback to execute when complete or errored
+     */
+    private void patchDocument(final String documentStoreName, final String docId, final String rev,
+                               final JSONArray ops, final CallbackContext callbackContext) {
+        threadPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (docId == null || rev == null) {
+                        throw new Exception("Document ID and revision cannot be null");
+                    }
+                    DocumentPatch patch = new DocumentPatch(ops);
+                    DocumentStore ds = getDocumentStore(documentStoreName);
+
+                    DocumentRevision current;
+                    long traced = PluginTracer.start();
+                    try {
+                        current = ds.database().read(docId);
+                    } finally {
+                        PluginTracer.end(traced, PluginTracer.CATEGORY_DATABASE, "read");
+                    }
+                    if (current.isDeleted()) {
+                        throw new Exception("Document " + docId + " is deleted");
+                    }
+                    if (!rev.equals(current.getRevision())) {
+                        throw new Exception("Document update conflict: " + docId + " is at revision " +
+                            current.getRevision() + ", not " + rev);
+                    }
+                    current.setBody(DocumentBodyFactory.create(patch.apply(current.getBody().asMap())));
+
+                    DocumentRevision result;
+                    traced = PluginTracer.start();
+                    try {
+                        // Fails with a conflict if another write made a new revision since the read
+                        result = ds.database().update(current);
+                    } finally {
+                        PluginTracer.end(traced, PluginTracer.CATEGORY_DATABASE, "update");
+                    }
+                    documentStoreModified(documentStoreName);
+
+                    JSONObject r = new JSONObject();
+                    r.put(DOC_ID, result.getId());
+                    r.put(DOC_REV, result.getRevision());
+                    callbackContext.success(r);
+                } catch (Exception e) {
+                    callbackContext.error(e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Applies a list of create, update and delete operations as a unit, returning the _id and _rev
+     * written by each. See DocumentTransaction for how a failure is rolled back.
+     * @param documentStoreName - The name of the DocumentStore
+     * @param ops - The operations, each with an op of create, update or delete and the document
+     * @param callbackContext - The javascript callback to execute when complete or errored
+     */
+    private void transaction(final String documentStoreName, final JSONArray ops,
+                             final CallbackContext callbackContext) {
+        threadPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (ops == null) {
+                        throw new Exception("ops cannot be null");
+                    }
+                    DocumentTransaction transaction = new DocumentTransaction();
+                    for (int i = 0; i < ops.length(); i++) {
+                        JSONObject op = ops.getJSONObject(i);
+                        transaction.add(op.optString("op"), buildDocRevision(op.optJSONObject("document")));
+                    }
+                    DocumentStore ds = getDocumentStore(documentStoreName);
+
+                    JSONArray results;
+                    synchronized (DocumentTransaction.lockFor(documentStoreName)) {
+                        long traced = PluginTracer.start();
+                        try {
+                            results = transaction.apply(ds.database());
+                        } finally {
+                            PluginTracer.end(traced, PluginTracer.CATEGORY_DATABASE, "transaction");
+                            // A failed transaction may have written and compensated
+                            documentStoreModified(documentStoreName);
+                        }
+                    }
+                    callbackContext.success(results);
+                } catch (Exception e) {
+                    callbackContext.error(e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Fetches a document revision
+     * @param documentStoreName - The name of the DocumentStore
+     * @param docId - The ID of the document to fetch
+     * @param encoding - The encoding of the result, or null for JSON
+     * @param knownRev - The revision the caller has, for which only a not modified marker is
+     *                 returned if it is still current, or null
+     * @param callbackContext - The javascript callback to execute when complete or errored
+     */
+    private void getDocument(final String documentStoreName, final String docId, final String encoding,
+                             final String knownRev, final CallbackContext callbackContext) {
+        final ReadCoalescer.Flight flight = readCoalescer.lead(ACTION_GET_DOCUMENT, documentStoreName,
+            docId + '\u0000' + encoding + '\u0000' + knownRev, callbackContext);
+        if (flight == null) {
+            // An identical read in flight sends its result to this call too
+            return;
+        }
+
+        threadPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                PluginResult r;
+                try {
+                    boolean binary = isBinary(encoding);
+                    DocumentStore ds = getDocumentStore(documentStoreName);
+                    DocumentRevision result;
+                    long traced = PluginTracer.start();
+                    try {
+                        result = ds.database().read(docId);
+                    } finally {
+                        PluginTracer.end(traced, PluginTracer.CATEGORY_DATABASE, "read");
+                    }
+                    if (knownRev != null && knownRev.equals(result.getRevision())) {
+                        r = binary ? encodedResult(notModified(result)) :
+                            new PluginResult(PluginResult.Status.OK, new JSONObject(notModified(result)));
+                    } else if (binary) {
+                        r = encodedResult(buildMap(result, false));
+                    } else {
+                        r = new PluginResult(PluginResult.Status.OK, buildJSON(result, false));
+                    }
+                } catch (Exception e) {
+                    r = new PluginResult(PluginResult.Status.ERROR, e.getMessage());
+                }
+                flight.complete(r);
+            }
+        });
+    }
+
+    /**
+     * Deletes a document revision
+     * @param documentStoreName - The name of the DocumentStore
+     * @param docRev - The ID of the document to delete
+     * @param callbackContext - The javascript callback to execute when complete or errored
+     */
+    private void deleteDocumentFromRevision(final String documentStoreName, final JSONObject docRev, final CallbackContext callbackContext) {
+        threadPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    DocumentStore ds = getDocumentStore(documentStoreName);
+                    DocumentRevision rev = buildDocRevision(docRev);
+
+                    DocumentRevision deletedRevision;
+                    long traced = PluginTracer.start();
+                    try {
+                        deletedRevision = ds.database().delete(rev);
+                    } finally {
+                        PluginTracer.end(traced, PluginTracer.CATEGORY_DATABASE, "delete");
+                    }
+                    documentStoreModified(documentStoreName);
+                    callbackContext.success(buildJSON(deletedRevision, false));
+                } catch (Exception e) {
+                    callbackContext.error(e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Adds a single, possibly compound, index for the given field names
+     * @param documentStoreName - The name of the DocumentStore
+     * @param fields - The list of fields to index
+     * @param indexName - The name of the index
+     * @param callbackContext - The javascript callback to execute when complete or errored
+     */
+    private void ensureIndexed(final String documentStoreName, final JSONArray fields, final String indexName, final CallbackContext callbackContext) {
+        threadPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (indexName == null || fields == null) {
+                        throw new Exception("indexName and fields cannot be null");
+                    }
+
+                    List<String> indexFields = new ArrayList<String>();
+                    for (int i = 0; i < fields.length(); i++) {
+                        indexFields.add((String)fields.get(i));
+                    }
+
+                    DocumentStore ds = getDocumentStore(documentStoreName);
+                    createJsonIndex(ds, indexFields, indexName);
+                    callbackContext.success(indexName);
+                } catch (Exception e) {
+                    callbackContext.error(e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Adds a full text index for the given field names, searched with $text selectors
+     * @param documentStoreName - The name of the DocumentStore
+     * @param fields - The list of fields to index
+     * @param indexName - The name of the index
+     * @param tokenizer - The SQLite FTS tokenizer and its arguments, such as "porter", or null for
+     *                  the default "simple" tokenizer
+     * @param callbackContext - The javascript callback to execute when complete or errored
+     */
+    private void ensureTextIndexed(final String documentStoreName, final JSONArray fields, final String indexName,
+                                   final String tokenizer, final CallbackContext callbackContext) {
+        threadPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (indexName == null || fields == null) {
+                        throw new Exception("indexName and fields cannot be null");
                     }
 
                     List<FieldSort> indexFields = new ArrayList<FieldSort>();
                     for (int i = 0; i < fields.length(); i++) {
-                        indexFields.add(new FieldSort((String)fields.get(i)));
+                        indexFields.add(new FieldSort(fields.getString(i)));
                     }
 
                     DocumentStore ds = getDocumentStore(documentStoreName);
-                    ds.query().createJsonIndex(indexFields, indexName);
+                    if (!ds.query().isTextSearchEnabled()) {
+                        throw new Exception("Text search is not supported by the SQLite library on this device");
+                    }
+
+                    long traced = PluginTracer.start();
+                    try {
+                        ds.query().createTextIndex(indexFields, indexName, buildTokenizer(tokenizer));
+                    } finally {
+                        PluginTracer.end(traced, PluginTracer.CATEGORY_DATABASE, "createTextIndex");
+                    }
                     callbackContext.success(indexName);
                 } catch (Exception e) {
                     callbackContext.error(e.getMessage());
@@ -526,6 +1685,47 @@ public class CloudantSyncPlugin extends CordovaPlugin {
         });
     }
 
+    /**
+     * Suggests JSON indexes for the fields of the slowest unindexed queries in the slow query log,
+     * optionally creating them
+     * @param documentStoreName - The name of the DocumentStore
+     * @param options - create, true to create the suggested indexes, and maxSuggestions
+     * @param callbackContext - The javascript callback to execute when complete or errored
+     */
+    private void adviseIndexes(final String documentStoreName, final JSONObject options, final CallbackContext callbackContext) {
+        threadPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    DocumentStore ds = getDocumentStore(documentStoreName);
+                    JSONArray suggestions = slowQueryLog.advise(documentStoreName, ds.query(),
+                        options.optInt("maxSuggestions", SlowQueryLog.DEFAULT_MAX_SUGGESTIONS));
+
+                    if (options.optBoolean("create")) {
+                        for (int i = 0; i < suggestions.length(); i++) {
+                            JSONObject suggestion = suggestions.getJSONObject(i);
+                            JSONArray fields = suggestion.getJSONArray("fields");
+                            List<String> indexFields = new ArrayList<String>();
+                            for (int j = 0; j < fields.length(); j++) {
+                                indexFields.add(fields.getString(j));
+                            }
+                            try {
+                                createJsonIndex(ds, indexFields, suggestion.getString("name"));
+                                suggestion.put("created", true);
+                            } catch (Exception e) {
+                                suggestion.put("created", false);
+                                suggestion.put("error", e.getMessage());
+                            }
+                        }
+                    }
+                    callbackContext.success(suggestions);
+                } catch (Exception e) {
+                    callbackContext.error(e.getMessage());
+                }
+            }
+        });
+    }
+
     /**
      * Deletes an index
      * @param documentStoreName - The name of the DocumentStore
@@ -533,7 +1733,7 @@ public class CloudantSyncPlugin extends CordovaPlugin {
      * @param callbackContext - The javascript callback to execute when complete or errored
      */
     private void deleteIndexNamed(final String documentStoreName, final String indexName, final CallbackContext callbackContext) {
-        cordova.getThreadPool().execute(new Runnable() {
+        threadPool().execute(new Runnable() {
             @Override
             public void run() {
                 try {
@@ -556,16 +1756,40 @@ public class CloudantSyncPlugin extends CordovaPlugin {
      * Queries the DocumentStore
      * @param documentStoreName - The name of the DocumentStore
      * @param query - The Cloudant Query to execute
+     * @param encoding - The encoding of the results, or null for JSON
      * @param callbackContext - The javascript callback to execute when complete or errored
      */
-    private void find(final String documentStoreName, final JSONObject query, final CallbackContext callbackContext) {
-        cordova.getThreadPool().execute(new Runnable() {
+    private void find(final String documentStoreName, final JSONObject query, final String encoding, final CallbackContext callbackContext) {
+        final String request = String.valueOf(query) + '\u0000' + encoding;
+        final String stale = query == null ? null : query.optString(QUERY_STALE, null);
+        if (BackgroundIndexer.STALE_OK.equals(stale) || BackgroundIndexer.STALE_UPDATE_AFTER.equals(stale)) {
+            PluginResult kept = backgroundIndexer.staleResult(documentStoreName, request);
+            if (kept != null) {
+                callbackContext.sendPluginResult(kept);
+                if (BackgroundIndexer.STALE_UPDATE_AFTER.equals(stale)) {
+                    backgroundIndexer.updateAfter(documentStoreName);
+                }
+                return;
+            }
+        }
+
+        final ReadCoalescer.Flight flight = readCoalescer.lead(ACTION_FIND, documentStoreName, request,
+            callbackContext);
+        if (flight == null) {
+            // An identical query in flight sends its results to this call too
+            return;
+        }
+
+        threadPool().execute(new Runnable() {
             @Override
             public void run() {
+                PluginResult result;
                 try {
+                    boolean binary = isBinary(encoding);
                     if (query == null) {
                         throw new Exception("query object cannot be null");
                     }
+                    boolean keep = BackgroundIndexer.isStale(stale);
 
                     CloudantQuery q = new CloudantQuery(convertJSONtoMap(query));
                     DocumentStore ds = getDocumentStore(documentStoreName);
@@ -587,20 +1811,52 @@ public class CloudantSyncPlugin extends CordovaPlugin {
                             }
                         }
                     }
-                    QueryResult qr = ds.query().find(q.getSelector(), q.getSkip(), q.getLimit(), q
-                        .getFields(), sortSpec);
+                    QueryResult qr;
+                    long findStarted = System.nanoTime();
+                    long traced = PluginTracer.start();
+                    try {
+                        qr = ds.query().find(q.getSelector(), q.getSkip(), q.getLimit(), q.getFields(), sortSpec);
+                    } finally {
+                        PluginTracer.end(traced, PluginTracer.CATEGORY_DATABASE, "find");
+                    }
 
                     JSONArray r = new JSONArray();
+                    List<Map<String, Object>> documents = new ArrayList<Map<String, Object>>();
                     if (qr != null) {
+                        int maxResults = memoryManager.maxFindResults();
                         for (DocumentRevision rev : qr) {
-                            JSONObject jsonDoc = buildJSON(rev, false);
-                            r.put(jsonDoc);
+                            if (maxResults > 0 && r.length() + documents.size() == maxResults) {
+                                throw new Exception("find returned more than " + maxResults + " documents while " +
+                                    "memory is low. Use limit and skip to read the results in pages.");
+                            }
+                            if (binary) {
+                                documents.add(buildMap(rev, false));
+                            } else {
+                                JSONObject jsonDoc = buildJSON(rev, false);
+                                r.put(jsonDoc);
+                            }
                         }
                     }
-                    callbackContext.success(r);
+                    long elapsed = System.nanoTime() - findStarted;
+                    if (slowQueryLog.isSlow(elapsed)) {
+                        try {
+                            slowQueryLog.record(documentStoreName, ds.query(), q, r.length() + documents.size(), elapsed);
+                        } catch (Exception e) {
+                            Log.w(TAG, "Failed to record slow query", e);
+                        }
+                    }
+                    if (binary) {
+                        result = encodedResult(documents);
+                    } else {
+                        result = new PluginResult(PluginResult.Status.OK, r);
+                    }
+                    if (keep) {
+                        backgroundIndexer.keep(documentStoreName, request, result);
+                    }
                 } catch (Exception e) {
-                    callbackContext.error(e.getMessage());
+                    result = new PluginResult(PluginResult.Status.ERROR, e.getMessage());
                 }
+                flight.complete(result);
             }
         });
     }
@@ -611,10 +1867,11 @@ public class CloudantSyncPlugin extends CordovaPlugin {
      * @param remoteURI - The remote database URI
      * @param type - The type of replication to be performed
      * @param token - The unique token id of the Replicator
+     * @param replicatorJson - The JSON replicator, containing any additional replication options
      * @param callbackContext - The javascript callback to execute when complete or errored
      */
-    private void createReplicator(final String documentStoreName, final String remoteURI, final String type, final Integer token, final CallbackContext callbackContext) {
-        cordova.getThreadPool().execute(new Runnable() {
+    private void createReplicator(final String documentStoreName, final String remoteURI, final String type, final Integer token, final JSONObject replicatorJson, final CallbackContext callbackContext) {
+        threadPool().execute(new Runnable() {
             @Override
             public void run() {
                 try {
@@ -632,21 +1889,34 @@ public class CloudantSyncPlugin extends CordovaPlugin {
                     }
 
                     Replicator replicator;
-                    final SyncPluginInterceptor interceptor = new SyncPluginInterceptor(callbackContext);
+                    // Without javascript interceptors there is nothing to wait on the WebView for
+                    final SyncPluginInterceptor interceptor = replicatorJson.optBoolean(REPLICATOR_HAS_INTERCEPTORS,
+                        true) ? new SyncPluginInterceptor(callbackContext) : null;
                     if (type.equals("push")) {
-                        replicator = ReplicatorBuilder.push()
+                        if (hasPullFilter(replicatorJson)) {
+                            throw new Exception("Replicator '" + REPLICATOR_SELECTOR + "', '" + REPLICATOR_FILTER +
+                                "' and '" + REPLICATOR_DOC_IDS + "' are only supported for pull replication");
+                        }
+                        ReplicatorBuilder.Push push = ReplicatorBuilder.push()
                                 .to(uri)
-                                .from(ds)
-                                .addRequestInterceptors((HttpConnectionRequestInterceptor) interceptor)
-                                .addResponseInterceptors((HttpConnectionResponseInterceptor) interceptor)
-                                .build();
+                                .from(ds);
+                        if (interceptor != null) {
+                            push.addRequestInterceptors((HttpConnectionRequestInterceptor) interceptor)
+                                .addResponseInterceptors((HttpConnectionResponseInterceptor) interceptor);
+                        }
+                        applyPushTuning(push, replicatorJson);
+                        replicator = push.build();
                     } else if (type.equals("pull")) {
-                        replicator = ReplicatorBuilder.pull()
+                        ReplicatorBuilder.Pull pull = ReplicatorBuilder.pull()
                                 .from(uri)
-                                .to(ds)
-                                .addRequestInterceptors((HttpConnectionRequestInterceptor) interceptor)
-                                .addResponseInterceptors((HttpConnectionResponseInterceptor) interceptor)
-                                .build();
+                                .to(ds);
+                        if (interceptor != null) {
+                            pull.addRequestInterceptors((HttpConnectionRequestInterceptor) interceptor)
+                                .addResponseInterceptors((HttpConnectionResponseInterceptor) interceptor);
+                        }
+                        applyPullFilter(pull, replicatorJson);
+                        applyPullTuning(pull, replicatorJson);
+                        replicator = pull.build();
                     } else {
                         throw new Exception("Replicator 'type' must be either 'push' or 'pull'. Received: " + type);
                     }
@@ -655,10 +1925,33 @@ public class CloudantSyncPlugin extends CordovaPlugin {
                         throw new Exception("Failed to create " + type + " Replicator. Builder returned null");
                     }
 
-                    replicator.getEventBus().register(new SyncPluginListener(callbackContext));
+                    SyncPluginListener listener;
+                    if (replicatorJson.isNull(REPLICATOR_CONFLICT_RESOLUTION)) {
+                        listener = new SyncPluginListener(callbackContext, token, replicationLimiter);
+                    } else if (type.equals("pull")) {
+                        listener = new SyncPluginListener(callbackContext, token, replicationLimiter,
+                            documentStoreName, ds.database(),
+                            new NativeConflictResolver(replicatorJson.get(REPLICATOR_CONFLICT_RESOLUTION)),
+                            new SyncPluginListener.Modifications() {
+                                @Override
+                                public void modified(String documentStoreName) {
+                                    documentStoreModified(documentStoreName);
+                                }
+                            });
+                    } else {
+                        throw new Exception("Replicator '" + REPLICATOR_CONFLICT_RESOLUTION + "' is only supported " +
+                            "for pull replication");
+                    }
+                    // Stale results are discarded before the javascript layer hears of the completion
+                    replicator.getEventBus().register(backgroundIndexer.listener(documentStoreName));
+                    replicator.getEventBus().register(listener);
 
                     replicators.put(token, replicator);
-                    interceptors.put(token, interceptor);
+                    if (interceptor != null) {
+                        interceptors.put(token, interceptor);
+                    }
+                    memoryManager.replicatorCreated(token, documentStoreName);
+                    replicationLimiter.add(token, replicator, replicatorJson.optInt(REPLICATOR_PRIORITY, 0));
 
                     PluginResult pluginResult = new PluginResult(PluginResult.Status.OK);
                     pluginResult.setKeepCallback(true);
@@ -677,123 +1970,583 @@ public class CloudantSyncPlugin extends CordovaPlugin {
      * @param callbackContext - The javascript callback to execute when complete or errored
      */
     private void destroyReplicator(final Integer token, final CallbackContext callbackContext) {
-        cordova.getThreadPool().execute(new Runnable() {
+        threadPool().execute(new Runnable() {
             @Override
             public void run() {
+                replicationScheduler.unschedule(token);
+                replicationLimiter.remove(token);
                 Replicator replicator = replicators.remove(token);
                 interceptors.remove(token);
+                memoryManager.replicatorDestroyed(token);
+
+                if (replicator != null) {
+                    callbackContext.success();
+                } else {
+                    callbackContext.error("Replicator with token " + token + " already destroyed.");
+                }
+            }
+        });
+    }
+
+    /**
+     * Starts replication, or queues it if the maximum number of concurrent replications are running
+     * @param token - The unique token id of the Replicator
+     * @param callbackContext - The javascript callback to execute when complete or errored
+     */
+    private void startReplication(final Integer token, final CallbackContext callbackContext) {
+        threadPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                Replicator replicator = replicators.get(token);
+
+                if (replicator == null) {
+                    callbackContext.error("Cannot start replicator with timestamp: " + token + ". Does not exist.");
+                } else {
+                    try {
+                        replicationLimiter.start(token);
+                        callbackContext.success();
+                    } catch (Exception e) {
+                        callbackContext.error(e.getMessage());
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Gets current replication state. A queued Replicator is reported as Pending.
+     * @param token - The unique token id of the Replicator
+     * @param detailed - If true the state is returned in an object with the queueing state
+     * @param callbackContext - The javascript callback to execute when complete or errored
+     */
+    private void getReplicationStatus(final Integer token, final boolean detailed, final CallbackContext callbackContext) {
+        threadPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                Replicator replicator = replicators.get(token);
+
+                if (replicator == null) {
+                    callbackContext.error("Cannot get status for replicator with timestamp: " + token + ". Does not exist.");
+                } else {
+                    try {
+                        JSONObject queueState = replicationLimiter.describe(token);
+                        String state = queueState != null && (queueState.getBoolean("queued") ||
+                            queueState.getBoolean("paused")) ?
+                            convertReplicationStateToString(Replicator.State.PENDING) :
+                            convertReplicationStateToString(replicator.getState());
+
+                        if (detailed) {
+                            JSONObject status = queueState == null ? new JSONObject() : queueState;
+                            status.put("state", state);
+                            callbackContext.success(status);
+                        } else {
+                            callbackContext.success(state);
+                        }
+                    } catch (Exception e) {
+                        callbackContext.error(e.getMessage());
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops replication
+     * @param token - The unique token id of the Replicator
+     * @param callbackContext - The javascript callback to execute when complete or errored
+     */
+    private void stopReplication(final Integer token, final CallbackContext callbackContext) {
+        threadPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                Replicator replicator = replicators.get(token);
+
+                if (replicator == null) {
+                    callbackContext.error("Cannot stop replicator with token: " + token + ". Does not exist.");
+                } else if (replicationLimiter.cancel(token)) {
+                    replicationScheduler.runCancelled(token);
+                    callbackContext.success(convertReplicationStateToString(Replicator.State.STOPPED));
+                } else {
+                    replicator.stop();
+                    callbackContext.success(convertReplicationStateToString(Replicator.State.STOPPING));
+                }
+            }
+        });
+    }
+
+    /**
+     * Schedules a Replicator to run natively on an interval, with backoff after errors, and
+     * optionally after local writes to its DocumentStore
+     * @param token - The unique token id of the Replicator
+     * @param documentStoreName - The name of the DocumentStore the Replicator reads or writes
+     * @param options - The schedule options
+     * @param runNow - If true the Replicator is also started immediately
+     * @param callbackContext - The javascript callback to execute when complete or errored
+     */
+    private void scheduleReplication(final Integer token, final String documentStoreName, final JSONObject options, final boolean runNow, final CallbackContext callbackContext) {
+        threadPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Replicator replicator = replicators.get(token);
+
+                    if (replicator == null) {
+                        throw new Exception("Cannot schedule replicator with token: " + token + ". Does not exist.");
+                    }
+
+                    replicationScheduler.schedule(token, replicator, documentStoreName, options, runNow);
+                    callbackContext.success(replicationScheduler.describe(token));
+                } catch (Exception e) {
+                    callbackContext.error(e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Removes the native schedule of a Replicator
+     * @param token - The unique token id of the Replicator
+     * @param callbackContext - The javascript callback to execute when complete or errored
+     */
+    private void unscheduleReplication(final Integer token, final CallbackContext callbackContext) {
+        threadPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                if (replicationScheduler.unschedule(token)) {
+                    callbackContext.success();
+                } else {
+                    callbackContext.error("Replicator with token " + token + " is not scheduled.");
+                }
+            }
+        });
+    }
+
+    /**
+     * Gets the native schedule and scheduling state of a Replicator
+     * @param token - The unique token id of the Replicator
+     * @param callbackContext - The javascript callback to execute when complete or errored
+     */
+    private void getReplicationSchedule(final Integer token, final CallbackContext callbackContext) {
+        threadPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Replicator replicator = replicators.get(token);
+                    JSONObject schedule = replicationScheduler.describe(token);
+
+                    if (replicator == null || schedule == null) {
+                        callbackContext.error("Replicator with token " + token + " is not scheduled.");
+                    } else {
+                        schedule.put("state", convertReplicationStateToString(replicator.getState()));
+                        callbackContext.success(schedule);
+                    }
+                } catch (Exception e) {
+                    callbackContext.error(e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Sets the maximum number of replications that may run at the same time across all
+     * Replicators. Start requests beyond the maximum are queued by priority.
+     * @param maxConcurrent - The maximum number of concurrent replications, or 0 for no limit
+     * @param callbackContext - The javascript callback to execute when complete or errored
+     */
+    private void setMaxConcurrentReplications(final Integer maxConcurrent, final CallbackContext callbackContext) {
+        threadPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (maxConcurrent == null) {
+                        throw new Exception("Maximum concurrent replications must not be null");
+                    }
+
+                    replicationLimiter.setMaxConcurrent(maxConcurrent);
+                    callbackContext.success(replicationLimiter.metrics());
+                } catch (Exception e) {
+                    callbackContext.error(e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Gets the replication queue settings and wait time metrics
+     * @param reset - If true the metrics are reset after being read
+     * @param callbackContext - The javascript callback to execute when complete or errored
+     */
+    private void getReplicationQueueMetrics(final boolean reset, final CallbackContext callbackContext) {
+        threadPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    JSONObject metrics = replicationLimiter.metrics();
+                    if (reset) {
+                        replicationLimiter.resetMetrics();
+                    }
+                    callbackContext.success(metrics);
+                } catch (Exception e) {
+                    callbackContext.error(e.getMessage());
+                }
+            }
+        });
+    }
+
+    private void unlockInterceptor(final Integer token, final String type, final JSONObject httpContext, final Integer timeout, final String uuid, final CallbackContext callbackContext) {
+        threadPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                SyncPluginInterceptor interceptor = interceptors.get(token);
+
+                if (interceptor == null) {
+                    callbackContext.error("Cannot unlock interceptor with token: " + token + ". Does not exist.");
+                } else {
+                    if (timeout != null) {
+                        Log.e(TAG, type + " interceptors for replicator with token " + token + " timed out in the JavaScript layer after " + timeout + "ms.");
+                    }
+
+                    interceptor.updateContext(uuid, httpContext);
+
+                    callbackContext.success();
+                }
+            }
+        });
+    }
+
+    /**
+     * Gets the IDs of documents with conflicts
+     * @param documentStoreName - The name of the DocumentStore
+     * @param offset - The number of conflicted IDs to skip
+     * @param limit - The maximum number of conflicted IDs to return
+     * @param callbackContext - The javascript callback to execute when complete or errored
+     */
+    private void getConflictedDocumentIds(final String documentStoreName, final int offset, final int limit, final CallbackContext callbackContext) {
+        threadPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (offset < 0 || limit < 0) {
+                        throw new Exception("offset and limit must not be negative");
+                    }
+
+                    DocumentStore ds = getDocumentStore(documentStoreName);
+
+                    Iterable<String> conflicts = ds.database().getConflictedIds();
+
+                    JSONArray r = new JSONArray();
+                    int skipped = 0;
+                    for (String id : conflicts) {
+                        if (r.length() == limit) {
+                            break;
+                        }
+                        if (skipped < offset) {
+                            skipped++;
+                            continue;
+                        }
+                        r.put(id);
+                    }
+                    callbackContext.success(r);
+                } catch (Exception e) {
+                    callbackContext.error(e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Counts the documents with conflicts without returning their IDs
+     * @param documentStoreName - The name of the DocumentStore
+     * @param callbackContext - The javascript callback to execute when complete or errored
+     */
+    private void countConflicts(final String documentStoreName, final CallbackContext callbackContext) {
+        threadPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    DocumentStore ds = getDocumentStore(documentStoreName);
+
+                    // sync-android has no count query for conflicts, but returns the IDs as a
+                    // list, which is sized rather than copied
+                    Iterable<String> conflicts = ds.database().getConflictedIds();
+                    int count = 0;
+                    if (conflicts instanceof Collection) {
+                        count = ((Collection<String>) conflicts).size();
+                    } else {
+                        for (Iterator<String> it = conflicts.iterator(); it.hasNext(); it.next()) {
+                            count++;
+                        }
+                    }
+                    callbackContext.success(count);
+                } catch (Exception e) {
+                    callbackContext.error(e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Sends the IDs of documents with conflicts in chunks, then the total number of IDs sent
+     * @param documentStoreName - The name of the DocumentStore
+     * @param chunkSize - The maximum number of IDs in each chunk
+     * @param callbackContext - The javascript callback to execute with each chunk and when complete or errored
+     */
+    private void streamConflictedDocumentIds(final String documentStoreName, final int chunkSize, final CallbackContext callbackContext) {
+        threadPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (chunkSize < 1) {
+                        throw new Exception("chunkSize must be positive");
+                    }
+
+                    DocumentStore ds = getDocumentStore(documentStoreName);
+
+                    int total = 0;
+                    JSONArray chunk = new JSONArray();
+                    for (String id : ds.database().getConflictedIds()) {
+                        chunk.put(id);
+                        total++;
+                        if (chunk.length() == chunkSize) {
+                            sendConflictedIdsChunk(chunk, callbackContext);
+                            chunk = new JSONArray();
+                        }
+                    }
+                    if (chunk.length() > 0) {
+                        sendConflictedIdsChunk(chunk, callbackContext);
+                    }
+
+                    JSONObject r = new JSONObject();
+                    r.put("total", total);
+                    callbackContext.success(r);
+                } catch (Exception e) {
+                    callbackContext.error(e.getMessage());
+                }
+            }
+        });
+    }
+
+    private void sendConflictedIdsChunk(JSONArray chunk, CallbackContext callbackContext) {
+        PluginResult r = new PluginResult(PluginResult.Status.OK, chunk);
+        r.setKeepCallback(true);
+        callbackContext.sendPluginResult(r);
+    }
+
+    private void resolveConflictsForDocument(final String documentStoreName, final String documentId, final CallbackContext callbackContext) {
+        threadPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    DocumentStore ds = getDocumentStore(documentStoreName);
+
+                    ConflictResolverWrapper conflictResolver = new ConflictResolverWrapper(callbackContext);
+
+                    // Store the conflictResolver in a map indexed by a unique ID that can be passed around
+                    // to retrieve the conflictResolver from other callbacks. The callbackId is unique
+                    // to each invocation of this method so we'll use that.
+                    resolverMap.put(callbackContext.getCallbackId(), conflictResolver);
+                    ds.database().resolveConflicts(documentId, conflictResolver);
+                    documentStoreModified(documentStoreName);
+                    PluginResult r = new PluginResult(PluginResult.Status.OK);
+                    callbackContext.sendPluginResult(r);
+
+                } catch (Exception e) {
+                    callbackContext.error(e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Resolves the conflicts of all conflicted documents natively using a built-in strategy
+     * @param documentStoreName - The name of the DocumentStore
+     * @param strategy - The strategy name, or an object with the strategy name and field
+     * @param options - The batchSize and concurrency of the resolution
+     * @param callbackContext - The javascript callback to execute when complete or errored
+     */
+    private void resolveAllConflicts(final String documentStoreName, final Object strategy, final JSONObject options, final CallbackContext callbackContext) {
+        threadPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    DocumentStore ds = getDocumentStore(documentStoreName);
+                    NativeConflictResolver resolver = new NativeConflictResolver(strategy);
+
+                    JSONObject summary = resolver.resolveAll(ds.database(),
+                        options.optInt("batchSize", NativeConflictResolver.DEFAULT_BATCH_SIZE),
+                        options.optInt("concurrency", NativeConflictResolver.DEFAULT_CONCURRENCY));
+
+                    if (summary.getInt("resolved") > 0) {
+                        documentStoreModified(documentStoreName);
+                    }
+                    callbackContext.success(summary);
+                } catch (Exception e) {
+                    callbackContext.error(e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Resolves the conflicts of all conflicted documents with a JavaScript resolver, sending the
+     * conflicts in batches
+     * @param documentStoreName - The name of the DocumentStore
+     * @param options - The batchSize, concurrency and per batch timeout of the resolution
+     * @param callbackContext - The javascript callback to execute with each batch and when complete or errored
+     */
+    private void resolveConflictsInBatches(final String documentStoreName, final JSONObject options, final CallbackContext callbackContext) {
+        threadPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    DocumentStore ds = getDocumentStore(documentStoreName);
+                    BatchConflictResolution resolution = new BatchConflictResolution(documentStoreName, ds,
+                        callbackContext, options);
+
+                    batchResolutions.put(callbackContext.getCallbackId(), resolution);
+                    resolution.fillOrFail();
+                } catch (Exception e) {
+                    batchResolutions.remove(callbackContext.getCallbackId());
+                    callbackContext.error(e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Applies the revisions returned by the JavaScript resolver for a batch of conflicts
+     * @param resolverId - The ID of the batch conflict resolution
+     * @param batchId - The ID of the batch
+     * @param documents - The resolved revisions, or null for documents to leave unchanged
+     * @param callbackContext - The javascript callback to execute when complete or errored
+     */
+    private void returnResolvedDocuments(final String resolverId, final Integer batchId, final JSONArray documents, final CallbackContext callbackContext) {
+        threadPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    BatchConflictResolution resolution = resolverId == null ? null : batchResolutions.get(resolverId);
+                    if (resolution == null || batchId == null) {
+                        throw new Exception("No conflict resolution in progress with ID: " + resolverId);
+                    }
+
+                    resolution.apply(batchId, documents);
+                    callbackContext.success();
+                } catch (Exception e) {
+                    callbackContext.error(e.getMessage());
+                }
+            }
+        });
+    }
+
+    private void returnResolvedDocument(final JSONObject docRev, final String resolverId, final CallbackContext callbackContext) {
+        threadPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ConflictResolverWrapper conflictResolver = resolverMap.remove(resolverId);
+                    DocumentRevision revision = docRev == null ? null : buildDocRevision(docRev);
+                    conflictResolver.setRevision(revision);
 
-                if (replicator != null) {
-                    callbackContext.success();
-                } else {
-                    callbackContext.error("Replicator with token " + token + " already destroyed.");
+                    PluginResult r = new PluginResult(PluginResult.Status.OK);
+                    callbackContext.sendPluginResult(r);
+                } catch (Exception e) {
+                    callbackContext.error(e.getMessage());
                 }
             }
         });
     }
 
     /**
-     * Starts replication
-     * @param token - The unique token id of the Replicator
+     * Returns the recorded trace spans in the Chrome trace event format
      * @param callbackContext - The javascript callback to execute when complete or errored
      */
-    private void startReplication(final Integer token, final CallbackContext callbackContext) {
-        cordova.getThreadPool().execute(new Runnable() {
+    private void getTrace(final CallbackContext callbackContext) {
+        threadPool().execute(new Runnable() {
             @Override
             public void run() {
-                Replicator replicator = replicators.get(token);
-
-                if (replicator == null) {
-                    callbackContext.error("Cannot start replicator with timestamp: " + token + ". Does not exist.");
-                } else {
-                    replicator.start();
-                    callbackContext.success();
+                try {
+                    callbackContext.success(PluginTracer.toJSON());
+                } catch (Exception e) {
+                    callbackContext.error(e.getMessage());
                 }
             }
         });
     }
 
     /**
-     * Gets current replication state
-     * @param token - The unique token id of the Replicator
+     * Writes the recorded trace spans in the Chrome trace event format to a file
+     * @param path - The path of the file to write, or null to write to the application cache
+     *             directory
      * @param callbackContext - The javascript callback to execute when complete or errored
      */
-    private void getReplicationStatus(final Integer token, final CallbackContext callbackContext) {
-        cordova.getThreadPool().execute(new Runnable() {
+    private void dumpTrace(final String path, final CallbackContext callbackContext) {
+        threadPool().execute(new Runnable() {
             @Override
             public void run() {
-                Replicator replicator = replicators.get(token);
-
-                if (replicator == null) {
-                    callbackContext.error("Cannot get status for replicator with timestamp: " + token + ". Does not exist.");
-                } else {
-                    callbackContext.success(convertReplicationStateToString(replicator.getState()));
+                try {
+                    File file = path == null ? new File(cordova.getActivity().getCacheDir(),
+                        "cloudant-sync-trace.json") : new File(path);
+                    PluginTracer.dump(file);
+                    callbackContext.success(file.getAbsolutePath());
+                } catch (Exception e) {
+                    callbackContext.error(e.getMessage());
                 }
             }
         });
     }
 
     /**
-     * Stops replication
-     * @param token - The unique token id of the Replicator
+     * Starts recording the actions called over the bridge
+     * @param path - The absolute path of the file to write, or null for the default file in the
+     *             cache directory
+     * @param options - The payload mode and the maximum number of calls to record
      * @param callbackContext - The javascript callback to execute when complete or errored
      */
-    private void stopReplication(final Integer token, final CallbackContext callbackContext) {
-        cordova.getThreadPool().execute(new Runnable() {
+    private void startRecording(final String path, final JSONObject options, final CallbackContext callbackContext) {
+        threadPool().execute(new Runnable() {
             @Override
             public void run() {
-                Replicator replicator = replicators.get(token);
-
-                if (replicator == null) {
-                    callbackContext.error("Cannot stop replicator with token: " + token + ". Does not exist.");
-                } else {
-                    replicator.stop();
-                    callbackContext.success(convertReplicationStateToString(Replicator.State.STOPPING));
+                try {
+                    File file = path == null ? new File(cordova.getActivity().getCacheDir(),
+                        "cloudant-sync-recording.ndjson") : new File(path);
+                    PluginRecorder.start(file, options.optString("payloads", PluginRecorder.PAYLOADS_SIZE),
+                        options.optInt("maxCalls", 0));
+                    callbackContext.success(file.getAbsolutePath());
+                } catch (Exception e) {
+                    callbackContext.error(e.getMessage());
                 }
             }
         });
     }
 
-    private void unlockInterceptor(final Integer token, final String type, final JSONObject httpContext, final Integer timeout, final String uuid, final CallbackContext callbackContext) {
-        cordova.getThreadPool().execute(new Runnable() {
+    /**
+     * Stops recording the actions called over the bridge
+     * @param callbackContext - The javascript callback to execute when complete or errored
+     */
+    private void stopRecording(final CallbackContext callbackContext) {
+        threadPool().execute(new Runnable() {
             @Override
             public void run() {
-                SyncPluginInterceptor interceptor = interceptors.get(token);
-
-                if (interceptor == null) {
-                    callbackContext.error("Cannot unlock interceptor with token: " + token + ". Does not exist.");
-                } else {
-                    if (timeout != null) {
-                        Log.e(TAG, type + " interceptors for replicator with token " + token + " timed out in the JavaScript layer after " + timeout + "ms.");
-                    }
-
-                    interceptor.updateContext(uuid, httpContext);
-
-                    callbackContext.success();
+                try {
+                    callbackContext.success(PluginRecorder.stop());
+                } catch (Exception e) {
+                    callbackContext.error(e.getMessage());
                 }
             }
         });
     }
 
     /**
-     * Gets the IDs of documents with conflicts
-     * @param documentStoreName - The name of the DocumentStore
+     * Gets the memory held by the plugin by category and the memory pressure state
      * @param callbackContext - The javascript callback to execute when complete or errored
      */
-    private void getConflictedDocumentIds(final String documentStoreName, final CallbackContext callbackContext) {
-        cordova.getThreadPool().execute(new Runnable() {
+    private void getMemoryUsage(final CallbackContext callbackContext) {
+        threadPool().execute(new Runnable() {
             @Override
             public void run() {
                 try {
-                    DocumentStore ds = getDocumentStore(documentStoreName);
-
-                    Iterable<String> conflicts = ds.database().getConflictedIds();
-
-                    JSONArray r = new JSONArray();
-                    for (String id : conflicts) {
-                       r.put(id);
-                    }
-                    callbackContext.success(r);
+                    callbackContext.success(memoryUsage());
                 } catch (Exception e) {
                     callbackContext.error(e.getMessage());
                 }
@@ -801,23 +2554,18 @@ public class CloudantSyncPlugin extends CordovaPlugin {
         });
     }
 
-    private void resolveConflictsForDocument(final String documentStoreName, final String documentId, final CallbackContext callbackContext) {
-        cordova.getThreadPool().execute(new Runnable() {
+    /**
+     * Sheds memory as for an onTrimMemory call
+     * @param level - The onTrimMemory level
+     * @param callbackContext - The javascript callback to execute when complete or errored
+     */
+    private void trimMemory(final int level, final CallbackContext callbackContext) {
+        threadPool().execute(new Runnable() {
             @Override
             public void run() {
                 try {
-                    DocumentStore ds = getDocumentStore(documentStoreName);
-
-                    ConflictResolverWrapper conflictResolver = new ConflictResolverWrapper(callbackContext);
-
-                    // Store the conflictResolver in a map indexed by a unique ID that can be passed around
-                    // to retrieve the conflictResolver from other callbacks. The callbackId is unique
-                    // to each invocation of this method so we'll use that.
-                    resolverMap.put(callbackContext.getCallbackId(), conflictResolver);
-                    ds.database().resolveConflicts(documentId, conflictResolver);
-                    PluginResult r = new PluginResult(PluginResult.Status.OK);
-                    callbackContext.sendPluginResult(r);
-
+                    memoryManager.trim(level);
+                    callbackContext.success(memoryUsage());
                 } catch (Exception e) {
                     callbackContext.error(e.getMessage());
                 }
@@ -825,17 +2573,18 @@ public class CloudantSyncPlugin extends CordovaPlugin {
         });
     }
 
-    private void returnResolvedDocument(final JSONObject docRev, final String resolverId, final CallbackContext callbackContext) {
-        cordova.getThreadPool().execute(new Runnable() {
+    /**
+     * Sets the thresholds used under memory pressure
+     * @param options - The thresholds to set
+     * @param callbackContext - The javascript callback to execute when complete or errored
+     */
+    private void setMemoryPolicy(final JSONObject options, final CallbackContext callbackContext) {
+        threadPool().execute(new Runnable() {
             @Override
             public void run() {
                 try {
-                    ConflictResolverWrapper conflictResolver = resolverMap.remove(resolverId);
-                    DocumentRevision revision = docRev == null ? null : buildDocRevision(docRev);
-                    conflictResolver.setRevision(revision);
-
-                    PluginResult r = new PluginResult(PluginResult.Status.OK);
-                    callbackContext.sendPluginResult(r);
+                    memoryManager.setPolicy(options);
+                    callbackContext.success(memoryManager.toJSON().getJSONObject("policy"));
                 } catch (Exception e) {
                     callbackContext.error(e.getMessage());
                 }
@@ -849,31 +2598,216 @@ public class CloudantSyncPlugin extends CordovaPlugin {
     ////////////////////////////////////////////////////////////////////////////////////////////////
     ////////////////////////////////////////////////////////////////////////////////////////////////
 
+    /**
+     * @return - The JSON memory pressure state and the memory held by the plugin by category
+     * @throws JSONException
+     */
+    private JSONObject memoryUsage() throws JSONException {
+        JSONObject r = memoryManager.toJSON();
+
+        Runtime runtime = Runtime.getRuntime();
+        r.put("heap", new JSONObject()
+            .put("max", runtime.maxMemory())
+            .put("total", runtime.totalMemory())
+            .put("free", runtime.freeMemory())
+            .put("used", runtime.totalMemory() - runtime.freeMemory()));
+
+        int pendingInterceptions = 0;
+        synchronized (interceptors) {
+            for (SyncPluginInterceptor interceptor : interceptors.values()) {
+                pendingInterceptions += interceptor.pending();
+            }
+        }
+        r.put("replicators", new JSONObject()
+            .put("count", replicators.size())
+            .put("paused", replicationLimiter.metrics().getInt("paused"))
+            .put("pendingInterceptions", pendingInterceptions));
+        r.put("conflictResolvers", new JSONObject()
+            .put("waiting", resolverMap.size())
+            .put("batches", batchResolutions.size()));
+        r.put("trace", new JSONObject()
+            .put("enabled", PluginTracer.isEnabled())
+            .put("spans", PluginTracer.size())
+            .put("capacity", PluginTracer.capacity()));
+        return r;
+    }
+
+    /**
+     * @return - The thread pool for running actions, recording metrics for the current action if
+     * they are enabled, and releasing the DocumentStores an action acquired when it completes
+     */
+    private Executor threadPool() {
+        final Executor executor = PluginMetrics.wrap(cordova.getThreadPool());
+        return new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        List<String> acquired = new ArrayList<String>();
+                        acquiredStores.set(acquired);
+                        try {
+                            command.run();
+                        } finally {
+                            acquiredStores.remove();
+                            for (String name : acquired) {
+                                memoryManager.release(name);
+                            }
+                        }
+                    }
+                });
+            }
+        };
+    }
+
     /**
      * @param name - The DocumentStore name
      * @return - The DocumentStore object stored in the documentStores Map
      * @throws Exception - If no DocumentStore value is associated with key 'name'
      */
-    private DocumentStore getDocumentStore(String name) throws Exception {
+    private static DocumentStore getDocumentStore(String name) throws Exception {
         if (name == null) {
             throw new Exception("Name cannot be null");
         }
 
-        DocumentStore store = documentStores.get(name);
+        // Reads and other writes see every write acknowledged before them
+        if (writeBehind.isEnabled(name)) {
+            writeBehind.flush(name);
+        }
+        return cachedDocumentStore(name);
+    }
+
+    /**
+     * Acquires a DocumentStore for the action running on the current thread, which releases it
+     * when it completes, so the MemoryManager does not close it while it is in use
+     * @param name - The DocumentStore name
+     * @return - The DocumentStore object, without flushing its queued writes
+     * @throws Exception - If no DocumentStore value is associated with key 'name'
+     */
+    private static DocumentStore cachedDocumentStore(String name) throws Exception {
+        List<String> acquired = acquiredStores.get();
+        if (acquired == null) {
+            throw new IllegalStateException("DocumentStores can only be used by actions on the thread pool");
+        }
 
+        // The MemoryManager reopens the DocumentStore if it was closed while idle
+        DocumentStore store = memoryManager.acquire(name);
         if (store == null) {
             throw new Exception("No DocumentStore found with name: " + name);
         }
-
+        acquired.add(name);
         return store;
     }
 
+    /**
+     * Creates a JSON index, or checks that an identical one exists
+     * @param ds - The DocumentStore
+     * @param fields - The fields to index, in order
+     * @param indexName - The name of the index
+     * @throws Exception - If an index with the name but different fields exists, or the index
+     * cannot be created
+     */
+    private void createJsonIndex(DocumentStore ds, List<String> fields, String indexName) throws Exception {
+        List<FieldSort> indexFields = new ArrayList<FieldSort>();
+        for (String field : fields) {
+            indexFields.add(new FieldSort(field));
+        }
+        long traced = PluginTracer.start();
+        try {
+            ds.query().createJsonIndex(indexFields, indexName);
+        } finally {
+            PluginTracer.end(traced, PluginTracer.CATEGORY_DATABASE, "createJsonIndex");
+        }
+    }
+
+    /**
+     * @param rev - The current revision of a document
+     * @return - The marker returned in place of the document when the caller has the current
+     * revision
+     */
+    private static Map<String, Object> notModified(DocumentRevision rev) {
+        Map<String, Object> marker = new HashMap<String, Object>();
+        marker.put(DOC_ID, rev.getId());
+        marker.put(DOC_REV, rev.getRevision());
+        marker.put(DOC_NOT_MODIFIED, true);
+        return marker;
+    }
+
+    /**
+     * @param tokenizer - The tokenizer name followed by any arguments, separated by a space, or null
+     * @return - The Tokenizer for a text index
+     */
+    private static Tokenizer buildTokenizer(String tokenizer) {
+        if (tokenizer == null || tokenizer.trim().isEmpty()) {
+            return Tokenizer.DEFAULT;
+        }
+        String[] parts = tokenizer.trim().split("\\s+", 2);
+        return parts.length == 1 ? new Tokenizer(parts[0]) : new Tokenizer(parts[0], parts[1]);
+    }
+
+    /**
+     * Notes a write to a DocumentStore made by the plugin, for debounced replications and index
+     * refreshes, and so that later reads are not coalesced with reads started before it
+     * @param documentStoreName - The name of the DocumentStore written
+     */
+    private static void documentStoreModified(String documentStoreName) {
+        readCoalescer.documentStoreModified(documentStoreName);
+        replicationScheduler.documentStoreModified(documentStoreName);
+        backgroundIndexer.documentStoreModified(documentStoreName);
+    }
+
+    /**
+     * @param encoding - The encoding requested for documents, or null for JSON
+     * @return - true if documents are to be encoded as binary
+     * @throws Exception - If the encoding is not supported
+     */
+    private boolean isBinary(String encoding) throws Exception {
+        if (encoding == null) {
+            return false;
+        }
+        if (!CborCodec.ENCODING.equals(encoding)) {
+            throw new Exception("Unsupported encoding: " + encoding);
+        }
+        return true;
+    }
+
+    /**
+     * @param value - The document Map, or List of document Maps, to send
+     * @return - The binary result, which the WebView receives as an ArrayBuffer
+     * @throws IOException - If the value cannot be encoded
+     */
+    private PluginResult encodedResult(Object value) throws IOException {
+        byte[] encoded;
+        long serializationStarted = PluginMetrics.serializationStarted();
+        try {
+            encoded = CborCodec.encode(value);
+        } finally {
+            PluginMetrics.serializationEnded(serializationStarted);
+        }
+        return new PluginResult(PluginResult.Status.OK, encoded);
+    }
+
+    /**
+     * @param encoded - A document encoded as CBOR and then base64, as ArrayBuffer arguments are
+     *                sent over the bridge
+     * @return - The decoded document
+     * @throws Exception - If the argument is not an encoded document
+     */
+    @SuppressWarnings("unchecked")
+    static Map<String, Object> decodeDocument(String encoded) throws Exception {
+        Object decoded = CborCodec.decode(Base64.decode(encoded, Base64.DEFAULT));
+        if (!(decoded instanceof Map)) {
+            throw new Exception("Encoded document revision must be an object");
+        }
+        return (Map<String, Object>) decoded;
+    }
+
     /**
      * @param obj - The JSONObject to transform
      * @return - The Map from the converted JSONObject
      * @throws JSONException
      */
-    private byte[] getDocumentBodyBytesFromJSONObject(JSONObject obj) throws JSONException {
+    byte[] getDocumentBodyBytesFromJSONObject(JSONObject obj) throws JSONException {
         // These special fields are handled separately from the rest of the body
         obj.remove(DOC_ID);
         obj.remove(DOC_REV);
@@ -887,7 +2821,7 @@ public class CloudantSyncPlugin extends CordovaPlugin {
      * @return - The DocumentRevision from the converted JSONObject
      * @throws Exception
      */
-    private DocumentRevision buildDocRevision(JSONObject docRevisionJSON) throws Exception {
+    DocumentRevision buildDocRevision(JSONObject docRevisionJSON) throws Exception {
         if (docRevisionJSON == null) throw new Exception("Document revision cannot be null");
 
         String docId = null;
@@ -936,49 +2870,133 @@ public class CloudantSyncPlugin extends CordovaPlugin {
     }
 
 
+    /**
+     * @param docRevision - The decoded document revision to transform; special fields are removed
+     *                    from it
+     * @return - The DocumentRevision from the decoded document revision
+     * @throws Exception
+     */
+    DocumentRevision buildDocRevision(Map<String, Object> docRevision) throws Exception {
+        if (docRevision == null) throw new Exception("Document revision cannot be null");
+
+        Object docId = docRevision.remove(DOC_ID);
+        Object docRev = docRevision.remove(DOC_REV);
+        Object deleted = docRevision.remove(DOC_DELETED);
+        Object attachments = docRevision.remove(DOC_ATTACHMENTS);
+
+        DocumentRevision revision = new DocumentRevision((String) docId, (String) docRev);
+
+        if (Boolean.TRUE.equals(deleted)) {
+            revision.setDeleted();
+        }
+
+        if (attachments instanceof Map) {
+            Map<String, Attachment> attachmentMap = new HashMap<String, Attachment>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) attachments).entrySet()) {
+                Map<?, ?> attachment = (Map<?, ?>) entry.getValue();
+
+                String contentType = (String) attachment.get(DOC_ATTACHMENTS_CONTENT_TYPE);
+                Object data = attachment.get(DOC_ATTACHMENTS_DATA);
+                byte[] bytes = data instanceof byte[] ? (byte[]) data : Base64.decode((String) data, Base64.NO_WRAP);
+
+                attachmentMap.put((String) entry.getKey(), new UnsavedStreamAttachment(new ByteArrayInputStream(bytes), contentType));
+            }
+            revision.setAttachments(attachmentMap);
+        }
+
+        revision.setBody(DocumentBodyFactory.create(docRevision));
+
+        return revision;
+    }
+
     /**
      * @param rev - The DocumentRevision to transform
-     * @return - The JSONObject from the converted DocumentRevision
-     * @throws JSONException
+     * @param isCreate - if true, _deleted is left out as for a newly created document
+     * @return - The Map holding the document body and special fields, for binary encoding
      * @throws IOException
      */
-    private JSONObject buildJSON(DocumentRevision rev, boolean isCreate) throws JSONException, IOException {
-        // Create the basic document body in the result object
-        JSONObject result = new JSONObject(rev.getBody().asMap());
+    Map<String, Object> buildMap(DocumentRevision rev, boolean isCreate) throws IOException {
+        long serializationStarted = PluginMetrics.serializationStarted();
+        try {
+            Map<String, Object> result = new HashMap<String, Object>(rev.getBody().asMap());
+            result.put(DOC_ID, rev.getId());
+            result.put(DOC_REV, rev.getRevision());
+
+            if (!isCreate) {
+                result.put(DOC_DELETED, rev.isDeleted());
+            }
 
-        // Add the ID and rev
-        result.put(DOC_ID, rev.getId());
-        result.put(DOC_REV, rev.getRevision());
+            if (!rev.isDeleted()) {
+                Map<String, Attachment> attachmentMap = rev.getAttachments();
+                if (attachmentMap != null && !attachmentMap.isEmpty()) {
+                    Map<String, Object> attachments = new HashMap<String, Object>();
+                    for (Map.Entry<String, Attachment> entry : attachmentMap.entrySet()) {
+                        Attachment attachment = entry.getValue();
+                        Map<String, Object> attachmentMapEntry = new HashMap<String, Object>();
+                        attachmentMapEntry.put(DOC_ATTACHMENTS_CONTENT_TYPE, attachment.type);
+                        // Kept as base64 so documents have the same shape with either encoding
+                        attachmentMapEntry.put(DOC_ATTACHMENTS_DATA, Base64.encodeToString(
+                            IOUtils.toByteArray(attachment.getInputStream()), Base64.NO_WRAP));
+                        attachments.put(entry.getKey(), attachmentMapEntry);
+                    }
+                    result.put(DOC_ATTACHMENTS, attachments);
+                }
+            }
 
-        if (!isCreate) {
-            result.put(DOC_DELETED, rev.isDeleted());
+            return result;
+        } finally {
+            PluginMetrics.serializationEnded(serializationStarted);
         }
+    }
+
+    /**
+     * @param rev - The DocumentRevision to transform
+     * @return - The JSONObject from the converted DocumentRevision
+     * @throws JSONException
+     * @throws IOException
+     */
+    JSONObject buildJSON(DocumentRevision rev, boolean isCreate) throws JSONException, IOException {
+        long serializationStarted = PluginMetrics.serializationStarted();
+        try {
+            // Create the basic document body in the result object
+            JSONObject result = new JSONObject(rev.getBody().asMap());
+
+            // Add the ID and rev
+            result.put(DOC_ID, rev.getId());
+            result.put(DOC_REV, rev.getRevision());
+
+            if (!isCreate) {
+                result.put(DOC_DELETED, rev.isDeleted());
+            }
 
-        if (!rev.isDeleted()) {
-            Map<String, Attachment> attachmentMap = rev.getAttachments();
-            if (attachmentMap != null && !attachmentMap.isEmpty()) {
-                JSONObject attachments = new JSONObject();
+            if (!rev.isDeleted()) {
+                Map<String, Attachment> attachmentMap = rev.getAttachments();
+                if (attachmentMap != null && !attachmentMap.isEmpty()) {
+                    JSONObject attachments = new JSONObject();
 
-                for (Map.Entry<String, Attachment> entry : attachmentMap.entrySet()) {
-                    Attachment attachment = entry.getValue();
+                    for (Map.Entry<String, Attachment> entry : attachmentMap.entrySet()) {
+                        Attachment attachment = entry.getValue();
 
 
-                    InputStream is = attachment.getInputStream();
-                    byte[] bytes = IOUtils.toByteArray(is);
-                    String data = Base64.encodeToString(bytes, Base64.NO_WRAP);
+                        InputStream is = attachment.getInputStream();
+                        byte[] bytes = IOUtils.toByteArray(is);
+                        String data = Base64.encodeToString(bytes, Base64.NO_WRAP);
 
-                    JSONObject attachmentJSON = new JSONObject();
-                    attachmentJSON.put(DOC_ATTACHMENTS_CONTENT_TYPE, attachment.type);
-                    attachmentJSON.put(DOC_ATTACHMENTS_DATA, data);
+                        JSONObject attachmentJSON = new JSONObject();
+                        attachmentJSON.put(DOC_ATTACHMENTS_CONTENT_TYPE, attachment.type);
+                        attachmentJSON.put(DOC_ATTACHMENTS_DATA, data);
 
-                    attachments.put(entry.getKey(), attachmentJSON);
-                }
+                        attachments.put(entry.getKey(), attachmentJSON);
+                    }
 
-                result.put(DOC_ATTACHMENTS, attachments);
+                    result.put(DOC_ATTACHMENTS, attachments);
+                }
             }
-        }
 
-        return result;
+            return result;
+        } finally {
+            PluginMetrics.serializationEnded(serializationStarted);
+        }
     }
 
     /**
@@ -988,7 +3006,7 @@ public class CloudantSyncPlugin extends CordovaPlugin {
      * @return - The Map from the converted JSONObject
      * @throws JSONException
      */
-    private Map<String, Object> convertJSONtoMap(JSONObject json) throws JSONException {
+    Map<String, Object> convertJSONtoMap(JSONObject json) throws JSONException {
         Map<String, Object> ret = new HashMap<String, Object>();
 
         if (json != JSONObject.NULL) {
@@ -1005,7 +3023,7 @@ public class CloudantSyncPlugin extends CordovaPlugin {
      * @return - The Map from the converted JSONObject
      * @throws JSONException
      */
-    private Map<String, Object> toMap(JSONObject json) throws JSONException {
+    Map<String, Object> toMap(JSONObject json) throws JSONException {
         Map<String, Object> ret = new HashMap<String, Object>();
 
         Iterator<String> iter = json.keys();
@@ -1032,7 +3050,7 @@ public class CloudantSyncPlugin extends CordovaPlugin {
      * @return - The List from the converted JSONArray
      * @throws JSONException
      */
-    private List<Object> toList(JSONArray json) throws JSONException {
+    List<Object> toList(JSONArray json) throws JSONException {
         List<Object> ret = new ArrayList<Object>();
 
         for (int i = 0; i < json.length(); i++) {
@@ -1049,6 +3067,147 @@ public class CloudantSyncPlugin extends CordovaPlugin {
         return ret;
     }
 
+    /**
+     * @param replicatorJson - The JSON replicator
+     * @return - true if the replicator specifies a selector, filter or document ID list
+     */
+    private boolean hasPullFilter(JSONObject replicatorJson) {
+        return !replicatorJson.isNull(REPLICATOR_SELECTOR) || !replicatorJson.isNull(REPLICATOR_FILTER) ||
+            !replicatorJson.isNull(REPLICATOR_DOC_IDS);
+    }
+
+    /**
+     * Restricts a pull replication to the documents matching the selector, filter function or
+     * document ID list of the replicator. At most one of these may be given.
+     * @param pull - The pull ReplicatorBuilder to configure
+     * @param replicatorJson - The JSON replicator
+     * @throws Exception - If more than one filter is given or a filter is invalid
+     */
+    private void applyPullFilter(ReplicatorBuilder.Pull pull, JSONObject replicatorJson) throws Exception {
+        int filters = 0;
+
+        if (!replicatorJson.isNull(REPLICATOR_SELECTOR)) {
+            JSONObject selector = replicatorJson.optJSONObject(REPLICATOR_SELECTOR);
+            if (selector == null) {
+                throw new Exception("Replicator '" + REPLICATOR_SELECTOR + "' must be an object");
+            }
+            pull.selector(selector.toString());
+            filters++;
+        }
+
+        if (!replicatorJson.isNull(REPLICATOR_FILTER)) {
+            JSONObject filter = replicatorJson.optJSONObject(REPLICATOR_FILTER);
+            if (filter == null || filter.isNull(REPLICATOR_FILTER_NAME)) {
+                throw new Exception("Replicator '" + REPLICATOR_FILTER + "' must be an object with a '" +
+                    REPLICATOR_FILTER_NAME + "'");
+            }
+
+            Map<String, String> params = new HashMap<String, String>();
+            JSONObject jsonParams = filter.optJSONObject(REPLICATOR_FILTER_PARAMS);
+            if (jsonParams != null) {
+                Iterator<String> keys = jsonParams.keys();
+                while (keys.hasNext()) {
+                    String key = keys.next();
+                    params.put(key, jsonParams.getString(key));
+                }
+            }
+            pull.filter(new PullFilter(filter.getString(REPLICATOR_FILTER_NAME), params));
+            filters++;
+        }
+
+        if (!replicatorJson.isNull(REPLICATOR_DOC_IDS)) {
+            JSONArray docIds = replicatorJson.optJSONArray(REPLICATOR_DOC_IDS);
+            if (docIds == null || docIds.length() == 0) {
+                throw new Exception("Replicator '" + REPLICATOR_DOC_IDS + "' must be a non-empty array");
+            }
+
+            // The built-in _doc_ids filter takes the IDs as a JSON array parameter
+            Map<String, String> params = new HashMap<String, String>();
+            params.put(REPLICATOR_DOC_IDS, docIds.toString());
+            pull.filter(new PullFilter(DOC_IDS_FILTER_NAME, params));
+            filters++;
+        }
+
+        if (filters > 1) {
+            throw new Exception("Replicator may specify only one of '" + REPLICATOR_SELECTOR + "', '" +
+                REPLICATOR_FILTER + "' and '" + REPLICATOR_DOC_IDS + "'");
+        }
+    }
+
+    /**
+     * Applies the batch and insert size options of the replicator to a pull replication. Options
+     * which are not set keep the library defaults.
+     * @param pull - The pull ReplicatorBuilder to configure
+     * @param replicatorJson - The JSON replicator
+     * @throws Exception - If an option is invalid
+     */
+    private void applyPullTuning(ReplicatorBuilder.Pull pull, JSONObject replicatorJson) throws Exception {
+        if (!replicatorJson.isNull(REPLICATOR_CHANGE_LIMIT_PER_BATCH)) {
+            pull.changeLimitPerBatch(getPositiveInt(replicatorJson, REPLICATOR_CHANGE_LIMIT_PER_BATCH));
+        }
+        if (!replicatorJson.isNull(REPLICATOR_BATCH_LIMIT_PER_RUN)) {
+            pull.batchLimitPerRun(getPositiveInt(replicatorJson, REPLICATOR_BATCH_LIMIT_PER_RUN));
+        }
+        if (!replicatorJson.isNull(REPLICATOR_INSERT_BATCH_SIZE)) {
+            pull.insertBatchSize(getPositiveInt(replicatorJson, REPLICATOR_INSERT_BATCH_SIZE));
+        }
+        if (!replicatorJson.isNull(REPLICATOR_ATTACHMENTS_INLINE)) {
+            Object inline = replicatorJson.get(REPLICATOR_ATTACHMENTS_INLINE);
+            if (!(inline instanceof Boolean)) {
+                throw new Exception("Replicator '" + REPLICATOR_ATTACHMENTS_INLINE + "' must be true or false for " +
+                    "pull replication. Received: " + inline);
+            }
+            pull.pullAttachmentsInline((Boolean) inline);
+        }
+    }
+
+    /**
+     * Applies the batch and insert size options of the replicator to a push replication. Options
+     * which are not set keep the library defaults.
+     * @param push - The push ReplicatorBuilder to configure
+     * @param replicatorJson - The JSON replicator
+     * @throws Exception - If an option is invalid
+     */
+    private void applyPushTuning(ReplicatorBuilder.Push push, JSONObject replicatorJson) throws Exception {
+        if (!replicatorJson.isNull(REPLICATOR_CHANGE_LIMIT_PER_BATCH)) {
+            push.changeLimitPerBatch(getPositiveInt(replicatorJson, REPLICATOR_CHANGE_LIMIT_PER_BATCH));
+        }
+        if (!replicatorJson.isNull(REPLICATOR_BATCH_LIMIT_PER_RUN)) {
+            push.batchLimitPerRun(getPositiveInt(replicatorJson, REPLICATOR_BATCH_LIMIT_PER_RUN));
+        }
+        if (!replicatorJson.isNull(REPLICATOR_INSERT_BATCH_SIZE)) {
+            push.bulkInsertSize(getPositiveInt(replicatorJson, REPLICATOR_INSERT_BATCH_SIZE));
+        }
+        if (!replicatorJson.isNull(REPLICATOR_ATTACHMENTS_INLINE)) {
+            Object inline = replicatorJson.get(REPLICATOR_ATTACHMENTS_INLINE);
+            if (Boolean.TRUE.equals(inline)) {
+                push.pushAttachmentsInline(PushAttachmentsInline.True);
+            } else if (Boolean.FALSE.equals(inline)) {
+                push.pushAttachmentsInline(PushAttachmentsInline.False);
+            } else if ("small".equals(inline)) {
+                push.pushAttachmentsInline(PushAttachmentsInline.Small);
+            } else {
+                throw new Exception("Replicator '" + REPLICATOR_ATTACHMENTS_INLINE + "' must be true, false or " +
+                    "\"small\" for push replication. Received: " + inline);
+            }
+        }
+    }
+
+    /**
+     * @param json - The JSONObject containing the value
+     * @param key - The key of the value
+     * @return - The value as an int
+     * @throws Exception - If the value is not a positive integer
+     */
+    private int getPositiveInt(JSONObject json, String key) throws Exception {
+        Object value = json.get(key);
+        if (!(value instanceof Number) || ((Number) value).doubleValue() != ((Number) value).intValue() ||
+            ((Number) value).intValue() < 1) {
+            throw new Exception("Replicator '" + key + "' must be a positive integer. Received: " + value);
+        }
+        return ((Number) value).intValue();
+    }
+
     /**
      * @param state - The Replicator State to transform
      * @return - The String from the converted Replicator State
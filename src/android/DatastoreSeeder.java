@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 2017 IBM Corp. All rights reserved.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+
+package com.cloudant.sync.cordova;
+
+import android.content.res.AssetManager;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The DatastoreSeeder class installs the initial contents of a DocumentStore from the app assets,
+ * so a new install does not have to replicate every document. A seed is either:
+ * <ul>
+ * <li>a prebuilt DocumentStore directory, copied as it is. A DocumentStore built by pulling from
+ * the remote database keeps the revisions and the replication checkpoint of the pull, so the first
+ * pull with the same source and options on the device only fetches the changes made since.</li>
+ * <li>an NDJSON file, optionally gzip compressed, with one document per line. Lines are parsed and
+ * imported one at a time, so the file is never held in memory. Each document is created as a new
+ * first revision: sync-android only preserves existing revisions through its internal API, so NDJSON
+ * seeds suit data which is not replicated, and documents with a _rev are rejected.</li>
+ * </ul>
+ * The seed is built in a sibling directory which is renamed to the DocumentStore directory once
+ * complete, so an interrupted seed leaves no DocumentStore behind and is redone on the next launch.
+ */
+class DatastoreSeeder {
+
+    static final String FORMAT_DATASTORE = "datastore";
+    static final String FORMAT_NDJSON = "ndjson";
+
+    private static final String SEEDING_SUFFIX = ".seeding";
+
+    private static final Map<String, Object> locks = new HashMap<String, Object>();
+
+    /**
+     * Creates the documents read from an NDJSON seed
+     */
+    interface Importer {
+        /**
+         * @param document - The document read from a line of the seed
+         * @throws Exception - If the document cannot be created
+         */
+        void importDocument(JSONObject document) throws Exception;
+    }
+
+    private final AssetManager assets;
+
+    /**
+     * @param assets - The app assets holding the seeds
+     */
+    DatastoreSeeder(AssetManager assets) {
+        this.assets = assets;
+    }
+
+    /**
+     * @param location - The directory of the DocumentStore
+     * @return - The lock serializing the seeding of the DocumentStore, to be held from the check
+     * that it does not exist until it is installed and opened
+     */
+    static synchronized Object lockFor(File location) {
+        String path = location.getAbsolutePath();
+        Object lock = locks.get(path);
+        if (lock == null) {
+            lock = new Object();
+            locks.put(path, lock);
+        }
+        return lock;
+    }
+
+    /**
+     * @param asset - The path of the seed in the app assets
+     * @return - The format of the seed, ndjson for an .ndjson or .ndjson.gz file, otherwise datastore
+     */
+    static String formatOf(String asset) {
+        return asset.endsWith(".ndjson") || asset.endsWith(".ndjson.gz") ? FORMAT_NDJSON : FORMAT_DATASTORE;
+    }
+
+    /**
+     * @param location - The directory of a DocumentStore
+     * @return - true if the DocumentStore exists, in which case it is not seeded
+     */
+    static boolean exists(File location) {
+        String[] files = location.list();
+        return files != null && files.length > 0;
+    }
+
+    /**
+     * @param location - The directory of the DocumentStore to seed
+     * @return - The empty directory in which to build the seed
+     * @throws IOException - If a previous incomplete seed cannot be removed
+     */
+    static File seedingLocation(File location) throws IOException {
+        File seeding = new File(location.getParentFile(), location.getName() + SEEDING_SUFFIX);
+        if (seeding.exists()) {
+            FileUtils.deleteDirectory(seeding);
+        }
+        return seeding;
+    }
+
+    /**
+     * Moves a complete seed to the DocumentStore directory
+     * @param seeding - The directory holding the seed
+     * @param location - The directory of the DocumentStore
+     * @throws IOException - If the DocumentStore was created meanwhile, or the seed cannot be moved
+     */
+    static void install(File seeding, File location) throws IOException {
+        if (exists(location)) {
+            throw new IOException("DocumentStore " + location.getName() + " was created while it was being " +
+                "seeded");
+        }
+        // An empty directory left by an earlier open
+        if (location.exists() && !location.delete()) {
+            throw new IOException("Failed to remove the empty directory " + location);
+        }
+        if (!seeding.renameTo(location)) {
+            throw new IOException("Failed to move the seed to " + location);
+        }
+    }
+
+    /**
+     * Copies a prebuilt DocumentStore directory from the assets
+     * @param asset - The path of the directory in the assets
+     * @param target - The directory to copy it to
+     * @return - The number of files copied
+     * @throws IOException - If the directory is missing or cannot be copied
+     */
+    int copyDatastore(String asset, File target) throws IOException {
+        int copied = copy(asset, target);
+        if (copied == 0) {
+            throw new IOException("No prebuilt DocumentStore found in the assets at " + asset);
+        }
+        return copied;
+    }
+
+    /**
+     * Reads an NDJSON seed from the assets, passing each document to the importer. Blank lines
+     * are skipped.
+     * @param asset - The path of the file in the assets
+     * @param importer - The importer creating the documents
+     * @return - The number of documents imported
+     * @throws Exception - If the file cannot be read, a line is not a JSON object or has a _rev, or
+     * a document cannot be created
+     */
+    int importNdjson(String asset, Importer importer) throws Exception {
+        InputStream in = assets.open(asset, AssetManager.ACCESS_STREAMING);
+        try {
+            if (asset.endsWith(".gz")) {
+                in = new GZIPInputStream(in, 64 * 1024);
+            }
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"), 64 * 1024);
+            int imported = 0;
+            int lineNumber = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                JSONObject document;
+                try {
+                    document = new JSONObject(line);
+                } catch (Exception e) {
+                    throw new Exception("Line " + lineNumber + " of " + asset + " is not a JSON object: " +
+                        e.getMessage());
+                }
+                if (document.has("_rev")) {
+                    throw new Exception("Line " + lineNumber + " of " + asset + " has a _rev; revisions can only " +
+                        "be seeded with a prebuilt DocumentStore");
+                }
+                try {
+                    importer.importDocument(document);
+                } catch (Exception e) {
+                    throw new Exception("Line " + lineNumber + " of " + asset + " could not be imported: " +
+                        e.getMessage());
+                }
+                imported++;
+            }
+            return imported;
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * @return - The number of files copied
+     */
+    private int copy(String asset, File target) throws IOException {
+        String[] children = assets.list(asset);
+        if (children == null || children.length == 0) {
+            // Either a file or an empty or missing directory, which the assets do not distinguish
+            InputStream in;
+            try {
+                in = assets.open(asset, AssetManager.ACCESS_STREAMING);
+            } catch (IOException e) {
+                return 0;
+            }
+            try {
+                File parent = target.getParentFile();
+                if (!parent.isDirectory() && !parent.mkdirs()) {
+                    throw new IOException("Failed to create " + parent);
+                }
+                OutputStream out = new FileOutputStream(target);
+                try {
+                    IOUtils.copy(in, out);
+                } finally {
+                    out.close();
+                }
+                return 1;
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+        }
+        int copied = 0;
+        for (String child : children) {
+            copied += copy(asset + "/" + child, new File(target, child));
+        }
+        return copied;
+    }
+}
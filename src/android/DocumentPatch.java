@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2017 IBM Corp. All rights reserved.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+
+package com.cloudant.sync.cordova;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The DocumentPatch class applies a list of operations to a document body natively, so that
+ * changing a few fields of a large document does not pass its whole body over the bridge. Each
+ * operation is a JSON object with an op, a path in dotted notation and, for some ops, a value:
+ * <ul>
+ * <li>set - sets the field to the value, creating any missing objects on the path</li>
+ * <li>unset - removes the field, if present</li>
+ * <li>increment - adds the value, 1 by default, to a numeric field, treating a missing field as 0</li>
+ * <li>append - appends the value to an array field, creating the array if the field is missing</li>
+ * </ul>
+ * Operations are applied in order. Top level fields starting with an underscore are reserved for
+ * the document metadata and cannot be patched.
+ */
+class DocumentPatch {
+
+    static final String OP_SET = "set";
+    static final String OP_UNSET = "unset";
+    static final String OP_INCREMENT = "increment";
+    static final String OP_APPEND = "append";
+
+    private static final String OP_KEY = "op";
+    private static final String PATH_KEY = "path";
+    private static final String VALUE_KEY = "value";
+
+    private final JSONArray ops;
+
+    /**
+     * @param ops - The operations to apply
+     * @throws Exception - If an operation is not valid
+     */
+    DocumentPatch(JSONArray ops) throws Exception {
+        if (ops == null || ops.length() == 0) {
+            throw new Exception("ops must contain at least one operation");
+        }
+        for (int i = 0; i < ops.length(); i++) {
+            JSONObject op = ops.optJSONObject(i);
+            if (op == null) {
+                throw new Exception("Each op must be an object");
+            }
+            String name = op.optString(OP_KEY);
+            if (!OP_SET.equals(name) && !OP_UNSET.equals(name) && !OP_INCREMENT.equals(name) &&
+                !OP_APPEND.equals(name)) {
+                throw new Exception("Unknown op \"" + name + "\"; expected set, unset, increment or append");
+            }
+            String path = op.optString(PATH_KEY);
+            if (path.isEmpty() || path.startsWith("_") || path.startsWith(".") || path.endsWith(".") ||
+                path.contains("..")) {
+                throw new Exception("Invalid path \"" + path + "\" in " + name + " op");
+            }
+            if ((OP_SET.equals(name) || OP_APPEND.equals(name)) && !op.has(VALUE_KEY)) {
+                throw new Exception("The " + name + " op of \"" + path + "\" requires a value");
+            }
+            if (OP_INCREMENT.equals(name) && op.has(VALUE_KEY) && !(op.get(VALUE_KEY) instanceof Number)) {
+                throw new Exception("The increment op of \"" + path + "\" requires a numeric value");
+            }
+        }
+        this.ops = ops;
+    }
+
+    /**
+     * @param body - The document body, which is not modified
+     * @return - A copy of the body with the operations applied; objects on the patched paths are
+     * copied, others are shared with the given body
+     * @throws Exception - If an operation does not apply to the body
+     */
+    Map<String, Object> apply(Map<String, Object> body) throws Exception {
+        Map<String, Object> result = new HashMap<String, Object>(body);
+        for (int i = 0; i < ops.length(); i++) {
+            JSONObject op = ops.getJSONObject(i);
+            String name = op.getString(OP_KEY);
+            String path = op.getString(PATH_KEY);
+            String[] segments = path.split("\\.");
+
+            Map<String, Object> parent = parentOf(result, segments, !OP_UNSET.equals(name), path);
+            if (parent == null) {
+                // Nothing to unset
+                continue;
+            }
+            String field = segments[segments.length - 1];
+            Object current = parent.get(field);
+
+            if (OP_SET.equals(name)) {
+                parent.put(field, toJava(op.get(VALUE_KEY)));
+            } else if (OP_UNSET.equals(name)) {
+                parent.remove(field);
+            } else if (OP_INCREMENT.equals(name)) {
+                Number by = op.has(VALUE_KEY) ? (Number) op.get(VALUE_KEY) : Integer.valueOf(1);
+                if (current != null && !(current instanceof Number)) {
+                    throw new Exception("Cannot increment \"" + path + "\": it is not a number");
+                }
+                parent.put(field, add((Number) current, by));
+            } else {
+                if (current != null && !(current instanceof List)) {
+                    throw new Exception("Cannot append to \"" + path + "\": it is not an array");
+                }
+                List<Object> list = current == null ? new ArrayList<Object>() :
+                    new ArrayList<Object>((List<?>) current);
+                list.add(toJava(op.get(VALUE_KEY)));
+                parent.put(field, list);
+            }
+        }
+        return result;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Finds the object holding the last field of a path, copying each object on the way so the
+     * original body is left unchanged
+     * @param body - The copied top level body
+     * @param segments - The fields of the path
+     * @param create - true to create missing objects on the path
+     * @param path - The path, for error messages
+     * @return - The object holding the last field, or null if it is missing and not created
+     * @throws Exception - If a field on the path is not an object
+     */
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> parentOf(Map<String, Object> body, String[] segments, boolean create,
+                                                String path) throws Exception {
+        Map<String, Object> parent = body;
+        for (int i = 0; i < segments.length - 1; i++) {
+            Object child = parent.get(segments[i]);
+            Map<String, Object> copy;
+            if (child == null) {
+                if (!create) {
+                    return null;
+                }
+                copy = new HashMap<String, Object>();
+            } else if (child instanceof Map) {
+                copy = new HashMap<String, Object>((Map<String, Object>) child);
+            } else if (!create) {
+                return null;
+            } else {
+                throw new Exception("Cannot patch \"" + path + "\": \"" + segments[i] + "\" is not an object");
+            }
+            parent.put(segments[i], copy);
+            parent = copy;
+        }
+        return parent;
+    }
+
+    /**
+     * @param current - The current number, or null
+     * @param by - The number to add
+     * @return - The sum, as a Long if both are integers and a Double otherwise
+     */
+    private static Number add(Number current, Number by) {
+        if (current == null) {
+            return by;
+        }
+        if (isIntegral(current) && isIntegral(by)) {
+            return current.longValue() + by.longValue();
+        }
+        return current.doubleValue() + by.doubleValue();
+    }
+
+    private static boolean isIntegral(Number n) {
+        return n instanceof Integer || n instanceof Long || n instanceof Short || n instanceof Byte;
+    }
+
+    /**
+     * @param value - A value from a JSONObject or JSONArray
+     * @return - The value as a document body value: Maps, Lists and null for JSON objects, arrays
+     * and null
+     * @throws JSONException
+     */
+    private static Object toJava(Object value) throws JSONException {
+        if (JSONObject.NULL.equals(value)) {
+            return null;
+        } else if (value instanceof JSONObject) {
+            JSONObject json = (JSONObject) value;
+            Map<String, Object> map = new HashMap<String, Object>();
+            Iterator<String> keys = json.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                map.put(key, toJava(json.get(key)));
+            }
+            return map;
+        } else if (value instanceof JSONArray) {
+            JSONArray json = (JSONArray) value;
+            List<Object> list = new ArrayList<Object>();
+            for (int i = 0; i < json.length(); i++) {
+                list.add(toJava(json.get(i)));
+            }
+            return list;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2017 IBM Corp. All rights reserved.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+
+package com.cloudant.sync.cordova;
+
+import android.util.Log;
+
+import com.cloudant.sync.documentstore.Database;
+import com.cloudant.sync.documentstore.DocumentRevision;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The DocumentTransaction class applies a list of create, update and delete operations to a
+ * DocumentStore as a unit. sync-android 2.0 commits each document write in its own database
+ * transaction and has no public API to group them, so instead:
+ * <ul>
+ * <li>transactions on the same DocumentStore are serialized by a lock,</li>
+ * <li>every update and delete is checked against the current revision of its document before
+ * anything is written, so a revision conflict fails the transaction with no writes, and</li>
+ * <li>if a write fails part way, for example because a replication or another call changed a
+ * document after the check, the writes already made are compensated in reverse order: created
+ * documents are deleted, updated documents are updated back to their previous body and deleted
+ * documents are created again with their previous body.</li>
+ * </ul>
+ * Compensation makes new revisions rather than removing the ones written, and a crash part way
+ * through a transaction can leave some of its writes saved.
+ */
+class DocumentTransaction {
+    private static final String TAG = DocumentTransaction.class.getCanonicalName();
+
+    static final String OP_CREATE = "create";
+    static final String OP_UPDATE = "update";
+    static final String OP_DELETE = "delete";
+
+    private static final String DOC_ID = "_id";
+    private static final String DOC_REV = "_rev";
+    private static final String DOC_DELETED = "_deleted";
+
+    // The lock of each DocumentStore serializing its transactions
+    private static final Map<String, Object> locks = new HashMap<String, Object>();
+
+    private final List<Operation> operations = new ArrayList<Operation>();
+    private final Set<String> ids = new HashSet<String>();
+
+    /**
+     * An operation and, once applied, the revision it replaced and the revision it wrote
+     */
+    private static class Operation {
+        private final String op;
+        private final DocumentRevision rev;
+        private DocumentRevision previous;
+        private DocumentRevision result;
+
+        Operation(String op, DocumentRevision rev) {
+            this.op = op;
+            this.rev = rev;
+        }
+
+        @Override
+        public String toString() {
+            return op + (rev.getId() == null ? "" : " of " + rev.getId());
+        }
+    }
+
+    /**
+     * @param documentStoreName - The name of the DocumentStore
+     * @return - The lock serializing transactions on the DocumentStore
+     */
+    static synchronized Object lockFor(String documentStoreName) {
+        Object lock = locks.get(documentStoreName);
+        if (lock == null) {
+            lock = new Object();
+            locks.put(documentStoreName, lock);
+        }
+        return lock;
+    }
+
+    /**
+     * Adds an operation
+     * @param op - create, update or delete
+     * @param rev - The revision to create, or the revision to update or delete with its current
+     *            revision ID
+     * @throws Exception - If the operation is not valid, or its document is already in the
+     * transaction
+     */
+    void add(String op, DocumentRevision rev) throws Exception {
+        if (!OP_CREATE.equals(op) && !OP_UPDATE.equals(op) && !OP_DELETE.equals(op)) {
+            throw new Exception("Unknown transaction operation: " + op);
+        }
+        if (!OP_CREATE.equals(op) && (rev.getId() == null || rev.getRevision() == null)) {
+            throw new Exception("Document ID and revision cannot be null for " + op);
+        }
+        if (rev.getId() != null && !ids.add(rev.getId())) {
+            throw new Exception("Document " + rev.getId() + " appears in more than one operation");
+        }
+        operations.add(new Operation(op, rev));
+    }
+
+    /**
+     * Checks the revisions of the updates and deletes, then applies the operations in order,
+     * compensating for the writes made if one fails. Hold the lock of the DocumentStore.
+     * @param database - The Database of the DocumentStore
+     * @return - The _id and _rev written by each operation, in order, with _deleted for deletes
+     * @throws Exception - If a revision is not current, in which case nothing is written, or a
+     * write fails
+     */
+    JSONArray apply(Database database) throws Exception {
+        if (operations.isEmpty()) {
+            throw new Exception("ops must contain at least one operation");
+        }
+
+        for (int i = 0; i < operations.size(); i++) {
+            Operation operation = operations.get(i);
+            if (OP_CREATE.equals(operation.op)) {
+                continue;
+            }
+            DocumentRevision current;
+            try {
+                current = database.read(operation.rev.getId());
+            } catch (Exception e) {
+                throw new Exception("Transaction failed at operation " + i + " (" + operation + "): " +
+                    e.getMessage() + "; nothing was written");
+            }
+            if (current.isDeleted() || !operation.rev.getRevision().equals(current.getRevision())) {
+                throw new Exception("Transaction failed at operation " + i + " (" + operation + "): Document " +
+                    "update conflict: " + current.getId() + " is at revision " + current.getRevision() +
+                    (current.isDeleted() ? " (deleted)" : "") + ", not " + operation.rev.getRevision() +
+                    "; nothing was written");
+            }
+            operation.previous = current;
+        }
+
+        for (int i = 0; i < operations.size(); i++) {
+            Operation operation = operations.get(i);
+            try {
+                if (OP_CREATE.equals(operation.op)) {
+                    operation.result = database.create(operation.rev);
+                } else if (OP_UPDATE.equals(operation.op)) {
+                    operation.result = database.update(operation.rev);
+                } else {
+                    operation.result = database.delete(operation.rev);
+                }
+            } catch (Exception e) {
+                List<String> uncompensated = compensate(database, i);
+                throw new Exception("Transaction failed at operation " + i + " (" + operation + "): " +
+                    e.getMessage() + (uncompensated.isEmpty() ? "; earlier operations were rolled back" :
+                    "; could not roll back " + uncompensated));
+            }
+        }
+
+        JSONArray results = new JSONArray();
+        for (Operation operation : operations) {
+            results.put(toJSON(operation));
+        }
+        return results;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Compensates for the writes of the operations before the one which failed, last first
+     * @param database - The Database of the DocumentStore
+     * @param failed - The index of the operation which failed
+     * @return - The operations which could not be compensated for
+     */
+    private List<String> compensate(Database database, int failed) {
+        List<String> uncompensated = new ArrayList<String>();
+        for (int i = failed - 1; i >= 0; i--) {
+            Operation operation = operations.get(i);
+            try {
+                if (OP_CREATE.equals(operation.op)) {
+                    database.delete(operation.result);
+                } else {
+                    DocumentRevision restore = new DocumentRevision(operation.result.getId(),
+                        OP_UPDATE.equals(operation.op) ? operation.result.getRevision() : null,
+                        operation.previous.getBody());
+                    restore.setAttachments(operation.previous.getAttachments());
+                    if (OP_UPDATE.equals(operation.op)) {
+                        database.update(restore);
+                    } else {
+                        database.create(restore);
+                    }
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to roll back operation " + i + " (" + operation + ")", e);
+                uncompensated.add(i + " (" + operation + ")");
+            }
+        }
+        return uncompensated;
+    }
+
+    private static JSONObject toJSON(Operation operation) throws JSONException {
+        JSONObject r = new JSONObject();
+        r.put(DOC_ID, operation.result.getId());
+        r.put(DOC_REV, operation.result.getRevision());
+        if (OP_DELETE.equals(operation.op)) {
+            r.put(DOC_DELETED, true);
+        }
+        return r;
+    }
+}
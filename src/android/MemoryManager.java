@@ -0,0 +1,431 @@
+/*
+ * Copyright (c) 2017 IBM Corp. All rights reserved.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.cordova;
+
+import android.content.ComponentCallbacks2;
+import android.util.Log;
+
+import com.cloudant.sync.documentstore.DocumentStore;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The MemoryManager class sheds the memory held by the plugin when Android reports memory
+ * pressure through onTrimMemory or onLowMemory. Trim levels map to three tiers, each of which
+ * also does the work of the tiers below it:
+ * <ul>
+ * <li>moderate - releases caches: the retained trace spans when tracing is disabled and the
+ * results kept for stale finds</li>
+ * <li>low - closes DocumentStores which have not been used for the idle timeout and are not in use
+ * by an operation or a Replicator, and caps the number of documents a find may return</li>
+ * <li>critical - pauses replications with a priority below the critical priority</li>
+ * </ul>
+ * Operations acquire the DocumentStores they use and release them when done, so a DocumentStore
+ * is never closed under an operation. DocumentStores closed while idle are reopened when next
+ * acquired. The pressure is relieved when the
+ * app is resumed or when no trim has been received for the relief delay, which lifts the cap and
+ * resumes the paused replications.
+ */
+class MemoryManager {
+    private static final String TAG = MemoryManager.class.getCanonicalName();
+
+    static final int TIER_NONE = 0;
+    static final int TIER_MODERATE = 1;
+    static final int TIER_LOW = 2;
+    static final int TIER_CRITICAL = 3;
+    private static final String[] TIER_NAMES = {"none", "moderate", "low", "critical"};
+
+    static final long DEFAULT_IDLE_TIMEOUT = 60000;
+    static final long DEFAULT_RELIEF_DELAY = 60000;
+    static final int DEFAULT_CRITICAL_PRIORITY = 1;
+    static final int DEFAULT_MAX_FIND_RESULTS = 1000;
+
+    private final Map<String, DocumentStore> documentStores;
+    private final ReplicationLimiter limiter;
+    private final BackgroundIndexer indexer;
+    private final ScheduledExecutorService reliefChecks = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "CloudantSync-MemoryRelief");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+    // Guarded by this
+    private final Map<String, File> locations = new HashMap<String, File>();
+    private final Map<String, Long> lastUsed = new HashMap<String, Long>();
+    // The number of operations using each DocumentStore
+    private final Map<String, Integer> inUse = new HashMap<String, Integer>();
+    private final Map<Integer, String> replicatorStores = new HashMap<Integer, String>();
+    private final Set<String> closedWhileIdle = new TreeSet<String>();
+    private int tier = TIER_NONE;
+    private int lastLevel = -1;
+    private long pressureSince;
+    private long lastTrim;
+    private ScheduledFuture<?> reliefCheck;
+
+    private long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    private long reliefDelay = DEFAULT_RELIEF_DELAY;
+    private int criticalPriority = DEFAULT_CRITICAL_PRIORITY;
+    private int maxFindResults = DEFAULT_MAX_FIND_RESULTS;
+
+    // Counters since the plugin was loaded
+    private long trims;
+    private long storesClosed;
+    private long storesReopened;
+    private long replicationsPaused;
+    private long staleResultsDropped;
+
+    /**
+     * @param documentStores - The plugin's open DocumentStores by name
+     * @param limiter - The plugin's ReplicationLimiter
+     * @param indexer - The plugin's BackgroundIndexer
+     */
+    MemoryManager(Map<String, DocumentStore> documentStores, ReplicationLimiter limiter, BackgroundIndexer indexer) {
+        this.documentStores = documentStores;
+        this.limiter = limiter;
+        this.indexer = indexer;
+    }
+
+    /**
+     * @param level - An onTrimMemory level
+     * @return - The tier of the level
+     */
+    static int tierOf(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+            return TIER_CRITICAL;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            return TIER_LOW;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            return TIER_MODERATE;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            return TIER_CRITICAL;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            return TIER_LOW;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            return TIER_MODERATE;
+        }
+        return TIER_NONE;
+    }
+
+    /**
+     * Records that a DocumentStore was opened
+     * @param name - The name of the DocumentStore
+     * @param location - The directory of the DocumentStore
+     */
+    synchronized void opened(String name, File location) {
+        locations.put(name, location);
+        lastUsed.put(name, System.currentTimeMillis());
+        closedWhileIdle.remove(name);
+    }
+
+    /**
+     * Acquires a DocumentStore for an operation, reopening it if it was closed while idle. It is
+     * not closed while idle until the operation releases it.
+     * @param name - The name of the DocumentStore
+     * @return - The DocumentStore, or null if it is not open
+     * @throws Exception - If the DocumentStore cannot be reopened
+     */
+    synchronized DocumentStore acquire(String name) throws Exception {
+        return acquire(name, reopen(name));
+    }
+
+    /**
+     * Acquires a DocumentStore for background work, which does not reopen it if it was closed
+     * while idle
+     * @param name - The name of the DocumentStore
+     * @return - The DocumentStore, or null if it is not open
+     */
+    synchronized DocumentStore acquireIfOpen(String name) {
+        return acquire(name, documentStores.get(name));
+    }
+
+    /**
+     * Releases a DocumentStore acquired by an operation
+     * @param name - The name of the DocumentStore
+     */
+    synchronized void release(String name) {
+        Integer count = inUse.get(name);
+        if (count == null) {
+            return;
+        }
+        if (count > 1) {
+            inUse.put(name, count - 1);
+        } else {
+            inUse.remove(name);
+        }
+        // The idle time starts when the last operation ends
+        if (locations.containsKey(name)) {
+            lastUsed.put(name, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Forgets a DocumentStore which was closed or deleted by the app
+     * @param name - The name of the DocumentStore
+     * @return - true if the DocumentStore had been closed while idle
+     */
+    synchronized boolean forget(String name) {
+        locations.remove(name);
+        lastUsed.remove(name);
+        return closedWhileIdle.remove(name);
+    }
+
+    /**
+     * Reopens a DocumentStore which was closed while idle
+     * @param name - The name of the DocumentStore
+     * @return - The DocumentStore, or null if it is not open and was not closed while idle
+     * @throws Exception - If the DocumentStore cannot be opened
+     */
+    private DocumentStore reopen(String name) throws Exception {
+        DocumentStore ds = documentStores.get(name);
+        if (ds != null || !closedWhileIdle.contains(name)) {
+            return ds;
+        }
+
+        ds = DocumentStore.getInstance(locations.get(name));
+        documentStores.put(name, ds);
+        closedWhileIdle.remove(name);
+        lastUsed.put(name, System.currentTimeMillis());
+        storesReopened++;
+        return ds;
+    }
+
+    /**
+     * Records the DocumentStore a Replicator uses, which is not closed while the Replicator exists
+     * @param token - The unique token id of the Replicator
+     * @param name - The name of the DocumentStore
+     */
+    synchronized void replicatorCreated(Integer token, String name) {
+        replicatorStores.put(token, name);
+    }
+
+    /**
+     * @param token - The unique token id of the Replicator
+     */
+    synchronized void replicatorDestroyed(Integer token) {
+        replicatorStores.remove(token);
+    }
+
+    /**
+     * @return - The maximum number of documents a find may return, or 0 for no limit
+     */
+    synchronized int maxFindResults() {
+        return tier >= TIER_LOW ? maxFindResults : 0;
+    }
+
+    /**
+     * Sheds memory for a trim level. Each trim raises the tier of pressure, which stays until it
+     * is relieved.
+     * @param level - An onTrimMemory level
+     */
+    void trim(int level) {
+        int levelTier = tierOf(level);
+        boolean pause;
+        int priority;
+        synchronized (this) {
+            trims++;
+            lastLevel = level;
+            lastTrim = System.currentTimeMillis();
+            if (levelTier > tier) {
+                if (tier == TIER_NONE) {
+                    pressureSince = lastTrim;
+                }
+                tier = levelTier;
+            }
+            pause = levelTier >= TIER_CRITICAL;
+            priority = criticalPriority;
+            scheduleRelief(reliefDelay);
+        }
+
+        if (levelTier >= TIER_MODERATE) {
+            if (!PluginTracer.isEnabled()) {
+                PluginTracer.clear();
+            }
+            int dropped = indexer.clearStaleResults();
+            synchronized (this) {
+                staleResultsDropped += dropped;
+            }
+        }
+        if (levelTier >= TIER_LOW) {
+            closeIdleStores();
+        }
+        if (pause) {
+            int count = limiter.pause(priority);
+            synchronized (this) {
+                replicationsPaused += count;
+            }
+        }
+        Log.i(TAG, "Trimmed memory for level " + level + ", pressure " + TIER_NAMES[levelTier]);
+    }
+
+    /**
+     * Ends the memory pressure, lifting the find cap and resuming paused replications
+     */
+    void relieve() {
+        synchronized (this) {
+            if (tier == TIER_NONE) {
+                return;
+            }
+            tier = TIER_NONE;
+            if (reliefCheck != null) {
+                reliefCheck.cancel(false);
+                reliefCheck = null;
+            }
+        }
+        limiter.resume();
+    }
+
+    /**
+     * Sets the thresholds used under memory pressure
+     * @param options - Any of idleTimeout and reliefDelay in milliseconds, criticalPriority and
+     *                maxFindResults
+     * @throws Exception - If an option is negative
+     */
+    synchronized void setPolicy(JSONObject options) throws Exception {
+        long idle = options.optLong("idleTimeout", idleTimeout);
+        long relief = options.optLong("reliefDelay", reliefDelay);
+        int maxResults = options.optInt("maxFindResults", maxFindResults);
+        if (idle < 0 || relief < 0 || maxResults < 0) {
+            throw new Exception("idleTimeout, reliefDelay and maxFindResults must not be negative");
+        }
+        idleTimeout = idle;
+        reliefDelay = relief;
+        maxFindResults = maxResults;
+        criticalPriority = options.optInt("criticalPriority", criticalPriority);
+    }
+
+    /**
+     * @return - The JSON memory pressure state, policy, DocumentStores and counters
+     * @throws JSONException
+     */
+    synchronized JSONObject toJSON() throws JSONException {
+        JSONObject r = new JSONObject();
+        r.put("pressure", new JSONObject()
+            .put("tier", TIER_NAMES[tier])
+            .put("lastLevel", lastLevel)
+            .put("since", tier == TIER_NONE ? JSONObject.NULL : pressureSince)
+            .put("lastTrim", lastTrim == 0 ? JSONObject.NULL : lastTrim));
+        r.put("policy", new JSONObject()
+            .put("idleTimeout", idleTimeout)
+            .put("reliefDelay", reliefDelay)
+            .put("criticalPriority", criticalPriority)
+            .put("maxFindResults", maxFindResults));
+
+        JSONArray open = new JSONArray();
+        synchronized (documentStores) {
+            for (String name : documentStores.keySet()) {
+                open.put(name);
+            }
+        }
+        r.put("documentStores", new JSONObject()
+            .put("open", open)
+            .put("closedWhileIdle", new JSONArray(closedWhileIdle))
+            .put("inUse", new JSONArray(new TreeSet<String>(inUse.keySet())))
+            .put("usedByReplicators", new JSONArray(new TreeSet<String>(replicatorStores.values()))));
+
+        r.put("counters", new JSONObject()
+            .put("trims", trims)
+            .put("storesClosed", storesClosed)
+            .put("storesReopened", storesReopened)
+            .put("replicationsPaused", replicationsPaused)
+            .put("staleResultsDropped", staleResultsDropped));
+        return r;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    // Must be called while holding the manager lock
+    private DocumentStore acquire(String name, DocumentStore ds) {
+        if (ds != null) {
+            Integer count = inUse.get(name);
+            inUse.put(name, count == null ? 1 : count + 1);
+            if (locations.containsKey(name)) {
+                lastUsed.put(name, System.currentTimeMillis());
+            }
+        }
+        return ds;
+    }
+
+    /**
+     * Closes the DocumentStores which have not been used for the idle timeout and are not in use by
+     * an operation or a Replicator
+     */
+    private void closeIdleStores() {
+        List<DocumentStore> toClose = new ArrayList<DocumentStore>();
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            for (String name : new ArrayList<String>(locations.keySet())) {
+                Long used = lastUsed.get(name);
+                if (inUse.containsKey(name) || replicatorStores.containsValue(name) || used == null ||
+                    now - used < idleTimeout) {
+                    continue;
+                }
+                DocumentStore ds = documentStores.remove(name);
+                if (ds != null) {
+                    toClose.add(ds);
+                    closedWhileIdle.add(name);
+                    storesClosed++;
+                }
+            }
+        }
+        for (DocumentStore ds : toClose) {
+            try {
+                ds.close();
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to close idle DocumentStore", e);
+            }
+        }
+    }
+
+    // Must be called while holding the manager lock
+    private void scheduleRelief(long delay) {
+        if (reliefCheck != null) {
+            reliefCheck.cancel(false);
+        }
+        reliefCheck = reliefChecks.schedule(new Runnable() {
+            @Override
+            public void run() {
+                boolean relieved;
+                synchronized (MemoryManager.this) {
+                    relieved = System.currentTimeMillis() - lastTrim >= reliefDelay;
+                    if (!relieved) {
+                        scheduleRelief(reliefDelay - (System.currentTimeMillis() - lastTrim));
+                    }
+                }
+                if (relieved) {
+                    relieve();
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+}
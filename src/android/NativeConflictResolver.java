@@ -0,0 +1,370 @@
+/*
+ * Copyright (c) 2017 IBM Corp. All rights reserved.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.cordova;
+
+import android.util.Log;
+
+import com.cloudant.sync.documentstore.ConflictResolver;
+import com.cloudant.sync.documentstore.Database;
+import com.cloudant.sync.documentstore.DocumentBodyFactory;
+import com.cloudant.sync.documentstore.DocumentRevision;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The NativeConflictResolver class resolves document conflicts with a built-in strategy, without
+ * calling back into the JavaScript layer:
+ * <ul>
+ * <li>deterministic - the revision CouchDB would pick as the winner: not deleted, then the
+ * highest generation, then the highest revision ID</li>
+ * <li>latest - the revision with the greatest value in a timestamp field, falling back to the
+ * deterministic order for missing or equal values</li>
+ * <li>merge - the union of the top level fields of all non-deleted revisions, taking each field
+ * from the highest ranked revision containing it. Revisions are ranked as for latest if a field is
+ * given, otherwise as for deterministic. Attachments are those of the highest ranked revision.</li>
+ * </ul>
+ */
+class NativeConflictResolver implements ConflictResolver {
+    private static final String TAG = NativeConflictResolver.class.getCanonicalName();
+
+    static final String STRATEGY_NAME = "name";
+    static final String STRATEGY_FIELD = "field";
+    static final String DETERMINISTIC = "deterministic";
+    static final String LATEST = "latest";
+    static final String MERGE = "merge";
+
+    static final int DEFAULT_BATCH_SIZE = 100;
+    static final int DEFAULT_CONCURRENCY = 2;
+
+    // Only the first errors are reported in the summary to bound its size
+    private static final int MAX_REPORTED_ERRORS = 50;
+
+    // Batches of all resolutions share these threads, which are started on demand and end when idle
+    private static final int MAX_THREADS = 4;
+    private static final long THREAD_IDLE_SECONDS = 30;
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS,
+        THREAD_IDLE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "CloudantSync-ConflictResolver");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+    static {
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    private final String name;
+    private final String field;
+    private final Comparator<DocumentRevision> ranking;
+
+    /**
+     * @param strategy - The strategy name, or an object with the strategy name and field
+     * @throws Exception - If the strategy is unknown or missing a required field
+     */
+    NativeConflictResolver(Object strategy) throws Exception {
+        if (strategy instanceof String) {
+            name = (String) strategy;
+            field = null;
+        } else if (strategy instanceof JSONObject) {
+            JSONObject json = (JSONObject) strategy;
+            name = json.optString(STRATEGY_NAME, null);
+            field = json.isNull(STRATEGY_FIELD) ? null : json.getString(STRATEGY_FIELD);
+        } else {
+            throw new Exception("Conflict resolution strategy must be a String or an Object");
+        }
+
+        if (DETERMINISTIC.equals(name)) {
+            ranking = DETERMINISTIC_RANKING;
+        } else if (LATEST.equals(name)) {
+            if (field == null) {
+                throw new Exception("Conflict resolution strategy 'latest' requires a field");
+            }
+            ranking = fieldRanking(field);
+        } else if (MERGE.equals(name)) {
+            ranking = field == null ? DETERMINISTIC_RANKING : fieldRanking(field);
+        } else {
+            throw new Exception("Unknown conflict resolution strategy: " + name + ". Expected one of '" +
+                DETERMINISTIC + "', '" + LATEST + "' or '" + MERGE + "'");
+        }
+    }
+
+    @Override
+    public DocumentRevision resolve(String docId, List<? extends DocumentRevision> conflicts) {
+        if (conflicts == null || conflicts.isEmpty()) {
+            return null;
+        }
+
+        List<DocumentRevision> ranked = new ArrayList<DocumentRevision>(conflicts);
+        Collections.sort(ranked, ranking);
+        DocumentRevision winner = ranked.get(ranked.size() - 1);
+
+        if (MERGE.equals(name) && !winner.isDeleted()) {
+            Map<String, Object> merged = new HashMap<String, Object>();
+            for (DocumentRevision rev : ranked) {
+                if (!rev.isDeleted() && rev.getBody() != null) {
+                    merged.putAll(rev.getBody().asMap());
+                }
+            }
+            winner.setBody(DocumentBodyFactory.create(merged));
+        }
+        return winner;
+    }
+
+    /**
+     * Resolves all conflicted documents in a Database. The conflicted IDs are split into batches
+     * of which at most concurrency are resolved at the same time, on threads shared by all
+     * resolutions.
+     * @param database - The Database to resolve
+     * @param batchSize - The number of documents resolved by each task
+     * @param concurrency - The maximum number of batches resolved at the same time
+     * @return - The JSON summary of the resolution
+     * @throws Exception - If the conflicted IDs cannot be read or the resolution is interrupted
+     */
+    JSONObject resolveAll(Database database, int batchSize, int concurrency) throws Exception {
+        return resolve(database, database.getConflictedIds(), batchSize, concurrency);
+    }
+
+    /**
+     * Resolves the conflicts of the given documents. Documents without conflicts are skipped.
+     * @param database - The Database to resolve
+     * @param ids - The IDs of the documents to resolve
+     * @param batchSize - The number of documents resolved by each task
+     * @param concurrency - The maximum number of batches resolved at the same time
+     * @return - The JSON summary of the resolution
+     * @throws Exception - If the resolution is interrupted
+     */
+    JSONObject resolve(Database database, Iterable<String> ids, int batchSize, int concurrency) throws
+        Exception {
+        if (batchSize < 1 || concurrency < 1) {
+            throw new Exception("batchSize and concurrency must be positive");
+        }
+
+        long started = System.currentTimeMillis();
+        List<List<String>> batches = new ArrayList<List<String>>();
+        List<String> batch = null;
+        for (String id : ids) {
+            if (batch == null || batch.size() == batchSize) {
+                batch = new ArrayList<String>(batchSize);
+                batches.add(batch);
+            }
+            batch.add(id);
+        }
+
+        List<BatchResult> results;
+        if (concurrency == 1 || batches.size() <= 1) {
+            results = new ArrayList<BatchResult>(batches.size());
+            for (List<String> batchIds : batches) {
+                results.add(resolveBatch(database, batchIds));
+            }
+        } else {
+            results = resolveConcurrently(database, batches, concurrency);
+        }
+
+        int conflicted = 0;
+        int resolved = 0;
+        JSONArray errors = new JSONArray();
+        int failed = 0;
+        for (BatchResult result : results) {
+            conflicted += result.conflicted;
+            resolved += result.resolved;
+            failed += result.errors.size();
+            for (JSONObject error : result.errors) {
+                if (errors.length() < MAX_REPORTED_ERRORS) {
+                    errors.put(error);
+                }
+            }
+        }
+
+        JSONObject summary = new JSONObject();
+        summary.put("strategy", name);
+        summary.put("conflicted", conflicted);
+        summary.put("resolved", resolved);
+        summary.put("failed", failed);
+        summary.put("errors", errors);
+        summary.put("batches", batches.size());
+        summary.put("duration", System.currentTimeMillis() - started);
+        return summary;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    private static class BatchResult {
+        int conflicted;
+        int resolved;
+        final List<JSONObject> errors = new ArrayList<JSONObject>();
+    }
+
+    // Submits the next batch as each one completes, so that no more than concurrency batches of
+    // this resolution are queued or running on the shared executor at a time
+    private List<BatchResult> resolveConcurrently(final Database database, List<List<String>> batches, int
+        concurrency) throws Exception {
+        CompletionService<BatchResult> completion = new ExecutorCompletionService<BatchResult>(EXECUTOR);
+        List<Future<BatchResult>> submitted = new ArrayList<Future<BatchResult>>(batches.size());
+        List<BatchResult> results = new ArrayList<BatchResult>(batches.size());
+        Iterator<List<String>> pending = batches.iterator();
+        try {
+            while (results.size() < batches.size()) {
+                while (pending.hasNext() && submitted.size() - results.size() < concurrency) {
+                    final List<String> batchIds = pending.next();
+                    submitted.add(completion.submit(new Callable<BatchResult>() {
+                        @Override
+                        public BatchResult call() {
+                            return resolveBatch(database, batchIds);
+                        }
+                    }));
+                }
+                results.add(completion.take().get());
+            }
+        } finally {
+            // Stops the batches still queued or running if the resolution was interrupted
+            for (Future<BatchResult> future : submitted) {
+                future.cancel(true);
+            }
+        }
+        return results;
+    }
+
+    private BatchResult resolveBatch(Database database, List<String> ids) {
+        BatchResult result = new BatchResult();
+        for (String id : ids) {
+            try {
+                CountingResolver counter = new CountingResolver();
+                database.resolveConflicts(id, counter);
+                if (counter.conflicted) {
+                    result.conflicted++;
+                    if (counter.resolved) {
+                        result.resolved++;
+                    }
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to resolve conflicts for: " + id, e);
+                try {
+                    JSONObject error = new JSONObject();
+                    error.put("id", id);
+                    error.put("error", String.valueOf(e.getMessage()));
+                    result.errors.add(error);
+                } catch (JSONException je) {
+                    Log.e(TAG, "Failed to report conflict resolution error for: " + id, je);
+                }
+            }
+        }
+        return result;
+    }
+
+    // The Database only calls the resolver for documents with more than one conflicting revision
+    private class CountingResolver implements ConflictResolver {
+        boolean conflicted;
+        boolean resolved;
+
+        @Override
+        public DocumentRevision resolve(String docId, List<? extends DocumentRevision> conflicts) {
+            conflicted = true;
+            DocumentRevision winner = NativeConflictResolver.this.resolve(docId, conflicts);
+            resolved = winner != null;
+            return winner;
+        }
+    }
+
+    /**
+     * @param rev - The document revision
+     * @return - The generation of the revision ID, or 0 if it cannot be parsed
+     */
+    private static int generation(DocumentRevision rev) {
+        String revId = rev.getRevision();
+        int dash = revId == null ? -1 : revId.indexOf('-');
+        if (dash < 1) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(revId.substring(0, dash));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    // Orders revisions from lowest to highest rank as CouchDB picks the winning revision
+    private static final Comparator<DocumentRevision> DETERMINISTIC_RANKING = new Comparator<DocumentRevision>() {
+        @Override
+        public int compare(DocumentRevision a, DocumentRevision b) {
+            if (a.isDeleted() != b.isDeleted()) {
+                return a.isDeleted() ? -1 : 1;
+            }
+            int generationA = generation(a);
+            int generationB = generation(b);
+            if (generationA != generationB) {
+                return generationA < generationB ? -1 : 1;
+            }
+            String revA = a.getRevision() == null ? "" : a.getRevision();
+            String revB = b.getRevision() == null ? "" : b.getRevision();
+            return revA.compareTo(revB);
+        }
+    };
+
+    // Orders revisions by a numeric or String timestamp field, then deterministically
+    private static Comparator<DocumentRevision> fieldRanking(final String field) {
+        return new Comparator<DocumentRevision>() {
+            @Override
+            public int compare(DocumentRevision a, DocumentRevision b) {
+                if (a.isDeleted() != b.isDeleted()) {
+                    return a.isDeleted() ? -1 : 1;
+                }
+                int c = compareValues(fieldValue(a, field), fieldValue(b, field));
+                return c != 0 ? c : DETERMINISTIC_RANKING.compare(a, b);
+            }
+        };
+    }
+
+    private static Object fieldValue(DocumentRevision rev, String field) {
+        return rev.isDeleted() || rev.getBody() == null ? null : rev.getBody().asMap().get(field);
+    }
+
+    // Missing values rank lowest; numbers rank below Strings
+    private static int compareValues(Object a, Object b) {
+        if (a == null || b == null) {
+            return a == null ? (b == null ? 0 : -1) : 1;
+        }
+        if (a instanceof Number && b instanceof Number) {
+            return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+        }
+        if (a instanceof String && b instanceof String) {
+            return ((String) a).compareTo((String) b);
+        }
+        if (a instanceof Number || b instanceof Number) {
+            return a instanceof Number ? -1 : 1;
+        }
+        return 0;
+    }
+}
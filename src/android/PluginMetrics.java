@@ -0,0 +1,455 @@
+/*
+ * Copyright (c) 2017 IBM Corp. All rights reserved.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.cordova;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.CordovaWebView;
+import org.apache.cordova.PluginResult;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * The PluginMetrics class records per action and per DocumentStore statistics for the plugin's
+ * actions: the time each call waits in the thread pool queue, executes and spends serializing
+ * results, the size of its arguments and results, and the number of errors. Times are recorded in
+ * histograms with power of two microsecond buckets and sizes in power of two byte buckets.
+ * <p>
+ * Metrics are disabled by default. When neither metrics nor tracing are enabled, calls are not
+ * wrapped and the only cost is a check of volatile flags in execute and when building JSON. The
+ * calls wrapped for metrics also report their stages to the PluginTracer when tracing is enabled.
+ */
+class PluginMetrics {
+    private static volatile boolean enabled;
+
+    private static final Map<String, Stats> actions = new ConcurrentHashMap<String, Stats>();
+    private static final Map<String, Stats> documentStores = new ConcurrentHashMap<String, Stats>();
+    private static final ThreadLocal<Call> current = new ThreadLocal<Call>();
+    private static volatile long since = System.currentTimeMillis();
+
+    private PluginMetrics() {
+    }
+
+    /**
+     * The state of a single call of an action. The Stats are null if metrics were disabled when
+     * the call began.
+     */
+    static class Call {
+        final String action;
+        final String documentStoreName;
+        final String callbackId;
+        final long enqueued = System.nanoTime();
+        final Stats actionStats;
+        final Stats documentStoreStats;
+
+        // Only written and read on the thread running the call
+        long serializationNanos;
+
+        Call(String action, String documentStoreName, String callbackId) {
+            boolean metrics = enabled;
+            this.action = action;
+            this.documentStoreName = documentStoreName;
+            this.callbackId = callbackId;
+            this.actionStats = metrics ? stats(actions, action) : null;
+            this.documentStoreStats = metrics && documentStoreName != null ?
+                stats(documentStores, documentStoreName) : null;
+        }
+
+        void called(int requestLength) {
+            if (actionStats != null) {
+                actionStats.called(requestLength);
+            }
+            if (documentStoreStats != null) {
+                documentStoreStats.called(requestLength);
+            }
+        }
+
+        void serialized(long serializationMicros) {
+            if (actionStats != null) {
+                actionStats.serialized(serializationMicros);
+            }
+            if (documentStoreStats != null) {
+                documentStoreStats.serialized(serializationMicros);
+            }
+        }
+
+        void responded(int length, boolean error) {
+            if (actionStats != null) {
+                actionStats.responded(length, error);
+            }
+            if (documentStoreStats != null) {
+                documentStoreStats.responded(length, error);
+            }
+        }
+
+        void ran(long queueMicros, long executionMicros, long serializationMicros) {
+            if (actionStats != null) {
+                actionStats.ran(queueMicros, executionMicros, serializationMicros);
+            }
+            if (documentStoreStats != null) {
+                documentStoreStats.ran(queueMicros, executionMicros, serializationMicros);
+            }
+        }
+    }
+
+    /**
+     * The statistics of an action or DocumentStore
+     */
+    static class Stats {
+        final Histogram queueWait = new Histogram();
+        final Histogram execution = new Histogram();
+        final Histogram serialization = new Histogram();
+        final Histogram requestBytes = new Histogram();
+        final Histogram responseBytes = new Histogram();
+        long calls;
+        long errors;
+
+        synchronized void called(int requestLength) {
+            calls++;
+            requestBytes.record(requestLength);
+        }
+
+        synchronized void serialized(long serializationMicros) {
+            serialization.record(serializationMicros);
+        }
+
+        synchronized void responded(int length, boolean error) {
+            responseBytes.record(length);
+            if (error) {
+                errors++;
+            }
+        }
+
+        synchronized void ran(long queueMicros, long executionMicros, long serializationMicros) {
+            queueWait.record(queueMicros);
+            execution.record(executionMicros);
+            serialization.record(serializationMicros);
+        }
+
+        synchronized JSONObject toJSON() throws JSONException {
+            JSONObject r = new JSONObject();
+            r.put("calls", calls);
+            r.put("errors", errors);
+            r.put("queueWaitMicros", queueWait.toJSON());
+            r.put("executionMicros", execution.toJSON());
+            r.put("serializationMicros", serialization.toJSON());
+            r.put("requestBytes", requestBytes.toJSON());
+            r.put("responseBytes", responseBytes.toJSON());
+            return r;
+        }
+    }
+
+    /**
+     * A histogram of non-negative values with power of two buckets. Bucket 0 counts the value 0
+     * and bucket i counts values from 2^(i-1) to 2^i - 1. Not thread safe; guarded by the owning
+     * Stats.
+     */
+    static class Histogram {
+        private static final int BUCKETS = 40;
+
+        private final long[] counts = new long[BUCKETS];
+        private long count;
+        private long sum;
+        private long min = Long.MAX_VALUE;
+        private long max;
+
+        void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+            counts[bucket]++;
+            count++;
+            sum += value;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+
+        // The upper bound of the bucket containing the given quantile, capped at the maximum
+        private long quantile(double q) {
+            long target = (long) Math.ceil(q * count);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= target && seen > 0) {
+                    return Math.min(max, i == 0 ? 0 : (1L << i) - 1);
+                }
+            }
+            return max;
+        }
+
+        JSONObject toJSON() throws JSONException {
+            JSONObject r = new JSONObject();
+            r.put("count", count);
+            r.put("sum", sum);
+            r.put("min", count == 0 ? 0 : min);
+            r.put("max", max);
+            r.put("mean", count == 0 ? 0 : sum / count);
+            r.put("p50", quantile(0.5));
+            r.put("p90", quantile(0.9));
+            r.put("p99", quantile(0.99));
+
+            // Trailing empty buckets are omitted
+            int last = BUCKETS - 1;
+            while (last >= 0 && counts[last] == 0) {
+                last--;
+            }
+            JSONArray buckets = new JSONArray();
+            for (int i = 0; i <= last; i++) {
+                buckets.put(counts[i]);
+            }
+            r.put("buckets", buckets);
+            return r;
+        }
+    }
+
+    /**
+     * A CallbackContext which records the serialization time, size and status of each result
+     * before passing it to the original CallbackContext
+     */
+    static class MetricsCallbackContext extends CallbackContext {
+        private final CallbackContext callbackContext;
+        private final Call call;
+
+        MetricsCallbackContext(CallbackContext callbackContext, CordovaWebView webView, Call call) {
+            super(callbackContext.getCallbackId(), webView);
+            this.callbackContext = callbackContext;
+            this.call = call;
+        }
+
+        @Override
+        public boolean isFinished() {
+            return callbackContext.isFinished();
+        }
+
+        @Override
+        public void success(JSONObject message) {
+            long started = System.nanoTime();
+            PluginResult result = new PluginResult(PluginResult.Status.OK, message);
+            serialized(started, "encodeResult");
+            sendPluginResult(result);
+        }
+
+        @Override
+        public void success(JSONArray message) {
+            long started = System.nanoTime();
+            PluginResult result = new PluginResult(PluginResult.Status.OK, message);
+            serialized(started, "encodeResult");
+            sendPluginResult(result);
+        }
+
+        @Override
+        public void sendPluginResult(PluginResult pluginResult) {
+            long started = System.nanoTime();
+            callbackContext.sendPluginResult(pluginResult);
+
+            String message = pluginResult.getMessage();
+            int length = message == null ? 0 : message.length();
+            boolean error = pluginResult.getStatus() != PluginResult.Status.OK.ordinal() &&
+                pluginResult.getStatus() != PluginResult.Status.NO_RESULT.ordinal();
+            serialized(started, "sendPluginResult", "bytes", String.valueOf(length), "error",
+                String.valueOf(error));
+            call.responded(length, error);
+        }
+
+        // Results sent while the call runs count towards its serialization time; results sent
+        // later, such as replication events, are recorded on their own
+        private void serialized(long started, String span, String... args) {
+            long ended = System.nanoTime();
+            long nanos = ended - started;
+            if (current.get() == call) {
+                call.serializationNanos += nanos;
+            } else {
+                call.serialized(nanos / 1000);
+            }
+            PluginTracer.record(span, PluginTracer.CATEGORY_BRIDGE, call.callbackId, started, ended, false, args);
+        }
+    }
+
+    /**
+     * @return - true if metrics are being recorded
+     */
+    static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return - true if calls should be wrapped, because metrics or tracing are enabled
+     */
+    static boolean isActive() {
+        return enabled || PluginTracer.isEnabled();
+    }
+
+    /**
+     * @return - The trace id of the call running on this thread, or null if there is none
+     */
+    static String traceId() {
+        Call call = current.get();
+        return call == null ? null : call.callbackId;
+    }
+
+    /**
+     * @param enable - true to start recording metrics, false to stop
+     */
+    static void setEnabled(boolean enable) {
+        enabled = enable;
+    }
+
+    /**
+     * Starts recording a call of an action. Must only be called when isActive.
+     * @param action - The action
+     * @param args - The arguments of the action; a String first argument is taken to be the name
+     *             of a DocumentStore
+     * @param callbackContext - The CallbackContext of the call
+     * @param webView - The plugin's CordovaWebView
+     * @return - The CallbackContext to pass to the action
+     */
+    static CallbackContext begin(String action, JSONArray args, CallbackContext callbackContext, CordovaWebView
+        webView) {
+        Object first = args.opt(0);
+        Call call = new Call(action, first instanceof String ? (String) first : null,
+            callbackContext.getCallbackId());
+
+        if (call.actionStats != null) {
+            call.called(args.toString().length());
+        }
+
+        current.set(call);
+        return new MetricsCallbackContext(callbackContext, webView, call);
+    }
+
+    /**
+     * Ends the part of a call which runs in execute
+     */
+    static void end() {
+        Call call = current.get();
+        current.remove();
+        if (call != null) {
+            PluginTracer.record(call.action, PluginTracer.CATEGORY_BRIDGE, call.callbackId, call.enqueued,
+                System.nanoTime(), false, "documentStore", String.valueOf(call.documentStoreName));
+        }
+    }
+
+    /**
+     * Returns an Executor which records the queue wait and execution time of the runnables of the
+     * call being started on this thread, if any
+     * @param executor - The Executor to wrap
+     * @return - The wrapping Executor, or the given Executor if no call is being recorded
+     */
+    static Executor wrap(final Executor executor) {
+        final Call call = isActive() ? current.get() : null;
+        if (call == null) {
+            return executor;
+        }
+
+        return new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        long started = System.nanoTime();
+                        call.serializationNanos = 0;
+                        current.set(call);
+                        try {
+                            command.run();
+                        } finally {
+                            current.remove();
+                            long ended = System.nanoTime();
+                            call.ran((started - call.enqueued) / 1000,
+                                (ended - started - call.serializationNanos) / 1000, call.serializationNanos / 1000);
+                            PluginTracer.record("queued", PluginTracer.CATEGORY_EXECUTOR, call.callbackId,
+                                call.enqueued, started, true, "action", call.action);
+                            PluginTracer.record(call.action, PluginTracer.CATEGORY_EXECUTOR, call.callbackId,
+                                started, ended, false, "documentStore", String.valueOf(call.documentStoreName));
+                        }
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * @return - The start time of a serialization step, or 0 if no call is being recorded
+     */
+    static long serializationStarted() {
+        return isActive() && current.get() != null ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Adds a serialization step to the call running on this thread
+     * @param started - The value returned by serializationStarted
+     */
+    static void serializationEnded(long started) {
+        if (started != 0) {
+            Call call = current.get();
+            if (call != null) {
+                long ended = System.nanoTime();
+                call.serializationNanos += ended - started;
+                PluginTracer.record("buildJSON", PluginTracer.CATEGORY_JSON, call.callbackId, started, ended, false);
+            }
+        }
+    }
+
+    /**
+     * @return - The JSON metrics for each action and DocumentStore
+     * @throws JSONException
+     */
+    static JSONObject toJSON() throws JSONException {
+        JSONObject r = new JSONObject();
+        r.put("enabled", enabled);
+        r.put("since", since);
+
+        JSONObject byAction = new JSONObject();
+        for (Map.Entry<String, Stats> entry : actions.entrySet()) {
+            byAction.put(entry.getKey(), entry.getValue().toJSON());
+        }
+        r.put("actions", byAction);
+
+        JSONObject byDocumentStore = new JSONObject();
+        for (Map.Entry<String, Stats> entry : documentStores.entrySet()) {
+            byDocumentStore.put(entry.getKey(), entry.getValue().toJSON());
+        }
+        r.put("documentStores", byDocumentStore);
+        return r;
+    }
+
+    /**
+     * Discards all recorded metrics
+     */
+    static void reset() {
+        actions.clear();
+        documentStores.clear();
+        since = System.currentTimeMillis();
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    private static Stats stats(Map<String, Stats> map, String key) {
+        Stats stats = map.get(key);
+        if (stats == null) {
+            stats = new Stats();
+            Stats existing = ((ConcurrentHashMap<String, Stats>) map).putIfAbsent(key, stats);
+            if (existing != null) {
+                stats = existing;
+            }
+        }
+        return stats;
+    }
+}
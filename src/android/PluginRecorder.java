@@ -0,0 +1,415 @@
+/*
+ * Copyright (c) 2017 IBM Corp. All rights reserved.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.cordova;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Iterator;
+
+/**
+ * The PluginRecorder class records the plugin actions called over the bridge so the same traffic
+ * can be replayed offline. Recording is disabled by default. When disabled, the only cost is a
+ * check of a volatile flag.
+ * <p>
+ * A recording is a text file with one JSON value per line. The first line is a header object with
+ * the format, version, payload mode and start time. Each following line is an array of the
+ * microseconds since the previous call (or since recording started), the action name and the
+ * action arguments.
+ * <p>
+ * Arguments are recorded in one of three payload modes:
+ * <ul>
+ * <li>full - verbatim</li>
+ * <li>size - document contents, document ids, query values, replication URIs and HTTP header
+ * values replaced by pseudonyms of the same length</li>
+ * <li>redact - as size, but with pseudonyms of at most 8 characters</li>
+ * </ul>
+ * Pseudonyms are derived from the values with a random key which is not recorded, so equal values
+ * map to equal pseudonyms within a recording but the values cannot be recovered. Field names,
+ * datastore names, index names, revision ids, numbers and booleans are kept.
+ */
+class PluginRecorder {
+    private static final String TAG = PluginRecorder.class.getCanonicalName();
+
+    static final String FORMAT = "cloudant-sync-recording";
+    static final int VERSION = 1;
+
+    static final String PAYLOADS_FULL = "full";
+    static final String PAYLOADS_SIZE = "size";
+    static final String PAYLOADS_REDACT = "redact";
+
+    private static final int REDACTED_LENGTH = 8;
+    private static final char[] ALPHABET = "abcdefghijklmnopqrstuvwxyz234567".toCharArray();
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static volatile boolean enabled;
+
+    // The recording, guarded by the PluginRecorder class
+    private static Writer writer;
+    private static File file;
+    private static String payloads;
+    private static byte[] key;
+    private static int maxCalls;
+    private static int calls;
+    private static long last;
+    private static boolean truncated;
+
+    private PluginRecorder() {
+    }
+
+    /**
+     * @return - true if calls are being recorded
+     */
+    static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Starts recording calls to a file, replacing its contents
+     * @param file - The file to write
+     * @param payloads - The payload mode: full, size or redact
+     * @param maxCalls - The number of calls after which recording stops, or 0 for no limit
+     * @throws Exception - If a recording is in progress, the options are invalid or the file
+     * cannot be written
+     */
+    static synchronized void start(File file, String payloads, int maxCalls) throws Exception {
+        if (writer != null) {
+            throw new Exception("Already recording to " + PluginRecorder.file.getAbsolutePath());
+        }
+        if (!PAYLOADS_FULL.equals(payloads) && !PAYLOADS_SIZE.equals(payloads) &&
+            !PAYLOADS_REDACT.equals(payloads)) {
+            throw new Exception("Recording payloads must be one of 'full', 'size' or 'redact'. Received: " +
+                payloads);
+        }
+        if (maxCalls < 0) {
+            throw new Exception("Recording maxCalls must not be negative. Received: " + maxCalls);
+        }
+
+        Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), UTF_8));
+        JSONObject header = new JSONObject();
+        header.put("format", FORMAT);
+        header.put("version", VERSION);
+        header.put("payloads", payloads);
+        header.put("started", System.currentTimeMillis());
+        w.write(header.toString());
+        w.write('\n');
+
+        PluginRecorder.writer = w;
+        PluginRecorder.file = file;
+        PluginRecorder.payloads = payloads;
+        PluginRecorder.key = new byte[32];
+        new SecureRandom().nextBytes(PluginRecorder.key);
+        PluginRecorder.maxCalls = maxCalls;
+        PluginRecorder.calls = 0;
+        PluginRecorder.last = System.nanoTime();
+        PluginRecorder.truncated = false;
+        enabled = true;
+    }
+
+    /**
+     * Stops recording and closes the file
+     * @return - The path of the file, the number of calls recorded and whether recording stopped
+     * early because maxCalls was reached or the file could not be written
+     * @throws Exception - If no recording was started
+     */
+    static synchronized JSONObject stop() throws Exception {
+        if (file == null) {
+            throw new Exception("Not recording");
+        }
+        enabled = false;
+        close();
+
+        JSONObject r = new JSONObject();
+        r.put("path", file.getAbsolutePath());
+        r.put("payloads", payloads);
+        r.put("calls", calls);
+        r.put("truncated", truncated);
+        file = null;
+        key = null;
+        return r;
+    }
+
+    /**
+     * Records a call
+     * @param action - The action called
+     * @param args - The arguments of the call
+     */
+    static void record(String action, JSONArray args) {
+        if (!enabled) {
+            return;
+        }
+
+        synchronized (PluginRecorder.class) {
+            if (writer == null) {
+                return;
+            }
+            long now = System.nanoTime();
+            try {
+                JSONArray line = new JSONArray();
+                line.put((now - last) / 1000);
+                line.put(action);
+                JSONArray recorded = decodeBinary(action, args);
+                if (!PAYLOADS_FULL.equals(payloads)) {
+                    recorded = redact(action, recorded == args ? new JSONArray(args.toString()) : recorded);
+                }
+                line.put(recorded);
+                writer.write(line.toString());
+                writer.write('\n');
+                last = now;
+                calls++;
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to record " + action + ", recording stopped", e);
+                truncated = true;
+                enabled = false;
+                close();
+                return;
+            }
+
+            if (maxCalls > 0 && calls >= maxCalls) {
+                truncated = true;
+                enabled = false;
+                close();
+            }
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Closes the file, keeping the recording details for stop
+     */
+    private static void close() {
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to close recording " + file.getAbsolutePath(), e);
+            truncated = true;
+        }
+        writer = null;
+    }
+
+    /**
+     * Replaces a binary document argument with its JSON equivalent, so it can be read and redacted.
+     * The plugin accepts either form when a call names an encoding, so replay is unaffected.
+     * @return - The arguments, or a copy with the document decoded
+     */
+    private static JSONArray decodeBinary(String action, JSONArray args) throws Exception {
+        if (!"createOrUpdateDocumentFromRevision".equals(action) || !(args.opt(1) instanceof String)) {
+            return args;
+        }
+        JSONArray copy = new JSONArray(args.toString());
+        copy.put(1, CborCodec.toJSON(CloudantSyncPlugin.decodeDocument(args.getString(1))));
+        return copy;
+    }
+
+    /**
+     * Replaces the payloads in the arguments of an action with pseudonyms
+     * @return - The arguments
+     */
+    private static JSONArray redact(String action, JSONArray args) throws JSONException {
+        if ("createOrUpdateDocumentFromRevision".equals(action) || "deleteDocumentFromRevision".equals(action)) {
+            redactDocument(args, 1);
+        } else if ("getDocument".equals(action) || "resolveConflictsForDocument".equals(action)) {
+            redactString(args, 1);
+        } else if ("getDocuments".equals(action)) {
+            JSONArray requests = args.optJSONArray(1);
+            for (int i = 0; requests != null && i < requests.length(); i++) {
+                JSONObject request = requests.optJSONObject(i);
+                if (request == null) {
+                    redactString(requests, i);
+                } else if (request.has("_id") && !request.isNull("_id")) {
+                    request.put("_id", pseudonym(request.getString("_id")));
+                }
+            }
+        } else if ("patchDocument".equals(action)) {
+            redactString(args, 1);
+            JSONArray ops = args.optJSONArray(3);
+            for (int i = 0; ops != null && i < ops.length(); i++) {
+                JSONObject op = ops.optJSONObject(i);
+                if (op != null && op.has("value")) {
+                    op.put("value", redactValues(op.get("value")));
+                }
+            }
+        } else if ("transaction".equals(action)) {
+            JSONArray ops = args.optJSONArray(1);
+            for (int i = 0; ops != null && i < ops.length(); i++) {
+                JSONObject op = ops.optJSONObject(i);
+                if (op != null) {
+                    // Redacts the document in place
+                    redactDocument(new JSONArray().put(op.opt("document")), 0);
+                }
+            }
+        } else if ("returnResolvedDocument".equals(action)) {
+            redactDocument(args, 0);
+        } else if ("returnResolvedDocuments".equals(action)) {
+            JSONArray documents = args.optJSONArray(2);
+            for (int i = 0; documents != null && i < documents.length(); i++) {
+                redactDocument(documents, i);
+            }
+        } else if ("find".equals(action)) {
+            JSONObject query = args.optJSONObject(1);
+            if (query != null && query.has("selector")) {
+                query.put("selector", redactValues(query.get("selector")));
+            }
+        } else if ("createReplicator".equals(action) || "scheduleReplication".equals(action)) {
+            JSONObject replicator = args.optJSONObject(0);
+            if (replicator != null && replicator.has("uri") && !replicator.isNull("uri")) {
+                replicator.put("uri", pseudonym(replicator.getString("uri")));
+            }
+        } else if ("unlockInterceptor".equals(action)) {
+            JSONObject context = args.optJSONObject(2);
+            if (context != null) {
+                redactHttp(context.optJSONObject("request"));
+                redactHttp(context.optJSONObject("response"));
+            }
+        }
+        return args;
+    }
+
+    private static void redactDocument(JSONArray args, int index) throws JSONException {
+        JSONObject doc = args.optJSONObject(index);
+        if (doc == null) {
+            return;
+        }
+        Iterator<String> keys = doc.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            if ("_rev".equals(key) || "_deleted".equals(key)) {
+                continue;
+            }
+            if ("_attachments".equals(key)) {
+                JSONObject attachments = doc.optJSONObject(key);
+                Iterator<String> names = attachments == null ? null : attachments.keys();
+                while (names != null && names.hasNext()) {
+                    JSONObject attachment = attachments.optJSONObject(names.next());
+                    if (attachment != null && attachment.has("data")) {
+                        attachment.put("data", pseudonymBase64(attachment.getString("data")));
+                    }
+                }
+                continue;
+            }
+            doc.put(key, redactValues(doc.get(key)));
+        }
+    }
+
+    private static void redactString(JSONArray args, int index) throws JSONException {
+        if (index < args.length() && args.get(index) instanceof String) {
+            args.put(index, pseudonym(args.getString(index)));
+        }
+    }
+
+    private static void redactHttp(JSONObject message) throws JSONException {
+        if (message == null) {
+            return;
+        }
+        if (message.has("url") && !message.isNull("url")) {
+            message.put("url", pseudonym(message.getString("url")));
+        }
+        JSONObject headers = message.optJSONObject("headers");
+        Iterator<String> names = headers == null ? null : headers.keys();
+        while (names != null && names.hasNext()) {
+            String name = names.next();
+            headers.put(name, redactValues(headers.get(name)));
+        }
+    }
+
+    /**
+     * @return - The value with every string in it replaced by a pseudonym. Object keys and the
+     * operands of $type are kept.
+     */
+    private static Object redactValues(Object value) throws JSONException {
+        if (value instanceof String) {
+            return pseudonym((String) value);
+        } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            for (int i = 0; i < array.length(); i++) {
+                array.put(i, redactValues(array.get(i)));
+            }
+        } else if (value instanceof JSONObject) {
+            JSONObject object = (JSONObject) value;
+            Iterator<String> keys = object.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                if (!"$type".equals(key)) {
+                    object.put(key, redactValues(object.get(key)));
+                }
+            }
+        }
+        return value;
+    }
+
+    /**
+     * @return - A pseudonym of base64 data which is itself valid base64
+     */
+    private static String pseudonymBase64(String data) {
+        int padding = 0;
+        while (padding < data.length() && data.charAt(data.length() - 1 - padding) == '=') {
+            padding++;
+        }
+        String body = pseudonym(data.substring(0, data.length() - padding));
+        if (PAYLOADS_REDACT.equals(payloads)) {
+            return body.substring(0, body.length() - body.length() % 4);
+        }
+        StringBuilder sb = new StringBuilder(body);
+        for (int i = 0; i < padding; i++) {
+            sb.append('=');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return - The pseudonym of a string, of the same length in size mode or at most 8 characters
+     * in redact mode
+     */
+    private static String pseudonym(String value) {
+        if (value.isEmpty()) {
+            return value;
+        }
+        int length = PAYLOADS_REDACT.equals(payloads) ? Math.min(value.length(), REDACTED_LENGTH) :
+            value.length();
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            StringBuilder sb = new StringBuilder(length);
+            byte[] input = value.getBytes(UTF_8);
+            for (int block = 0; sb.length() < length; block++) {
+                digest.update(key);
+                digest.update((byte) block);
+                byte[] hash = digest.digest(input);
+                for (int i = 0; i < hash.length && sb.length() < length; i++) {
+                    sb.append(ALPHABET[hash[i] & 0x1f]);
+                }
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright (c) 2017 IBM Corp. All rights reserved.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.cordova;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The PluginTracer class records timestamped spans of the stages of individual plugin calls:
+ * the bridge call, the wait in the thread pool queue, the run on a pool thread, database calls,
+ * JSON building, sending results and waits for JavaScript HTTP interceptors. The spans of a call
+ * share a trace id, which is the Cordova callback id of the call.
+ * <p>
+ * Spans are kept in a bounded ring buffer, overwriting the oldest spans when full, and are
+ * exported in the Chrome trace event format so they can be loaded into chrome://tracing or
+ * Perfetto. Tracing is disabled by default. When disabled, the only cost is a check of a volatile
+ * flag.
+ */
+class PluginTracer {
+    static final int DEFAULT_CAPACITY = 10000;
+
+    static final String CATEGORY_BRIDGE = "bridge";
+    static final String CATEGORY_EXECUTOR = "executor";
+    static final String CATEGORY_DATABASE = "database";
+    static final String CATEGORY_JSON = "json";
+    static final String CATEGORY_INTERCEPTOR = "interceptor";
+
+    private static volatile boolean enabled;
+
+    // The ring buffer, guarded by the PluginTracer class
+    private static Span[] spans = new Span[DEFAULT_CAPACITY];
+    private static int next;
+    private static int size;
+    private static long overwritten;
+
+    // Timestamps are exported relative to this time
+    private static final long origin = System.nanoTime();
+
+    private PluginTracer() {
+    }
+
+    /**
+     * A completed span. Async spans, such as the queue wait of a call, are not bound to the thread
+     * which recorded them.
+     */
+    private static class Span {
+        final String name;
+        final String category;
+        final String traceId;
+        final long threadId;
+        final String threadName;
+        final long startNanos;
+        final long endNanos;
+        final boolean async;
+        final String[] args;
+
+        Span(String name, String category, String traceId, long startNanos, long endNanos, boolean async,
+             String[] args) {
+            Thread thread = Thread.currentThread();
+            this.name = name;
+            this.category = category;
+            this.traceId = traceId;
+            this.threadId = thread.getId();
+            this.threadName = thread.getName();
+            this.startNanos = startNanos;
+            this.endNanos = endNanos;
+            this.async = async;
+            this.args = args;
+        }
+    }
+
+    /**
+     * @return - true if spans are being recorded
+     */
+    static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Starts or stops recording spans. Changing the capacity discards the recorded spans.
+     * @param enable - true to start recording spans, false to stop
+     * @param capacity - The maximum number of spans kept
+     * @throws Exception - If the capacity is not positive
+     */
+    static void setEnabled(boolean enable, int capacity) throws Exception {
+        if (capacity < 1) {
+            throw new Exception("Trace capacity must be positive. Received: " + capacity);
+        }
+        synchronized (PluginTracer.class) {
+            if (capacity != spans.length) {
+                spans = new Span[capacity];
+                next = 0;
+                size = 0;
+                overwritten = 0;
+            }
+        }
+        enabled = enable;
+    }
+
+    /**
+     * @return - The start time of a span, or 0 if tracing is disabled
+     */
+    static long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records a span of the call running on this thread from the given start time until now
+     * @param started - The value returned by start
+     * @param category - The category of the span
+     * @param name - The name of the span
+     */
+    static void end(long started, String category, String name) {
+        if (started != 0) {
+            record(name, category, PluginMetrics.traceId(), started, System.nanoTime(), false);
+        }
+    }
+
+    /**
+     * Records a span
+     * @param name - The name of the span
+     * @param category - The category of the span
+     * @param traceId - The trace id of the call the span belongs to, or null
+     * @param startNanos - The System.nanoTime at which the span started
+     * @param endNanos - The System.nanoTime at which the span ended
+     * @param async - true if the span is not bound to the current thread
+     * @param args - Alternating names and values of arguments to attach to the span
+     */
+    static void record(String name, String category, String traceId, long startNanos, long endNanos,
+                       boolean async, String... args) {
+        if (!enabled) {
+            return;
+        }
+
+        Span span = new Span(name, category, traceId, startNanos, endNanos, async, args);
+        synchronized (PluginTracer.class) {
+            if (size == spans.length) {
+                overwritten++;
+            } else {
+                size++;
+            }
+            spans[next] = span;
+            next = (next + 1) % spans.length;
+        }
+    }
+
+    /**
+     * @return - The number of spans kept
+     */
+    static synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return - The maximum number of spans kept
+     */
+    static synchronized int capacity() {
+        return spans.length;
+    }
+
+    /**
+     * Discards the recorded spans
+     */
+    static synchronized void clear() {
+        for (int i = 0; i < spans.length; i++) {
+            spans[i] = null;
+        }
+        next = 0;
+        size = 0;
+        overwritten = 0;
+    }
+
+    /**
+     * @return - The recorded spans in the Chrome trace event format, oldest first
+     * @throws JSONException
+     */
+    static JSONObject toJSON() throws JSONException {
+        Span[] snapshot;
+        long dropped;
+        int capacity;
+        synchronized (PluginTracer.class) {
+            snapshot = new Span[size];
+            capacity = spans.length;
+            int first = (next - size + capacity) % capacity;
+            for (int i = 0; i < size; i++) {
+                snapshot[i] = spans[(first + i) % capacity];
+            }
+            dropped = overwritten;
+        }
+
+        int pid = android.os.Process.myPid();
+        JSONArray events = new JSONArray();
+        Map<Long, String> threads = new HashMap<Long, String>();
+        for (Span span : snapshot) {
+            threads.put(span.threadId, span.threadName);
+            if (span.async) {
+                // Async spans are exported as a begin and end pair grouped by trace id
+                JSONObject begin = event(span, pid, "b", span.startNanos);
+                begin.put("id", String.valueOf(span.traceId));
+                events.put(begin);
+                JSONObject end = event(span, pid, "e", span.endNanos);
+                end.put("id", String.valueOf(span.traceId));
+                events.put(end);
+            } else {
+                JSONObject complete = event(span, pid, "X", span.startNanos);
+                complete.put("dur", micros(span.endNanos - span.startNanos));
+                events.put(complete);
+            }
+        }
+        for (Map.Entry<Long, String> thread : threads.entrySet()) {
+            JSONObject metadata = new JSONObject();
+            metadata.put("name", "thread_name");
+            metadata.put("ph", "M");
+            metadata.put("pid", pid);
+            metadata.put("tid", thread.getKey());
+            metadata.put("args", new JSONObject().put("name", thread.getValue()));
+            events.put(metadata);
+        }
+
+        JSONObject r = new JSONObject();
+        r.put("traceEvents", events);
+        r.put("displayTimeUnit", "ms");
+        r.put("otherData", new JSONObject()
+            .put("enabled", enabled)
+            .put("capacity", capacity)
+            .put("spans", snapshot.length)
+            .put("overwritten", dropped));
+        return r;
+    }
+
+    /**
+     * Writes the recorded spans in the Chrome trace event format to a file
+     * @param file - The file to write
+     * @throws JSONException
+     * @throws IOException
+     */
+    static void dump(File file) throws JSONException, IOException {
+        JSONObject trace = toJSON();
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(trace.toString());
+        } finally {
+            writer.close();
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    private static JSONObject event(Span span, int pid, String phase, long nanos) throws JSONException {
+        JSONObject event = new JSONObject();
+        event.put("name", span.name);
+        event.put("cat", span.category);
+        event.put("ph", phase);
+        event.put("ts", micros(nanos - origin));
+        event.put("pid", pid);
+        event.put("tid", span.threadId);
+
+        JSONObject args = new JSONObject();
+        if (span.traceId != null) {
+            args.put("traceId", span.traceId);
+        }
+        for (int i = 0; i + 1 < span.args.length; i += 2) {
+            args.put(span.args[i], span.args[i + 1]);
+        }
+        event.put("args", args);
+        return event;
+    }
+
+    private static double micros(long nanos) {
+        return nanos / 1000.0;
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2017 IBM Corp. All rights reserved.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.cordova;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The ReadCoalescer class shares one execution between identical reads in flight at the same time.
+ * The first call of a read leads a flight and runs it; identical calls arriving before it completes
+ * join the flight and receive the same PluginResult, so the database read and the serialization of
+ * the result happen once.
+ * <p>
+ * A read must not return data older than a write whose result JavaScript has already seen, so
+ * writes to a DocumentStore detach its flights: calls arriving after the write lead new flights,
+ * while the detached flights still complete for the calls which joined them before the write.
+ */
+class ReadCoalescer {
+
+    private final Map<String, Flight> flights = new HashMap<String, Flight>();
+
+    // Counts since the last reset, by action
+    private final Map<String, long[]> counts = new HashMap<String, long[]>();
+    private static final int EXECUTED = 0;
+    private static final int COALESCED = 1;
+
+    /**
+     * An execution of a read shared by the calls waiting for its result
+     */
+    class Flight {
+        private final String key;
+        private final String documentStoreName;
+        private final List<CallbackContext> waiting = new ArrayList<CallbackContext>();
+
+        Flight(String key, String documentStoreName, CallbackContext leader) {
+            this.key = key;
+            this.documentStoreName = documentStoreName;
+            waiting.add(leader);
+        }
+
+        /**
+         * Sends the result of the read to every call in the flight
+         * @param result - The result of the read
+         */
+        void complete(PluginResult result) {
+            List<CallbackContext> callbacks;
+            synchronized (ReadCoalescer.this) {
+                if (flights.get(key) == this) {
+                    flights.remove(key);
+                }
+                callbacks = new ArrayList<CallbackContext>(waiting);
+                waiting.clear();
+            }
+            for (CallbackContext callbackContext : callbacks) {
+                callbackContext.sendPluginResult(result);
+            }
+        }
+    }
+
+    /**
+     * Joins the flight of an identical read, or leads a new one
+     * @param action - The read action
+     * @param documentStoreName - The name of the DocumentStore read
+     * @param request - The arguments identifying the read within the action and DocumentStore,
+     *                including the result encoding
+     * @param callbackContext - The callback of the call
+     * @return - The new flight to run and complete, or null if the call joined a flight in progress
+     */
+    synchronized Flight lead(String action, String documentStoreName, String request,
+                             CallbackContext callbackContext) {
+        String key = action + '\u0000' + documentStoreName + '\u0000' + request;
+        long[] actionCounts = counts.get(action);
+        if (actionCounts == null) {
+            actionCounts = new long[2];
+            counts.put(action, actionCounts);
+        }
+
+        Flight flight = flights.get(key);
+        if (flight != null) {
+            flight.waiting.add(callbackContext);
+            actionCounts[COALESCED]++;
+            return null;
+        }
+
+        flight = new Flight(key, documentStoreName, callbackContext);
+        flights.put(key, flight);
+        actionCounts[EXECUTED]++;
+        return flight;
+    }
+
+    /**
+     * Detaches the flights reading a DocumentStore, so that later reads see a write to it
+     * @param documentStoreName - The name of the DocumentStore written
+     */
+    synchronized void documentStoreModified(String documentStoreName) {
+        Iterator<Flight> i = flights.values().iterator();
+        while (i.hasNext()) {
+            Flight flight = i.next();
+            if (documentStoreName == null ? flight.documentStoreName == null :
+                documentStoreName.equals(flight.documentStoreName)) {
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * @return - The JSON counts of executed and coalesced calls by action, and the flights in
+     * progress
+     * @throws JSONException
+     */
+    synchronized JSONObject metrics() throws JSONException {
+        JSONObject byAction = new JSONObject();
+        long executed = 0;
+        long coalesced = 0;
+        for (Map.Entry<String, long[]> entry : counts.entrySet()) {
+            long[] c = entry.getValue();
+            byAction.put(entry.getKey(), new JSONObject()
+                .put("executed", c[EXECUTED])
+                .put("coalesced", c[COALESCED]));
+            executed += c[EXECUTED];
+            coalesced += c[COALESCED];
+        }
+
+        JSONObject r = new JSONObject();
+        r.put("executed", executed);
+        r.put("coalesced", coalesced);
+        r.put("inFlight", flights.size());
+        r.put("actions", byAction);
+        return r;
+    }
+
+    /**
+     * Resets the counts
+     */
+    synchronized void resetMetrics() {
+        counts.clear();
+    }
+}
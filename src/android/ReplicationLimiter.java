@@ -0,0 +1,443 @@
+/*
+ * Copyright (c) 2017 IBM Corp. All rights reserved.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.cordova;
+
+import android.util.Log;
+
+import com.cloudant.sync.event.Subscribe;
+import com.cloudant.sync.event.notifications.ReplicationCompleted;
+import com.cloudant.sync.event.notifications.ReplicationErrored;
+import com.cloudant.sync.replication.Replicator;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * The ReplicationLimiter class limits the number of Replicators running at the same time across
+ * all DocumentStores. Start requests beyond the limit are queued, highest priority first and in
+ * request order for equal priorities, and started as running replications complete or error.
+ * By default the number of concurrent replications is not limited.
+ * <p>
+ * Replications below a priority can be paused, for example while memory is low: running
+ * replications are stopped, queued replications leave the queue, and new starts are deferred until
+ * the limiter is resumed, when they are all started again. The events of a stopped replication
+ * are identified with isPauseEvent so that they are not reported as completions.
+ */
+class ReplicationLimiter {
+    private static final String TAG = ReplicationLimiter.class.getCanonicalName();
+
+    static final int UNLIMITED = 0;
+    static final int NOT_PAUSED = Integer.MIN_VALUE;
+
+    private final Map<Integer, Entry> entries = new HashMap<Integer, Entry>();
+    private final Set<Integer> running = new HashSet<Integer>();
+    private final PriorityQueue<Entry> queue = new PriorityQueue<Entry>(11, new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            if (a.priority != b.priority) {
+                return a.priority > b.priority ? -1 : 1;
+            }
+            return a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+        }
+    });
+
+    private final Set<Integer> paused = new HashSet<Integer>();
+    // Replicators stopped by pause whose stop has not been reported yet, and the event which
+    // reported the last such stop of each Replicator
+    private final Set<Integer> stoppedByPause = new HashSet<Integer>();
+    private final Map<Integer, Object> pauseEvents = new HashMap<Integer, Object>();
+    // Replicators resumed while still stopping, started again when they finish
+    private final Set<Integer> restartWhenFinished = new HashSet<Integer>();
+    private int maxConcurrent = UNLIMITED;
+    private int pausedBelow = NOT_PAUSED;
+    private long sequence;
+
+    // Queue metrics since the last reset
+    private long started;
+    private long queued;
+    private long cancelled;
+    private long totalWait;
+    private long maxWait;
+
+    /**
+     * A Replicator known to the limiter and its queueing state
+     */
+    private class Entry {
+        final Integer token;
+        final Replicator replicator;
+        final int priority;
+        final SlotListener listener;
+
+        long sequence;
+        long enqueuedAt;
+        long lastWait;
+
+        Entry(Integer token, Replicator replicator, int priority) {
+            this.token = token;
+            this.replicator = replicator;
+            this.priority = priority;
+            this.listener = new SlotListener(token);
+        }
+    }
+
+    /**
+     * Frees the slot of a running Replicator when its replication completes or errors
+     */
+    public class SlotListener {
+        private final Integer token;
+
+        SlotListener(Integer token) {
+            this.token = token;
+        }
+
+        @Subscribe
+        public void complete(ReplicationCompleted event) {
+            isPauseEvent(token, event);
+            finished(token);
+        }
+
+        @Subscribe
+        public void error(ReplicationErrored error) {
+            isPauseEvent(token, error);
+            finished(token);
+        }
+    }
+
+    /**
+     * Adds a Replicator to the limiter
+     * @param token - The unique token id of the Replicator
+     * @param replicator - The Replicator
+     * @param priority - The queue priority of the Replicator; higher priorities start first
+     */
+    void add(Integer token, Replicator replicator, int priority) {
+        Entry entry = new Entry(token, replicator, priority);
+        replicator.getEventBus().register(entry.listener);
+        synchronized (this) {
+            entries.put(token, entry);
+        }
+    }
+
+    /**
+     * Removes a Replicator from the limiter, dropping it from the queue and freeing its slot
+     * @param token - The unique token id of the Replicator
+     */
+    void remove(Integer token) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.remove(token);
+            if (entry == null) {
+                return;
+            }
+            if (queue.remove(entry)) {
+                cancelled++;
+            }
+            paused.remove(token);
+            restartWhenFinished.remove(token);
+            stoppedByPause.remove(token);
+            pauseEvents.remove(token);
+            running.remove(token);
+        }
+        entry.replicator.getEventBus().unregister(entry.listener);
+        drain();
+    }
+
+    /**
+     * Starts a Replicator if fewer than the maximum number of replications are running, otherwise
+     * queues it. Replicators below the paused priority are deferred until resume. Requests for a
+     * Replicator that is already running, queued or deferred are ignored.
+     * @param token - The unique token id of the Replicator
+     * @return - true if the Replicator was started, false if it was queued, deferred or is already
+     * running
+     * @throws Exception - If the Replicator was not added to the limiter
+     */
+    boolean start(Integer token) throws Exception {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(token);
+            if (entry == null) {
+                throw new Exception("Replicator with token " + token + " does not exist.");
+            }
+            if (running.contains(token) || queue.contains(entry) || paused.contains(token)) {
+                return false;
+            }
+            if (entry.priority < pausedBelow) {
+                paused.add(token);
+                return false;
+            }
+
+            entry.enqueuedAt = System.currentTimeMillis();
+            entry.sequence = sequence++;
+            if (maxConcurrent != UNLIMITED && running.size() >= maxConcurrent) {
+                queue.add(entry);
+                queued++;
+                return false;
+            }
+            begin(entry);
+        }
+        startReplicator(entry);
+        return true;
+    }
+
+    /**
+     * Removes a Replicator from the queue, or from the deferred starts, without starting it
+     * @param token - The unique token id of the Replicator
+     * @return - true if the Replicator was queued or deferred
+     */
+    synchronized boolean cancel(Integer token) {
+        Entry entry = entries.get(token);
+        if (entry != null && (queue.remove(entry) || paused.remove(token))) {
+            cancelled++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Pauses the replications with a priority below the given priority. Running replications are
+     * stopped and queued replications are taken off the queue; they and any later starts below the
+     * priority are deferred until resume is called.
+     * @param belowPriority - The lowest priority which is not paused
+     * @return - The number of running or queued replications paused
+     */
+    int pause(int belowPriority) {
+        List<Entry> toStop = new ArrayList<Entry>();
+        int count = 0;
+        synchronized (this) {
+            pausedBelow = belowPriority;
+            for (Entry entry : new ArrayList<Entry>(queue)) {
+                if (entry.priority < belowPriority) {
+                    queue.remove(entry);
+                    paused.add(entry.token);
+                    count++;
+                }
+            }
+            for (Integer token : running) {
+                Entry entry = entries.get(token);
+                if (entry != null && entry.priority < belowPriority && paused.add(token)) {
+                    stoppedByPause.add(token);
+                    toStop.add(entry);
+                    count++;
+                }
+            }
+        }
+        // The slots are freed by the completion events of the stopped replications
+        for (Entry entry : toStop) {
+            entry.replicator.stop();
+        }
+        return count;
+    }
+
+    /**
+     * Tells whether a replication event reports a Replicator being stopped by pause rather than
+     * completing or failing. All the listeners of a Replicator receive the same event object, so
+     * the stop is attributed to the first event after the pause whichever listener is called
+     * first, and the other listeners are answered by comparing the event.
+     * @param token - The unique token id of the Replicator
+     * @param event - The ReplicationCompleted or ReplicationErrored event
+     * @return - true if the event reports a stop by pause
+     */
+    synchronized boolean isPauseEvent(Integer token, Object event) {
+        if (stoppedByPause.remove(token)) {
+            pauseEvents.put(token, event);
+            return true;
+        }
+        return pauseEvents.get(token) == event;
+    }
+
+    /**
+     * Ends a pause, starting the paused and deferred replications again
+     * @return - The number of replications started, queued or to be started once stopped
+     */
+    int resume() {
+        List<Integer> toStart;
+        int count;
+        synchronized (this) {
+            pausedBelow = NOT_PAUSED;
+            toStart = new ArrayList<Integer>();
+            for (Integer token : paused) {
+                if (running.contains(token)) {
+                    restartWhenFinished.add(token);
+                } else {
+                    toStart.add(token);
+                }
+            }
+            paused.clear();
+            count = restartWhenFinished.size();
+        }
+        for (Integer token : toStart) {
+            try {
+                start(token);
+                count++;
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to resume replicator with token " + token, e);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @param token - The unique token id of the Replicator
+     * @return - The 1-based position of the Replicator in the queue, or 0 if it is not queued
+     */
+    synchronized int queuePosition(Integer token) {
+        Entry entry = entries.get(token);
+        if (entry == null || !queue.contains(entry)) {
+            return 0;
+        }
+
+        int position = 1;
+        for (Entry other : queue) {
+            if (queue.comparator().compare(other, entry) < 0) {
+                position++;
+            }
+        }
+        return position;
+    }
+
+    /**
+     * @param maxConcurrent - The maximum number of concurrent replications, or UNLIMITED
+     * @throws Exception - If the maximum is negative
+     */
+    void setMaxConcurrent(int maxConcurrent) throws Exception {
+        if (maxConcurrent < 0) {
+            throw new Exception("Maximum concurrent replications must not be negative. Received: " +
+                maxConcurrent);
+        }
+        synchronized (this) {
+            this.maxConcurrent = maxConcurrent;
+        }
+        drain();
+    }
+
+    /**
+     * @param token - The unique token id of the Replicator
+     * @return - The JSON queueing state of the Replicator, or null if it was not added
+     * @throws JSONException
+     */
+    synchronized JSONObject describe(Integer token) throws JSONException {
+        Entry entry = entries.get(token);
+        if (entry == null) {
+            return null;
+        }
+
+        boolean isQueued = queue.contains(entry);
+        JSONObject r = new JSONObject();
+        r.put("priority", entry.priority);
+        r.put("queued", isQueued);
+        r.put("paused", paused.contains(token));
+        r.put("queuePosition", queuePosition(token));
+        r.put("waitTime", isQueued ? System.currentTimeMillis() - entry.enqueuedAt : entry.lastWait);
+        return r;
+    }
+
+    /**
+     * @return - The JSON limiter settings and queue metrics
+     * @throws JSONException
+     */
+    synchronized JSONObject metrics() throws JSONException {
+        long now = System.currentTimeMillis();
+        long oldestWait = 0;
+        for (Entry entry : queue) {
+            oldestWait = Math.max(oldestWait, now - entry.enqueuedAt);
+        }
+
+        JSONObject r = new JSONObject();
+        r.put("maxConcurrent", maxConcurrent);
+        r.put("running", running.size());
+        r.put("queued", queue.size());
+        r.put("paused", paused.size());
+        r.put("started", started);
+        r.put("startsQueued", queued);
+        r.put("cancelled", cancelled);
+        r.put("totalWaitTime", totalWait);
+        r.put("maxWaitTime", maxWait);
+        r.put("averageWaitTime", started == 0 ? 0 : totalWait / started);
+        r.put("oldestQueuedWaitTime", oldestWait);
+        return r;
+    }
+
+    /**
+     * Resets the queue metrics
+     */
+    synchronized void resetMetrics() {
+        started = 0;
+        queued = 0;
+        cancelled = 0;
+        totalWait = 0;
+        maxWait = 0;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    // Must be called while holding the limiter lock
+    private void begin(Entry entry) {
+        entry.lastWait = System.currentTimeMillis() - entry.enqueuedAt;
+        totalWait += entry.lastWait;
+        maxWait = Math.max(maxWait, entry.lastWait);
+        started++;
+        // Clears a stop by pause that was never reported, as when the Replicator finished first
+        stoppedByPause.remove(entry.token);
+        running.add(entry.token);
+    }
+
+    // Replicator.start is called outside the limiter lock as it may post events synchronously
+    private void startReplicator(Entry entry) {
+        try {
+            entry.replicator.start();
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to start replicator with token " + entry.token, e);
+            finished(entry.token);
+        }
+    }
+
+    private void finished(Integer token) {
+        boolean restart;
+        synchronized (this) {
+            running.remove(token);
+            restart = restartWhenFinished.remove(token);
+        }
+        drain();
+        if (restart) {
+            try {
+                start(token);
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to resume replicator with token " + token, e);
+            }
+        }
+    }
+
+    private void drain() {
+        List<Entry> toStart = new ArrayList<Entry>();
+        synchronized (this) {
+            while (!queue.isEmpty() && (maxConcurrent == UNLIMITED || running.size() < maxConcurrent)) {
+                Entry entry = queue.poll();
+                begin(entry);
+                toStart.add(entry);
+            }
+        }
+        for (Entry entry : toStart) {
+            startReplicator(entry);
+        }
+    }
+}
@@ -0,0 +1,469 @@
+/*
+ * Copyright (c) 2017 IBM Corp. All rights reserved.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.cordova;
+
+import android.util.Log;
+
+import com.cloudant.sync.event.Subscribe;
+import com.cloudant.sync.event.notifications.ReplicationCompleted;
+import com.cloudant.sync.event.notifications.ReplicationErrored;
+import com.cloudant.sync.replication.Replicator;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The ReplicationScheduler class runs Replicators natively, independently of the JavaScript
+ * layer. Each scheduled Replicator is keyed by its token and can be run on a fixed interval,
+ * retried with exponential backoff after an error, and triggered by local writes to its
+ * DocumentStore. A Replicator is never started while a previous run of it is still in progress;
+ * triggers that arrive during a run are coalesced into a single follow-up run. Write triggers are
+ * debounced: each write puts the run off until writes have stopped for the debounce period, but
+ * never for longer than the maximum delay after the first write.
+ */
+class ReplicationScheduler {
+    private static final String TAG = ReplicationScheduler.class.getCanonicalName();
+
+    static final String INTERVAL_KEY = "interval";
+    static final String INITIAL_BACKOFF_KEY = "initialBackoff";
+    static final String MAX_BACKOFF_KEY = "maxBackoff";
+    static final String JITTER_KEY = "jitter";
+    static final String TRIGGER_ON_WRITE_KEY = "triggerOnWrite";
+    static final String DEBOUNCE_KEY = "debounce";
+    static final String MAX_DELAY_KEY = "maxDelay";
+
+    private static final long DEFAULT_INITIAL_BACKOFF = 5000;
+    private static final long DEFAULT_MAX_BACKOFF = 10 * 60 * 1000;
+    private static final double DEFAULT_JITTER = 0.2;
+    private static final long DEFAULT_DEBOUNCE = 2000;
+    private static final long DEFAULT_MAX_DELAY = 60000;
+
+    private final Map<Integer, Schedule> schedules = new HashMap<Integer, Schedule>();
+    // Listeners are registered and unregistered while holding the registration lock rather than the scheduler
+    // lock, as the EventBus may deliver events to a listener that is waiting for the scheduler lock
+    private final Object registration = new Object();
+    private final Map<Integer, ScheduleListener> listeners = new HashMap<Integer, ScheduleListener>();
+    private final Random random = new Random();
+    private final ReplicationLimiter limiter;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "CloudantSync-ReplicationScheduler");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        }
+    });
+
+    /**
+     * @param limiter - The ReplicationLimiter through which scheduled runs are started
+     */
+    ReplicationScheduler(ReplicationLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    /**
+     * Scheduling state for a single Replicator
+     */
+    private class Schedule {
+        final Integer token;
+        final Replicator replicator;
+        final String documentStoreName;
+
+        final long interval;
+        final long initialBackoff;
+        final long maxBackoff;
+        final double jitter;
+        final boolean triggerOnWrite;
+        final long debounce;
+        final long maxDelay;
+
+        boolean running;
+        boolean rerunRequested;
+        int consecutiveErrors;
+        ScheduledFuture<?> next;
+        long nextRunAt;
+        boolean nextIsDebounced;
+        long firstWriteAt;
+        long lastRunStarted;
+        long lastRunFinished;
+        String lastResult;
+        String lastError;
+        int runs;
+        int coalescedTriggers;
+
+        Schedule(Integer token, Replicator replicator, String documentStoreName, JSONObject options) throws Exception {
+            this.token = token;
+            this.replicator = replicator;
+            this.documentStoreName = documentStoreName;
+
+            this.interval = options.optLong(INTERVAL_KEY, 0);
+            this.initialBackoff = options.optLong(INITIAL_BACKOFF_KEY, DEFAULT_INITIAL_BACKOFF);
+            this.maxBackoff = options.optLong(MAX_BACKOFF_KEY, DEFAULT_MAX_BACKOFF);
+            this.jitter = options.optDouble(JITTER_KEY, DEFAULT_JITTER);
+            this.triggerOnWrite = options.optBoolean(TRIGGER_ON_WRITE_KEY, false);
+            this.debounce = options.optLong(DEBOUNCE_KEY, DEFAULT_DEBOUNCE);
+            this.maxDelay = options.optLong(MAX_DELAY_KEY, Math.max(DEFAULT_MAX_DELAY, debounce));
+
+            if (interval < 0 || initialBackoff <= 0 || maxBackoff < initialBackoff || debounce < 0) {
+                throw new Exception("Schedule interval and debounce must not be negative, initialBackoff must be " +
+                    "positive and maxBackoff must not be less than initialBackoff");
+            }
+            if (maxDelay < debounce) {
+                throw new Exception("Schedule maxDelay must not be less than debounce. Received: " + maxDelay);
+            }
+            if (jitter < 0 || jitter > 1) {
+                throw new Exception("Schedule jitter must be between 0 and 1. Received: " + jitter);
+            }
+        }
+    }
+
+    /**
+     * Receives replication events for a scheduled Replicator
+     */
+    public class ScheduleListener {
+        private final Integer token;
+
+        ScheduleListener(Integer token) {
+            this.token = token;
+        }
+
+        @Subscribe
+        public void complete(ReplicationCompleted event) {
+            if (limiter.isPauseEvent(token, event)) {
+                paused(token);
+            } else {
+                finished(token, null);
+            }
+        }
+
+        @Subscribe
+        public void error(ReplicationErrored error) {
+            if (limiter.isPauseEvent(token, error)) {
+                paused(token);
+            } else {
+                finished(token, String.valueOf(error.errorInfo));
+            }
+        }
+    }
+
+    /**
+     * Schedules a Replicator, replacing any existing schedule for the same token
+     * @param token - The unique token id of the Replicator
+     * @param replicator - The Replicator to run
+     * @param documentStoreName - The name of the DocumentStore the Replicator reads or writes
+     * @param options - The schedule options
+     * @param runNow - If true the Replicator is triggered immediately
+     * @throws Exception - If the options are invalid
+     */
+    void schedule(Integer token, Replicator replicator, String documentStoreName, JSONObject options, boolean
+        runNow) throws Exception {
+        Schedule schedule = new Schedule(token, replicator, documentStoreName, options);
+        synchronized (registration) {
+            unschedule(token);
+
+            ScheduleListener listener = new ScheduleListener(token);
+            replicator.getEventBus().register(listener);
+            listeners.put(token, listener);
+
+            synchronized (this) {
+                schedules.put(token, schedule);
+                if (runNow) {
+                    runAfter(schedule, 0);
+                } else if (schedule.interval > 0) {
+                    runAfter(schedule, schedule.interval);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the schedule for a Replicator. A run that is already in progress is not stopped.
+     * @param token - The unique token id of the Replicator
+     * @return - true if the Replicator was scheduled
+     */
+    boolean unschedule(Integer token) {
+        synchronized (registration) {
+            Schedule schedule;
+            synchronized (this) {
+                schedule = schedules.remove(token);
+                if (schedule != null) {
+                    cancelNext(schedule);
+                }
+            }
+
+            ScheduleListener listener = listeners.remove(token);
+            if (schedule != null && listener != null) {
+                schedule.replicator.getEventBus().unregister(listener);
+            }
+            return schedule != null;
+        }
+    }
+
+    /**
+     * @param token - The unique token id of the Replicator
+     * @return - true if the Replicator has a schedule
+     */
+    synchronized boolean isScheduled(Integer token) {
+        return schedules.containsKey(token);
+    }
+
+    /**
+     * Triggers a run of a scheduled Replicator, coalescing with any run already in progress
+     * @param token - The unique token id of the Replicator
+     */
+    synchronized void trigger(Integer token) {
+        Schedule schedule = schedules.get(token);
+        if (schedule != null) {
+            runAfter(schedule, 0);
+        }
+    }
+
+    /**
+     * Notifies the scheduler that a document was written to a DocumentStore. Replicators scheduled
+     * with triggerOnWrite for that DocumentStore are run once writes have stopped for the debounce
+     * period, or at the latest the maximum delay after the first of the writes.
+     * @param documentStoreName - The name of the modified DocumentStore
+     */
+    synchronized void documentStoreModified(String documentStoreName) {
+        for (Schedule schedule : schedules.values()) {
+            if (schedule.triggerOnWrite && schedule.documentStoreName.equals(documentStoreName)) {
+                runAfterWrite(schedule);
+            }
+        }
+    }
+
+    /**
+     * @param token - The unique token id of the Replicator
+     * @return - The JSON description of the schedule and its current state, or null if the
+     * Replicator is not scheduled
+     * @throws JSONException
+     */
+    synchronized JSONObject describe(Integer token) throws JSONException {
+        Schedule schedule = schedules.get(token);
+        if (schedule == null) {
+            return null;
+        }
+
+        JSONObject r = new JSONObject();
+        r.put("token", schedule.token);
+        r.put(INTERVAL_KEY, schedule.interval);
+        r.put(INITIAL_BACKOFF_KEY, schedule.initialBackoff);
+        r.put(MAX_BACKOFF_KEY, schedule.maxBackoff);
+        r.put(JITTER_KEY, schedule.jitter);
+        r.put(TRIGGER_ON_WRITE_KEY, schedule.triggerOnWrite);
+        r.put(DEBOUNCE_KEY, schedule.debounce);
+        r.put(MAX_DELAY_KEY, schedule.maxDelay);
+        r.put("running", schedule.running);
+        r.put("rerunRequested", schedule.rerunRequested);
+        r.put("consecutiveErrors", schedule.consecutiveErrors);
+        r.put("nextRun", schedule.next == null ? JSONObject.NULL : schedule.nextRunAt);
+        r.put("lastRunStarted", schedule.lastRunStarted == 0 ? JSONObject.NULL : schedule.lastRunStarted);
+        r.put("lastRunFinished", schedule.lastRunFinished == 0 ? JSONObject.NULL : schedule.lastRunFinished);
+        r.put("lastResult", schedule.lastResult == null ? JSONObject.NULL : schedule.lastResult);
+        r.put("lastError", schedule.lastError == null ? JSONObject.NULL : schedule.lastError);
+        r.put("runs", schedule.runs);
+        r.put("coalescedTriggers", schedule.coalescedTriggers);
+        return r;
+    }
+
+    /**
+     * Notifies the scheduler that a queued or paused run of a Replicator was cancelled before it
+     * started. The run is recorded as cancelled rather than complete and is not retried.
+     * @param token - The unique token id of the Replicator
+     */
+    synchronized void runCancelled(Integer token) {
+        Schedule schedule = schedules.get(token);
+        if (schedule == null || !schedule.running) {
+            return;
+        }
+
+        // The run was stopped on request, so the triggers it would have covered are dropped too
+        schedule.running = false;
+        schedule.rerunRequested = false;
+        schedule.lastRunFinished = System.currentTimeMillis();
+        schedule.lastResult = "Cancelled";
+        if (schedule.interval > 0 && schedule.next == null) {
+            runAfter(schedule, schedule.interval);
+        }
+    }
+
+    /**
+     * @return - The tokens of all scheduled Replicators
+     */
+    synchronized List<Integer> tokens() {
+        return new ArrayList<Integer>(schedules.keySet());
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    // Must be called while holding the scheduler lock
+    private void runAfter(Schedule schedule, long delay) {
+        if (schedule.running) {
+            markRerun(schedule);
+            return;
+        }
+
+        // A pending run that would fire no later than requested already satisfies this trigger
+        long runAt = System.currentTimeMillis() + delay;
+        if (schedule.next != null) {
+            if (schedule.nextRunAt <= runAt && delay > 0) {
+                schedule.coalescedTriggers++;
+                return;
+            }
+            cancelNext(schedule);
+        }
+        runAt(schedule, runAt, false);
+    }
+
+    // Must be called while holding the scheduler lock
+    private void runAfterWrite(Schedule schedule) {
+        if (schedule.running) {
+            markRerun(schedule);
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        if (schedule.firstWriteAt == 0) {
+            schedule.firstWriteAt = now;
+        }
+        long runAt = Math.min(now + schedule.debounce, schedule.firstWriteAt + schedule.maxDelay);
+        if (schedule.next != null) {
+            schedule.coalescedTriggers++;
+            // An interval or backoff run which fires no later than this write's run covers it,
+            // whereas a debounced run is put off by each write
+            if (!schedule.nextIsDebounced && schedule.nextRunAt <= runAt) {
+                return;
+            }
+            cancelNext(schedule);
+        }
+        runAt(schedule, runAt, true);
+    }
+
+    // Must be called while holding the scheduler lock
+    private void runAt(final Schedule schedule, long runAt, boolean debounced) {
+        schedule.nextRunAt = runAt;
+        schedule.nextIsDebounced = debounced;
+        schedule.next = executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                start(schedule);
+            }
+        }, Math.max(0, runAt - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+    }
+
+    private void markRerun(Schedule schedule) {
+        if (schedule.rerunRequested) {
+            schedule.coalescedTriggers++;
+        }
+        schedule.rerunRequested = true;
+    }
+
+    private void cancelNext(Schedule schedule) {
+        if (schedule.next != null) {
+            schedule.next.cancel(false);
+            schedule.next = null;
+        }
+    }
+
+    private void start(Schedule schedule) {
+        synchronized (this) {
+            schedule.next = null;
+            if (schedules.get(schedule.token) != schedule || schedule.running) {
+                return;
+            }
+            // Writes from now on are covered by a rerun, or debounced again after this run
+            schedule.firstWriteAt = 0;
+
+            // The Replicator may also have been started directly from the JavaScript layer
+            Replicator.State state = schedule.replicator.getState();
+            if (state == Replicator.State.STARTED || state == Replicator.State.STOPPING) {
+                schedule.running = true;
+                markRerun(schedule);
+                return;
+            }
+
+            schedule.running = true;
+            schedule.rerunRequested = false;
+            schedule.lastRunStarted = System.currentTimeMillis();
+            schedule.runs++;
+        }
+
+        try {
+            limiter.start(schedule.token);
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to start scheduled replicator with token " + schedule.token, e);
+            finished(schedule.token, e.getMessage());
+        }
+    }
+
+    // The limiter starts a paused Replicator again when it resumes, so the run stays in progress
+    // and its completion is recorded as usual
+    private synchronized void paused(Integer token) {
+        Schedule schedule = schedules.get(token);
+        if (schedule != null) {
+            schedule.lastResult = "Paused";
+        }
+    }
+
+    private synchronized void finished(Integer token, String error) {
+        Schedule schedule = schedules.get(token);
+        if (schedule == null) {
+            return;
+        }
+
+        schedule.running = false;
+        schedule.lastRunFinished = System.currentTimeMillis();
+
+        if (error == null) {
+            schedule.lastResult = "Complete";
+            schedule.consecutiveErrors = 0;
+
+            if (schedule.rerunRequested) {
+                runAfter(schedule, 0);
+            } else if (schedule.interval > 0 && schedule.next == null) {
+                runAfter(schedule, schedule.interval);
+            }
+        } else {
+            schedule.lastResult = "Error";
+            schedule.lastError = error;
+            schedule.consecutiveErrors++;
+
+            // Retry with backoff even if a rerun was requested; the next run covers those triggers
+            schedule.rerunRequested = false;
+            cancelNext(schedule);
+            runAfter(schedule, backoff(schedule));
+        }
+    }
+
+    private long backoff(Schedule schedule) {
+        int exponent = Math.min(schedule.consecutiveErrors - 1, 30);
+        double delay = Math.min((double) schedule.maxBackoff, schedule.initialBackoff * Math.pow(2, exponent));
+        double spread = delay * schedule.jitter;
+        delay = delay - spread + (2 * spread * random.nextDouble());
+        return Math.min(schedule.maxBackoff, Math.max(0, (long) delay));
+    }
+}
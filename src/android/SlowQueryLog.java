@@ -0,0 +1,374 @@
+/*
+ * Copyright (c) 2017 IBM Corp. All rights reserved.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.cordova;
+
+import com.cloudant.sync.query.FieldSort;
+import com.cloudant.sync.query.Index;
+import com.cloudant.sync.query.IndexType;
+import com.cloudant.sync.query.Query;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * The SlowQueryLog class records the finds which take longer than a threshold, and suggests JSON
+ * indexes for the fields of the slowest unindexed queries. Each entry holds the normalized query:
+ * the selector with its values replaced by "?" and its keys sorted, so queries of the same shape
+ * group together and no document values are kept, along with the sort, fields, result count, time
+ * and the index, if any, containing every field of the selector.
+ * <p>
+ * Index use is estimated as sync-android plans a query: a JSON index is used when it contains all
+ * the fields of the selector, and the sort must use fields from a single index. Queries without
+ * such an index are matched by loading and examining documents, which grows with the size of the
+ * DocumentStore. The index lists are only read for queries over the threshold.
+ */
+class SlowQueryLog {
+
+    static final long DEFAULT_THRESHOLD_MILLIS = 100;
+    static final int DEFAULT_CAPACITY = 100;
+    static final int DEFAULT_MAX_SUGGESTIONS = 5;
+    static final String SUGGESTED_INDEX_PREFIX = "advised_";
+
+    private volatile long thresholdNanos = DEFAULT_THRESHOLD_MILLIS * 1000000;
+    private int capacity = DEFAULT_CAPACITY;
+    private final LinkedList<JSONObject> entries = new LinkedList<JSONObject>();
+    private long overwritten;
+
+    // Unindexed query shapes by DocumentStore, kept beyond the capacity of the entries so the
+    // advice covers every slow query since the log was cleared
+    private final Map<String, Map<String, Shape>> unindexed = new HashMap<String, Map<String, Shape>>();
+
+    /**
+     * The fields of a query shape without an index, and the time its queries took
+     */
+    private static class Shape {
+        final List<String> fields;
+        long count;
+        long totalMicros;
+
+        Shape(List<String> fields) {
+            this.fields = fields;
+        }
+    }
+
+    /**
+     * @param elapsedNanos - The time the find took
+     * @return - true if a find taking that long is recorded
+     */
+    boolean isSlow(long elapsedNanos) {
+        long threshold = thresholdNanos;
+        return threshold >= 0 && elapsedNanos >= threshold;
+    }
+
+    /**
+     * Records a find which took longer than the threshold
+     * @param documentStoreName - The name of the DocumentStore queried
+     * @param query - The DocumentStore's Query, to list its indexes
+     * @param q - The query
+     * @param results - The number of documents returned
+     * @param elapsedNanos - The time the find took
+     * @throws Exception - If the indexes cannot be listed
+     */
+    void record(String documentStoreName, Query query, CloudantQuery q, int results, long elapsedNanos)
+        throws Exception {
+        Set<String> selectorFields = new LinkedHashSet<String>();
+        boolean text = collectFields(q.getSelector(), selectorFields);
+        List<String> sortFields = sortFields(q);
+
+        List<Index> indexes = query.listIndexes();
+        Index index = text ? textIndex(indexes) : covering(indexes, selectorFields);
+        Index sortIndex = sortFields.isEmpty() ? null : covering(indexes, sortFields);
+
+        JSONObject entry = new JSONObject();
+        entry.put("documentStore", documentStoreName);
+        entry.put("at", System.currentTimeMillis());
+        entry.put("micros", elapsedNanos / 1000);
+        entry.put("results", results);
+        entry.put("selector", normalize(q.getSelector()));
+        entry.put("sort", q.getSort() == null ? JSONObject.NULL : new JSONArray(q.getSort()));
+        entry.put("fields", q.getFields() == null ? JSONObject.NULL : new JSONArray(q.getFields()));
+        entry.put("skip", q.getSkip());
+        entry.put("limit", q.getLimit());
+        entry.put("index", index == null ? JSONObject.NULL : index.indexName);
+        entry.put("sortIndex", sortIndex == null ? JSONObject.NULL : sortIndex.indexName);
+
+        synchronized (this) {
+            entries.addLast(entry);
+            while (entries.size() > capacity) {
+                entries.removeFirst();
+                overwritten++;
+            }
+
+            // A $text query needs a text index, which the advice does not create
+            boolean needsIndex = !text && index == null && !selectorFields.isEmpty();
+            if (needsIndex || (!sortFields.isEmpty() && sortIndex == null)) {
+                List<String> fields = new ArrayList<String>(selectorFields);
+                for (String field : sortFields) {
+                    if (!fields.contains(field)) {
+                        fields.add(field);
+                    }
+                }
+                Map<String, Shape> shapes = unindexed.get(documentStoreName);
+                if (shapes == null) {
+                    shapes = new HashMap<String, Shape>();
+                    unindexed.put(documentStoreName, shapes);
+                }
+                String key = fields.toString();
+                Shape shape = shapes.get(key);
+                if (shape == null) {
+                    shape = new Shape(fields);
+                    shapes.put(key, shape);
+                }
+                shape.count++;
+                shape.totalMicros += elapsedNanos / 1000;
+            }
+        }
+    }
+
+    /**
+     * Suggests JSON indexes for the unindexed query shapes of a DocumentStore, slowest first in
+     * total time, leaving out shapes which an index now covers
+     * @param documentStoreName - The name of the DocumentStore
+     * @param query - The DocumentStore's Query, to list its indexes
+     * @param maxSuggestions - The maximum number of suggestions
+     * @return - The suggestions, each with the index fields, a suggested name and the number of
+     * slow queries and their total time
+     * @throws Exception - If the indexes cannot be listed
+     */
+    JSONArray advise(String documentStoreName, Query query, int maxSuggestions) throws Exception {
+        List<Shape> shapes;
+        synchronized (this) {
+            Map<String, Shape> byKey = unindexed.get(documentStoreName);
+            shapes = byKey == null ? new ArrayList<Shape>() : new ArrayList<Shape>(byKey.values());
+        }
+        Collections.sort(shapes, new Comparator<Shape>() {
+            @Override
+            public int compare(Shape a, Shape b) {
+                return a.totalMicros > b.totalMicros ? -1 : (a.totalMicros == b.totalMicros ? 0 : 1);
+            }
+        });
+
+        List<Index> indexes = query.listIndexes();
+        List<List<String>> suggested = new ArrayList<List<String>>();
+        JSONArray r = new JSONArray();
+        for (Shape shape : shapes) {
+            if (r.length() >= maxSuggestions) {
+                break;
+            }
+            if (covering(indexes, shape.fields) != null || coveredBy(suggested, shape.fields)) {
+                continue;
+            }
+            suggested.add(shape.fields);
+            r.put(new JSONObject()
+                .put("fields", new JSONArray(shape.fields))
+                .put("name", indexName(shape.fields))
+                .put("queries", shape.count)
+                .put("totalMicros", shape.totalMicros));
+        }
+        return r;
+    }
+
+    /**
+     * @param documentStoreName - The name of a DocumentStore, or null for all
+     * @return - The JSON log: the threshold, capacity, entries oldest first and the number of
+     * entries overwritten
+     * @throws JSONException
+     */
+    synchronized JSONObject toJSON(String documentStoreName) throws JSONException {
+        JSONArray list = new JSONArray();
+        for (JSONObject entry : entries) {
+            if (documentStoreName == null || documentStoreName.equals(entry.getString("documentStore"))) {
+                list.put(entry);
+            }
+        }
+        JSONObject r = new JSONObject();
+        r.put("thresholdMillis", thresholdNanos < 0 ? -1 : thresholdNanos / 1000000);
+        r.put("capacity", capacity);
+        r.put("overwritten", overwritten);
+        r.put("entries", list);
+        return r;
+    }
+
+    /**
+     * Sets the threshold and capacity, clearing the log
+     * @param options - Any of thresholdMillis, where -1 disables the log, and capacity
+     * @throws Exception - If an option is out of range
+     */
+    synchronized void configure(JSONObject options) throws Exception {
+        long threshold = options.optLong("thresholdMillis", thresholdNanos < 0 ? -1 : thresholdNanos / 1000000);
+        int newCapacity = options.optInt("capacity", capacity);
+        if (threshold < -1 || newCapacity < 1) {
+            throw new Exception("thresholdMillis must be -1 or more and capacity must be positive");
+        }
+        thresholdNanos = threshold < 0 ? -1 : threshold * 1000000;
+        capacity = newCapacity;
+        clear();
+    }
+
+    /**
+     * Discards the entries and the slow query shapes
+     */
+    synchronized void clear() {
+        entries.clear();
+        unindexed.clear();
+        overwritten = 0;
+    }
+
+    /**
+     * Discards the entries and the slow query shapes of a DocumentStore
+     * @param documentStoreName - The name of the DocumentStore
+     */
+    synchronized void forget(String documentStoreName) {
+        Iterator<JSONObject> i = entries.iterator();
+        while (i.hasNext()) {
+            if (documentStoreName.equals(i.next().optString("documentStore"))) {
+                i.remove();
+            }
+        }
+        unindexed.remove(documentStoreName);
+    }
+
+    ////////
+
+    /**
+     * Collects the field names used in a selector
+     * @return - true if the selector uses $text
+     */
+    private static boolean collectFields(Object selector, Collection<String> fields) {
+        boolean text = false;
+        if (selector instanceof Map) {
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) selector).entrySet()) {
+                String key = String.valueOf(entry.getKey());
+                if ("$text".equals(key)) {
+                    text = true;
+                } else if (key.startsWith("$")) {
+                    // $and, $or and $not hold further clauses
+                    text |= collectFields(entry.getValue(), fields);
+                } else {
+                    fields.add(key);
+                }
+            }
+        } else if (selector instanceof List) {
+            for (Object clause : (List<?>) selector) {
+                text |= collectFields(clause, fields);
+            }
+        }
+        return text;
+    }
+
+    private static List<String> sortFields(CloudantQuery q) {
+        List<String> fields = new ArrayList<String>();
+        if (q.getSort() != null) {
+            for (Map<String, String> sort : q.getSort()) {
+                fields.addAll(sort.keySet());
+            }
+        }
+        return fields;
+    }
+
+    private static Index covering(List<Index> indexes, Collection<String> fields) {
+        for (Index index : indexes) {
+            if (index.indexType != IndexType.JSON) {
+                continue;
+            }
+            Set<String> indexed = new LinkedHashSet<String>();
+            for (FieldSort field : index.fieldNames) {
+                indexed.add(field.field);
+            }
+            if (indexed.containsAll(fields)) {
+                return index;
+            }
+        }
+        return null;
+    }
+
+    private static Index textIndex(List<Index> indexes) {
+        for (Index index : indexes) {
+            if (index.indexType == IndexType.TEXT) {
+                return index;
+            }
+        }
+        return null;
+    }
+
+    private static boolean coveredBy(List<List<String>> suggested, List<String> fields) {
+        for (List<String> s : suggested) {
+            if (s.containsAll(fields)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String indexName(List<String> fields) {
+        StringBuilder name = new StringBuilder(SUGGESTED_INDEX_PREFIX);
+        for (int i = 0; i < fields.size(); i++) {
+            if (i > 0) {
+                name.append('_');
+            }
+            name.append(fields.get(i).replaceAll("[^A-Za-z0-9]", "_"));
+        }
+        return name.toString();
+    }
+
+    /**
+     * @return - The selector with its keys sorted and its values replaced by "?", with implicit
+     * equality made explicit
+     */
+    private static Object normalize(Object selector) throws JSONException {
+        if (selector instanceof Map) {
+            JSONObject r = new JSONObject();
+            Map<String, Object> sorted = new TreeMap<String, Object>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) selector).entrySet()) {
+                sorted.put(String.valueOf(entry.getKey()), entry.getValue());
+            }
+            for (Map.Entry<String, Object> entry : sorted.entrySet()) {
+                String key = entry.getKey();
+                Object value = entry.getValue();
+                if ("$and".equals(key) || "$or".equals(key) || "$not".equals(key)) {
+                    r.put(key, normalize(value));
+                } else if (key.startsWith("$")) {
+                    r.put(key, "?");
+                } else if (value instanceof Map) {
+                    r.put(key, normalize(value));
+                } else {
+                    r.put(key, new JSONObject().put("$eq", "?"));
+                }
+            }
+            return r;
+        } else if (selector instanceof List) {
+            JSONArray r = new JSONArray();
+            for (Object clause : (List<?>) selector) {
+                r.put(normalize(clause));
+            }
+            return r;
+        }
+        return "?";
+    }
+}
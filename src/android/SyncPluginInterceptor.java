@@ -105,6 +105,7 @@ class SyncPluginInterceptor implements HttpConnectionRequestInterceptor, HttpCon
         this.latchMap.put(id, responseLatch);
 
         // Send call back to JavaScript for handling of request
+        long traced = PluginTracer.start();
         PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, result);
         pluginResult.setKeepCallback(true);
         callbackContext.sendPluginResult(pluginResult);
@@ -115,6 +116,7 @@ class SyncPluginInterceptor implements HttpConnectionRequestInterceptor, HttpCon
         } catch (InterruptedException e) {
             Log.e(TAG, "Replication interceptor timed out", e);
         }
+        traceWait(traced, "interceptResponse", httpConnectionInterceptorContext, id);
 
         // This will be unlocked by the CloudantSyncPlugin#unlockInterceptor. The cached context will have been updated.
         JSONObject updatedContext = this.contextMap.get(id);
@@ -170,6 +172,7 @@ class SyncPluginInterceptor implements HttpConnectionRequestInterceptor, HttpCon
         this.latchMap.put(id, requestLatch);
 
         // Send call back to JavaScript for handling of request
+        long traced = PluginTracer.start();
         PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, result);
         pluginResult.setKeepCallback(true);
         callbackContext.sendPluginResult(pluginResult);
@@ -180,6 +183,7 @@ class SyncPluginInterceptor implements HttpConnectionRequestInterceptor, HttpCon
         } catch (InterruptedException e) {
             Log.e(TAG, "Replication interceptor timed out", e);
         }
+        traceWait(traced, "interceptRequest", httpConnectionInterceptorContext, id);
 
         // This will be unlocked by the CloudantSyncPlugin#unlockInterceptor. The cached context will have been updated.
         JSONObject updatedContext = this.contextMap.get(id);
@@ -199,6 +203,13 @@ class SyncPluginInterceptor implements HttpConnectionRequestInterceptor, HttpCon
         return httpConnectionInterceptorContext;
     }
 
+    /**
+     * @return - The number of HTTP requests and responses waiting for JavaScript interceptors
+     */
+    int pending() {
+        return latchMap.size();
+    }
+
     public void updateContext(String uuid, JSONObject context) {
         UUID id = UUID.fromString(uuid);
 
@@ -231,6 +242,14 @@ class SyncPluginInterceptor implements HttpConnectionRequestInterceptor, HttpCon
         }
     }
 
+    // Records the time spent waiting for the JavaScript interceptors if tracing is enabled
+    private void traceWait(long started, String name, HttpConnectionInterceptorContext httpContext, UUID id) {
+        if (started != 0) {
+            PluginTracer.record(name, PluginTracer.CATEGORY_INTERCEPTOR, callbackContext.getCallbackId(), started,
+                System.nanoTime(), false, URL_KEY, httpContext.connection.url.toString(), "context", id.toString());
+        }
+    }
+
     private JSONObject extractRequest(final HttpConnectionInterceptorContext httpContext) throws JSONException {
 
         return new JSONObject() {{
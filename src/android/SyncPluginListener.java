@@ -1,5 +1,10 @@
 package com.cloudant.sync.cordova;
 
+import android.util.Log;
+
+import com.cloudant.sync.documentstore.Changes;
+import com.cloudant.sync.documentstore.Database;
+import com.cloudant.sync.documentstore.DocumentRevision;
 import com.cloudant.sync.event.notifications.ReplicationCompleted;
 import com.cloudant.sync.event.notifications.ReplicationErrored;
 import com.cloudant.sync.event.Subscribe;
@@ -7,22 +12,96 @@ import com.cloudant.sync.event.Subscribe;
 import org.apache.cordova.CallbackContext;
 import org.apache.cordova.PluginResult;
 import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
 
 /**
  * The SyncPluginListener Class proxies replication events to the javascript layer. Each new Replicator is registered with an instance of this class.
  */
 public class SyncPluginListener {
+    private static final String TAG = SyncPluginListener.class.getCanonicalName();
+    private static final int CHANGES_PAGE_SIZE = 500;
+
+    /**
+     * Notified when resolving conflicts after a replication writes to the DocumentStore
+     */
+    interface Modifications {
+        /**
+         * @param documentStoreName - The name of the DocumentStore written to
+         */
+        void modified(String documentStoreName);
+    }
+
     public final CallbackContext context;
 
-    SyncPluginListener(CallbackContext context) {
+    private final Integer token;
+    private final ReplicationLimiter limiter;
+    private final String documentStoreName;
+    private final Database database;
+    private final NativeConflictResolver conflictResolver;
+    private final Modifications modifications;
+    private long conflictsCheckedTo;
+
+    /**
+     * @param context - The javascript callback for replication events
+     * @param token - The unique token id of the Replicator
+     * @param limiter - The ReplicationLimiter which may pause the Replicator
+     */
+    SyncPluginListener(CallbackContext context, Integer token, ReplicationLimiter limiter) {
         this.context = context;
+        this.token = token;
+        this.limiter = limiter;
+        this.documentStoreName = null;
+        this.database = null;
+        this.conflictResolver = null;
+        this.modifications = null;
+    }
+
+    /**
+     * Creates a listener which also resolves the conflicts of the documents changed in the
+     * Database after each replication completes, before notifying the javascript layer.
+     * @param context - The javascript callback for replication events
+     * @param token - The unique token id of the Replicator
+     * @param limiter - The ReplicationLimiter which may pause the Replicator
+     * @param documentStoreName - The name of the DocumentStore the Replicator pulls into
+     * @param database - The Database the Replicator pulls into
+     * @param conflictResolver - The resolver to apply to the changed documents
+     * @param modifications - Notified when resolving conflicts writes new winning revisions
+     * @throws Exception - If the last sequence of the Database cannot be read
+     */
+    SyncPluginListener(CallbackContext context, Integer token, ReplicationLimiter limiter, String documentStoreName,
+                       Database database, NativeConflictResolver conflictResolver, Modifications modifications)
+        throws Exception {
+        this.context = context;
+        this.token = token;
+        this.limiter = limiter;
+        this.documentStoreName = documentStoreName;
+        this.database = database;
+        this.conflictResolver = conflictResolver;
+        this.modifications = modifications;
+        this.conflictsCheckedTo = database.getLastSequence();
     }
 
     @Subscribe
     public void complete(ReplicationCompleted event) {
+        if (limiter.isPauseEvent(token, event)) {
+            paused(event.documentsReplicated);
+            return;
+        }
+
         JSONArray result = new JSONArray();
         result.put("complete");
         result.put(event.documentsReplicated);
+        if (conflictResolver != null) {
+            int resolved = resolveChangedConflicts();
+            if (resolved > 0) {
+                // Before the javascript layer hears of the completion, so its reads see the resolutions
+                modifications.modified(documentStoreName);
+            }
+            result.put(resolved);
+        }
 
         PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, result);
         pluginResult.setKeepCallback(true);
@@ -31,6 +110,11 @@ public class SyncPluginListener {
 
     @Subscribe
     public void error(ReplicationErrored error) {
+        if (limiter.isPauseEvent(token, error)) {
+            paused(0);
+            return;
+        }
+
         JSONArray result = new JSONArray();
         result.put("error");
         result.put(error.errorInfo.toString());
@@ -39,4 +123,54 @@ public class SyncPluginListener {
         pluginResult.setKeepCallback(true);
         context.sendPluginResult(pluginResult);
     }
+
+    /**
+     * Notifies the javascript layer that the replication was stopped by a pause of the
+     * ReplicationLimiter. Conflicts are left to the pass after the replication completes, which
+     * also covers the documents changed before the pause.
+     * @param documentsReplicated - The number of documents replicated before the pause
+     */
+    private void paused(int documentsReplicated) {
+        JSONArray result = new JSONArray();
+        result.put("paused");
+        result.put(documentsReplicated);
+
+        PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, result);
+        pluginResult.setKeepCallback(true);
+        context.sendPluginResult(pluginResult);
+    }
+
+    /**
+     * Resolves the conflicts of the documents changed since the last completed replication,
+     * including local writes made in between, rather than of every conflicted document
+     * @return - The number of documents whose conflicts were resolved
+     */
+    private int resolveChangedConflicts() {
+        try {
+            Set<String> ids = new LinkedHashSet<String>();
+            long since = conflictsCheckedTo;
+            while (true) {
+                Changes changes = database.changes(since, CHANGES_PAGE_SIZE);
+                if (changes.size() == 0 || changes.getLastSequence() <= since) {
+                    break;
+                }
+                for (DocumentRevision rev : changes.getResults()) {
+                    ids.add(rev.getId());
+                }
+                since = changes.getLastSequence();
+            }
+
+            // Later passes check the revisions written by this one again, which is harmless
+            conflictsCheckedTo = since;
+            if (ids.isEmpty()) {
+                return 0;
+            }
+
+            JSONObject summary = conflictResolver.resolve(database, ids, NativeConflictResolver.DEFAULT_BATCH_SIZE, 1);
+            return summary.getInt("resolved");
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to resolve conflicts after replication", e);
+            return 0;
+        }
+    }
 }
@@ -0,0 +1,568 @@
+/*
+ * Copyright (c) 2017 IBM Corp. All rights reserved.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+
+package com.cloudant.sync.cordova;
+
+import android.util.Log;
+
+import com.cloudant.sync.documentstore.Attachment;
+import com.cloudant.sync.documentstore.DocumentRevision;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The WriteBehind class buffers document creates and updates for DocumentStores which opt in to
+ * it. A buffered write is acknowledged as soon as it is queued, and the queue is written later, in
+ * order, when it reaches the batch size or the flush interval has passed since its oldest write,
+ * or when it is flushed explicitly. An update of a document whose earlier write is still queued
+ * replaces that write, so a burst of updates to one document is saved as one revision.
+ * <p>
+ * A queued write is acknowledged without a revision, so a caller keeps updating against the last
+ * revision it knew. The revision each flush saved is therefore remembered per document together
+ * with the revisions it superseded, and a later update based on one of those is saved against
+ * the saved revision instead of failing with a conflict.
+ * <p>
+ * The queue of each DocumentStore is bounded: a write arriving when it is full waits for a flush
+ * to make room, up to the backpressure timeout, and then fails.
+ * <p>
+ * Durability: a queued write is only held in memory until it is flushed, so acknowledged writes
+ * are lost if the process ends first, and a queued write which fails when flushed, for example with
+ * a conflict, is dropped and reported in the result of the flush and in the status of the queue.
+ * The plugin flushes a queue before any other call reads or changes its DocumentStore, so reads see
+ * every acknowledged write, and flushes every queue when the app is paused.
+ * <p>
+ * sync-android 2.0 commits each document write in its own transaction and has no public API to
+ * group writes, so a flush writes the queued documents one after another on a single thread; the
+ * saving comes from coalescing repeated updates and from taking the writes off the caller's path.
+ */
+class WriteBehind {
+    private static final String TAG = WriteBehind.class.getCanonicalName();
+
+    static final String QUEUED_KEY = "_queued";
+
+    static final String MAX_QUEUED_KEY = "maxQueued";
+    static final String BATCH_SIZE_KEY = "batchSize";
+    static final String FLUSH_INTERVAL_KEY = "flushInterval";
+    static final String BACKPRESSURE_TIMEOUT_KEY = "backpressureTimeout";
+
+    static final int DEFAULT_MAX_QUEUED = 1000;
+    static final int DEFAULT_BATCH_SIZE = 50;
+    static final long DEFAULT_FLUSH_INTERVAL = 1000;
+    static final long DEFAULT_BACKPRESSURE_TIMEOUT = 5000;
+
+    // The failed writes kept per DocumentStore
+    private static final int MAX_ERRORS = 100;
+    // The documents whose saved revisions are remembered per DocumentStore, and the superseded
+    // revisions remembered for each
+    private static final int MAX_SAVED_DOCUMENTS = 1000;
+    private static final int MAX_SUPERSEDED = 100;
+
+    /**
+     * Saves the buffered writes
+     */
+    interface Writer {
+        /**
+         * @param documentStoreName - The name of the DocumentStore
+         * @param rev - The revision to save
+         * @param isCreate - true to create the document, false to update it
+         * @return - The saved revision
+         * @throws Exception - If the write fails
+         */
+        DocumentRevision write(String documentStoreName, DocumentRevision rev, boolean isCreate) throws Exception;
+
+        /**
+         * Called after a flush has written to a DocumentStore
+         * @param documentStoreName - The name of the DocumentStore
+         */
+        void flushed(String documentStoreName);
+    }
+
+    private final Writer writer;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "CloudantSync-WriteBehind");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private final Map<String, Buffer> buffers = new HashMap<String, Buffer>();
+
+    /**
+     * A queued write
+     */
+    private static class Write {
+        private DocumentRevision rev;
+        private final boolean isCreate;
+        // The revisions the caller based the merged updates on
+        private final Set<String> bases = new LinkedHashSet<String>();
+
+        Write(DocumentRevision rev, boolean isCreate) {
+            this.rev = rev;
+            this.isCreate = isCreate;
+        }
+    }
+
+    /**
+     * The revision a flush saved for a document, and the earlier revisions it supersedes for
+     * updates queued by a caller which was only acknowledged
+     */
+    private static class Saved {
+        private final String revision;
+        private final Set<String> superseded = new LinkedHashSet<String>();
+
+        Saved(String revision) {
+            this.revision = revision;
+        }
+    }
+
+    /**
+     * The queue of a DocumentStore and its settings and counters. The queue is guarded by the
+     * Buffer; flushes are serialized by the flush lock.
+     */
+    private static class Buffer {
+        private final String documentStoreName;
+        private final Object flushLock = new Object();
+        private final LinkedHashMap<String, Write> queue = new LinkedHashMap<String, Write>();
+        private final LinkedList<JSONObject> errors = new LinkedList<JSONObject>();
+        private final LinkedHashMap<String, Saved> saved = new LinkedHashMap<String, Saved>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Saved> eldest) {
+                return size() > MAX_SAVED_DOCUMENTS;
+            }
+        };
+        private int maxQueued;
+        private int batchSize;
+        private long flushInterval;
+        private long backpressureTimeout;
+        private ScheduledFuture<?> scheduled;
+        private boolean closed;
+
+        private long queued;
+        private long merged;
+        private long rebased;
+        private long written;
+        private long failed;
+        private long flushes;
+        private long waits;
+
+        Buffer(String documentStoreName) {
+            this.documentStoreName = documentStoreName;
+        }
+    }
+
+    /**
+     * @param writer - The Writer saving the buffered writes
+     */
+    WriteBehind(Writer writer) {
+        this.writer = writer;
+    }
+
+    /**
+     * @return - A new document ID, for a queued create which has none
+     */
+    static String generateDocumentId() {
+        return UUID.randomUUID().toString().replace("-", "");
+    }
+
+    /**
+     * Enables write-behind for a DocumentStore, or changes its settings
+     * @param documentStoreName - The name of the DocumentStore
+     * @param options - Any of maxQueued, batchSize, flushInterval and backpressureTimeout
+     * @throws Exception - If an option is out of range
+     */
+    void enable(String documentStoreName, JSONObject options) throws Exception {
+        Buffer buffer;
+        synchronized (this) {
+            buffer = buffers.get(documentStoreName);
+            if (buffer == null) {
+                buffer = new Buffer(documentStoreName);
+                buffer.maxQueued = DEFAULT_MAX_QUEUED;
+                buffer.batchSize = DEFAULT_BATCH_SIZE;
+                buffer.flushInterval = DEFAULT_FLUSH_INTERVAL;
+                buffer.backpressureTimeout = DEFAULT_BACKPRESSURE_TIMEOUT;
+            }
+        }
+        synchronized (buffer) {
+            int maxQueued = options.optInt(MAX_QUEUED_KEY, buffer.maxQueued);
+            int batchSize = options.optInt(BATCH_SIZE_KEY, buffer.batchSize);
+            long flushInterval = options.optLong(FLUSH_INTERVAL_KEY, buffer.flushInterval);
+            long backpressureTimeout = options.optLong(BACKPRESSURE_TIMEOUT_KEY, buffer.backpressureTimeout);
+            if (maxQueued < 1 || batchSize < 1 || batchSize > maxQueued || flushInterval < 0 ||
+                backpressureTimeout < 0) {
+                throw new Exception(MAX_QUEUED_KEY + " and " + BATCH_SIZE_KEY + " must be positive, with " +
+                    BATCH_SIZE_KEY + " no more than " + MAX_QUEUED_KEY + ", and " + FLUSH_INTERVAL_KEY + " and " +
+                    BACKPRESSURE_TIMEOUT_KEY + " must not be negative");
+            }
+            buffer.maxQueued = maxQueued;
+            buffer.batchSize = batchSize;
+            buffer.flushInterval = flushInterval;
+            buffer.backpressureTimeout = backpressureTimeout;
+            buffer.closed = false;
+        }
+        synchronized (this) {
+            buffers.put(documentStoreName, buffer);
+        }
+    }
+
+    /**
+     * Flushes and disables write-behind for a DocumentStore
+     * @param documentStoreName - The name of the DocumentStore
+     * @return - The result of the final flush
+     * @throws JSONException
+     */
+    JSONObject disable(String documentStoreName) throws JSONException {
+        Buffer buffer;
+        synchronized (this) {
+            buffer = buffers.remove(documentStoreName);
+        }
+        if (buffer == null) {
+            return flushResult(0, new JSONArray());
+        }
+        synchronized (buffer) {
+            buffer.closed = true;
+            buffer.notifyAll();
+        }
+        return flush(buffer);
+    }
+
+    /**
+     * @param documentStoreName - The name of the DocumentStore
+     * @return - true if writes to the DocumentStore are buffered
+     */
+    synchronized boolean isEnabled(String documentStoreName) {
+        return buffers.containsKey(documentStoreName);
+    }
+
+    /**
+     * Queues a write, waiting for room if the queue is full. An update based on a revision which
+     * an earlier flush of the document superseded is rebased on the revision that flush saved.
+     * @param documentStoreName - The name of the DocumentStore
+     * @param rev - The revision to save, with its document ID
+     * @param isCreate - true to create the document, false to update it
+     * @return - true if the write replaced a queued write of the same document
+     * @throws Exception - If the queue stays full for the backpressure timeout, write-behind is
+     * disabled meanwhile, or the document is already queued for creation
+     */
+    boolean enqueue(String documentStoreName, DocumentRevision rev, boolean isCreate) throws Exception {
+        Buffer buffer;
+        synchronized (this) {
+            buffer = buffers.get(documentStoreName);
+        }
+        if (buffer == null) {
+            throw new Exception("Write-behind is not enabled for DocumentStore " + documentStoreName);
+        }
+
+        synchronized (buffer) {
+            // The queue and the saved revisions may change while waiting for room
+            long deadline = System.currentTimeMillis() + buffer.backpressureTimeout;
+            boolean waited = false;
+            while (true) {
+                if (buffer.closed) {
+                    throw new Exception("Write-behind was disabled for DocumentStore " + documentStoreName);
+                }
+                Write pending = buffer.queue.get(rev.getId());
+                if (pending != null) {
+                    if (isCreate) {
+                        throw new Exception("Document update conflict: " + rev.getId() + " is already queued");
+                    }
+                    if (rev.getRevision() != null) {
+                        pending.bases.add(rev.getRevision());
+                    }
+                    pending.rev = merge(pending.rev, rev);
+                    buffer.merged++;
+                    return true;
+                }
+                if (buffer.queue.size() < buffer.maxQueued) {
+                    break;
+                }
+                if (!waited) {
+                    buffer.waits++;
+                    scheduleFlush(buffer, 0);
+                    waited = true;
+                }
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    throw new Exception("The write-behind queue of DocumentStore " + documentStoreName + " is " +
+                        "full; flush it or write more slowly");
+                }
+                buffer.wait(wait);
+            }
+
+            Write write = new Write(rev, isCreate);
+            String base = rev.getRevision();
+            if (base != null) {
+                write.bases.add(base);
+                Saved saved = isCreate ? null : buffer.saved.get(rev.getId());
+                if (saved != null && saved.superseded.contains(base)) {
+                    write.rev = rebase(rev, saved.revision, null);
+                    buffer.rebased++;
+                }
+            }
+            buffer.queue.put(rev.getId(), write);
+            buffer.queued++;
+            scheduleFlush(buffer, buffer.queue.size() >= buffer.batchSize ? 0 : buffer.flushInterval);
+        }
+        return false;
+    }
+
+    /**
+     * Writes the queued writes of a DocumentStore, waiting for a flush in progress to complete
+     * @param documentStoreName - The name of the DocumentStore
+     * @return - The number of writes saved and the failed writes, each with its _id and error
+     * @throws JSONException
+     */
+    JSONObject flush(String documentStoreName) throws JSONException {
+        Buffer buffer;
+        synchronized (this) {
+            buffer = buffers.get(documentStoreName);
+        }
+        if (buffer == null) {
+            return flushResult(0, new JSONArray());
+        }
+        return flush(buffer);
+    }
+
+    /**
+     * Writes the queued writes of every DocumentStore
+     */
+    void flushAll() {
+        List<Buffer> all;
+        synchronized (this) {
+            all = new ArrayList<Buffer>(buffers.values());
+        }
+        for (Buffer buffer : all) {
+            try {
+                flush(buffer);
+            } catch (JSONException e) {
+                Log.w(TAG, "Failed to report the flush of " + buffer.documentStoreName, e);
+            }
+        }
+    }
+
+    /**
+     * Discards the queue of a DocumentStore which is deleted, failing writes waiting for room
+     * @param documentStoreName - The name of the DocumentStore
+     */
+    void discard(String documentStoreName) {
+        Buffer buffer;
+        synchronized (this) {
+            buffer = buffers.remove(documentStoreName);
+        }
+        if (buffer != null) {
+            synchronized (buffer) {
+                buffer.closed = true;
+                buffer.queue.clear();
+                buffer.saved.clear();
+                if (buffer.scheduled != null) {
+                    buffer.scheduled.cancel(false);
+                    buffer.scheduled = null;
+                }
+                buffer.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @param documentStoreName - The name of the DocumentStore
+     * @return - The JSON settings, queue length, counters and recent failed writes, with enabled
+     * false if write-behind is not enabled
+     * @throws JSONException
+     */
+    JSONObject status(String documentStoreName) throws JSONException {
+        Buffer buffer;
+        synchronized (this) {
+            buffer = buffers.get(documentStoreName);
+        }
+        JSONObject r = new JSONObject();
+        r.put("enabled", buffer != null);
+        if (buffer == null) {
+            return r;
+        }
+        synchronized (buffer) {
+            r.put(MAX_QUEUED_KEY, buffer.maxQueued);
+            r.put(BATCH_SIZE_KEY, buffer.batchSize);
+            r.put(FLUSH_INTERVAL_KEY, buffer.flushInterval);
+            r.put(BACKPRESSURE_TIMEOUT_KEY, buffer.backpressureTimeout);
+            r.put("pending", buffer.queue.size());
+            r.put("queued", buffer.queued);
+            r.put("merged", buffer.merged);
+            r.put("rebased", buffer.rebased);
+            r.put("written", buffer.written);
+            r.put("failed", buffer.failed);
+            r.put("flushes", buffer.flushes);
+            r.put("backpressureWaits", buffer.waits);
+            r.put("errors", new JSONArray(buffer.errors));
+        }
+        return r;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Schedules a flush of a queue, replacing a later scheduled flush. Called holding the buffer.
+     * @param buffer - The buffer to flush
+     * @param delay - The delay in milliseconds
+     */
+    private void scheduleFlush(final Buffer buffer, long delay) {
+        if (buffer.scheduled != null) {
+            if (buffer.scheduled.getDelay(TimeUnit.MILLISECONDS) <= delay) {
+                return;
+            }
+            buffer.scheduled.cancel(false);
+        }
+        buffer.scheduled = executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flush(buffer);
+                } catch (Exception e) {
+                    Log.w(TAG, "Failed to flush the writes to " + buffer.documentStoreName, e);
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Writes the queued writes of a buffer in the order they were first queued
+     * @param buffer - The buffer to flush
+     * @return - The number of writes saved and the failed writes
+     * @throws JSONException
+     */
+    private JSONObject flush(Buffer buffer) throws JSONException {
+        synchronized (buffer.flushLock) {
+            List<Write> writes;
+            synchronized (buffer) {
+                if (buffer.scheduled != null) {
+                    buffer.scheduled.cancel(false);
+                    buffer.scheduled = null;
+                }
+                writes = new ArrayList<Write>(buffer.queue.values());
+                buffer.queue.clear();
+                buffer.notifyAll();
+            }
+            if (writes.isEmpty()) {
+                return flushResult(0, new JSONArray());
+            }
+
+            int written = 0;
+            JSONArray failures = new JSONArray();
+            for (Write write : writes) {
+                try {
+                    DocumentRevision saved = writer.write(buffer.documentStoreName, write.rev, write.isCreate);
+                    synchronized (buffer) {
+                        remember(buffer, write, saved);
+                    }
+                    written++;
+                } catch (Exception e) {
+                    Log.w(TAG, "Failed to write " + write.rev.getId() + " to " + buffer.documentStoreName, e);
+                    failures.put(new JSONObject()
+                        .put("_id", write.rev.getId())
+                        .put("error", String.valueOf(e.getMessage()))
+                        .put("at", System.currentTimeMillis()));
+                }
+            }
+            writer.flushed(buffer.documentStoreName);
+
+            synchronized (buffer) {
+                buffer.flushes++;
+                buffer.written += written;
+                buffer.failed += failures.length();
+                for (int i = 0; i < failures.length(); i++) {
+                    buffer.errors.addLast(failures.getJSONObject(i));
+                    if (buffer.errors.size() > MAX_ERRORS) {
+                        buffer.errors.removeFirst();
+                    }
+                }
+            }
+            return flushResult(written, failures);
+        }
+    }
+
+    /**
+     * Remembers the revision a write saved, superseding the revisions its updates were based on
+     * and those the previous saved revision superseded. Called holding the buffer.
+     * @param buffer - The buffer the write was flushed from
+     * @param write - The flushed write
+     * @param saved - The revision it saved
+     */
+    private static void remember(Buffer buffer, Write write, DocumentRevision saved) {
+        String id = write.rev.getId();
+        Saved previous = buffer.saved.get(id);
+        Saved next = new Saved(saved.getRevision());
+        if (previous != null && previous.revision.equals(write.rev.getRevision())) {
+            next.superseded.addAll(previous.superseded);
+            next.superseded.add(previous.revision);
+        }
+        next.superseded.addAll(write.bases);
+        if (write.rev.getRevision() != null) {
+            next.superseded.add(write.rev.getRevision());
+        }
+        next.superseded.remove(next.revision);
+        for (Iterator<String> it = next.superseded.iterator(); next.superseded.size() > MAX_SUPERSEDED; ) {
+            it.next();
+            it.remove();
+        }
+        buffer.saved.put(id, next);
+    }
+
+    private static JSONObject flushResult(int written, JSONArray failures) throws JSONException {
+        return new JSONObject().put("written", written).put("failed", failures);
+    }
+
+    /**
+     * @param pending - The queued revision
+     * @param update - A later update of the same document
+     * @return - The update, saved against the revision the queued write was based on
+     */
+    private static DocumentRevision merge(DocumentRevision pending, DocumentRevision update) {
+        return rebase(update, pending.getRevision(), pending.getAttachments());
+    }
+
+    /**
+     * @param update - An update of a document
+     * @param revision - The revision to save the update against
+     * @param attachments - The attachments to keep if the update has none
+     * @return - The update, saved against the revision
+     */
+    private static DocumentRevision rebase(DocumentRevision update, String revision,
+                                           Map<String, Attachment> attachments) {
+        DocumentRevision rebased = new DocumentRevision(update.getId(), revision, update.getBody());
+        rebased.setAttachments(update.getAttachments() != null ? update.getAttachments() : attachments);
+        if (update.isDeleted()) {
+            rebased.setDeleted();
+        }
+        return rebased;
+    }
+}
@@ -30,6 +30,8 @@
 
 -(void)ensureIndexed:(CDVInvokedUrlCommand*)command;
 
+-(void)ensureTextIndexed:(CDVInvokedUrlCommand*)command;
+
 -(void)deleteIndexNamed:(CDVInvokedUrlCommand*)command;
 
 -(void)find:(CDVInvokedUrlCommand*)command;
@@ -50,10 +52,80 @@
 
 -(void)getConflictedDocumentIds:(CDVInvokedUrlCommand*)command;
 
+-(void)countConflicts:(CDVInvokedUrlCommand*)command;
+
+-(void)streamConflictedDocumentIds:(CDVInvokedUrlCommand*)command;
+
 -(void)resolveConflictsForDocument:(CDVInvokedUrlCommand*)command;
 
 -(void)returnResolvedDocument:(CDVInvokedUrlCommand*)command;
 
+-(void)scheduleReplication:(CDVInvokedUrlCommand*)command;
+
+-(void)unscheduleReplication:(CDVInvokedUrlCommand*)command;
+
+-(void)getReplicationSchedule:(CDVInvokedUrlCommand*)command;
+
+-(void)setMaxConcurrentReplications:(CDVInvokedUrlCommand*)command;
+
+-(void)getReplicationQueueMetrics:(CDVInvokedUrlCommand*)command;
+
+-(void)resolveAllConflicts:(CDVInvokedUrlCommand*)command;
+
+-(void)resolveConflictsInBatches:(CDVInvokedUrlCommand*)command;
+
+-(void)returnResolvedDocuments:(CDVInvokedUrlCommand*)command;
+
+-(void)setMetricsEnabled:(CDVInvokedUrlCommand*)command;
+
+-(void)getMetrics:(CDVInvokedUrlCommand*)command;
+
+-(void)resetMetrics:(CDVInvokedUrlCommand*)command;
+
+-(void)setTracingEnabled:(CDVInvokedUrlCommand*)command;
+
+-(void)getTrace:(CDVInvokedUrlCommand*)command;
+
+-(void)dumpTrace:(CDVInvokedUrlCommand*)command;
+
+-(void)clearTrace:(CDVInvokedUrlCommand*)command;
+
+-(void)startRecording:(CDVInvokedUrlCommand*)command;
+
+-(void)stopRecording:(CDVInvokedUrlCommand*)command;
+
+-(void)getMemoryUsage:(CDVInvokedUrlCommand*)command;
+
+-(void)trimMemory:(CDVInvokedUrlCommand*)command;
+
+-(void)setMemoryPolicy:(CDVInvokedUrlCommand*)command;
+
+-(void)getSlowQueries:(CDVInvokedUrlCommand*)command;
+
+-(void)setSlowQueryLog:(CDVInvokedUrlCommand*)command;
+
+-(void)clearSlowQueries:(CDVInvokedUrlCommand*)command;
+
+-(void)adviseIndexes:(CDVInvokedUrlCommand*)command;
+
+-(void)getBackgroundIndexing:(CDVInvokedUrlCommand*)command;
+
+-(void)setBackgroundIndexing:(CDVInvokedUrlCommand*)command;
+
+-(void)patchDocument:(CDVInvokedUrlCommand*)command;
+
+-(void)getDocuments:(CDVInvokedUrlCommand*)command;
+
+-(void)setWriteBehind:(CDVInvokedUrlCommand*)command;
+
+-(void)flush:(CDVInvokedUrlCommand*)command;
+
+-(void)getWriteBehindStatus:(CDVInvokedUrlCommand*)command;
+
+-(void)transaction:(CDVInvokedUrlCommand*)command;
+
+-(void)seedDatastore:(CDVInvokedUrlCommand*)command;
+
 +(CDTDocumentRevision*) convertJSONToDocument: (NSDictionary*)json error: (NSError**) error;
 +(NSDictionary*) convertDocumentToJSON: (CDTDocumentRevision*)document error: (NSError**) error;
 @end
@@ -25,6 +25,7 @@
 #define kCDTDocId @"_id"
 #define kCDTDocRev @"_rev"
 #define kCDTDocDeleted @"_deleted"
+#define kCDTDocNotModified @"_notModified"
 
 #define kCDTDocAttachments @"_attachments"
 #define kCDTDocAttachmentContentType @"content_type"
@@ -364,6 +365,7 @@
         __block CDVPluginResult* pluginResult = nil;
         NSString *name = [command argumentAtIndex:0];
         NSString *docId = [command argumentAtIndex:1];
+        NSString *knownRevId = [command argumentAtIndex:3];
 
         // Lookup store in cache
         CDTDatastore *cachedStore = [self.datastoreMap objectForKey:name];
@@ -371,7 +373,11 @@
             // perform fetch
             NSError *error = nil;
             CDTDocumentRevision *fetchedRevision = [cachedStore getDocumentWithId:docId error:&error];
-            if(!error){
+            if(!error && knownRevId && [knownRevId isEqualToString:fetchedRevision.revId]){
+                // The caller already has the current revision
+                NSDictionary *result = @{kCDTDocId: fetchedRevision.docId, kCDTDocRev: fetchedRevision.revId, kCDTDocNotModified: @YES};
+                pluginResult = [CDVPluginResult resultWithStatus:CDVCommandStatus_OK messageAsDictionary:result];
+            } else if(!error){
                 NSError *jsonConversionError = nil;
                 NSDictionary *result = [CDTSyncPlugin convertDocumentToJSON:fetchedRevision error:&jsonConversionError];
                 if(!jsonConversionError){
@@ -478,6 +484,45 @@
     }];
 }
 
+-(void)ensureTextIndexed:(CDVInvokedUrlCommand *)command
+{
+    [self.commandDelegate runInBackground:^{
+        CDVPluginResult* pluginResult = nil;
+        NSString *name = [command argumentAtIndex:0];
+        NSArray *fields = [command argumentAtIndex:2];
+        NSString *indexName = [command argumentAtIndex:1];
+        NSString *tokenizer = [command argumentAtIndex:3];
+
+        // Lookup store in cache
+        CDTDatastore *cachedStore = [self.datastoreMap objectForKey:name];
+        if(cachedStore){
+            if(![cachedStore isTextSearchEnabled]){
+                NSString *message = NSLocalizedString(@"Text search is not supported by the SQLite library on this device", nil);
+                pluginResult = [CDVPluginResult resultWithStatus:CDVCommandStatus_ERROR messageAsString:message];
+                [self.commandDelegate sendPluginResult:pluginResult callbackId:command.callbackId];
+                return;
+            }
+
+            NSDictionary *settings = tokenizer ? @{@"tokenize" : tokenizer} : nil;
+            NSString *message = [cachedStore ensureIndexed:fields withName:indexName ofType:CDTQIndexTypeText settings:settings];
+            if(message){
+                pluginResult = [CDVPluginResult resultWithStatus:CDVCommandStatus_OK messageAsString:message];
+            } else {
+                pluginResult = [CDVPluginResult resultWithStatus:CDVCommandStatus_ERROR messageAsString:[NSString stringWithFormat: NSLocalizedString(@"Text index create error: the index %@ could not be created", nil), indexName]];
+            }
+            [self.commandDelegate sendPluginResult:pluginResult callbackId:command.callbackId];
+            return;
+        } else {
+            // No cached store was found.  error
+            NSString *message = [NSString stringWithFormat: NSLocalizedString(@"Index create error: the store named %@ must first be created", nil), name];
+            NSLog(@"%@",message);
+            pluginResult = [CDVPluginResult resultWithStatus:CDVCommandStatus_ERROR messageAsString:message];
+            [self.commandDelegate sendPluginResult:pluginResult callbackId:command.callbackId];
+            return;
+        }
+    }];
+}
+
 -(void)deleteIndexNamed:(CDVInvokedUrlCommand *)command
 {
     [self.commandDelegate runInBackground:^{
@@ -577,9 +622,37 @@
         CDTReplicator *replicator = nil;
         CDTSyncPluginInterceptor *interceptor = [[CDTSyncPluginInterceptor alloc] initWithCommandDelegate:self.commandDelegate callbackId:command.callbackId];
         if ([type isEqualToString:@"pull"]){
+            if ([replicatorJson objectForKey:@"selector"]){
+                NSString *message = NSLocalizedString(@"createReplicator error: selector is not supported on iOS", nil);
+                NSLog(@"%@",message);
+                pluginResult = [CDVPluginResult resultWithStatus:CDVCommandStatus_ERROR messageAsString:message];
+                [self.commandDelegate sendPluginResult:pluginResult callbackId:command.callbackId];
+                return;
+            }
+
+            if ([replicatorJson objectForKey:@"conflictResolution"]){
+                NSString *message = NSLocalizedString(@"createReplicator error: conflictResolution is not supported on iOS", nil);
+                NSLog(@"%@",message);
+                pluginResult = [CDVPluginResult resultWithStatus:CDVCommandStatus_ERROR messageAsString:message];
+                [self.commandDelegate sendPluginResult:pluginResult callbackId:command.callbackId];
+                return;
+            }
+
             // pull replication
             CDTPullReplication *pull = [CDTPullReplication replicationWithSource:url target:localstore];
             [pull addInterceptor:interceptor];
+
+            NSDictionary *filter = [replicatorJson objectForKey:@"filter"];
+            NSArray *docIds = [replicatorJson objectForKey:@"doc_ids"];
+            if (filter){
+                pull.filter = [filter objectForKey:@"name"];
+                pull.filterParams = [filter objectForKey:@"params"];
+            } else if (docIds){
+                // The built-in _doc_ids filter takes the IDs as a JSON array parameter
+                NSData *docIdsData = [NSJSONSerialization dataWithJSONObject:docIds options:0 error:nil];
+                pull.filter = @"_doc_ids";
+                pull.filterParams = @{@"doc_ids" : [[NSString alloc] initWithData:docIdsData encoding:NSUTF8StringEncoding]};
+            }
             CDTReplicatorFactory *replicatorFactory = [[CDTReplicatorFactory alloc] initWithDatastoreManager: localstore.manager];
             replicator = [replicatorFactory oneWay:pull error:&error];
         } else if ([type isEqualToString:@"push"]){
@@ -783,6 +856,16 @@
         CDTDatastore *cachedStore = [self.datastoreMap objectForKey:name];
         if(cachedStore){
             NSArray *docIds = [cachedStore getConflictedDocumentIds];
+
+            // Optional paging arguments
+            id offsetArg = [command argumentAtIndex:1];
+            id limitArg = [command argumentAtIndex:2];
+            NSUInteger offset = [offsetArg isKindOfClass:[NSNumber class]] ? [offsetArg unsignedIntegerValue] : 0;
+            NSUInteger limit = [limitArg isKindOfClass:[NSNumber class]] ? [limitArg unsignedIntegerValue] : docIds.count;
+            offset = MIN(offset, docIds.count);
+            limit = MIN(limit, docIds.count - offset);
+            docIds = [docIds subarrayWithRange:NSMakeRange(offset, limit)];
+
             pluginResult = [CDVPluginResult resultWithStatus:CDVCommandStatus_OK messageAsArray:docIds];
         } else {
             // No cached store was found.  error
@@ -793,6 +876,54 @@
     }];
 }
 
+- (void)countConflicts:(CDVInvokedUrlCommand*)command
+{
+    [self.commandDelegate runInBackground:^{
+        CDVPluginResult* pluginResult = nil;
+        NSString *name = [command argumentAtIndex:0];
+
+        // Lookup store in cache
+        CDTDatastore *cachedStore = [self.datastoreMap objectForKey:name];
+        if(cachedStore){
+            NSArray *docIds = [cachedStore getConflictedDocumentIds];
+            pluginResult = [CDVPluginResult resultWithStatus:CDVCommandStatus_OK messageAsNSUInteger:docIds.count];
+        } else {
+            // No cached store was found.  error
+            NSString *message = [NSString stringWithFormat: NSLocalizedString(@"Query error: the store named %@ must first be created", nil), name];
+            pluginResult = [CDVPluginResult resultWithStatus:CDVCommandStatus_ERROR messageAsString:message];
+        }
+        [self.commandDelegate sendPluginResult:pluginResult callbackId:command.callbackId];
+    }];
+}
+
+- (void)streamConflictedDocumentIds:(CDVInvokedUrlCommand*)command
+{
+    [self.commandDelegate runInBackground:^{
+        CDVPluginResult* pluginResult = nil;
+        NSString *name = [command argumentAtIndex:0];
+        id chunkSizeArg = [command argumentAtIndex:1];
+        NSUInteger chunkSize = [chunkSizeArg isKindOfClass:[NSNumber class]] ? MAX([chunkSizeArg unsignedIntegerValue], 1) : 500;
+
+        // Lookup store in cache
+        CDTDatastore *cachedStore = [self.datastoreMap objectForKey:name];
+        if(cachedStore){
+            NSArray *docIds = [cachedStore getConflictedDocumentIds];
+            for (NSUInteger offset = 0; offset < docIds.count; offset += chunkSize) {
+                NSArray *chunk = [docIds subarrayWithRange:NSMakeRange(offset, MIN(chunkSize, docIds.count - offset))];
+                CDVPluginResult *chunkResult = [CDVPluginResult resultWithStatus:CDVCommandStatus_OK messageAsArray:chunk];
+                [chunkResult setKeepCallbackAsBool:YES];
+                [self.commandDelegate sendPluginResult:chunkResult callbackId:command.callbackId];
+            }
+            pluginResult = [CDVPluginResult resultWithStatus:CDVCommandStatus_OK messageAsDictionary:@{@"total": @(docIds.count)}];
+        } else {
+            // No cached store was found.  error
+            NSString *message = [NSString stringWithFormat: NSLocalizedString(@"Query error: the store named %@ must first be created", nil), name];
+            pluginResult = [CDVPluginResult resultWithStatus:CDVCommandStatus_ERROR messageAsString:message];
+        }
+        [self.commandDelegate sendPluginResult:pluginResult callbackId:command.callbackId];
+    }];
+}
+
 - (void)resolveConflictsForDocument:(CDVInvokedUrlCommand*)command
 {
     [self.commandDelegate runInBackground:^{
@@ -847,6 +978,181 @@
     }];
 }
 
+#pragma mark - Android only operations
+// These actions are implemented natively on Android only. Respond with an error so that the
+// JavaScript promise is rejected rather than left pending.
+- (void)sendUnsupportedResult:(CDVInvokedUrlCommand*)command
+{
+    NSString *message = [NSString stringWithFormat:NSLocalizedString(@"%@ is not supported on iOS", nil), command.methodName];
+    CDVPluginResult *pluginResult = [CDVPluginResult resultWithStatus:CDVCommandStatus_ERROR messageAsString:message];
+    [self.commandDelegate sendPluginResult:pluginResult callbackId:command.callbackId];
+}
+
+- (void)scheduleReplication:(CDVInvokedUrlCommand*)command
+{
+    [self sendUnsupportedResult:command];
+}
+
+- (void)unscheduleReplication:(CDVInvokedUrlCommand*)command
+{
+    [self sendUnsupportedResult:command];
+}
+
+- (void)getReplicationSchedule:(CDVInvokedUrlCommand*)command
+{
+    [self sendUnsupportedResult:command];
+}
+
+- (void)setMaxConcurrentReplications:(CDVInvokedUrlCommand*)command
+{
+    [self sendUnsupportedResult:command];
+}
+
+- (void)getReplicationQueueMetrics:(CDVInvokedUrlCommand*)command
+{
+    [self sendUnsupportedResult:command];
+}
+
+- (void)resolveAllConflicts:(CDVInvokedUrlCommand*)command
+{
+    [self sendUnsupportedResult:command];
+}
+
+- (void)resolveConflictsInBatches:(CDVInvokedUrlCommand*)command
+{
+    [self sendUnsupportedResult:command];
+}
+
+- (void)returnResolvedDocuments:(CDVInvokedUrlCommand*)command
+{
+    [self sendUnsupportedResult:command];
+}
+
+- (void)setMetricsEnabled:(CDVInvokedUrlCommand*)command
+{
+    [self sendUnsupportedResult:command];
+}
+
+- (void)getMetrics:(CDVInvokedUrlCommand*)command
+{
+    [self sendUnsupportedResult:command];
+}
+
+- (void)resetMetrics:(CDVInvokedUrlCommand*)command
+{
+    [self sendUnsupportedResult:command];
+}
+
+- (void)setTracingEnabled:(CDVInvokedUrlCommand*)command
+{
+    [self sendUnsupportedResult:command];
+}
+
+- (void)getTrace:(CDVInvokedUrlCommand*)command
+{
+    [self sendUnsupportedResult:command];
+}
+
+- (void)dumpTrace:(CDVInvokedUrlCommand*)command
+{
+    [self sendUnsupportedResult:command];
+}
+
+- (void)clearTrace:(CDVInvokedUrlCommand*)command
+{
+    [self sendUnsupportedResult:command];
+}
+
+- (void)startRecording:(CDVInvokedUrlCommand*)command
+{
+    [self sendUnsupportedResult:command];
+}
+
+- (void)stopRecording:(CDVInvokedUrlCommand*)command
+{
+    [self sendUnsupportedResult:command];
+}
+
+- (void)getMemoryUsage:(CDVInvokedUrlCommand*)command
+{
+    [self sendUnsupportedResult:command];
+}
+
+- (void)trimMemory:(CDVInvokedUrlCommand*)command
+{
+    [self sendUnsupportedResult:command];
+}
+
+- (void)setMemoryPolicy:(CDVInvokedUrlCommand*)command
+{
+    [self sendUnsupportedResult:command];
+}
+
+- (void)getSlowQueries:(CDVInvokedUrlCommand*)command
+{
+    [self sendUnsupportedResult:command];
+}
+
+- (void)setSlowQueryLog:(CDVInvokedUrlCommand*)command
+{
+    [self sendUnsupportedResult:command];
+}
+
+- (void)clearSlowQueries:(CDVInvokedUrlCommand*)command
+{
+    [self sendUnsupportedResult:command];
+}
+
+- (void)adviseIndexes:(CDVInvokedUrlCommand*)command
+{
+    [self sendUnsupportedResult:command];
+}
+
+- (void)getBackgroundIndexing:(CDVInvokedUrlCommand*)command
+{
+    [self sendUnsupportedResult:command];
+}
+
+- (void)setBackgroundIndexing:(CDVInvokedUrlCommand*)command
+{
+    [self sendUnsupportedResult:command];
+}
+
+- (void)patchDocument:(CDVInvokedUrlCommand*)command
+{
+    [self sendUnsupportedResult:command];
+}
+
+- (void)getDocuments:(CDVInvokedUrlCommand*)command
+{
+    [self sendUnsupportedResult:command];
+}
+
+- (void)setWriteBehind:(CDVInvokedUrlCommand*)command
+{
+    [self sendUnsupportedResult:command];
+}
+
+- (void)flush:(CDVInvokedUrlCommand*)command
+{
+    [self sendUnsupportedResult:command];
+}
+
+- (void)getWriteBehindStatus:(CDVInvokedUrlCommand*)command
+{
+    [self sendUnsupportedResult:command];
+}
+
+- (void)transaction:(CDVInvokedUrlCommand*)command
+{
+    [self sendUnsupportedResult:command];
+}
+
+- (void)seedDatastore:(CDVInvokedUrlCommand*)command
+{
+    [self sendUnsupportedResult:command];
+}
+
 #pragma mark - JSON to Document Helpers
 +(CDTDocumentRevision*) convertJSONToDocument: (NSDictionary*)json error: (NSError**) error
 {
@@ -14,6 +14,7 @@
  */
 
 var DatastoreManager = require('cloudant-sync.DatastoreManager').DatastoreManager;
+var Q = require('cloudant-sync.q');
 var DBName = 'cruddb';
 exports.defineAutoTests = function() {
   describe('Datastore', function() {
@@ -706,6 +707,351 @@ exports.defineAutoTests = function() {
                             })
                             .fin(done);
           });
+
+          it('patches a document revision', function(done) {
+            if (typeof device !== 'undefined' && 'iOS' == device.platform) {
+              pending('Skipped: patchDocument is not supported on iOS');
+              done();
+              return;
+            }
+            var datastore = getDatastore(datastoreDescription);
+            expect(datastore).not.toBe(null);
+            var id;
+
+            datastore.createDocumentFromRevision({firstName: 'Todd',
+              numberOne: 1, tags: ['a']})
+                            .then(function(docRevision) {
+                              id = docRevision._id;
+                              return datastore.patchDocument(id,
+                                docRevision._rev, [
+                                  {op: 'set', path: 'address.city', value: 'Bristol'},
+                                  {op: 'unset', path: 'firstName'},
+                                  {op: 'increment', path: 'numberOne', value: 4},
+                                  {op: 'append', path: 'tags', value: 'b'},
+                                ]);
+                            })
+                            .then(function(saved) {
+                              expect(saved._id).toBe(id);
+                              expect(saved._rev.indexOf('2-')).toBe(0);
+                              return datastore.getDocument(id);
+                            })
+                            .then(function(patched) {
+                              expect(patched.address.city).toBe('Bristol');
+                              expect(patched.firstName).toBeUndefined();
+                              expect(patched.numberOne).toBe(5);
+                              expect(patched.tags).toEqual(['a', 'b']);
+                              // The first revision is no longer current
+                              return datastore.patchDocument(id, '1-x',
+                                [{op: 'increment', path: 'numberOne'}]);
+                            })
+                            .then(function() {
+                              expect(true).toBe(false);
+                            })
+                            .catch(function(error) {
+                              expect(error).not.toBe(null);
+                            })
+                            .fin(done);
+          });
+
+          it('returns not modified for a current known revision', function(done) {
+            var datastore = getDatastore(datastoreDescription);
+            expect(datastore).not.toBe(null);
+            var created;
+
+            datastore.createDocumentFromRevision({firstName: 'Todd'})
+                            .then(function(docRevision) {
+                              created = docRevision;
+                              return datastore.getDocument(created._id, created._rev);
+                            })
+                            .then(function(marker) {
+                              expect(marker._notModified).toBe(true);
+                              expect(marker._rev).toBe(created._rev);
+                              expect(marker.firstName).toBeUndefined();
+                              return datastore.getDocument(created._id, '1-stale');
+                            })
+                            .then(function(fetchedRevision) {
+                              expect(fetchedRevision._notModified).toBeUndefined();
+                              expect(fetchedRevision.firstName).toBe('Todd');
+                            })
+                            .catch(function(error) {
+                              expect(error).toBe(null);
+                            })
+                            .fin(done);
+          });
+
+          it('gets several documents, returning not modified markers', function(done) {
+            if (typeof device !== 'undefined' && 'iOS' == device.platform) {
+              pending('Skipped: getDocuments is not supported on iOS');
+              done();
+              return;
+            }
+            var datastore = getDatastore(datastoreDescription);
+            expect(datastore).not.toBe(null);
+            var first;
+            var second;
+
+            datastore.createDocumentFromRevision({firstName: 'Todd'})
+                            .then(function(docRevision) {
+                              first = docRevision;
+                              return datastore.createDocumentFromRevision({someParam: 'nobody'});
+                            })
+                            .then(function(docRevision) {
+                              second = docRevision;
+                              return datastore.getDocuments([
+                                {_id: first._id, _rev: first._rev},
+                                second._id,
+                                'missing-document',
+                              ]);
+                            })
+                            .then(function(results) {
+                              expect(results.length).toBe(3);
+                              expect(results[0]._notModified).toBe(true);
+                              expect(results[1].someParam).toBe('nobody');
+                              expect(results[2]).toBe(null);
+                            })
+                            .catch(function(error) {
+                              expect(error).toBe(null);
+                            })
+                            .fin(done);
+          });
+
+          it('applies a transaction of several operations', function(done) {
+            if (typeof device !== 'undefined' && 'iOS' == device.platform) {
+              pending('Skipped: transaction is not supported on iOS');
+              done();
+              return;
+            }
+            var datastore = getDatastore(datastoreDescription);
+            expect(datastore).not.toBe(null);
+            var order;
+            var item;
+
+            datastore.transaction([
+              {op: 'create', document: {type: 'order', items: 1}},
+              {op: 'create', document: {type: 'item', quantity: 2}},
+            ])
+                            .then(function(results) {
+                              expect(results.length).toBe(2);
+                              order = results[0];
+                              item = results[1];
+                              expect(order._rev.indexOf('1-')).toBe(0);
+                              return datastore.transaction([
+                                {op: 'update', document: {_id: order._id,
+                                  _rev: order._rev, type: 'order', items: 0}},
+                                {op: 'delete', document: item},
+                                {op: 'create', document: {type: 'note'}},
+                              ]);
+                            })
+                            .then(function(results) {
+                              expect(results.length).toBe(3);
+                              expect(results[0]._rev.indexOf('2-')).toBe(0);
+                              expect(results[1]._deleted).toBe(true);
+                              // The first revision of the order is no longer current
+                              return datastore.transaction([
+                                {op: 'create', document: {_id: 'transaction-rolled-back'}},
+                                {op: 'update', document: {_id: order._id,
+                                  _rev: order._rev, type: 'order', items: 5}},
+                              ]);
+                            })
+                            .then(function() {
+                              expect(true).toBe(false);
+                            }, function(error) {
+                              expect(error).not.toBe(null);
+                              return datastore.getDocument('transaction-rolled-back')
+                                .then(function() {
+                                  expect(true).toBe(false);
+                                }, function(error) {
+                                  expect(error).not.toBe(null);
+                                  return datastore.getDocument(order._id);
+                                });
+                            })
+                            .then(function(fetchedRevision) {
+                              expect(fetchedRevision.items).toBe(0);
+                            })
+                            .catch(function(error) {
+                              expect(error).toBe(null);
+                            })
+                            .fin(done);
+          });
+
+          it('throws applying a transaction with an invalid op', function() {
+            var datastore = getDatastore(datastoreDescription);
+            expect(function() {
+              datastore.transaction([{op: 'upsert', document: {}}]);
+            }).toThrow();
+            expect(function() {
+              datastore.transaction([{op: 'update', document: {name: 'x'}}]);
+            }).toThrow();
+          });
+
+          it('queues writes behind and flushes them', function(done) {
+            if (typeof device !== 'undefined' && 'iOS' == device.platform) {
+              pending('Skipped: write-behind is not supported on iOS');
+              done();
+              return;
+            }
+            var datastore = getDatastore(datastoreDescription);
+            expect(datastore).not.toBe(null);
+            var id;
+
+            datastore.setWriteBehind({batchSize: 10, flushInterval: 60000})
+                            .then(function(status) {
+                              expect(status.enabled).toBe(true);
+                              expect(status.batchSize).toBe(10);
+                              return datastore.createDocumentFromRevision({firstName: 'Todd'});
+                            })
+                            .then(function(queued) {
+                              expect(queued._queued).toBe(true);
+                              expect(queued._rev).toBeUndefined();
+                              id = queued._id;
+                              // Replaces the queued create
+                              return datastore.updateDocumentFromRevision({_id: id,
+                                _rev: '1-x', firstName: 'Tom'});
+                            })
+                            .then(function() {
+                              return datastore.getWriteBehindStatus();
+                            })
+                            .then(function(status) {
+                              expect(status.pending).toBe(1);
+                              expect(status.merged).toBe(1);
+                              // Reads flush the queue first
+                              return datastore.getDocument(id);
+                            })
+                            .then(function(fetchedRevision) {
+                              expect(fetchedRevision.firstName).toBe('Tom');
+                              expect(fetchedRevision._rev.indexOf('1-')).toBe(0);
+                              return datastore.createDocumentFromRevision({_id: id});
+                            })
+                            .then(function() {
+                              return datastore.flush();
+                            })
+                            .then(function(result) {
+                              expect(result.written).toBe(0);
+                              expect(result.failed.length).toBe(1);
+                              expect(result.failed[0]._id).toBe(id);
+                              return datastore.setWriteBehind(null);
+                            })
+                            .then(function(status) {
+                              expect(status.enabled).toBe(false);
+                            })
+                            .catch(function(error) {
+                              expect(error).toBe(null);
+                            })
+                            .fin(function() {
+                              return datastore.setWriteBehind(null);
+                            })
+                            .fin(done);
+          });
+
+          it('rebases an update from a revision an earlier flush superseded', function(done) {
+            if (typeof device !== 'undefined' && 'iOS' == device.platform) {
+              pending('Skipped: write-behind is not supported on iOS');
+              done();
+              return;
+            }
+            var datastore = getDatastore(datastoreDescription);
+            expect(datastore).not.toBe(null);
+            var created;
+
+            datastore.createDocumentFromRevision({count: 0})
+                            .then(function(docRevision) {
+                              created = docRevision;
+                              return datastore.setWriteBehind({flushInterval: 60000});
+                            })
+                            .then(function() {
+                              // The acknowledgement has no revision, so the caller
+                              // keeps updating from the one it knows
+                              return datastore.updateDocumentFromRevision({_id: created._id,
+                                _rev: created._rev, count: 1});
+                            })
+                            .then(function() {
+                              return datastore.flush();
+                            })
+                            .then(function(result) {
+                              expect(result.written).toBe(1);
+                              return datastore.updateDocumentFromRevision({_id: created._id,
+                                _rev: created._rev, count: 2});
+                            })
+                            .then(function() {
+                              return datastore.flush();
+                            })
+                            .then(function(result) {
+                              expect(result.written).toBe(1);
+                              expect(result.failed.length).toBe(0);
+                              return datastore.getWriteBehindStatus();
+                            })
+                            .then(function(status) {
+                              expect(status.rebased).toBe(1);
+                              return datastore.getDocument(created._id);
+                            })
+                            .then(function(fetchedRevision) {
+                              expect(fetchedRevision.count).toBe(2);
+                              expect(fetchedRevision._rev.indexOf('3-')).toBe(0);
+                            })
+                            .catch(function(error) {
+                              expect(error).toBe(null);
+                            })
+                            .fin(function() {
+                              return datastore.setWriteBehind(null);
+                            })
+                            .fin(done);
+          });
+
+          it('reads see a write queued while an identical read is in flight', function(done) {
+            if (typeof device !== 'undefined' && 'iOS' == device.platform) {
+              pending('Skipped: write-behind is not supported on iOS');
+              done();
+              return;
+            }
+            var datastore = getDatastore(datastoreDescription);
+            expect(datastore).not.toBe(null);
+            var created;
+
+            datastore.createDocumentFromRevision({firstName: 'Todd'})
+                            .then(function(docRevision) {
+                              created = docRevision;
+                              return datastore.setWriteBehind({flushInterval: 60000});
+                            })
+                            .then(function() {
+                              // The second read is made once the write is
+                              // acknowledged, while the first may still be in flight
+                              var first = datastore.getDocument(created._id);
+                              return datastore.updateDocumentFromRevision({_id: created._id,
+                                _rev: created._rev, firstName: 'Tom'})
+                                .then(function(queued) {
+                                  expect(queued._queued).toBe(true);
+                                  return Q.all([first, datastore.getDocument(created._id)]);
+                                });
+                            })
+                            .then(function(results) {
+                              expect(results[1].firstName).toBe('Tom');
+                            })
+                            .catch(function(error) {
+                              expect(error).toBe(null);
+                            })
+                            .fin(function() {
+                              return datastore.setWriteBehind(null);
+                            })
+                            .fin(done);
+          });
+
+          it('throws setting write-behind with invalid options', function() {
+            var datastore = getDatastore(datastoreDescription);
+            expect(function() {
+              datastore.setWriteBehind({batchSize: 0});
+            }).toThrow();
+            expect(function() {
+              datastore.setWriteBehind({flushInterval: -1});
+            }).toThrow();
+          });
+
+          it('throws patching with an unknown op', function() {
+            var datastore = getDatastore(datastoreDescription);
+            expect(function() {
+              datastore.patchDocument('doc', '1-x',
+                [{op: 'replace', path: 'name'}]);
+            }).toThrow();
+          });
         }); // End-Promises-describe-block
       });
     }
@@ -897,6 +897,59 @@ exports.defineAutoTests = function () {
                   .fin(done);
         });
 
+        it('count the conflicted docs', function (done) {
+          localStore1.countConflicts()
+                  .then(function (count) {
+                    expect(count).toBe(3);
+                  })
+                  .catch(function (error) {
+                    expect(error).toBe(null);
+                  })
+                  .fin(done);
+        });
+
+        it('get the conflicted doc ids a page at a time', function (done) {
+          var pages = [];
+          localStore1.getConflictedDocumentIds({offset: 0, limit: 2})
+                  .then(function (docIds) {
+                    expect(docIds.length).toBe(2);
+                    pages = pages.concat(docIds);
+                    return localStore1.getConflictedDocumentIds({offset: 2, limit: 2});
+                  })
+                  .then(function (docIds) {
+                    expect(docIds.length).toBe(1);
+                    pages = pages.concat(docIds);
+                    checkConflictedDocIds({expected: ['doc1', 'doc2', 'doc3'], actual: pages});
+                  })
+                  .catch(function (error) {
+                    expect(error).toBe(null);
+                  })
+                  .fin(done);
+        });
+
+        it('stream the conflicted doc ids in chunks', function (done) {
+          var chunks = [];
+          localStore1.streamConflictedDocumentIds({chunkSize: 2}, function (docIds) {
+            chunks.push(docIds);
+          })
+                  .then(function (total) {
+                    expect(total).toBe(3);
+                    expect(chunks.length).toBe(2);
+                    checkConflictedDocIds({expected: ['doc1', 'doc2', 'doc3'],
+                      actual: chunks[0].concat(chunks[1])});
+                  })
+                  .catch(function (error) {
+                    expect(error).toBe(null);
+                  })
+                  .fin(done);
+        });
+
+        it('throws error if limit is negative', function () {
+          expect(function () {
+            localStore1.getConflictedDocumentIds({limit: -1});
+          }).toThrowError('limit must be a non-negative integer');
+        });
+
         it('resolve the conflicts for doc1', function (done) {
           var conflictResolver = {
             resolver: function (docId, documentRevisions) {
@@ -1245,6 +1298,192 @@ exports.defineAutoTests = function () {
 
       }); // describe - Attachment conflicts
 
+      describe('Native resolution of all conflicts', function () {
+
+        function skipOnIOS() {
+          if (typeof device !== 'undefined' && 'iOS' == device.platform) {
+            // On iOS, mark this test as pending, so as to differentiate it from fail/success.
+            pending('Skipped: resolveAllConflicts is not supported on iOS');
+            return true;
+          }
+          return false;
+        }
+
+        it('throws error for an unknown strategy', function () {
+          expect(function () {
+            localStore1.resolveAllConflicts('newest');
+          }).toThrowError('strategy must be one of deterministic, latest or merge');
+        });
+
+        it('create two conflicted documents', function (done) {
+          if (skipOnIOS()) {
+            done();
+          } else {
+            createConflictedDocs(['merge1', 'merge2']).then(done);
+          }
+        });
+
+        it('resolve all conflicts by merging fields', function (done) {
+          if (skipOnIOS()) {
+            done();
+          } else {
+            localStore1.resolveAllConflicts('merge', {batchSize: 1})
+                    .then(function (summary) {
+                      expect(summary.strategy).toBe('merge');
+                      expect(summary.conflicted).toBe(2);
+                      expect(summary.resolved).toBe(2);
+                      expect(summary.failed).toBe(0);
+                      expect(summary.batches).toBe(2);
+                      return localStore1.getConflictedDocumentIds();
+                    })
+                    .then(function (docIds) {
+                      checkConflictedDocIds({expected: [], actual: docIds});
+                      return localStore1.getDocument('merge1');
+                    })
+                    .then(function (docRevision) {
+                      // Each branch of the conflict contributes its field
+                      expect(docRevision.foo2b).toBe('bar2b');
+                      expect(docRevision.foo2c).toBe('bar2c');
+                    })
+                    .catch(function (error) {
+                      expect(error).toBe(null);
+                    })
+                    .fin(done);
+          }
+        });
+      }); // describe - Native resolution of all conflicts
+
+      describe('Batched resolution of conflicts', function () {
+
+        function skipOnIOS() {
+          if (typeof device !== 'undefined' && 'iOS' == device.platform) {
+            // On iOS, mark this test as pending, so as to differentiate it from fail/success.
+            pending('Skipped: resolveConflictsInBatches is not supported on iOS');
+            return true;
+          }
+          return false;
+        }
+
+        it('throws error if conflictResolver is not a function', function () {
+          expect(function () {
+            localStore1.resolveConflictsInBatches('resolver');
+          }).toThrowError('conflictResolver must be a function');
+        });
+
+        it('create three conflicted documents', function (done) {
+          if (skipOnIOS()) {
+            done();
+          } else {
+            createConflictedDocs(['batch1', 'batch2', 'batch3']).then(done);
+          }
+        });
+
+        it('resolve the conflicts in batches of two', function (done) {
+          if (skipOnIOS()) {
+            done();
+          } else {
+            var batchSizes = [];
+            var conflictResolver = function (documents) {
+              batchSizes.push(documents.length);
+              return documents.map(function (document) {
+                expect(document.conflicts.length).toBe(2);
+                // Leave batch3 conflicted
+                if (document.docId === 'batch3') {
+                  return null;
+                }
+                var resolvedDoc = document.conflicts[0];
+                resolvedDoc.fooResolved = 'barResolved';
+                return resolvedDoc;
+              });
+            };
+
+            localStore1.resolveConflictsInBatches(conflictResolver, {batchSize: 2})
+                    .then(function (summary) {
+                      expect(batchSizes.sort()).toEqual([1, 2]);
+                      expect(summary.conflicted).toBe(3);
+                      expect(summary.resolved).toBe(2);
+                      expect(summary.unchanged).toBe(1);
+                      expect(summary.failed).toBe(0);
+                      expect(summary.timedOut).toBe(0);
+                      return localStore1.getConflictedDocumentIds();
+                    })
+                    .then(function (docIds) {
+                      checkConflictedDocIds({expected: ['batch3'], actual: docIds});
+                      return localStore1.getDocument('batch1');
+                    })
+                    .then(function (docRevision) {
+                      expect(docRevision.fooResolved).toBe('barResolved');
+                    })
+                    .catch(function (error) {
+                      expect(error).toBe(null);
+                    })
+                    .fin(done);
+          }
+        });
+      }); // describe - Batched resolution of conflicts
+
+      describe('Conflict resolution after pull replication', function () {
+
+        it('throws error if conflictResolution is set for push replication', function () {
+          expect(function () {
+            Replicator.create({
+              source: localStore1,
+              target: uri,
+              conflictResolution: 'deterministic'
+            });
+          }).toThrowError('conflictResolution is only supported for pull replication');
+        });
+
+        it('resolve conflicts when the pull replication completes', function (done) {
+          if (typeof device !== 'undefined' && 'iOS' == device.platform) {
+            // On iOS, mark this test as pending, so as to differentiate it from fail/success.
+            pending('Skipped: conflictResolution is not supported on iOS');
+            done();
+            return;
+          }
+
+          // Create the conflicts, then push the conflicting revisions from
+          // datastore 1 and pull them into datastore 2 with resolution enabled.
+          var resolvingPull;
+          createConflictedDocs(['auto1'])
+                  .then(function () {
+                    return replicate(pushFromStore1);
+                  })
+                  .then(function () {
+                    return Replicator.create({
+                      source: uri,
+                      target: localStore2,
+                      conflictResolution: 'deterministic'
+                    });
+                  })
+                  .then(function (replicator) {
+                    var deferred = Q.defer();
+                    resolvingPull = replicator;
+                    replicator.on('complete', function (numDocs, numConflictsResolved) {
+                      deferred.resolve(numConflictsResolved);
+                    });
+                    replicator.on('error', function (message) {
+                      deferred.reject(new Error(message));
+                    });
+                    replicator.start();
+                    return deferred.promise;
+                  })
+                  .then(function (numConflictsResolved) {
+                    // Conflicts left by earlier tests may also be pulled and resolved
+                    expect(numConflictsResolved).toBeGreaterThan(0);
+                    return localStore2.getConflictedDocumentIds();
+                  })
+                  .then(function (docIds) {
+                    expect(docIds).not.toContain('auto1');
+                    return resolvingPull.destroy();
+                  })
+                  .catch(function (error) {
+                    expect(error).toBe(null);
+                  })
+                  .fin(done);
+        });
+      }); // describe - Conflict resolution after pull replication
+
     }); // End-Promises-describe-block
   });
 };
@@ -381,5 +381,79 @@ exports.defineAutoTests = function() {
         });
       }); // End promise tests
     }); // End deleteDatastore tests
+
+    describe('.seedDatastore(name, options)', function() {
+      var seededName = 'testdbseeded';
+
+      afterEach(function(done) {
+        manager.deleteDatastore(seededName)
+            .fin(done);
+      });
+
+      it('should seed a new Datastore from NDJSON once', function(done) {
+        if (typeof device !== 'undefined' && 'iOS' == device.platform) {
+          pending('Skipped: seedDatastore is not supported on iOS');
+          done();
+        } else {
+          var store;
+          manager.seedDatastore(seededName, {asset: 'www/seed/people.ndjson'})
+                        .then(function(seededStore) {
+                          store = seededStore;
+                          expect(store.name).toBe(seededName);
+                          return store.getDocument('seed-alice');
+                        })
+                        .then(function(alice) {
+                          expect(alice.team).toBe('red');
+                          return store.updateDocumentFromRevision({
+                            _id: alice._id, _rev: alice._rev, name: 'Alice',
+                            team: 'blue'});
+                        })
+                        .then(function() {
+                          return store.close();
+                        })
+                        .then(function() {
+                          // An existing Datastore is opened as it is
+                          return manager.seedDatastore(seededName,
+                            {asset: 'www/seed/people.ndjson'});
+                        })
+                        .then(function(reopenedStore) {
+                          return reopenedStore.getDocument('seed-alice');
+                        })
+                        .then(function(alice) {
+                          expect(alice.team).toBe('blue');
+                        })
+                        .catch(function(error) {
+                          expect(error).toBe(null);
+                        })
+                        .fin(done);
+        }
+      });
+
+      it('should fail to seed from a missing asset', function(done) {
+        if (typeof device !== 'undefined' && 'iOS' == device.platform) {
+          pending('Skipped: seedDatastore is not supported on iOS');
+          done();
+        } else {
+          manager.seedDatastore(seededName, {asset: 'www/seed/missing'})
+                        .then(function() {
+                          expect(true).toBe(false);
+                        })
+                        .catch(function(error) {
+                          expect(error).not.toBe(null);
+                        })
+                        .fin(done);
+        }
+      });
+
+      it('should throw without an asset', function() {
+        expect(function() {
+          manager.seedDatastore(seededName, {});
+        }).toThrow();
+        expect(function() {
+          manager.seedDatastore(seededName, {asset: 'www/seed/people.ndjson',
+            format: 'csv'});
+        }).toThrow();
+      });
+    }); // End seedDatastore tests
   });
 };
@@ -14,6 +14,8 @@
  */
 
 var DatastoreManager = require('cloudant-sync.DatastoreManager').DatastoreManager;
+var Diagnostics = require('cloudant-sync.Diagnostics');
+var Q = require('cloudant-sync.q');
 
 var dbName = 'datastoretests';
 
@@ -105,4 +107,473 @@ exports.defineAutoTests = function() {
     });
   });
 
+  describe('metrics', function() {
+    afterEach(function(done) {
+      if (typeof device !== 'undefined' && 'iOS' == device.platform) {
+        done();
+      } else {
+        Diagnostics.setMetricsEnabled(false)
+          .then(function() {
+            return Diagnostics.resetMetrics();
+          }).fin(done);
+      }
+    });
+
+    it('records calls per action and datastore', function(done) {
+      if (typeof device !== 'undefined' && 'iOS' == device.platform) {
+        pending('Skipped: Metrics are not supported on iOS');
+      } else {
+        Diagnostics.resetMetrics()
+          .then(function() {
+            return Diagnostics.setMetricsEnabled(true);
+          }).then(function() {
+            return datastore.createDocumentFromRevision({hello: 'world'});
+          }).then(function(saved) {
+            return datastore.getDocument(saved._id);
+          }).then(function() {
+            return Diagnostics.getMetrics();
+          }).then(function(metrics) {
+            expect(metrics.enabled).toBe(true);
+            var action = metrics.actions.getDocument;
+            expect(action).toBeDefined();
+            expect(action.calls).toBe(1);
+            expect(action.errors).toBe(0);
+            expect(action.executionMicros.count).toBe(1);
+            expect(action.responseBytes.max).toBeGreaterThan(0);
+            expect(metrics.documentStores[dbName].calls).toBe(2);
+          }).catch(function(error) {
+            fail('Metrics should have been recorded: ' + error);
+          }).fin(done);
+      }
+    });
+
+    it('counts coalesced reads', function(done) {
+      if (typeof device !== 'undefined' && 'iOS' == device.platform) {
+        pending('Skipped: Metrics are not supported on iOS');
+      } else {
+        var id;
+        datastore.createDocumentFromRevision({hello: 'world'})
+          .then(function(saved) {
+            id = saved._id;
+            return Diagnostics.resetMetrics();
+          }).then(function() {
+            // Identical reads in flight together may share one execution
+            var reads = [];
+            for (var i = 0; i < 5; i++) {
+              reads.push(datastore.getDocument(id));
+            }
+            return Q.all(reads);
+          }).then(function(documents) {
+            documents.forEach(function(document) {
+              expect(document._id).toBe(id);
+              expect(document.hello).toBe('world');
+            });
+            return Diagnostics.getMetrics();
+          }).then(function(metrics) {
+            var counts = metrics.coalescing.actions.getDocument;
+            expect(counts.executed + counts.coalesced).toBe(5);
+            expect(counts.executed).toBeGreaterThan(0);
+          }).catch(function(error) {
+            fail('Reads should have been counted: ' + error);
+          }).fin(done);
+      }
+    });
+
+    it('does not record calls when disabled', function(done) {
+      if (typeof device !== 'undefined' && 'iOS' == device.platform) {
+        pending('Skipped: Metrics are not supported on iOS');
+      } else {
+        Diagnostics.resetMetrics()
+          .then(function() {
+            return datastore.createDocumentFromRevision({hello: 'world'});
+          }).then(function() {
+            return Diagnostics.getMetrics();
+          }).then(function(metrics) {
+            expect(metrics.enabled).toBe(false);
+            expect(metrics.actions.createOrUpdateDocumentFromRevision).toBeUndefined();
+          }).catch(function(error) {
+            fail('Getting metrics should not have failed: ' + error);
+          }).fin(done);
+      }
+    });
+  });
+
+  describe('tracing', function() {
+    afterEach(function(done) {
+      if (typeof device !== 'undefined' && 'iOS' == device.platform) {
+        done();
+      } else {
+        Diagnostics.setTracingEnabled(false)
+          .then(function() {
+            return Diagnostics.clearTrace();
+          }).fin(done);
+      }
+    });
+
+    it('records the spans of a call with a shared trace id', function(done) {
+      if (typeof device !== 'undefined' && 'iOS' == device.platform) {
+        pending('Skipped: Tracing is not supported on iOS');
+      } else {
+        var id;
+        Diagnostics.clearTrace()
+          .then(function() {
+            return datastore.createDocumentFromRevision({hello: 'world'});
+          }).then(function(saved) {
+            id = saved._id;
+            return Diagnostics.setTracingEnabled(true);
+          }).then(function() {
+            return datastore.getDocument(id);
+          }).then(function() {
+            return Diagnostics.getTrace();
+          }).then(function(trace) {
+            var read = trace.traceEvents.filter(function(event) {
+              return event.cat === 'database' && event.name === 'read';
+            });
+            expect(read.length).toBe(1);
+            expect(read[0].ph).toBe('X');
+            expect(read[0].dur).toBeGreaterThan(0);
+
+            var traceId = read[0].args.traceId;
+            expect(traceId).toBeDefined();
+            var names = trace.traceEvents.filter(function(event) {
+              return event.args && event.args.traceId === traceId;
+            }).map(function(event) {
+              return event.name;
+            });
+            expect(names).toContain('queued');
+            expect(names).toContain('getDocument');
+            expect(names).toContain('buildJSON');
+            expect(names).toContain('sendPluginResult');
+          }).catch(function(error) {
+            fail('Trace should have been recorded: ' + error);
+          }).fin(done);
+      }
+    });
+
+    it('overwrites the oldest spans when full', function(done) {
+      if (typeof device !== 'undefined' && 'iOS' == device.platform) {
+        pending('Skipped: Tracing is not supported on iOS');
+      } else {
+        Diagnostics.setTracingEnabled(true, {capacity: 5})
+          .then(function() {
+            return datastore.createDocumentFromRevision({hello: 'world'});
+          }).then(function() {
+            return Diagnostics.getTrace();
+          }).then(function(trace) {
+            expect(trace.otherData.spans).toBe(5);
+            expect(trace.otherData.overwritten).toBeGreaterThan(0);
+            return Diagnostics.setTracingEnabled(false, {capacity: 10000});
+          }).catch(function(error) {
+            fail('Trace should have been recorded: ' + error);
+          }).fin(done);
+      }
+    });
+
+    it('fails to set a capacity which is not a positive integer', function() {
+      expect(function() {
+        Diagnostics.setTracingEnabled(true, {capacity: 0});
+      }).toThrow();
+    });
+  });
+
+  describe('recording', function() {
+    afterEach(function(done) {
+      if (typeof device !== 'undefined' && 'iOS' == device.platform) {
+        done();
+      } else {
+        // Stop any recording left running by a failed test
+        Diagnostics.stopRecording().fin(done);
+      }
+    });
+
+    it('records calls and returns a summary when stopped', function(done) {
+      if (typeof device !== 'undefined' && 'iOS' == device.platform) {
+        pending('Skipped: Recording is not supported on iOS');
+      } else {
+        Diagnostics.startRecording(null, {payloads: 'redact'})
+          .then(function(path) {
+            expect(path).toMatch(/cloudant-sync-recording\.ndjson$/);
+            return datastore.createDocumentFromRevision({hello: 'world'});
+          }).then(function(saved) {
+            return datastore.getDocument(saved._id);
+          }).then(function() {
+            return Diagnostics.stopRecording();
+          }).then(function(recording) {
+            expect(recording.payloads).toBe('redact');
+            // The two datastore calls and stopRecording itself
+            expect(recording.calls).toBe(3);
+            expect(recording.truncated).toBe(false);
+          }).catch(function(error) {
+            fail('Calls should have been recorded: ' + error);
+          }).fin(done);
+      }
+    });
+
+    it('stops recording after maxCalls', function(done) {
+      if (typeof device !== 'undefined' && 'iOS' == device.platform) {
+        pending('Skipped: Recording is not supported on iOS');
+      } else {
+        Diagnostics.startRecording(null, {maxCalls: 1})
+          .then(function() {
+            return datastore.createDocumentFromRevision({hello: 'world'});
+          }).then(function() {
+            return datastore.createDocumentFromRevision({hello: 'world'});
+          }).then(function() {
+            return Diagnostics.stopRecording();
+          }).then(function(recording) {
+            expect(recording.payloads).toBe('size');
+            expect(recording.calls).toBe(1);
+            expect(recording.truncated).toBe(true);
+          }).catch(function(error) {
+            fail('Calls should have been recorded: ' + error);
+          }).fin(done);
+      }
+    });
+
+    it('fails to record with an unknown payload mode', function() {
+      expect(function() {
+        Diagnostics.startRecording(null, {payloads: 'none'});
+      }).toThrow();
+    });
+  });
+
+  describe('binary encoding', function() {
+    var binaryStore;
+
+    beforeEach(function(done) {
+      manager.openDatastore(dbName, {binary: true})
+        .then(function(ds) {
+          binaryStore = ds;
+        }).fin(done);
+    });
+
+    it('round trips documents', function(done) {
+      var doc = {
+        text: 'h\u00e9llo \ud834\udd1e',
+        integer: -70000,
+        large: 9007199254740991,
+        real: 3.25,
+        flag: true,
+        nothing: null,
+        nested: {list: [1, 'two', {three: []}]},
+      };
+      binaryStore.createDocumentFromRevision(doc)
+        .then(function(saved) {
+          expect(saved._id).toBeDefined();
+          expect(saved._rev).toMatch(/^1-/);
+          return binaryStore.getDocument(saved._id);
+        }).then(function(fetched) {
+          expect(fetched.text).toBe(doc.text);
+          expect(fetched.integer).toBe(doc.integer);
+          expect(fetched.large).toBe(doc.large);
+          expect(fetched.real).toBe(doc.real);
+          expect(fetched.flag).toBe(true);
+          expect(fetched.nothing).toBe(null);
+          expect(fetched.nested).toEqual(doc.nested);
+          expect(fetched._deleted).toBe(false);
+          fetched.integer = 1;
+          return binaryStore.updateDocumentFromRevision(fetched);
+        }).then(function(updated) {
+          expect(updated._rev).toMatch(/^2-/);
+          expect(updated.integer).toBe(1);
+        }).catch(function(error) {
+          fail('Documents should round trip: ' + error);
+        }).fin(done);
+    });
+
+    it('returns the same documents as JSON', function(done) {
+      var binaryResults;
+      binaryStore.ensureIndexed(['kind'], 'kindIndex')
+        .then(function() {
+          return binaryStore.createDocumentFromRevision({kind: 'a', n: 1,
+            _attachments: {'a.txt': {content_type: 'text/plain',
+              data: 'aGVsbG8='}}});
+        }).then(function() {
+          return binaryStore.find({selector: {kind: 'a'}});
+        }).then(function(results) {
+          binaryResults = results;
+          return datastore.find({selector: {kind: 'a'}});
+        }).then(function(results) {
+          expect(binaryResults.length).toBe(1);
+          expect(binaryResults).toEqual(results);
+        }).catch(function(error) {
+          fail('Results should match: ' + error);
+        }).fin(done);
+    });
+
+    it('fails to open with a non-Boolean binary option', function() {
+      expect(function() {
+        manager.openDatastore(dbName, {binary: 'yes'});
+      }).toThrow();
+    });
+  });
+
+  describe('memory', function() {
+    afterEach(function(done) {
+      if (typeof device !== 'undefined' && 'iOS' == device.platform) {
+        done();
+      } else {
+        // Restore the default policy so idle datastores stay open in later
+        // tests
+        Diagnostics.setMemoryPolicy({idleTimeout: 60000, reliefDelay: 60000,
+          criticalPriority: 1, maxFindResults: 1000}).fin(done);
+      }
+    });
+
+    it('reports memory usage', function(done) {
+      if (typeof device !== 'undefined' && 'iOS' == device.platform) {
+        pending('Skipped: Memory management is not supported on iOS');
+      } else {
+        Diagnostics.getMemoryUsage()
+          .then(function(usage) {
+            expect(usage.heap.max).toBeGreaterThan(0);
+            expect(usage.documentStores.open).toContain(dbName);
+            expect(usage.policy.maxFindResults).toBe(1000);
+          }).catch(function(error) {
+            fail('Memory usage should have been returned: ' + error);
+          }).fin(done);
+      }
+    });
+
+    it('closes idle datastores under pressure and reopens them when used',
+      function(done) {
+      if (typeof device !== 'undefined' && 'iOS' == device.platform) {
+        pending('Skipped: Memory management is not supported on iOS');
+      } else {
+        var id;
+        datastore.createDocumentFromRevision({hello: 'world'})
+          .then(function(saved) {
+            id = saved._id;
+            return Diagnostics.setMemoryPolicy({idleTimeout: 0,
+              reliefDelay: 100});
+          }).then(function() {
+            return Diagnostics.trimMemory(60);
+          }).then(function(usage) {
+            expect(usage.pressure.tier).toBe('low');
+            expect(usage.documentStores.closedWhileIdle).toContain(dbName);
+            return datastore.getDocument(id);
+          }).then(function(document) {
+            expect(document.hello).toBe('world');
+            return Diagnostics.getMemoryUsage();
+          }).then(function(usage) {
+            expect(usage.documentStores.open).toContain(dbName);
+            // Released when the getDocument call completed
+            expect(usage.documentStores.inUse).not.toContain(dbName);
+            expect(usage.counters.storesReopened).toBeGreaterThan(0);
+          }).catch(function(error) {
+            fail('The datastore should have been reopened: ' + error);
+          }).fin(done);
+      }
+    });
+
+    it('fails to set a negative idle timeout', function() {
+      expect(function() {
+        Diagnostics.setMemoryPolicy({idleTimeout: -1});
+      }).toThrow();
+    });
+  });
+
+  describe('slow queries', function() {
+    afterEach(function(done) {
+      if (typeof device !== 'undefined' && 'iOS' == device.platform) {
+        done();
+      } else {
+        Diagnostics.setSlowQueryLog({thresholdMillis: 100}).fin(done);
+      }
+    });
+
+    it('logs slow queries and advises indexes', function(done) {
+      if (typeof device !== 'undefined' && 'iOS' == device.platform) {
+        pending('Skipped: the slow query log is not supported on iOS');
+        done();
+      } else {
+        // A threshold of 0 logs every find
+        Diagnostics.setSlowQueryLog({thresholdMillis: 0})
+          .then(function() {
+            return datastore.createDocumentFromRevision({shade: 'teal'});
+          }).then(function() {
+            return datastore.find({selector: {shade: 'teal'}});
+          }).then(function(results) {
+            expect(results.length).toBeGreaterThan(0);
+            return Diagnostics.getSlowQueries(dbName);
+          }).then(function(log) {
+            var entry = log.entries[log.entries.length - 1];
+            expect(entry.documentStore).toBe(dbName);
+            expect(entry.index).toBeNull();
+            expect(JSON.stringify(entry.selector)).toContain('shade');
+            expect(JSON.stringify(entry.selector)).not.toContain('teal');
+            return datastore.adviseIndexes({create: true});
+          }).then(function(suggestions) {
+            var advised = suggestions.filter(function(suggestion) {
+              return suggestion.fields.indexOf('shade') != -1;
+            });
+            expect(advised.length).toBe(1);
+            expect(advised[0].created).toBe(true);
+            return datastore.deleteIndexNamed(advised[0].name);
+          }).catch(function(error) {
+            fail('The query should have been logged: ' + error);
+          }).fin(done);
+      }
+    });
+
+    it('fails to set a non-positive capacity', function() {
+      expect(function() {
+        Diagnostics.setSlowQueryLog({capacity: 0});
+      }).toThrow();
+    });
+  });
+
+  describe('background indexing', function() {
+    var indexing = require('cloudant-sync.DatastoreManager');
+
+    afterEach(function(done) {
+      if (typeof device !== 'undefined' && 'iOS' == device.platform) {
+        done();
+      } else {
+        indexing.setBackgroundIndexing({enabled: true, debounce: 1000,
+          maxDelay: 10000}).fin(done);
+      }
+    });
+
+    it('returns kept results for stale queries', function(done) {
+      if (typeof device !== 'undefined' && 'iOS' == device.platform) {
+        pending('Skipped: stale queries are not supported on iOS');
+        done();
+      } else {
+        var query = {selector: {tint: 'amber' + Date.now()}, stale: 'ok'};
+        // A long debounce keeps the first result until the end of the test
+        indexing.setBackgroundIndexing({debounce: 60000, maxDelay: 60000})
+          .then(function() {
+            return datastore.createDocumentFromRevision(
+              {tint: query.selector.tint});
+          }).then(function() {
+            return datastore.find(query);
+          }).then(function(results) {
+            expect(results.length).toBe(1);
+            return datastore.createDocumentFromRevision(
+              {tint: query.selector.tint});
+          }).then(function() {
+            return datastore.find(query);
+          }).then(function(results) {
+            expect(results.length).toBe(1);
+            return datastore.find({selector: query.selector});
+          }).then(function(results) {
+            expect(results.length).toBe(2);
+            return indexing.getBackgroundIndexing();
+          }).then(function(state) {
+            expect(state.staleHits).toBeGreaterThan(0);
+            expect(state.pending).toContain(dbName);
+          }).catch(function(error) {
+            fail('The stale query should have returned the kept result: ' + error);
+          }).fin(done);
+      }
+    });
+
+    it('fails to find with an unknown stale option', function() {
+      expect(function() {
+        datastore.find({selector: {tint: 'amber'}, stale: 'later'});
+      }).toThrow();
+    });
+  });
+
 };
@@ -904,6 +904,40 @@ exports.defineAutoTests = function() {
                             .fin(done);
           });
 
+          it('should perform a text search', function(done) {
+            var datastore = getDatastore(datastoreDescription);
+            expect(datastore).not.toBe(null);
+
+            var query = {
+              selector: {
+                $text: {
+                  $search: nameValue + 7,
+                },
+              },
+            };
+
+            datastore.ensureTextIndexed([nameKey], 'nameTextIndex')
+                            .then(function(result) {
+                              expect(result).toBe('nameTextIndex');
+                              return datastore.find(query);
+                            })
+                            .then(function(results) {
+                              expect(results.length).toBe(1);
+                              expect(results[0][ageKey]).toBe(7);
+                            })
+                            .catch(function(error) {
+                              expect(error).toBe(null);
+                            })
+                            .fin(done);
+          });
+
+          it('should throw for a tokenizer of the wrong type', function() {
+            var datastore = getDatastore(datastoreDescription);
+            expect(function() {
+              datastore.ensureTextIndexed([nameKey], 'nameTextIndex', 7);
+            }).toThrow();
+          });
+
           describe('Query negative tests', function() {
 
             it('should throw for null query options', function(done) {
@@ -23,6 +23,7 @@ try {
 }
 var TestUtil = require('cloudant-sync-tests.TestUtil');
 var Q = require('cloudant-sync.q');
+var Diagnostics = require('cloudant-sync.Diagnostics');
 
 exports.defineAutoTests = function() {
 
@@ -158,6 +159,8 @@ exports.defineAutoTests = function() {
                 expect(replicator.uri).toBe(uri);
                 replicator.uri = baduri; // Assert readonly
                 expect(replicator.uri).not.toBe(baduri);
+
+                expect(replicator.hasInterceptors).toBe(true);
                 done();
               });
             } catch (e) {
@@ -244,6 +247,8 @@ exports.defineAutoTests = function() {
                 expect(replicator.uri).toBe(uri);
                 replicator.uri = baduri; // Assert readonly
                 expect(replicator.uri).not.toBe(baduri);
+
+                expect(replicator.hasInterceptors).toBe(false);
                 done();
               });
             } catch (e) {
@@ -2050,6 +2055,211 @@ exports.defineAutoTests = function() {
           }); // End-promises-tests
         }); // End-stop-tests
 
+        describe('.setMaxConcurrentReplications(max, [callback])', function() {
+          afterEach(function(done) {
+            if (typeof device !== 'undefined' && 'iOS' == device.platform) {
+              done();
+            } else {
+              Replicator.setMaxConcurrentReplications(0).fin(done);
+            }
+          });
+
+          it('throws error if max is negative', function() {
+            expect(function() {
+              Replicator.setMaxConcurrentReplications(-1);
+            }).toThrowError('max must be a non-negative integer');
+          });
+
+          it('throws error if priority is not an integer', function() {
+            expect(function() {
+              Replicator.create({
+                source: uri,
+                target: getDatastore(storeDescription),
+                priority: 'high'
+              });
+            }).toThrowError('priority must be an integer');
+          });
+
+          it('should queue a replicator while the limit is reached', function(done) {
+            if (typeof device !== 'undefined' && 'iOS' == device.platform) {
+              // On iOS, mark this test as pending, so as to differentiate it from fail/success.
+              pending('Skipped: Replication limits are not supported on iOS');
+            } else {
+              var first = getReplicator('pull');
+              var second = getReplicator('push');
+
+              second.on('complete', function() {
+                Replicator.getQueueMetrics(true)
+                  .then(function(metrics) {
+                    expect(metrics.maxConcurrent).toBe(1);
+                    expect(metrics.startsQueued).toBe(1);
+                    expect(metrics.queued).toBe(0);
+                    expect(metrics.maxWaitTime).toBeGreaterThan(-1);
+                  })
+                  .catch(function(error) {
+                    expect(error).toBe(null);
+                  })
+                  .fin(done);
+              });
+
+              Replicator.setMaxConcurrentReplications(1)
+                .then(function() {
+                  return Replicator.getQueueMetrics(true);
+                })
+                .then(function() {
+                  return first.start();
+                })
+                .then(function() {
+                  return second.start();
+                })
+                .then(function() {
+                  return second.getStatus();
+                })
+                .then(function(status) {
+                  // The first replicator may already have completed
+                  if (status.queued) {
+                    expect(status.state).toBe('Pending');
+                    expect(status.queuePosition).toBe(1);
+                  }
+                })
+                .catch(function(error) {
+                  expect(error).toBe(null);
+                  done();
+                });
+            }
+          }, LONG_TIMEOUT);
+        });
+
+        describe('.schedule(options, [callback])', function() {
+          it('should contain methods schedule, unschedule and getSchedule', function() {
+            var replicator = getReplicator('push');
+            expect(replicator).not.toBe(null);
+
+            expect(replicator.schedule).toBeDefined();
+            expect(replicator.unschedule).toBeDefined();
+            expect(replicator.getSchedule).toBeDefined();
+          });
+
+          it('throws error if options is not an Object', function() {
+            var replicator = getReplicator('push');
+            expect(function() {
+              replicator.schedule('options');
+            }).toThrowError('schedule options must be an Object');
+          });
+
+          it('throws error if interval is negative', function() {
+            var replicator = getReplicator('push');
+            expect(function() {
+              replicator.schedule({interval: -1});
+            }).toThrowError('schedule option interval must be a non-negative Number');
+          });
+
+          it('throws error if jitter is greater than 1', function() {
+            var replicator = getReplicator('push');
+            expect(function() {
+              replicator.schedule({jitter: 2});
+            }).toThrowError('schedule option jitter must be between 0 and 1');
+          });
+
+          it('throws error if maxDelay is negative', function() {
+            var replicator = getReplicator('push');
+            expect(function() {
+              replicator.schedule({maxDelay: -1});
+            }).toThrowError('schedule option maxDelay must be a non-negative Number');
+          });
+
+          it('should debounce write triggered runs', function(done) {
+            if (typeof device !== 'undefined' && 'iOS' == device.platform) {
+              // On iOS, mark this test as pending, so as to differentiate it from fail/success.
+              pending('Skipped: Replication scheduling is not supported on iOS');
+            } else {
+              var replicator = getReplicator('push');
+              var datastore = getDatastore(storeDescription);
+              expect(replicator).not.toBe(null);
+
+              replicator.on('complete', function() {
+                replicator.getSchedule()
+                  .then(function(schedule) {
+                    // The three writes were coalesced into a single run
+                    expect(schedule.runs).toBe(1);
+                    expect(schedule.coalescedTriggers).toBe(2);
+                    return replicator.unschedule();
+                  })
+                  .catch(function(error) {
+                    expect(error).toBe(null);
+                  })
+                  .fin(done);
+              });
+
+              replicator.schedule({triggerOnWrite: true, debounce: 2000})
+                .then(function(schedule) {
+                  expect(schedule.maxDelay).toBe(60000);
+                  return datastore.createDocumentFromRevision({n: 1});
+                })
+                .then(function() {
+                  return datastore.createDocumentFromRevision({n: 2});
+                })
+                .then(function() {
+                  return datastore.createDocumentFromRevision({n: 3});
+                })
+                .then(function() {
+                  return replicator.getSchedule();
+                })
+                .then(function(schedule) {
+                  // Each write put the run off again
+                  expect(schedule.runs).toBe(0);
+                  expect(schedule.nextRun).not.toBe(null);
+                })
+                .catch(function(error) {
+                  expect(error).toBe(null);
+                  done();
+                });
+            }
+          }, LONG_TIMEOUT);
+
+          it('should schedule, run and unschedule push replication', function(done) {
+            if (typeof device !== 'undefined' && 'iOS' == device.platform) {
+              // On iOS, mark this test as pending, so as to differentiate it from fail/success.
+              pending('Skipped: Replication scheduling is not supported on iOS');
+            } else {
+              var replicator = getReplicator('push');
+              expect(replicator).not.toBe(null);
+
+              replicator.on('complete', function() {
+                replicator.getSchedule()
+                  .then(function(schedule) {
+                    expect(schedule.runs).toBe(1);
+                    expect(schedule.consecutiveErrors).toBe(0);
+                    expect(schedule.lastResult).toBe('Complete');
+                    // A one hour interval means the next run must be pending
+                    expect(schedule.nextRun).not.toBe(null);
+                    return replicator.unschedule();
+                  })
+                  .then(function() {
+                    return replicator.getSchedule();
+                  })
+                  .then(function() {
+                    fail('getSchedule should fail for an unscheduled replicator');
+                  })
+                  .catch(function(error) {
+                    expect(error).not.toBe(null);
+                  })
+                  .fin(done);
+              });
+
+              replicator.schedule({interval: 60 * 60 * 1000, runNow: true})
+                .then(function(schedule) {
+                  expect(schedule.interval).toBe(60 * 60 * 1000);
+                  expect(schedule.triggerOnWrite).toBe(false);
+                })
+                .catch(function(error) {
+                  expect(error).toBe(null);
+                  done();
+                });
+            }
+          }, LONG_TIMEOUT);
+        });
+
         describe('.on(event, handler)', function() {
           it('should register and fire a "complete" event', function(done) {
             var replicator = getReplicator('pull');
@@ -2066,6 +2276,54 @@ exports.defineAutoTests = function() {
               });
           }, LONG_TIMEOUT);
 
+          it('should fire a "paused" event rather than "complete" when paused', function(done) {
+            if (typeof device !== 'undefined' && 'iOS' == device.platform) {
+              // On iOS, mark this test as pending, so as to differentiate it from fail/success.
+              pending('Skipped: Memory management is not supported on iOS');
+              done();
+            } else {
+              var replicator = getReplicator('pull');
+              expect(replicator).not.toBe(null);
+              var paused = false;
+
+              replicator.on('paused', function(numDocs) {
+                expect(numDocs).not.toBe(null);
+                paused = true;
+              });
+              // The replication may complete before the pause stops it, otherwise it completes
+              // once the pressure is relieved and is only then reported as complete
+              replicator.on('complete', function() {
+                replicator.getState()
+                  .then(function(state) {
+                    expect(state).toBe('Complete');
+                    if (paused) {
+                      return Diagnostics.getMemoryUsage()
+                        .then(function(usage) {
+                          expect(usage.pressure.tier).not.toBe('critical');
+                        });
+                    }
+                  })
+                  .catch(function(error) {
+                    expect(error).toBe(null);
+                  })
+                  .fin(done);
+              });
+
+              Diagnostics.setMemoryPolicy({reliefDelay: 1000, criticalPriority: 1})
+                .then(function() {
+                  return replicator.start();
+                })
+                .then(function() {
+                  // Replicators have a priority of 0 by default
+                  return Diagnostics.trimMemory(80);
+                })
+                .catch(function(error) {
+                  expect(error).toBe(null);
+                  done();
+                });
+            }
+          }, LONG_TIMEOUT);
+
           it('should register and fire an "error" event', function(done) {
             var datastore = getDatastore(storeDescription);
             expect(datastore).not.toBe(null);
@@ -2161,6 +2419,181 @@ exports.defineAutoTests = function() {
                 expect(error).toBe(null);
               });
           }, LONG_TIMEOUT);
+
+          it('should discard stale results when a pull changes documents', function(done) {
+            if (typeof device !== 'undefined' && 'iOS' == device.platform) {
+              // On iOS, mark this test as pending, so as to differentiate it from fail/success.
+              pending('Skipped: stale queries are not supported on iOS');
+              done();
+              return;
+            }
+            var replicator = getReplicator('pull');
+            var datastore = getDatastore(storeDescription);
+            var indexing = require('cloudant-sync.DatastoreManager');
+            var query = {selector: {_id: 'aardvark'}, stale: 'ok'};
+            expect(replicator).not.toBe(null);
+
+            replicator.on('complete', function() {
+              datastore.find(query)
+                .then(function(results) {
+                  // Without background indexing no refresh discards the
+                  // kept result, so the pull must
+                  expect(results.length).toBe(1);
+                })
+                .catch(function(error) {
+                  expect(error).toBe(null);
+                })
+                .fin(function() {
+                  return indexing.setBackgroundIndexing({enabled: true});
+                })
+                .fin(done);
+            });
+
+            indexing.setBackgroundIndexing({enabled: false})
+              .then(function() {
+                return datastore.find(query);
+              })
+              .then(function(results) {
+                expect(results.length).toBe(0);
+                return replicator.start();
+              })
+              .catch(function(error) {
+                expect(error).toBe(null);
+                done();
+              });
+          }, LONG_TIMEOUT);
+
+          it('should pull only the listed doc_ids from animaldb', function(done) {
+            var datastore = getDatastore(storeDescription);
+            var options = {
+              source: uri,
+              target: datastore,
+              doc_ids: ['badger']
+            };
+
+            Replicator.create(options)
+              .then(function(replicator) {
+                replicator.on('complete', function(numDocs) {
+                  expect(numDocs).toBe(1);
+
+                  datastore.getDocument('badger')
+                    .then(function(documentRevision) {
+                      expect(documentRevision._id).toBe('badger');
+                      return datastore.getDocument('aardvark');
+                    })
+                    .then(function() {
+                      fail('aardvark should not have been replicated');
+                    })
+                    .catch(function(error) {
+                      expect(error).not.toBe(null);
+                    })
+                    .fin(done);
+                });
+
+                return replicator.start();
+              })
+              .catch(function(error) {
+                expect(error).toBe(null);
+                done();
+              });
+          }, LONG_TIMEOUT);
+
+          it('throws error if more than one pull filter is set', function() {
+            expect(function() {
+              Replicator.create({
+                source: uri,
+                target: getDatastore(storeDescription),
+                selector: {class: 'mammal'},
+                doc_ids: ['badger']
+              });
+            }).toThrowError('Only one of selector, filter and doc_ids may be set');
+          });
+
+          it('throws error if a pull filter is set for push replication', function() {
+            expect(function() {
+              Replicator.create({
+                source: getDatastore(storeDescription),
+                target: uri,
+                doc_ids: ['badger']
+              });
+            }).toThrowError('doc_ids is only supported for pull replication');
+          });
+
+          it('throws error if doc_ids is empty', function() {
+            expect(function() {
+              Replicator.create({
+                source: uri,
+                target: getDatastore(storeDescription),
+                doc_ids: []
+              });
+            }).toThrowError('doc_ids must be a non-empty Array');
+          });
+
+          it('throws error if filter has no name', function() {
+            expect(function() {
+              Replicator.create({
+                source: uri,
+                target: getDatastore(storeDescription),
+                filter: {params: {}}
+              });
+            }).toThrowError('filter must be an Object with a name String');
+          });
+
+          it('should pull from animaldb with tuned batch sizes', function(done) {
+            var datastore = getDatastore(storeDescription);
+            var options = {
+              source: uri,
+              target: datastore,
+              changeLimitPerBatch: 2,
+              insertBatchSize: 1,
+              attachmentsInline: true
+            };
+
+            Replicator.create(options)
+              .then(function(replicator) {
+                expect(replicator.changeLimitPerBatch).toBe(2);
+                expect(replicator.insertBatchSize).toBe(1);
+
+                replicator.on('complete', function(numDocs) {
+                  expect(numDocs).toBeGreaterThan(0);
+
+                  datastore.getDocument('aardvark')
+                    .then(function(documentRevision) {
+                      expect(documentRevision._id).toBe('aardvark');
+                    })
+                    .catch(function(error) {
+                      expect(error).toBe(null);
+                    })
+                    .fin(done);
+                });
+
+                return replicator.start();
+              })
+              .catch(function(error) {
+                expect(error).toBe(null);
+                done();
+              });
+          }, LONG_TIMEOUT);
+
+          it('throws error if changeLimitPerBatch is not a positive integer', function() {
+            expect(function() {
+              Replicator.create({
+                source: uri,
+                target: getDatastore(storeDescription),
+                changeLimitPerBatch: 0
+              });
+            }).toThrowError('changeLimitPerBatch must be a positive integer');
+          });
+
+          it('throws error if attachmentsInline is small for pull replication', function() {
+            expect(function() {
+              Replicator.create({
+                source: uri,
+                target: getDatastore(storeDescription),
+                attachmentsInline: 'small'
+              });
+            }).toThrowError('attachmentsInline must be a Boolean');
+          });
         });
 
         describe('push replication', function() {
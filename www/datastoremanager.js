@@ -20,6 +20,15 @@ var Q = require('cloudant-sync.q');
 var _ = require('cloudant-sync.lodash_funcs');
 var utils = require('cloudant-sync.utils');
 
+// The operations of Datastore#patchDocument
+var PATCH_OPS = ['set', 'unset', 'increment', 'append'];
+// The operations of Datastore#transaction
+var TRANSACTION_OPS = ['create', 'update', 'delete'];
+// The seed formats of DatastoreManager#seedDatastore
+var SEED_FORMATS = ['datastore', 'ndjson'];
+// Options checked by validatePaging which must be positive
+var POSITIVE_OPTIONS = ['chunkSize', 'maxQueued', 'batchSize'];
+
 /**
  * @class DatastoreManager
  * @description <pre><code>var DatastoreManager =
@@ -61,6 +70,95 @@ exports.DatastoreManager = function(options, callback) {
 
 };
 
+/**
+ * @summary Sets whether and when query indexes are refreshed in the
+ * background.
+ * @description Writes schedule a refresh of the datastore's indexes on a low
+ * priority native thread after `debounce` milliseconds, which further writes
+ * extend up to `maxDelay` milliseconds after the first. A completed pull
+ * replication which changed documents schedules a refresh straight away. The
+ * first query after a large pull or many writes then finds its indexes
+ * already up to date. Results kept for queries with the `stale` option are
+ * discarded when the refresh completes. Background indexing is enabled by
+ * default with a debounce of 1000 and a maximum delay of 10000 milliseconds.
+ *
+ * Note that background indexing is currently only supported on Android.
+ *
+ * @param {Object} options - Background indexing options.
+ * @param {Boolean} [options.enabled] - false to disable background indexing.
+ * @param {Number} [options.debounce] - The delay in milliseconds from a write
+ * to the refresh.
+ * @param {Number} [options.maxDelay] - The maximum delay in milliseconds from
+ * the first write to the refresh.
+ * @param {DatastoreManager~backgroundIndexingCallback} [callback] - The
+ * function to call after attempting to set the options.
+ *
+ * @returns A [q style promise]{@link https://github.com/kriskowal/q} returning
+ * either the background indexing state or an Error.
+ */
+exports.setBackgroundIndexing = function(options, callback) {
+  if (!_.isObject(options)) {
+    throw new Error('options must be an Object');
+  }
+  if (typeof options.enabled !== 'undefined' &&
+      typeof options.enabled !== 'boolean') {
+    throw new Error('enabled must be a Boolean');
+  }
+  validatePaging(options, ['debounce', 'maxDelay']);
+
+  return backgroundIndexing('setBackgroundIndexing', [options], callback);
+};
+
+/**
+ * @summary Returns the background indexing state.
+ * @description The state has the `enabled`, `debounce` and `maxDelay`
+ * options, the names of the datastores with a `pending` refresh, the number
+ * of `refreshes` and `failures`, the `totalRefreshMillis` and
+ * `lastRefreshMillis` spent refreshing, the `staleHits` and `staleMisses` of
+ * queries with the `stale` option and the number of `staleResults` kept.
+ *
+ * Note that background indexing is currently only supported on Android.
+ *
+ * @param {DatastoreManager~backgroundIndexingCallback} [callback] - The
+ * function to call after attempting to get the state.
+ *
+ * @returns A [q style promise]{@link https://github.com/kriskowal/q} returning
+ * either the background indexing state or an Error.
+ */
+exports.getBackgroundIndexing = function(callback) {
+  return backgroundIndexing('getBackgroundIndexing', [], callback);
+};
+
+/**
+ * @private
+ * @summary Calls a background indexing action.
+ * @param {String} action - The action to call
+ * @param {Array} args - The arguments of the action
+ * @param {Function} [callback] - The function to call with the state
+ */
+function backgroundIndexing(action, args, callback) {
+  var deferred = Q.defer();
+
+  function successHandler(state) {
+    deferred.resolve(state);
+  }
+
+  function errorHandler(error) {
+    deferred.reject(error);
+  }
+
+  exec(successHandler, errorHandler, 'CloudantSync', action, args);
+
+  deferred.promise.nodeify(callback);
+  return deferred.promise;
+}
+
+/**
+ * @callback DatastoreManager~backgroundIndexingCallback
+ * @param {?Error} error
+ * @param {Object} state - The background indexing state.
+ */
+
 /**
  * @summary Creates a DatastoreManager object
  * @constructor
@@ -99,8 +197,18 @@ function DatastoreManager(options) {
  * @description If there is no existing {@link Datastore} with the given name
  * on disk then one will be created.
  *
+ * Pass the `binary` option to exchange documents with the native plug-in as
+ * CBOR encoded ArrayBuffers rather than JSON for
+ * {@link Datastore#getDocument}, {@link Datastore#find} and the create and
+ * update calls. Documents are the same with either encoding; binary saves
+ * building and parsing JSON text for large documents and result sets. It is
+ * currently only supported on Android and is ignored on other platforms.
+ *
  * @function DatastoreManager#openDatastore
  * @param {String} name - The name of the {@link Datastore} to open
+ * @param {Object} [options] - Options for the opened {@link Datastore}.
+ * @param {Boolean} [options.binary=false] - true to exchange documents as
+ * CBOR encoded ArrayBuffers.
  * @param {DatastoreManager~openDatastoreCallback} [callback] - The function to
  *  call after attempting to open the Datastore.
  *
@@ -110,7 +218,13 @@ function DatastoreManager(options) {
  *
  */
 DatastoreManager.prototype.openDatastore =
-function(name, callback) {
+function(name, options, callback) {
+  if (_.isFunction(options)) {
+    callback = options;
+    options = {};
+  }
+  options = options || {};
+
   if (_.isEmpty(name)) {
     throw new Error('name must exist');
   }
@@ -119,10 +233,15 @@ function(name, callback) {
     throw new Error('name must be a String');
   }
 
+  if (typeof options.binary !== 'undefined' &&
+      typeof options.binary !== 'boolean') {
+    throw new Error('binary must be a Boolean');
+  }
+
   var deferred = Q.defer();
 
   function successHandler(response) {
-    var store = new Datastore(response.name);
+    var store = new Datastore(response.name, options);
     deferred.resolve(store);
   }
 
@@ -142,6 +261,96 @@ function(name, callback) {
   return deferred.promise;
 };
 
+/**
+ * @summary Seeds a {@link Datastore} from the app assets on first launch and
+ * opens it.
+ * @description If the {@link Datastore} does not exist yet, it is first
+ * installed from a seed bundled in the app assets, so a new install does not
+ * have to replicate every document. Otherwise it is opened as it is. The seed
+ * is either:
+ *
+ * - a prebuilt datastore directory, copied as it is. A datastore built by
+ *   pulling from the remote database keeps its revisions and the checkpoint of
+ *   that pull, so a later pull with the same source only fetches the changes
+ *   made since.
+ * - an NDJSON file, one document per line, gzip compressed if its name ends in
+ *   `.gz`. It is read a line at a time and each document is created as a new
+ *   revision, so NDJSON seeds suit data which is not replicated; documents
+ *   with a `_rev` are rejected.
+ *
+ * The format follows from the asset name, `ndjson` for `.ndjson` and
+ * `.ndjson.gz` files and `datastore` otherwise, unless given. A seed which
+ * fails part way leaves no datastore behind.
+ *
+ * Note that seeding is currently only supported on Android.
+ *
+ * @function DatastoreManager#seedDatastore
+ * @param {String} name - The name of the {@link Datastore} to seed and open
+ * @param {Object} options - Options for the seed and the opened
+ * {@link Datastore}.
+ * @param {String} options.asset - The path of the seed in the app assets, for
+ * example `www/seed/tasks.ndjson.gz`.
+ * @param {String} [options.format] - `datastore` or `ndjson`.
+ * @param {Boolean} [options.binary=false] - true to exchange documents as
+ * CBOR encoded ArrayBuffers.
+ * @param {DatastoreManager~openDatastoreCallback} [callback] - The function to
+ *  call after attempting to seed and open the Datastore.
+ *
+ * @returns A [q style promise]{@link https://github.com/kriskowal/q} returning
+ * either a {@link Datastore} or an Error.
+ */
+DatastoreManager.prototype.seedDatastore =
+function(name, options, callback) {
+  if (_.isEmpty(name)) {
+    throw new Error('name must exist');
+  }
+
+  if (!_.isString(name)) {
+    throw new Error('name must be a String');
+  }
+
+  if (!_.isObject(options) || !_.isString(options.asset) ||
+      _.isEmpty(options.asset)) {
+    throw new Error('options.asset must be a non-empty String');
+  }
+
+  if (typeof options.format !== 'undefined' &&
+      SEED_FORMATS.indexOf(options.format) === -1) {
+    throw new Error('format must be one of ' + SEED_FORMATS.join(', '));
+  }
+
+  if (typeof options.binary !== 'undefined' &&
+      typeof options.binary !== 'boolean') {
+    throw new Error('binary must be a Boolean');
+  }
+
+  var deferred = Q.defer();
+
+  function successHandler(response) {
+    var store = new Datastore(response.name, options);
+    deferred.resolve(store);
+  }
+
+  function errorHandler(error) {
+    deferred.reject(error);
+  }
+
+  var seed = {asset: options.asset};
+  if (options.format) {
+    seed.format = options.format;
+  }
+
+  exec(successHandler,
+      errorHandler,
+      'CloudantSync',
+      'seedDatastore',
+      [this.dsmID, name, seed]
+  );
+
+  deferred.promise.nodeify(callback);
+  return deferred.promise;
+};
+
 /**
  *
  * @summary Deletes a {@link Datastore}
@@ -192,12 +401,18 @@ DatastoreManager.prototype.deleteDatastore = function(name, callback) {
  *  read, update and delete (CRUD)
  * operations for within Cloudant Sync.
  * @property {String} name - The {@link Datastore} name (readonly)
+ * @property {Boolean} binary - true if documents are exchanged with the native
+ * plug-in as CBOR encoded ArrayBuffers (readonly)
  *
  * @description <strong>Should not be called by user; Use
  * {@link DatastoreManager#openDatastore} to get {@link Datastore} objects
  * </strong>
  */
-function Datastore(name) {
+function Datastore(name, options) {
+  // Binary documents are only supported by the Android plug-in
+  var binary = !!(options && options.binary) &&
+    typeof cordova !== 'undefined' && cordova.platformId === 'android';
+
   if (Object.defineProperty) {
     Object.defineProperty(this, 'name', {
       value: name,
@@ -205,10 +420,19 @@ function Datastore(name) {
       enumerable: true,
       configurable: false,
     });
+    Object.defineProperty(this, 'binary', {
+      value: binary,
+      writable: false,
+      enumerable: true,
+      configurable: false,
+    });
   } else {
     this.__defineGetter__('name', function() {
       return name;
     });
+    this.__defineGetter__('binary', function() {
+      return binary;
+    });
   }
 }
 
@@ -270,7 +494,8 @@ function(documentRevision, callback) {
       dbName:           this.name,
       documentRevision: documentRevision,
       callback:         callback,
-      isCreate:         true,});
+      isCreate:         true,
+      binary:           this.binary,});
 };
 
 /**
@@ -299,43 +524,346 @@ Datastore.prototype.updateDocumentFromRevision =
       dbName:           this.name,
       documentRevision: documentRevision,
       callback:         callback,
-      isCreate:         false,});
+      isCreate:         false,
+      binary:           this.binary,});
 };
 
 /**
  * @summary Retrieves the current winning revision of a document.
  * @description Previously deleted documents can be retrieved via tombstones.
  *
+ * Pass the revision ID of a copy of the document the caller already has to
+ * revalidate it: if that is still the current revision, the result is a
+ * marker with the `_id`, `_rev` and `_notModified: true` instead of the
+ * document, so its body is not serialized or passed over the bridge.
+ *
  * @param {String} documentId - The id of the document to fetch.
+ * @param {String} [knownRevision] - The revision ID of the caller's copy.
  * @param {Datastore~getDocumentCallback} [callback] - The function to call
  * after attempting to fetch the document.
  *
  * @returns A [q style promise]{@link https://github.com/kriskowal/q} returning
- * either the retrieved document revision or an Error.
+ * either the retrieved document revision, a not modified marker or an Error.
  */
-Datastore.prototype.getDocument = function(documentId, callback) {
+Datastore.prototype.getDocument = function(documentId, knownRevision,
+  callback) {
+  if (_.isFunction(knownRevision)) {
+    callback = knownRevision;
+    knownRevision = null;
+  }
   validateDocumentId(documentId);
+  if (knownRevision && !_.isString(knownRevision)) {
+    throw new Error('knownRevision must be a String');
+  }
 
   var deferred = Q.defer();
 
   function successHandler(fetchedRevision) {
-    deferred.resolve(fetchedRevision);
+    deferred.resolve(decodeResult(fetchedRevision));
   }
 
   function errorHandler(error) {
     deferred.reject(error);
   }
 
+  var args = [this.name, documentId, this.binary ? BINARY_ENCODING : null];
+  if (knownRevision) {
+    args.push(knownRevision);
+  }
+
   exec(successHandler,
       errorHandler,
       'CloudantSync',
       'getDocument',
-      [this.name, documentId]);
+      args);
+
+  deferred.promise.nodeify(callback);
+  return deferred.promise;
+};
+
+/**
+ * @summary Retrieves the current winning revisions of several documents.
+ * @description Each request is either a document ID or an Object with the
+ * `_id` and the `_rev` of a copy the caller already has. The results are in
+ * the order of the requests: the document, a marker with the `_id`, `_rev`
+ * and `_notModified: true` where the known revision is still current, or
+ * null where the document is not found. The documents are read in a single
+ * database query.
+ *
+ * Note that getDocuments is currently only supported on Android.
+ *
+ * @param {Array} requests - The document IDs or `{_id, _rev}` Objects.
+ * @param {Datastore~getDocumentsCallback} [callback] - The function to call
+ * after attempting to fetch the documents.
+ *
+ * @returns A [q style promise]{@link https://github.com/kriskowal/q} returning
+ * either an Array of the results or an Error.
+ */
+Datastore.prototype.getDocuments = function(requests, callback) {
+  if (!_.isArray(requests)) {
+    throw new Error('requests must be an Array');
+  }
+  requests.forEach(function(request) {
+    validateDocumentId(_.isObject(request) ? request._id : request);
+  });
+
+  var deferred = Q.defer();
+
+  function successHandler(results) {
+    deferred.resolve(decodeResult(results));
+  }
+
+  function errorHandler(error) {
+    deferred.reject(error);
+  }
+
+  var args = [this.name, requests];
+  if (this.binary) {
+    args.push(BINARY_ENCODING);
+  }
+
+  exec(successHandler,
+      errorHandler,
+      'CloudantSync',
+      'getDocuments',
+      args);
+
+  deferred.promise.nodeify(callback);
+  return deferred.promise;
+};
+
+/**
+ * @summary Changes fields of a document without passing its body over the
+ * bridge.
+ * @description The operations are applied in order to the body of the
+ * document's current revision by the native code, and a new revision is
+ * saved with the document's attachments. Each operation has an `op`, a `path`
+ * to the field in dotted notation, such as `'address.city'`, and for some
+ * operations a `value`:
+ *
+ * - `set` - sets the field to the value, creating any missing objects on the
+ * path.
+ * - `unset` - removes the field, if present.
+ * - `increment` - adds the value, 1 by default, to a number, treating a
+ * missing field as 0.
+ * - `append` - appends the value to an array, creating it if the field is
+ * missing.
+ *
+ * The patch fails with a conflict unless `revision` is the current revision
+ * of the document. Top level fields starting with an underscore cannot be
+ * patched.
+ *
+ * Note that patching documents is currently only supported on Android.
+ *
+ * @param {String} documentId - The ID of the document to patch.
+ * @param {String} revision - The current revision ID of the document.
+ * @param {Array} ops - The operations to apply.
+ * @param {Datastore~patchDocumentCallback} [callback] - The function to call
+ * after attempting to patch the document.
+ *
+ * @returns A [q style promise]{@link https://github.com/kriskowal/q} returning
+ * either an Object with the `_id` and new `_rev` of the document or an Error.
+ */
+Datastore.prototype.patchDocument = function(documentId, revision, ops,
+  callback) {
+  validateDocumentId(documentId);
+
+  if (!_.isString(revision) || _.isEmpty(revision)) {
+    throw new Error('revision must be a non-empty String');
+  }
+
+  if (!_.isArray(ops) || _.isEmpty(ops)) {
+    throw new Error('ops must be a non-empty Array');
+  }
+
+  ops.forEach(function(op) {
+    if (!_.isObject(op) || PATCH_OPS.indexOf(op.op) === -1) {
+      throw new Error('Each op must be an Object with an op of ' +
+        PATCH_OPS.join(', '));
+    }
+    if (!_.isString(op.path) || _.isEmpty(op.path)) {
+      throw new Error('Each op must have a path');
+    }
+  });
+
+  var deferred = Q.defer();
+
+  function successHandler(saved) {
+    deferred.resolve(saved);
+  }
+
+  function errorHandler(error) {
+    deferred.reject(error);
+  }
+
+  exec(successHandler,
+      errorHandler,
+      'CloudantSync',
+      'patchDocument',
+      [this.name, documentId, revision, ops]);
+
+  deferred.promise.nodeify(callback);
+  return deferred.promise;
+};
+
+/**
+ * @summary Creates, updates and deletes several documents as a unit.
+ * @description Each operation is an Object with an `op` of `create`,
+ * `update` or `delete` and the `document` revision to write. Updates and
+ * deletes must pass the current `_rev`, and a document can appear in only one
+ * operation. The revisions of the updates and deletes are all checked before
+ * anything is written, so a revision conflict fails the transaction without
+ * changing any document. If a write fails after that, the writes already made
+ * are rolled back by writing new revisions which restore the previous state,
+ * and the error says which operation failed. Transactions on a datastore run
+ * one at a time.
+ *
+ * Note that transactions are currently only supported on Android.
+ *
+ * @param {Array} ops - The operations to apply, in order.
+ * @param {Datastore~transactionCallback} [callback] - The function to call
+ * after attempting the transaction.
+ *
+ * @returns A [q style promise]{@link https://github.com/kriskowal/q} returning
+ * either an Array with the `_id` and `_rev` written by each operation, and
+ * `_deleted` for deletes, or an Error.
+ */
+Datastore.prototype.transaction = function(ops, callback) {
+  if (!_.isArray(ops) || _.isEmpty(ops)) {
+    throw new Error('ops must be a non-empty Array');
+  }
+
+  ops.forEach(function(op) {
+    if (!_.isObject(op) || TRANSACTION_OPS.indexOf(op.op) === -1) {
+      throw new Error('Each op must be an Object with an op of ' +
+        TRANSACTION_OPS.join(', '));
+    }
+    validateDocumentRevision(op.document);
+    if (op.op !== 'create' && (_.isEmpty(op.document._id) ||
+        _.isEmpty(op.document._rev))) {
+      throw new Error('Each ' + op.op + ' must have a document with _id ' +
+        'and _rev');
+    }
+  });
+
+  var deferred = Q.defer();
+
+  function successHandler(results) {
+    deferred.resolve(results);
+  }
+
+  function errorHandler(error) {
+    deferred.reject(error);
+  }
+
+  exec(successHandler,
+      errorHandler,
+      'CloudantSync',
+      'transaction',
+      [this.name, ops]);
 
   deferred.promise.nodeify(callback);
   return deferred.promise;
 };
 
+/**
+ * @summary Enables, changes or disables write-behind for the datastore.
+ * @description With write-behind enabled, creates and updates are queued in
+ * memory and acknowledged straight away with an Object holding the document
+ * `_id` and `_queued: true` in place of the saved revision. Queued writes are
+ * saved once `batchSize` writes are queued or `flushInterval` milliseconds
+ * after the oldest of them was queued, whichever is first, by `flush`, and
+ * before any other call on the datastore. An update of a document whose
+ * earlier write is still queued replaces that write. When `maxQueued` writes
+ * are queued, a further write waits for room for up to `backpressureTimeout`
+ * milliseconds and then fails.
+ *
+ * Acknowledged writes are not durable until they are flushed: they are lost
+ * if the app is killed first, and a queued write which fails when saved is
+ * only reported by `flush` and `getWriteBehindStatus`. See the write-behind
+ * section of the CRUD guide.
+ *
+ * Pass `null` as the options to flush the queue and disable write-behind.
+ *
+ * Note that write-behind is currently only supported on Android.
+ *
+ * @param {?Object} options - The write-behind settings, or null to disable it.
+ * @param {Number} [options.maxQueued=1000] - The maximum number of queued
+ * writes.
+ * @param {Number} [options.batchSize=50] - The number of queued writes which
+ * starts a flush.
+ * @param {Number} [options.flushInterval=1000] - The longest a write is queued
+ * before a flush starts, in milliseconds.
+ * @param {Number} [options.backpressureTimeout=5000] - The longest a write
+ * waits for room in a full queue, in milliseconds.
+ * @param {Datastore~writeBehindStatusCallback} [callback] - The function to
+ * call after attempting to change write-behind.
+ *
+ * @returns A [q style promise]{@link https://github.com/kriskowal/q} returning
+ * either the write-behind status or an Error.
+ */
+Datastore.prototype.setWriteBehind = function(options, callback) {
+  if (options !== null) {
+    if (!_.isObject(options) || _.isArray(options) || _.isFunction(options)) {
+      throw new Error('options must be an Object or null');
+    }
+    validatePaging(options, ['maxQueued', 'batchSize', 'flushInterval',
+      'backpressureTimeout']);
+  }
+
+  return writeBehind('setWriteBehind', [this.name, options], callback);
+};
+
+/**
+ * @summary Saves the writes queued by write-behind.
+ * @description Resolves once every write queued before the call has been
+ * saved or has failed. Failed writes are not retried.
+ *
+ * Note that write-behind is currently only supported on Android.
+ *
+ * @param {Datastore~flushCallback} [callback] - The function to call after
+ * attempting to flush the queue.
+ *
+ * @returns A [q style promise]{@link https://github.com/kriskowal/q} returning
+ * either an Object with the number of writes `written` and the `failed` writes,
+ * each with its `_id` and `error`, or an Error.
+ */
+Datastore.prototype.flush = function(callback) {
+  return writeBehind('flush', [this.name], callback);
+};
+
+/**
+ * @summary Gets the write-behind settings and counters of the datastore.
+ *
+ * Note that write-behind is currently only supported on Android.
+ *
+ * @param {Datastore~writeBehindStatusCallback} [callback] - The function to
+ * call with the status.
+ *
+ * @returns A [q style promise]{@link https://github.com/kriskowal/q} returning
+ * either the write-behind status or an Error.
+ */
+Datastore.prototype.getWriteBehindStatus = function(callback) {
+  return writeBehind('getWriteBehindStatus', [this.name], callback);
+};
+
+function writeBehind(action, args, callback) {
+  var deferred = Q.defer();
+
+  function successHandler(result) {
+    deferred.resolve(result);
+  }
+
+  function errorHandler(error) {
+    deferred.reject(error);
+  }
+
+  exec(successHandler, errorHandler, 'CloudantSync', action, args);
+
+  deferred.promise.nodeify(callback);
+  return deferred.promise;
+}
+
 /**
  * @summary Deletes a document from the datastore.
  * @description This operation leaves a "tombstone" for the deleted document so
@@ -439,25 +967,87 @@ Datastore.prototype.ensureIndexed = function(fieldNames, indexName, callback) {
 };
 
 /**
- * @summary Deletes an index.
+ * @summary Add a full text index for the given field names.
+ * @description A text index is searched with a `$text` selector, such as
+ * `{$text: {$search: 'sleepy cat'}}`, in {@link Datastore#find}, matching
+ * the words of the indexed fields in SQLite rather than in JavaScript.
+ * A datastore has at most one text index. The `tokenizer` names the SQLite
+ * FTS tokenizer, followed by any arguments, for example `'porter'` to match
+ * the stems of English words or `'unicode61'` where the SQLite library
+ * supports it.
  *
- * @param {String} indexName - The name of the index to delete.
- * @param {Datastore~deleteIndexNamedCallback} [callback] - The function to call
- * after attempting to delete the index.
+ * @param {Array} fieldNames - The list of fields to index.
+ * @param {String} indexName - The name of the index.
+ * @param {String} [tokenizer='simple'] - The tokenizer and its arguments.
+ * @param {Datastore~ensureIndexedCallback} [callback] - The function to call
+ * after attempting to create the index.
  *
  * @returns A [q style promise]{@link https://github.com/kriskowal/q} returning
- * either the deletion status [true|false] or an Error.
+ * either the created index name or an Error.
  */
-Datastore.prototype.deleteIndexNamed = function(indexName, callback) {
-  if (_.isEmpty(indexName)) {
-    throw new Error('indexName must exist');
+Datastore.prototype.ensureTextIndexed = function(fieldNames, indexName,
+  tokenizer, callback) {
+  if (_.isFunction(tokenizer)) {
+    callback = tokenizer;
+    tokenizer = null;
+  }
+
+  if (_.isEmpty(indexName) || _.isEmpty(fieldNames)) {
+    throw new Error('indexName and fieldNames must exist');
   }
 
   if (!_.isString(indexName)) {
     throw new Error('indexName must be a String');
   }
 
-  var deferred = Q.defer();
+  if (!_.isArray(fieldNames)) {
+    throw new Error('fieldNames must be an array');
+  }
+
+  if (tokenizer && !_.isString(tokenizer)) {
+    throw new Error('tokenizer must be a String');
+  }
+
+  var deferred = Q.defer();
+
+  function successHandler(result) {
+    deferred.resolve(result);
+  }
+
+  function errorHandler(error) {
+    deferred.reject(error);
+  }
+
+  exec(successHandler,
+      errorHandler,
+      'CloudantSync',
+      'ensureTextIndexed',
+      [this.name, indexName, fieldNames, tokenizer || null]);
+
+  deferred.promise.nodeify(callback);
+  return deferred.promise;
+};
+
+/**
+ * @summary Deletes an index.
+ *
+ * @param {String} indexName - The name of the index to delete.
+ * @param {Datastore~deleteIndexNamedCallback} [callback] - The function to call
+ * after attempting to delete the index.
+ *
+ * @returns A [q style promise]{@link https://github.com/kriskowal/q} returning
+ * either the deletion status [true|false] or an Error.
+ */
+Datastore.prototype.deleteIndexNamed = function(indexName, callback) {
+  if (_.isEmpty(indexName)) {
+    throw new Error('indexName must exist');
+  }
+
+  if (!_.isString(indexName)) {
+    throw new Error('indexName must be a String');
+  }
+
+  var deferred = Q.defer();
 
   function successHandler(result) {
     deferred.resolve(result);
@@ -477,10 +1067,76 @@ Datastore.prototype.deleteIndexNamed = function(indexName, callback) {
   return deferred.promise;
 };
 
+/**
+ * @summary Suggests JSON indexes for the slowest queries which no index
+ * covers, optionally creating them.
+ * @description Suggestions come from the slow query log (see
+ * `Diagnostics.getSlowQueries`), slowest first by the total time of their
+ * queries. Each suggestion indexes the selector fields of a query shape
+ * followed by its sort fields. Shapes covered by an existing index, or by an
+ * earlier suggestion, are left out.
+ *
+ * Note that index advice is currently only supported on Android.
+ *
+ * @param {Object} [options] - Advice options.
+ * @param {Boolean} [options.create=false] - true to create the suggested
+ * indexes, as {@link Datastore#ensureIndexed} does.
+ * @param {Number} [options.maxSuggestions=5] - The maximum number of
+ * suggestions.
+ * @param {Datastore~adviseIndexesCallback} [callback] - The function to call
+ * after attempting to advise indexes.
+ *
+ * @returns A [q style promise]{@link https://github.com/kriskowal/q} returning
+ * either an Array of suggestions or an Error.
+ */
+Datastore.prototype.adviseIndexes = function(options, callback) {
+  if (_.isFunction(options)) {
+    callback = options;
+    options = {};
+  }
+  options = options || {};
+  if (typeof options.create !== 'undefined' &&
+      typeof options.create !== 'boolean') {
+    throw new Error('create must be a Boolean');
+  }
+  validatePaging(options, ['maxSuggestions']);
+
+  var deferred = Q.defer();
+
+  function successHandler(suggestions) {
+    deferred.resolve(suggestions);
+  }
+
+  function errorHandler(error) {
+    deferred.reject(error);
+  }
+
+  exec(successHandler,
+      errorHandler,
+      'CloudantSync',
+      'adviseIndexes',
+      [this.name, options]);
+
+  deferred.promise.nodeify(callback);
+  return deferred.promise;
+};
+
 /**
  * @summary Performs a query
+ * @description Before running a query the indexes are brought up to date with
+ * the documents written since they were last refreshed. Pass a `stale` option
+ * in the query to accept a result which does not reflect the latest writes
+ * instead: the result of the last identical query with the same `stale`
+ * option is returned at once if the indexes have not been refreshed in the
+ * background since. With `"update_after"`, a pending background refresh is
+ * also started straight away. See `setBackgroundIndexing`.
+ *
+ * Note that `stale` is currently only supported on Android and has no effect
+ * on iOS.
  *
  * @param {Object} query - The query to execute.
+ * @param {String} [query.stale] - Either `"ok"` or `"update_after"` to accept
+ * a result from before the latest writes.
  * @param {Datastore~findCallback} [callback] - The function to call after
  * attempting to perform a query.
  *
@@ -500,21 +1156,31 @@ Datastore.prototype.find = function(query, callback) {
     throw new Error('A selector is required to query');
   }
 
+  if (typeof query.stale !== 'undefined' && query.stale !== 'ok' &&
+      query.stale !== 'update_after') {
+    throw new Error('stale must be either "ok" or "update_after"');
+  }
+
   var deferred = Q.defer();
 
   function successHandler(results) {
-    deferred.resolve(results);
+    deferred.resolve(decodeResult(results));
   }
 
   function errorHandler(error) {
     deferred.reject(error);
   }
 
+  var args = [this.name, query];
+  if (this.binary) {
+    args.push(BINARY_ENCODING);
+  }
+
   exec(successHandler,
       errorHandler,
       'CloudantSync',
       'find',
-      [this.name, query]);
+      args);
 
   deferred.promise.nodeify(callback);
   return deferred.promise;
@@ -523,14 +1189,26 @@ Datastore.prototype.find = function(query, callback) {
 /**
  * @summary Gets all document ids in the datastore that have conflicts
  * in their revision tree.
+ * @description Pass `offset` and `limit` options to get a single page of
+ * the ids rather than all of them.
  *
+ * @param {Object} [options] - Paging options.
+ * @param {Number} [options.offset=0] - The number of ids to skip.
+ * @param {Number} [options.limit] - The maximum number of ids to return.
  * @param {Datastore~getConflictedDocumentIdsCallback} [callback] - The function
  *  to call after attempting to get the conflicted document IDs.
  *
  * @returns A [q style promise]{@link https://github.com/kriskowal/q} returning
  * either an Array of the document IDs or an Error.
  */
-Datastore.prototype.getConflictedDocumentIds = function(callback) {
+Datastore.prototype.getConflictedDocumentIds = function(options, callback) {
+  if (_.isFunction(options)) {
+    callback = options;
+    options = {};
+  }
+  options = options || {};
+  validatePaging(options, ['offset', 'limit']);
+
   var deferred = Q.defer();
 
   function successHandler(results) {
@@ -545,12 +1223,98 @@ Datastore.prototype.getConflictedDocumentIds = function(callback) {
       errorHandler,
       'CloudantSync',
       'getConflictedDocumentIds',
+      [this.name, options.offset, options.limit]);
+
+  deferred.promise.nodeify(callback);
+  return deferred.promise;
+};
+
+/**
+ * @summary Counts the documents in the datastore that have conflicts in
+ * their revision tree, without passing their ids to JavaScript.
+ *
+ * @param {Datastore~countConflictsCallback} [callback] - The function to call
+ * after attempting to count the conflicted documents.
+ *
+ * @returns A [q style promise]{@link https://github.com/kriskowal/q} returning
+ * either the number of conflicted documents or an Error.
+ */
+Datastore.prototype.countConflicts = function(callback) {
+  var deferred = Q.defer();
+
+  function successHandler(count) {
+    deferred.resolve(count);
+  }
+
+  function errorHandler(error) {
+    deferred.reject(error);
+  }
+
+  exec(successHandler,
+      errorHandler,
+      'CloudantSync',
+      'countConflicts',
       [this.name]);
 
   deferred.promise.nodeify(callback);
   return deferred.promise;
 };
 
+/**
+ * @summary Passes the ids of the documents in the datastore that have
+ * conflicts to a handler in chunks.
+ * @description Each chunk is delivered as soon as it is read, so the ids can
+ * be processed without holding all of them in a single Array.
+ *
+ * @param {Object} [options] - Streaming options.
+ * @param {Number} [options.chunkSize=500] - The maximum number of ids in each
+ * chunk.
+ * @param {Datastore~conflictedDocumentIdsChunkHandler} onChunk - The function
+ * to call with each chunk of ids.
+ * @param {Datastore~streamConflictedDocumentIdsCallback} [callback] - The
+ * function to call after all chunks have been delivered.
+ *
+ * @returns A [q style promise]{@link https://github.com/kriskowal/q} returning
+ * either the total number of ids delivered or an Error.
+ */
+Datastore.prototype.streamConflictedDocumentIds =
+function(options, onChunk, callback) {
+  if (_.isFunction(options)) {
+    callback = onChunk;
+    onChunk = options;
+    options = {};
+  }
+  options = options || {};
+  validatePaging(options, ['chunkSize']);
+
+  if (!_.isFunction(onChunk)) {
+    throw new Error('onChunk must be a function');
+  }
+
+  var deferred = Q.defer();
+
+  function successHandler(results) {
+    if (_.isArray(results)) {
+      onChunk(results);
+    } else {
+      deferred.resolve(results.total);
+    }
+  }
+
+  function errorHandler(error) {
+    deferred.reject(error);
+  }
+
+  exec(successHandler,
+      errorHandler,
+      'CloudantSync',
+      'streamConflictedDocumentIds',
+      [this.name, options.chunkSize]);
+
+  deferred.promise.nodeify(callback);
+  return deferred.promise;
+};
+
 /**
  * @summary Resolve conflicts for specified Document using the given
  * 'conflictResolver'.
@@ -602,6 +1366,195 @@ function(documentId, conflictResolver, callback) {
   return deferred.promise;
 };
 
+/**
+ * @summary Resolves the conflicts of every conflicted document natively
+ * using a built-in strategy.
+ * @description No documents are passed to JavaScript, so this is much faster
+ * than calling {@link Datastore#resolveConflictsForDocument} for each
+ * conflicted document. The strategies are:
+ * - `'deterministic'`: keep the revision CouchDB would pick as the winner.
+ * - `{name: 'latest', field: 'updatedAt'}`: keep the revision with the
+ * greatest value in `field`, which may be a Number or an ISO 8601 String.
+ * Revisions missing the field rank lowest; ties use the deterministic order.
+ * - `'merge'` or `{name: 'merge', field: 'updatedAt'}`: keep the union of the
+ * top level fields of all revisions, taking each field from the highest
+ * ranked revision that has it. Revisions are ranked deterministically, or by
+ * `field` when given. Attachments are those of the highest ranked revision.
+ * As revisions are merged without their common ancestor, a field removed in
+ * one revision is restored from another revision that still has it.
+ *
+ * Deleted revisions rank below all others and are not merged.
+ *
+ * Note that this is currently only supported on Android.
+ *
+ * @param {(String|Object)} strategy - The strategy name, or an Object with
+ * the strategy `name` and `field`.
+ * @param {Object} [options] - Resolution options.
+ * @param {Number} [options.batchSize=100] - The number of documents resolved
+ * in each batch.
+ * @param {Number} [options.concurrency=2] - The maximum number of batches
+ * resolved at the same time.
+ * @param {Datastore~resolveAllConflictsCallback} [callback] - The function
+ * to call after attempting to resolve the conflicts.
+ *
+ * @returns A [q style promise]{@link https://github.com/kriskowal/q} returning
+ * either a summary of the resolution or an Error.
+ */
+Datastore.prototype.resolveAllConflicts =
+function(strategy, options, callback) {
+  if (_.isFunction(options)) {
+    callback = options;
+    options = {};
+  }
+  options = options || {};
+
+  utils.validateConflictStrategy(strategy);
+
+  ['batchSize', 'concurrency'].forEach(function(option) {
+    var value = options[option];
+    if (value !== undefined &&
+      (typeof value !== 'number' || value % 1 !== 0 || value < 1)) {
+      throw new Error(option + ' must be a positive integer');
+    }
+  });
+
+  var deferred = Q.defer();
+
+  function successHandler(summary) {
+    deferred.resolve(summary);
+  }
+
+  function errorHandler(error) {
+    deferred.reject(error);
+  }
+
+  exec(successHandler,
+      errorHandler,
+      'CloudantSync',
+      'resolveAllConflicts',
+      [this.name, strategy, options]);
+
+  deferred.promise.nodeify(callback);
+  return deferred.promise;
+};
+
+/**
+ * @summary Resolves the conflicts of every conflicted document using the
+ * given 'conflictResolver', passing the conflicts in batches.
+ * @description The resolver is called once per batch with up to
+ * `batchSize` conflicted documents, each an Object with the `docId` and its
+ * conflicting revisions in `conflicts`. It returns, or returns a promise
+ * for, an Array holding the new winning revision for each document in the
+ * order given, or `null` to leave a document as it is. The revisions are
+ * applied natively while the next batches are resolved. A batch whose
+ * result is not returned within `timeout` milliseconds is skipped and
+ * counted in `timedOut`.
+ *
+ * Note that this is currently only supported on Android.
+ *
+ * @param {Datastore~resolveConflictBatchCallback} conflictResolver - The
+ * function to call to resolve each batch of conflicts.
+ * @param {Object} [options] - Resolution options.
+ * @param {Number} [options.batchSize=50] - The maximum number of documents
+ * in each batch.
+ * @param {Number} [options.concurrency=2] - The maximum number of batches
+ * waiting for the resolver at the same time.
+ * @param {Number} [options.timeout=30000] - The milliseconds to wait for the
+ * resolver to return a batch.
+ * @param {Datastore~resolveConflictsInBatchesCallback} [callback] - The
+ * function to call after attempting to resolve the conflicts.
+ *
+ * @returns A [q style promise]{@link https://github.com/kriskowal/q} returning
+ * either a summary of the resolution or an Error.
+ */
+Datastore.prototype.resolveConflictsInBatches =
+function(conflictResolver, options, callback) {
+  if (!_.isFunction(conflictResolver)) {
+    throw new Error('conflictResolver must be a function');
+  }
+
+  if (_.isFunction(options)) {
+    callback = options;
+    options = {};
+  }
+  options = options || {};
+
+  ['batchSize', 'concurrency', 'timeout'].forEach(function(option) {
+    var value = options[option];
+    if (value !== undefined &&
+      (typeof value !== 'number' || value % 1 !== 0 || value < 1)) {
+      throw new Error(option + ' must be a positive integer');
+    }
+  });
+
+  var deferred = Q.defer();
+
+  function successHandler(results) {
+    if (_.isObject(results) && results.hasOwnProperty('batchId')) {
+      var resolverId = results['resolverId'];
+      var batchId = results['batchId'];
+      Q.fcall(conflictResolver, results['documents'])
+        .then(function(resolved) {
+          returnResolvedDocuments(resolved || [], resolverId, batchId);
+        })
+        .catch(function(error) {
+          console.error('conflictResolver failed for batch ' + batchId, error);
+          returnResolvedDocuments([], resolverId, batchId);
+        });
+    } else {
+      deferred.resolve(results);
+    }
+  }
+
+  function errorHandler(error) {
+    deferred.reject(error);
+  }
+
+  exec(successHandler,
+      errorHandler,
+      'CloudantSync',
+      'resolveConflictsInBatches',
+      [this.name, options]);
+
+  deferred.promise.nodeify(callback);
+  return deferred.promise;
+};
+
+/**
+ * @private
+ * @summary Passes a batch of resolved documents back to the native code.
+ * @param {Array} documentRevisions - The resolved document revisions, or
+ * null for documents to leave unchanged.
+ * @param {String} resolverId - The unique string that identifies the
+ * batch conflict resolution in the native code.
+ * @param {Number} batchId - The ID of the batch.
+ *
+ * @returns A [q style promise]{@link https://github.com/kriskowal/q} which
+ * returns successfully or with Error.
+ */
+function returnResolvedDocuments(documentRevisions, resolverId, batchId) {
+  var deferred = Q.defer();
+
+  function successHandler(results) {
+    deferred.resolve(results);
+  }
+
+  function errorHandler(error) {
+    console.error(error);
+    deferred.reject(error);
+  }
+
+  exec(successHandler,
+      errorHandler,
+      'CloudantSync',
+      'returnResolvedDocuments',
+      [resolverId, batchId, documentRevisions.map(function(documentRevision) {
+        return documentRevision || null;
+      })]);
+
+  return deferred.promise;
+}
+
 /**
  * @summary Passes the resolved document back to the native code.
  * @param {Object} documentRevision - The resolved document revision.
@@ -640,6 +1593,26 @@ function returnResolvedDocument(documentRevision, resolverId, callback) {
 
 // Internal Functions
 
+/**
+ * @private
+ * @summary Checks the given paging options are non-negative integers, or a
+ * positive integer for 'chunkSize'.
+ * @param {Object} options - The options to check
+ * @param {Array} names - The names of the paging options
+ * @throws {Error} if an option is not valid.
+ */
+function validatePaging(options, names) {
+  names.forEach(function(name) {
+    var value = options[name];
+    var min = POSITIVE_OPTIONS.indexOf(name) === -1 ? 0 : 1;
+    if (value !== undefined &&
+      (typeof value !== 'number' || value % 1 !== 0 || value < min)) {
+      throw new Error(name + ' must be ' +
+        (min ? 'a positive' : 'a non-negative') + ' integer');
+    }
+  });
+}
+
 /**
  * @private
  * @summary Checks the given 'dbName' is defined and is a string.
@@ -755,23 +1728,328 @@ function createOrUpdateDocumentFromRevision(args) {
   var deferred = Q.defer();
 
   function successHandler(result) {
-    deferred.resolve(result);
+    deferred.resolve(decodeResult(result));
   }
 
   function errorHandler(error) {
     deferred.reject(error);
   }
 
+  var execArgs = [args.dbName, args.documentRevision, args.isCreate];
+  if (args.binary) {
+    execArgs = [args.dbName, encodeCbor(args.documentRevision), args.isCreate,
+      BINARY_ENCODING];
+  }
+
   exec(successHandler,
        errorHandler,
        'CloudantSync',
        'createOrUpdateDocumentFromRevision',
-       [args.dbName, args.documentRevision, args.isCreate]);
+       execArgs);
 
   deferred.promise.nodeify(args.callback);
   return deferred.promise;
 }
 
+// Binary encoding
+
+var BINARY_ENCODING = 'cbor';
+
+/**
+ * @summary Decodes a result which the native plug-in sent as a CBOR encoded
+ * ArrayBuffer; other results are returned unchanged.
+ * @private
+ */
+function decodeResult(result) {
+  if (typeof ArrayBuffer !== 'undefined' && result instanceof ArrayBuffer) {
+    return decodeCbor(new Uint8Array(result));
+  }
+  return result;
+}
+
+/**
+ * @summary Encodes a JSON compatible value as CBOR (RFC 7049).
+ * @description Integers up to 2^53 are encoded as integers and other numbers
+ * as 64 bit floats; undefined values in Objects are left out, as
+ * JSON.stringify does.
+ * @private
+ */
+function encodeCbor(value) {
+  var bytes = new Uint8Array(256);
+  var length = 0;
+  var scratch = new DataView(new ArrayBuffer(8));
+
+  function ensure(count) {
+    if (length + count > bytes.length) {
+      var grown = new Uint8Array(Math.max(bytes.length * 2, length + count));
+      grown.set(bytes.subarray(0, length));
+      bytes = grown;
+    }
+  }
+
+  function writeByte(b) {
+    ensure(1);
+    bytes[length++] = b;
+  }
+
+  function writeHead(major, n) {
+    var type = major << 5;
+    if (n < 24) {
+      writeByte(type | n);
+    } else if (n < 0x100) {
+      writeByte(type | 24);
+      writeByte(n);
+    } else if (n < 0x10000) {
+      writeByte(type | 25);
+      writeByte(n >>> 8);
+      writeByte(n & 0xff);
+    } else if (n < 0x100000000) {
+      writeByte(type | 26);
+      scratch.setUint32(0, n);
+      writeScratch(4);
+    } else {
+      writeByte(type | 27);
+      scratch.setUint32(0, Math.floor(n / 0x100000000));
+      scratch.setUint32(4, n % 0x100000000);
+      writeScratch(8);
+    }
+  }
+
+  function writeScratch(count) {
+    ensure(count);
+    for (var i = 0; i < count; i++) {
+      bytes[length++] = scratch.getUint8(i);
+    }
+  }
+
+  function writeString(s) {
+    var utf8 = [];
+    for (var i = 0; i < s.length; i++) {
+      var c = s.charCodeAt(i);
+      if (c >= 0xd800 && c < 0xdc00 && i + 1 < s.length) {
+        var low = s.charCodeAt(i + 1);
+        if (low >= 0xdc00 && low < 0xe000) {
+          c = 0x10000 + ((c - 0xd800) << 10) + (low - 0xdc00);
+          i++;
+        }
+      }
+      if (c < 0x80) {
+        utf8.push(c);
+      } else if (c < 0x800) {
+        utf8.push(0xc0 | (c >> 6), 0x80 | (c & 0x3f));
+      } else if (c < 0x10000) {
+        utf8.push(0xe0 | (c >> 12), 0x80 | ((c >> 6) & 0x3f),
+          0x80 | (c & 0x3f));
+      } else {
+        utf8.push(0xf0 | (c >> 18), 0x80 | ((c >> 12) & 0x3f),
+          0x80 | ((c >> 6) & 0x3f), 0x80 | (c & 0x3f));
+      }
+    }
+    writeHead(3, utf8.length);
+    ensure(utf8.length);
+    bytes.set(utf8, length);
+    length += utf8.length;
+  }
+
+  function write(v) {
+    if (v === null || typeof v === 'undefined') {
+      writeByte(0xf6);
+    } else if (typeof v === 'boolean') {
+      writeByte(v ? 0xf5 : 0xf4);
+    } else if (typeof v === 'number') {
+      if (v % 1 === 0 && Math.abs(v) <= 9007199254740991) {
+        if (v < 0) {
+          writeHead(1, -1 - v);
+        } else {
+          writeHead(0, v);
+        }
+      } else {
+        writeByte(0xfb);
+        scratch.setFloat64(0, v);
+        writeScratch(8);
+      }
+    } else if (typeof v === 'string') {
+      writeString(v);
+    } else if (_.isArray(v)) {
+      writeHead(4, v.length);
+      for (var i = 0; i < v.length; i++) {
+        write(v[i]);
+      }
+    } else if (typeof v.toJSON === 'function') {
+      write(v.toJSON());
+    } else {
+      var keys = Object.keys(v).filter(function(key) {
+        return typeof v[key] !== 'undefined' && typeof v[key] !== 'function';
+      });
+      writeHead(5, keys.length);
+      keys.forEach(function(key) {
+        writeString(key);
+        write(v[key]);
+      });
+    }
+  }
+
+  write(value);
+  return bytes.buffer.slice(0, length);
+}
+
+/**
+ * @summary Decodes CBOR (RFC 7049) as encoded by the native plug-in into
+ * JSON compatible values.
+ * @description Byte strings are decoded to Uint8Arrays and tags are ignored.
+ * Indefinite lengths are not supported, as the plug-in never writes them.
+ * @private
+ */
+function decodeCbor(bytes) {
+  var view = new DataView(bytes.buffer, bytes.byteOffset, bytes.byteLength);
+  var position = 0;
+
+  function fail(message) {
+    throw new Error(message + ' in CBOR result at offset ' + position);
+  }
+
+  function readUnsigned(count) {
+    if (position + count > bytes.length) {
+      fail('Unexpected end of data');
+    }
+    var v;
+    if (count === 1) {
+      v = view.getUint8(position);
+    } else if (count === 2) {
+      v = view.getUint16(position);
+    } else if (count === 4) {
+      v = view.getUint32(position);
+    } else {
+      v = view.getUint32(position) * 0x100000000 +
+        view.getUint32(position + 4);
+    }
+    position += count;
+    return v;
+  }
+
+  function readLength(info) {
+    if (info < 24) {
+      return info;
+    } else if (info < 28) {
+      return readUnsigned(1 << (info - 24));
+    }
+    fail('Unsupported indefinite length');
+  }
+
+  function readString(n) {
+    var s = '';
+    var end = position + n;
+    while (position < end) {
+      var c = bytes[position++];
+      if (c >= 0xf0) {
+        c = ((c & 0x07) << 18) | ((bytes[position++] & 0x3f) << 12) |
+          ((bytes[position++] & 0x3f) << 6) | (bytes[position++] & 0x3f);
+      } else if (c >= 0xe0) {
+        c = ((c & 0x0f) << 12) | ((bytes[position++] & 0x3f) << 6) |
+          (bytes[position++] & 0x3f);
+      } else if (c >= 0xc0) {
+        c = ((c & 0x1f) << 6) | (bytes[position++] & 0x3f);
+      }
+      if (c >= 0x10000) {
+        c -= 0x10000;
+        s += String.fromCharCode(0xd800 + (c >> 10), 0xdc00 + (c & 0x3ff));
+      } else {
+        s += String.fromCharCode(c);
+      }
+    }
+    return s;
+  }
+
+  function readHalf() {
+    var half = readUnsigned(2);
+    var exponent = (half >> 10) & 0x1f;
+    var mantissa = half & 0x3ff;
+    var v;
+    if (exponent === 0) {
+      v = mantissa * Math.pow(2, -24);
+    } else if (exponent === 0x1f) {
+      v = mantissa === 0 ? Infinity : NaN;
+    } else {
+      v = (mantissa + 1024) * Math.pow(2, exponent - 25);
+    }
+    return half & 0x8000 ? -v : v;
+  }
+
+  function read() {
+    var initial = readUnsigned(1);
+    var major = initial >> 5;
+    var info = initial & 0x1f;
+    var n;
+    var i;
+
+    if (major === 7) {
+      switch (initial) {
+        case 0xf4:
+          return false;
+        case 0xf5:
+          return true;
+        case 0xf6:
+        case 0xf7:
+          return null;
+        case 0xf9:
+          return readHalf();
+        case 0xfa:
+          n = view.getFloat32(position);
+          position += 4;
+          return n;
+        case 0xfb:
+          n = view.getFloat64(position);
+          position += 8;
+          return n;
+        default:
+          fail('Unsupported simple value');
+      }
+    }
+
+    n = readLength(info);
+    if (major !== 0 && major !== 1 && major !== 6 &&
+        position + (major < 4 ? n : 0) > bytes.length) {
+      fail('Item length exceeds the data');
+    }
+    switch (major) {
+      case 0:
+        return n;
+      case 1:
+        return -1 - n;
+      case 2:
+        position += n;
+        return new Uint8Array(bytes.subarray(position - n, position));
+      case 3:
+        return readString(n);
+      case 4:
+        var list = [];
+        for (i = 0; i < n; i++) {
+          list.push(read());
+        }
+        return list;
+      case 5:
+        var map = {};
+        for (i = 0; i < n; i++) {
+          var key = read();
+          if (!_.isString(key)) {
+            fail('Map key is not a String');
+          }
+          map[key] = read();
+        }
+        return map;
+      default:
+        // Tags carry no meaning in documents, so only the tagged value is kept
+        return read();
+    }
+  }
+
+  var value = read();
+  if (position !== bytes.length) {
+    fail('Unexpected data after the item');
+  }
+  return value;
+}
+
 // Callback TypeDefs
 
 /**
@@ -800,7 +2078,15 @@ function createOrUpdateDocumentFromRevision(args) {
 /**
  * @callback Datastore~getDocumentCallback
  * @param {?Error} error
- * @param {Object} documentRevision - The retrieved document revision.
+ * @param {Object} documentRevision - The retrieved document revision, or a
+ * not modified marker.
+ */
+
+/**
+ * @callback Datastore~getDocumentsCallback
+ * @param {?Error} error
+ * @param {Array} results - The retrieved document revisions, not modified
+ * markers or nulls, in the order requested.
  */
 
 /**
@@ -827,6 +2113,45 @@ function createOrUpdateDocumentFromRevision(args) {
  * @param {Array} results - The query results.
  */
 
+/**
+ * @callback Datastore~adviseIndexesCallback
+ * @param {?Error} error
+ * @param {Array} suggestions - The suggested indexes, each an Object with the
+ * index `fields`, a suggested `name`, the number of slow `queries` it would
+ * serve and their `totalMicros`. When created, `created` is true, or false
+ * with the `error`.
+ */
+
+/**
+ * @callback Datastore~patchDocumentCallback
+ * @param {?Error} error
+ * @param {Object} saved - The `_id` and new `_rev` of the patched document.
+ */
+
+/**
+ * @callback Datastore~transactionCallback
+ * @param {?Error} error
+ * @param {Array} results - The `_id` and `_rev` written by each operation, in
+ * order, with `_deleted` for deletes.
+ */
+
+/**
+ * @callback Datastore~writeBehindStatusCallback
+ * @param {?Error} error
+ * @param {Object} status - Whether write-behind is `enabled` and, if so, its
+ * settings, the number of `pending` writes, the counts of writes `queued`,
+ * `merged` into a queued write, `rebased` on the revision saved by an earlier
+ * flush, `written` and `failed`, the number of
+ * `flushes` and `backpressureWaits`, and the recent failed writes as `errors`.
+ */
+
+/**
+ * @callback Datastore~flushCallback
+ * @param {?Error} error
+ * @param {Object} result - The number of writes `written` and the `failed`
+ * writes, each with its `_id` and `error`.
+ */
+
 /**
  * @callback Datastore~closeCallback
  * @param {?Error} error
@@ -839,6 +2164,25 @@ function createOrUpdateDocumentFromRevision(args) {
  * in their revision tree.
  */
 
+/**
+ * @callback Datastore~countConflictsCallback
+ * @param {?Error} error
+ * @param {Number} count - The number of documents in the datastore that have
+ * conflicts in their revision tree.
+ */
+
+/**
+ * @callback Datastore~conflictedDocumentIdsChunkHandler
+ * @param {Array} docIds - The next chunk of conflicted document IDs.
+ */
+
+/**
+ * @callback Datastore~streamConflictedDocumentIdsCallback
+ * @param {?Error} error
+ * @param {Number} total - The total number of conflicted document IDs
+ * delivered.
+ */
+
 /**
  * @callback Datastore~resolveConflictsCallback
  * @param {String} docId - the ID of the Document with conflicts.
@@ -853,6 +2197,30 @@ function createOrUpdateDocumentFromRevision(args) {
  * @param {?Error} error
  */
 
+/**
+ * @callback Datastore~resolveAllConflictsCallback
+ * @param {?Error} error
+ * @param {Object} summary - The `strategy`, the number of `conflicted`,
+ * `resolved` and `failed` documents, up to 50 `errors` as `{id, error}`
+ * Objects, the number of `batches` and the `duration` in milliseconds.
+ */
+
+/**
+ * @callback Datastore~resolveConflictBatchCallback
+ * @param {Array} documents - The conflicted documents, each an Object with the
+ * `docId` and an Array of its conflicting revisions in `conflicts`.
+ * @returns {(Array|Promise)} the new winning revision, or `null`, for each
+ * document in the order given, or a promise for such an Array.
+ */
+
+/**
+ * @callback Datastore~resolveConflictsInBatchesCallback
+ * @param {?Error} error
+ * @param {Object} summary - The number of `conflicted`, `resolved`,
+ * `unchanged`, `failed` and `timedOut` documents, up to 50 `errors` as
+ * `{id, error}` Objects and the number of `batches`.
+ */
+
 /**
  * @callback Datastore~returnResolvedDocumentCallback
  * @param {?Error} error
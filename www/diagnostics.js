@@ -0,0 +1,512 @@
+/*
+ * Copyright (c) 2017 IBM Corp. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND,either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+var exec = require('cordova/exec');
+var Q = require('cloudant-sync.q');
+var _ = require('cloudant-sync.lodash_funcs');
+
+/**
+ * @summary Runs a native action which takes the given arguments and returns
+ * its result through a promise.
+ * @private
+ */
+function execute(action, args, callback) {
+  var deferred = Q.defer();
+
+  function successHandler(result) {
+    deferred.resolve(result);
+  }
+
+  function errorHandler(error) {
+    deferred.reject(error);
+  }
+
+  exec(successHandler, errorHandler, 'CloudantSync', action, args);
+
+  deferred.promise.nodeify(callback);
+  return deferred.promise;
+}
+
+/**
+ * @summary Starts or stops recording metrics for the plugin's actions.
+ * @description When enabled, each call of a native action records the time it
+ * waited for a thread, the time it executed, the time spent serializing its
+ * results, the size of its arguments and results, and whether it failed.
+ * The metrics are kept per action and per datastore. Metrics are disabled by
+ * default, and cost almost nothing while disabled.
+ *
+ * Note that metrics are currently only supported on Android.
+ *
+ * @param {Boolean} enabled - true to start recording, false to stop.
+ * @param {Diagnostics~callback} [callback] - The function to call after
+ * attempting to enable or disable metrics.
+ *
+ * @returns A [q style promise]{@link https://github.com/kriskowal/q} which
+ * returns successfully or with Error.
+ */
+exports.setMetricsEnabled = function(enabled, callback) {
+  return execute('setMetricsEnabled', [enabled === true], callback);
+};
+
+/**
+ * @summary Returns the recorded metrics.
+ * @description The metrics have an `actions` Object and a `documentStores`
+ * Object, keyed by action and datastore name. Each entry has the number of
+ * `calls` and `errors`, and histograms of `queueWaitMicros`,
+ * `executionMicros`, `serializationMicros`, `requestBytes` and
+ * `responseBytes`. Each histogram has the `count`, `sum`, `min`, `max`,
+ * `mean`, the approximate `p50`, `p90` and `p99`, and the counts in power of
+ * two `buckets`: bucket 0 counts zero values and bucket i counts values from
+ * 2^(i-1) to 2^i - 1.
+ *
+ * The metrics also have a `coalescing` Object counting the identical reads in
+ * flight at the same time which shared one execution: the calls `executed`
+ * and `coalesced`, in total and by action in `actions`. These are counted even
+ * while metrics are disabled.
+ *
+ * Note that metrics are currently only supported on Android.
+ *
+ * @param {Diagnostics~getMetricsCallback} [callback] - The function to call
+ * after attempting to get the metrics.
+ *
+ * @returns A [q style promise]{@link https://github.com/kriskowal/q}
+ * returning either the metrics or an Error.
+ */
+exports.getMetrics = function(callback) {
+  return execute('getMetrics', [], callback);
+};
+
+/**
+ * @summary Discards the recorded metrics.
+ *
+ * Note that metrics are currently only supported on Android.
+ *
+ * @param {Diagnostics~callback} [callback] - The function to call after
+ * attempting to reset the metrics.
+ *
+ * @returns A [q style promise]{@link https://github.com/kriskowal/q} which
+ * returns successfully or with Error.
+ */
+exports.resetMetrics = function(callback) {
+  return execute('resetMetrics', [], callback);
+};
+
+/**
+ * @summary Starts or stops recording trace spans of individual calls.
+ * @description When enabled, the stages of each call of a native action are
+ * recorded as timestamped spans: the bridge call, the wait for a thread, the
+ * run on that thread, database calls, JSON building and sending results. The
+ * time replication HTTP requests wait for JavaScript interceptors is also
+ * recorded. All spans of a call share a trace id, the Cordova callback id of
+ * the call, in their `traceId` argument.
+ *
+ * Spans are kept in a ring buffer which overwrites the oldest spans when full.
+ * Tracing is disabled by default, and costs almost nothing while disabled.
+ *
+ * Note that tracing is currently only supported on Android.
+ *
+ * @param {Boolean} enabled - true to start recording, false to stop.
+ * @param {Object} [options] - Tracing options.
+ * @param {Number} [options.capacity] - The maximum number of spans kept.
+ * Defaults to 10000. Changing the capacity discards the recorded spans.
+ * @param {Diagnostics~callback} [callback] - The function to call after
+ * attempting to enable or disable tracing.
+ *
+ * @returns A [q style promise]{@link https://github.com/kriskowal/q} which
+ * returns successfully or with Error.
+ */
+exports.setTracingEnabled = function(enabled, options, callback) {
+  if (_.isFunction(options)) {
+    callback = options;
+    options = {};
+  }
+  options = options || {};
+  if (typeof options.capacity !== 'undefined' &&
+      (typeof options.capacity !== 'number' || options.capacity < 1 ||
+       options.capacity % 1 !== 0)) {
+    throw new Error('capacity must be a positive integer');
+  }
+
+  return execute('setTracingEnabled', [enabled === true, options.capacity],
+    callback);
+};
+
+/**
+ * @summary Returns the recorded trace spans in the Chrome trace event format.
+ * @description The returned Object can be saved as JSON and loaded into
+ * chrome://tracing or Perfetto. Its `otherData` has the buffer `capacity`, the
+ * number of `spans` returned and the number of spans `overwritten` since the
+ * buffer was last cleared.
+ *
+ * Note that tracing is currently only supported on Android.
+ *
+ * @param {Diagnostics~getTraceCallback} [callback] - The function to call
+ * after attempting to get the trace.
+ *
+ * @returns A [q style promise]{@link https://github.com/kriskowal/q}
+ * returning either the trace or an Error.
+ */
+exports.getTrace = function(callback) {
+  return execute('getTrace', [], callback);
+};
+
+/**
+ * @summary Writes the recorded trace spans in the Chrome trace event format to
+ * a file.
+ *
+ * Note that tracing is currently only supported on Android.
+ *
+ * @param {String} [path] - The absolute path of the file to write. Defaults to
+ * cloudant-sync-trace.json in the application cache directory.
+ * @param {Diagnostics~dumpTraceCallback} [callback] - The function to call
+ * after attempting to write the trace.
+ *
+ * @returns A [q style promise]{@link https://github.com/kriskowal/q}
+ * returning either the path of the written file or an Error.
+ */
+exports.dumpTrace = function(path, callback) {
+  if (_.isFunction(path)) {
+    callback = path;
+    path = null;
+  }
+  if (path && !_.isString(path)) {
+    throw new Error('path must be a String');
+  }
+
+  return execute('dumpTrace', [path || null], callback);
+};
+
+/**
+ * @summary Discards the recorded trace spans.
+ *
+ * Note that tracing is currently only supported on Android.
+ *
+ * @param {Diagnostics~callback} [callback] - The function to call after
+ * attempting to clear the trace.
+ *
+ * @returns A [q style promise]{@link https://github.com/kriskowal/q} which
+ * returns successfully or with Error.
+ */
+exports.clearTrace = function(callback) {
+  return execute('clearTrace', [], callback);
+};
+
+/**
+ * @summary Starts recording the native actions called by this plug-in.
+ * @description Each call is written to a file as one line holding the time
+ * since the previous call, the action name and the action arguments, so the
+ * traffic of a real app can be replayed offline with the replay tool in the
+ * benchmarks project. Recording is disabled by default, and costs almost
+ * nothing while disabled.
+ *
+ * Payloads are recorded in one of three modes:
+ * - `full` records arguments verbatim.
+ * - `size`, the default, replaces document contents, document ids, query
+ *   values, replication URIs and HTTP header values with pseudonyms of the
+ *   same length. Equal values get equal pseudonyms within a recording, but
+ *   the original values cannot be recovered.
+ * - `redact` is like `size`, but with pseudonyms of at most 8 characters.
+ *
+ * Note that recording is currently only supported on Android.
+ *
+ * @param {String} [path] - The absolute path of the file to write. Defaults to
+ * cloudant-sync-recording.ndjson in the application cache directory.
+ * @param {Object} [options] - Recording options.
+ * @param {String} [options.payloads] - The payload mode: `full`, `size` or
+ * `redact`. Defaults to `size`.
+ * @param {Number} [options.maxCalls] - The number of calls after which
+ * recording stops. Defaults to no limit.
+ * @param {Diagnostics~dumpTraceCallback} [callback] - The function to call
+ * after attempting to start recording.
+ *
+ * @returns A [q style promise]{@link https://github.com/kriskowal/q}
+ * returning either the path of the file being written or an Error.
+ */
+exports.startRecording = function(path, options, callback) {
+  if (_.isFunction(path)) {
+    callback = path;
+    path = null;
+    options = {};
+  } else if (_.isFunction(options)) {
+    callback = options;
+    options = {};
+  }
+  if (path && !_.isString(path)) {
+    throw new Error('path must be a String');
+  }
+  options = options || {};
+  if (typeof options.payloads !== 'undefined' &&
+      ['full', 'size', 'redact'].indexOf(options.payloads) === -1) {
+    throw new Error('payloads must be one of \'full\', \'size\' or ' +
+      '\'redact\'');
+  }
+  if (typeof options.maxCalls !== 'undefined' &&
+      (typeof options.maxCalls !== 'number' || options.maxCalls < 0 ||
+       options.maxCalls % 1 !== 0)) {
+    throw new Error('maxCalls must be a non-negative integer');
+  }
+
+  return execute('startRecording', [path || null, options], callback);
+};
+
+/**
+ * @summary Stops recording the native actions called by this plug-in.
+ *
+ * Note that recording is currently only supported on Android.
+ *
+ * @param {Diagnostics~stopRecordingCallback} [callback] - The function to call
+ * after attempting to stop recording.
+ *
+ * @returns A [q style promise]{@link https://github.com/kriskowal/q}
+ * returning either the recording summary or an Error.
+ */
+exports.stopRecording = function(callback) {
+  return execute('stopRecording', [], callback);
+};
+
+/**
+ * @summary Returns the memory held by the plug-in and the memory pressure
+ * state.
+ * @description The usage has the `pressure` reported by Android: its `tier`,
+ * one of `none`, `moderate`, `low` or `critical`, the `lastLevel` passed to
+ * onTrimMemory and when the pressure started (`since`) and was last reported
+ * (`lastTrim`). It also has the memory `policy`, the Java `heap`, the open
+ * `documentStores` and those closed while idle, the number of `replicators`,
+ * paused replications and pending interceptions, the `conflictResolvers`
+ * waiting for JavaScript, the retained `trace` spans and `counters` of the
+ * memory shed.
+ *
+ * Note that memory management is currently only supported on Android.
+ *
+ * @param {Diagnostics~getMemoryUsageCallback} [callback] - The function to
+ * call after attempting to get the memory usage.
+ *
+ * @returns A [q style promise]{@link https://github.com/kriskowal/q}
+ * returning either the memory usage or an Error.
+ */
+exports.getMemoryUsage = function(callback) {
+  return execute('getMemoryUsage', [], callback);
+};
+
+/**
+ * @summary Sheds memory as if Android had reported memory pressure.
+ * @description Android reports memory pressure to the plug-in automatically;
+ * this is for testing an app's behaviour under pressure. Levels map to tiers
+ * as onTrimMemory levels do: 5 and 20 are `moderate`, 10 and 60 are `low`, 15
+ * and 80 are `critical`.
+ *
+ * Note that memory management is currently only supported on Android.
+ *
+ * @param {Number} [level] - The onTrimMemory level. Defaults to 80, the
+ * critical TRIM_MEMORY_COMPLETE level.
+ * @param {Diagnostics~getMemoryUsageCallback} [callback] - The function to
+ * call after attempting to shed memory.
+ *
+ * @returns A [q style promise]{@link https://github.com/kriskowal/q}
+ * returning either the memory usage after shedding memory or an Error.
+ */
+exports.trimMemory = function(level, callback) {
+  if (_.isFunction(level)) {
+    callback = level;
+    level = null;
+  }
+  if (level !== null && typeof level !== 'undefined' &&
+      (typeof level !== 'number' || level < 0 || level % 1 !== 0)) {
+    throw new Error('level must be a non-negative integer');
+  }
+
+  return execute('trimMemory', [typeof level === 'number' ? level : null],
+    callback);
+};
+
+/**
+ * @summary Sets the thresholds used under memory pressure.
+ *
+ * Note that memory management is currently only supported on Android.
+ *
+ * @param {Object} options - The thresholds to change.
+ * @param {Number} [options.idleTimeout] - The milliseconds a datastore must be
+ * unused before it is closed under `low` pressure. Defaults to 60000.
+ * @param {Number} [options.reliefDelay] - The milliseconds without pressure
+ * being reported after which it is relieved. Defaults to 60000.
+ * @param {Number} [options.criticalPriority] - Replications with a priority
+ * below this are paused under `critical` pressure. Defaults to 1.
+ * @param {Number} [options.maxFindResults] - The most documents a find may
+ * return under `low` pressure, or 0 for no limit. Defaults to 1000.
+ * @param {Diagnostics~setMemoryPolicyCallback} [callback] - The function to
+ * call after attempting to set the thresholds.
+ *
+ * @returns A [q style promise]{@link https://github.com/kriskowal/q}
+ * returning either the resulting policy or an Error.
+ */
+exports.setMemoryPolicy = function(options, callback) {
+  if (!_.isObject(options)) {
+    throw new Error('options must be an Object');
+  }
+  ['idleTimeout', 'reliefDelay', 'maxFindResults'].forEach(function(name) {
+    var value = options[name];
+    if (typeof value !== 'undefined' &&
+        (typeof value !== 'number' || value < 0 || value % 1 !== 0)) {
+      throw new Error(name + ' must be a non-negative integer');
+    }
+  });
+  if (typeof options.criticalPriority !== 'undefined' &&
+      (typeof options.criticalPriority !== 'number' ||
+       options.criticalPriority % 1 !== 0)) {
+    throw new Error('criticalPriority must be an integer');
+  }
+
+  return execute('setMemoryPolicy', [options], callback);
+};
+
+/**
+ * @summary Returns the finds which took longer than the slow query threshold.
+ * @description Each entry has the `documentStore`, the time it finished
+ * (`at`), the `micros` taken to run the query and read its documents, the
+ * number of `results`, the normalized `selector`, with keys sorted and values
+ * replaced by `"?"`, the `sort`, `fields`, `skip` and `limit`, and the names
+ * of the `index` containing every selector field and the `sortIndex`
+ * containing every sort field, or null where there is none. Queries without
+ * an index are matched by examining documents one by one.
+ *
+ * The slow query log is enabled by default with a threshold of 100
+ * milliseconds and keeps the latest 100 entries.
+ *
+ * Note that the slow query log is currently only supported on Android.
+ *
+ * @param {String} [datastoreName] - The name of a datastore to return entries
+ * for. Defaults to all datastores.
+ * @param {Diagnostics~getSlowQueriesCallback} [callback] - The function to
+ * call after attempting to get the slow queries.
+ *
+ * @returns A [q style promise]{@link https://github.com/kriskowal/q}
+ * returning either the log or an Error.
+ */
+exports.getSlowQueries = function(datastoreName, callback) {
+  if (_.isFunction(datastoreName)) {
+    callback = datastoreName;
+    datastoreName = null;
+  }
+  if (datastoreName && !_.isString(datastoreName)) {
+    throw new Error('datastoreName must be a String');
+  }
+
+  return execute('getSlowQueries', [datastoreName || null], callback);
+};
+
+/**
+ * @summary Sets the threshold and capacity of the slow query log, clearing
+ * it.
+ *
+ * Note that the slow query log is currently only supported on Android.
+ *
+ * @param {Object} options - Slow query log options.
+ * @param {Number} [options.thresholdMillis] - The time in milliseconds above
+ * which a find is recorded, or -1 to stop recording. Defaults to 100.
+ * @param {Number} [options.capacity] - The number of entries kept. Defaults to
+ * 100.
+ * @param {Diagnostics~callback} [callback] - The function to call after
+ * attempting to configure the log.
+ *
+ * @returns A [q style promise]{@link https://github.com/kriskowal/q} which
+ * returns successfully or with Error.
+ */
+exports.setSlowQueryLog = function(options, callback) {
+  if (!_.isObject(options)) {
+    throw new Error('options must be an Object');
+  }
+  if (typeof options.thresholdMillis !== 'undefined' &&
+      (typeof options.thresholdMillis !== 'number' ||
+       options.thresholdMillis < -1 || options.thresholdMillis % 1 !== 0)) {
+    throw new Error('thresholdMillis must be an integer of -1 or more');
+  }
+  if (typeof options.capacity !== 'undefined' &&
+      (typeof options.capacity !== 'number' || options.capacity < 1 ||
+       options.capacity % 1 !== 0)) {
+    throw new Error('capacity must be a positive integer');
+  }
+
+  return execute('setSlowQueryLog', [options], callback);
+};
+
+/**
+ * @summary Discards the entries of the slow query log and the queries index
+ * advice is based on.
+ *
+ * Note that the slow query log is currently only supported on Android.
+ *
+ * @param {Diagnostics~callback} [callback] - The function to call after
+ * attempting to clear the log.
+ *
+ * @returns A [q style promise]{@link https://github.com/kriskowal/q} which
+ * returns successfully or with Error.
+ */
+exports.clearSlowQueries = function(callback) {
+  return execute('clearSlowQueries', [], callback);
+};
+
+/**
+ * @callback Diagnostics~callback
+ * @param {?Error} error
+ */
+
+/**
+ * @callback Diagnostics~getMetricsCallback
+ * @param {?Error} error
+ * @param {Object} metrics - The metrics per action and per datastore.
+ */
+
+/**
+ * @callback Diagnostics~getTraceCallback
+ * @param {?Error} error
+ * @param {Object} trace - The trace in the Chrome trace event format.
+ */
+
+/**
+ * @callback Diagnostics~dumpTraceCallback
+ * @param {?Error} error
+ * @param {String} path - The absolute path of the written file.
+ */
+
+/**
+ * @callback Diagnostics~stopRecordingCallback
+ * @param {?Error} error
+ * @param {Object} recording - The `path` of the file, the `payloads` mode, the
+ * number of `calls` recorded and whether the recording was `truncated` because
+ * `maxCalls` was reached or the file could not be written.
+ */
+
+/**
+ * @callback Diagnostics~getMemoryUsageCallback
+ * @param {?Error} error
+ * @param {Object} usage - The memory pressure state and the memory held by the
+ * plug-in.
+ */
+
+/**
+ * @callback Diagnostics~setMemoryPolicyCallback
+ * @param {?Error} error
+ * @param {Object} policy - The `idleTimeout`, `reliefDelay`,
+ * `criticalPriority` and `maxFindResults` in effect.
+ */
+
+/**
+ * @callback Diagnostics~getSlowQueriesCallback
+ * @param {?Error} error
+ * @param {Object} log - The `thresholdMillis`, `capacity`, the slow query
+ * `entries`, oldest first, and the number of entries `overwritten`.
+ */
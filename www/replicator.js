@@ -24,6 +24,10 @@ var HttpInterceptorContext = require('cloudant-sync.HttpInterceptorContext');
 
 module.exports = Replicator;
 
+// Replicator options tuning replication batches and queueing
+var TUNING_OPTIONS = ['changeLimitPerBatch', 'batchLimitPerRun',
+  'insertBatchSize', 'attachmentsInline', 'priority'];
+
 /**
  * @class Replicator
  * @classdesc The {@link Replicator} prototype is a common interface for
@@ -67,6 +71,43 @@ function Replicator(options, deferred) {
     configurable: false,
   });
 
+  // Pull replication filters; undefined values are not sent to the native code
+  utils.defineProperty(this, 'selector', {
+    value: options.selector,
+    writable: false,
+    enumerable: true,
+    configurable: false,
+  });
+  utils.defineProperty(this, 'filter', {
+    value: options.filter,
+    writable: false,
+    enumerable: true,
+    configurable: false,
+  });
+  utils.defineProperty(this, 'doc_ids', {
+    value: options['doc_ids'],
+    writable: false,
+    enumerable: true,
+    configurable: false,
+  });
+
+  utils.defineProperty(this, 'conflictResolution', {
+    value: options.conflictResolution,
+    writable: false,
+    enumerable: true,
+    configurable: false,
+  });
+
+  // Replication tuning; undefined values keep the native defaults
+  TUNING_OPTIONS.forEach(function(name) {
+    utils.defineProperty(this, name, {
+      value: options[name],
+      writable: false,
+      enumerable: true,
+      configurable: false,
+    });
+  }, this);
+
   utils.defineProperty(handlers, 'complete', {
     value: [],
     writable: true,
@@ -79,6 +120,12 @@ function Replicator(options, deferred) {
     enumerable: true,
     configurable: false,
   });
+  utils.defineProperty(handlers, 'paused', {
+    value: [],
+    writable: true,
+    enumerable: true,
+    configurable: false,
+  });
   utils.defineProperty(this, 'handlers', {
     value: handlers,
     writable: true,
@@ -104,6 +151,15 @@ function Replicator(options, deferred) {
     configurable: false,
   });
 
+  // Replicators without interceptors never wait on the JavaScript layer
+  // for their HTTP requests.
+  utils.defineProperty(this, 'hasInterceptors', {
+    value: requestInterceptors.length > 0 || responseInterceptors.length > 0,
+    writable: false,
+    enumerable: true,
+    configurable: false,
+  });
+
   utils.defineProperty(this, 'interceptorTimeout', {
     value: 290000,
     writable: true,
@@ -204,6 +260,39 @@ function Interceptors(optionInterceptors) {
  * to execute when an HTTP request is made by this replicator
  * @property {Object} options.responseInterceptors - A map of HTTP status
  * codes and the handlers to execute when received by this replicator
+ * @property {Object} [options.selector] - Pull replication only. A Cloudant
+ * Query selector; only documents matching it are replicated. Requires a
+ * server supporting the `_selector` filter, e.g. CouchDB 2.0 or Cloudant.
+ * Not supported on iOS.
+ * @property {Object} [options.filter] - Pull replication only. The filter
+ * function to apply on the server.
+ * @property {String} options.filter.name - The filter function name in the
+ * form `designdoc/filtername`.
+ * @property {Object} [options.filter.params] - String parameters to pass to
+ * the filter function.
+ * @property {Array} [options.doc_ids] - Pull replication only. The IDs of the
+ * documents to replicate.
+ *
+ * Only one of `selector`, `filter` and `doc_ids` may be specified.
+ *
+ * @property {(String|Object)} [options.conflictResolution] - Pull
+ * replication only. A strategy, as for
+ * {@link Datastore#resolveAllConflicts}, used to resolve the conflicts of the
+ * documents changed since the previous replication each time replication
+ * completes. The number of documents resolved is passed to 'complete' event
+ * handlers after the number of documents replicated. Not supported on iOS.
+ * @property {Number} [options.changeLimitPerBatch] - The maximum number of
+ * changes fetched from the source in each batch. Android only; ignored on iOS.
+ * @property {Number} [options.batchLimitPerRun] - The maximum number of batches
+ * processed before the replication completes. Android only; ignored on iOS.
+ * @property {Number} [options.insertBatchSize] - The number of documents
+ * written to the target in each bulk insert. Android only; ignored on iOS.
+ * @property {(Boolean|String)} [options.attachmentsInline] - Whether
+ * attachments are sent inline with their documents. For push replication
+ * `'small'` inlines only small attachments. Android only; ignored on iOS.
+ * @property {Number} [options.priority=0] - The queue priority of the
+ * replicator when the number of concurrent replications is limited; higher
+ * priorities start first. Android only; ignored on iOS.
  *
  * @param {Replicator~createCallback} [callback] - The function to call
  * after attempting to create the {@link Replicator}.
@@ -244,12 +333,111 @@ Replicator.create = function(options, callback) {
       + 'or a URI. ' + 'Found: ' + options.source.toString());
   }
 
+  validatePullFilter(options);
+  validateTuning(options);
+
+  if (options.conflictResolution !== undefined) {
+    if (options.type !== 'pull') {
+      throw new Error('conflictResolution is only supported for pull replication');
+    }
+    utils.validateConflictStrategy(options.conflictResolution);
+  }
+
   new Replicator(options, deferred);
 
   deferred.promise.nodeify(callback);
   return deferred.promise;
 };
 
+/**
+ * @summary Limits the number of replications running at the same time.
+ * @description Starting a replicator while the maximum number of
+ * replications are running queues it; queued replicators are started in
+ * order of their `priority` option, then in the order they were started, as
+ * running replications complete or error. Stopping a queued replicator
+ * removes it from the queue. The limit applies across all replicators,
+ * including scheduled ones. By default the number of replications is not
+ * limited.
+ *
+ * Note that the limit is currently only supported on Android.
+ *
+ * @param {Number} max - The maximum number of concurrent replications, or 0
+ * for no limit.
+ * @param {Replicator~queueMetricsCallback} [callback] - The function to call
+ * after attempting to set the limit.
+ *
+ * @returns A [q style promise]{@link https://github.com/kriskowal/q}
+ * returning either the queue metrics or an Error.
+ */
+Replicator.setMaxConcurrentReplications = function(max, callback) {
+  if (typeof max !== 'number' || max % 1 !== 0 || max < 0) {
+    throw new Error('max must be a non-negative integer');
+  }
+
+  var deferred = Q.defer();
+
+  function successHandler(metrics) {
+    deferred.resolve(metrics);
+  }
+
+  function errorHandler(error) {
+    deferred.reject(error);
+  }
+
+  exec(successHandler,
+      errorHandler,
+      'CloudantSync',
+      'setMaxConcurrentReplications',
+      [max]);
+
+  deferred.promise.nodeify(callback);
+  return deferred.promise;
+};
+
+/**
+ * @summary Returns the replication queue metrics.
+ * @description The metrics have the properties `maxConcurrent`, `running`,
+ * `queued`, `started`, `startsQueued`, `cancelled`, `totalWaitTime`,
+ * `maxWaitTime`, `averageWaitTime` and `oldestQueuedWaitTime`. Wait times are
+ * in milliseconds and counted from the start request to the replication
+ * starting.
+ *
+ * Note that the metrics are currently only supported on Android.
+ *
+ * @param {Boolean} [reset=false] - If true the counters and wait times are
+ * reset after being read.
+ * @param {Replicator~queueMetricsCallback} [callback] - The function to call
+ * after attempting to get the metrics.
+ *
+ * @returns A [q style promise]{@link https://github.com/kriskowal/q}
+ * returning either the queue metrics or an Error.
+ */
+Replicator.getQueueMetrics = function(reset, callback) {
+  if (_.isFunction(reset)) {
+    callback = reset;
+    reset = false;
+  }
+
+  var deferred = Q.defer();
+
+  function successHandler(metrics) {
+    deferred.resolve(metrics);
+  }
+
+  function errorHandler(error) {
+    deferred.reject(error);
+  }
+
+  exec(successHandler,
+      errorHandler,
+      'CloudantSync',
+      'getReplicationQueueMetrics',
+      [reset === true]);
+
+  deferred.promise.nodeify(callback);
+  return deferred.promise;
+};
+
 /**
  * @summary Starts a replication.
  * @description The replication will continue until replication is caught up
@@ -316,6 +504,47 @@ Replicator.prototype.getState = function(callback) {
   return deferred.promise;
 };
 
+/**
+ * @summary Returns the current Replicator state and queueing state.
+ * @description A replicator waiting for a free slot, see
+ * {@link Replicator.setMaxConcurrentReplications}, is in the 'Pending' state.
+ * The returned status has the properties:
+ * - `state`: the replication state, as returned by {@link Replicator#getState}
+ * - `queued`: true if the replicator is waiting to start
+ * - `queuePosition`: the 1-based position in the queue, or 0 if not queued
+ * - `waitTime`: the milliseconds waited so far if queued, otherwise the
+ * milliseconds the last start waited
+ * - `priority`: the queue priority of the replicator
+ *
+ * Only `state` is returned on iOS.
+ *
+ * @param {Replicator~getStatusCallback} [callback] - The function to call
+ * after attempting to get the replication status.
+ *
+ * @returns A [q style promise]{@link https://github.com/kriskowal/q}
+ * returning either the replication status or an Error.
+ */
+Replicator.prototype.getStatus = function(callback) {
+  var deferred = Q.defer();
+
+  function successHandler(response) {
+    deferred.resolve(_.isString(response) ? {state: response} : response);
+  }
+
+  function errorHandler(error) {
+    deferred.reject(error);
+  }
+
+  exec(successHandler,
+      errorHandler,
+      'CloudantSync',
+      'getReplicationStatus',
+      [this, true]);
+
+  deferred.promise.nodeify(callback);
+  return deferred.promise;
+};
+
 /**
  * @summary Stops replication
  *
@@ -347,6 +576,152 @@ Replicator.prototype.stop = function(callback) {
   return deferred.promise;
 };
 
+/**
+ * @summary Schedules this replicator to run natively.
+ * @description Scheduled replications are run by the native layer, so a
+ * replicator without request or response interceptors continues while the
+ * WebView is paused. Interceptors run in the WebView, so while it is paused
+ * each request of a replicator with interceptors is held for up to 60
+ * seconds. A replicator is never run while a previous run of it is still in
+ * progress; triggers which arrive during a run are coalesced into a single
+ * follow-up run. After an 'error' event the next
+ * run is delayed using exponential backoff with jitter. Calling schedule again
+ * replaces the existing schedule.
+ *
+ * Note that scheduling is currently only supported on Android.
+ *
+ * @param {Object} options - The schedule options.
+ * @property {Number} [options.interval] - Run the replicator every `interval`
+ * milliseconds after the previous run completes. Defaults to 0, which
+ * disables periodic runs.
+ * @property {Number} [options.initialBackoff] - The delay in milliseconds
+ * before retrying after the first error. Defaults to 5000.
+ * @property {Number} [options.maxBackoff] - The maximum delay in milliseconds
+ * between retries. Defaults to 600000.
+ * @property {Number} [options.jitter] - The fraction (0 to 1) by which each
+ * backoff delay is randomly varied. Defaults to 0.2.
+ * @property {Boolean} [options.triggerOnWrite] - If true, run the replicator
+ * after documents are written to its {@link Datastore}. Defaults to false.
+ * @property {Number} [options.debounce] - The time in milliseconds with no
+ * further writes to wait before a write triggered run. Each write restarts
+ * the wait. Defaults to 2000.
+ * @property {Number} [options.maxDelay] - The maximum time in milliseconds a
+ * write triggered run is put off after the first write, so that continuous
+ * writes still replicate. Must not be less than `debounce`. Defaults to 60000.
+ * @property {Boolean} [options.runNow] - If true, also run the replicator
+ * immediately. Defaults to false.
+ * @param {Replicator~scheduleCallback} [callback] - The function to call
+ * after attempting to schedule the replicator.
+ *
+ * @returns A [q style promise]{@link https://github.com/kriskowal/q}
+ * returning either the schedule state or an Error.
+ */
+Replicator.prototype.schedule = function(options, callback) {
+  if (!_.isObject(options) || _.isArray(options) || _.isFunction(options)) {
+    throw new Error('schedule options must be an Object');
+  }
+
+  ['interval', 'initialBackoff', 'maxBackoff', 'debounce', 'maxDelay',
+    'jitter']
+    .forEach(function(name) {
+      if (options.hasOwnProperty(name) &&
+        (typeof options[name] !== 'number' || options[name] < 0)) {
+        throw new Error('schedule option ' + name +
+          ' must be a non-negative Number');
+      }
+    });
+
+  if (options.hasOwnProperty('jitter') && options.jitter > 1) {
+    throw new Error('schedule option jitter must be between 0 and 1');
+  }
+
+  var deferred = Q.defer();
+
+  function successHandler(schedule) {
+    deferred.resolve(schedule);
+  }
+
+  function errorHandler(error) {
+    deferred.reject(error);
+  }
+
+  exec(successHandler,
+      errorHandler,
+      'CloudantSync',
+      'scheduleReplication',
+      [this, options, options.runNow === true]);
+
+  deferred.promise.nodeify(callback);
+  return deferred.promise;
+};
+
+/**
+ * @summary Removes the native schedule of this replicator.
+ * @description A run which is already in progress is not stopped; use
+ * {@link Replicator#stop} to stop it.
+ *
+ * @param {Replicator~unscheduleCallback} [callback] - The function to call
+ * after attempting to unschedule the replicator.
+ *
+ * @returns A [q style promise]{@link https://github.com/kriskowal/q} which
+ * returns successfully or with Error.
+ */
+Replicator.prototype.unschedule = function(callback) {
+  var deferred = Q.defer();
+
+  function successHandler() {
+    deferred.resolve();
+  }
+
+  function errorHandler(error) {
+    deferred.reject(error);
+  }
+
+  exec(successHandler,
+      errorHandler,
+      'CloudantSync',
+      'unscheduleReplication',
+      [this]);
+
+  deferred.promise.nodeify(callback);
+  return deferred.promise;
+};
+
+/**
+ * @summary Returns the native schedule of this replicator and its state.
+ * @description The schedule state contains the schedule options together
+ * with `state` (the current replication state), `running`, `rerunRequested`,
+ * `consecutiveErrors`, `nextRun`, `lastRunStarted` and `lastRunFinished`
+ * (milliseconds since the epoch, or null), `lastResult`, `lastError`, `runs`
+ * and `coalescedTriggers`.
+ *
+ * @param {Replicator~scheduleCallback} [callback] - The function to call
+ * after attempting to get the schedule.
+ *
+ * @returns A [q style promise]{@link https://github.com/kriskowal/q}
+ * returning either the schedule state or an Error.
+ */
+Replicator.prototype.getSchedule = function(callback) {
+  var deferred = Q.defer();
+
+  function successHandler(schedule) {
+    deferred.resolve(schedule);
+  }
+
+  function errorHandler(error) {
+    deferred.reject(error);
+  }
+
+  exec(successHandler,
+      errorHandler,
+      'CloudantSync',
+      'getReplicationSchedule',
+      [this]);
+
+  deferred.promise.nodeify(callback);
+  return deferred.promise;
+};
+
 /**
  * @summary Registers an event handler.
  * @description All 'complete' event handlers are executed when replication
@@ -355,10 +730,16 @@ Replicator.prototype.stop = function(callback) {
  * All 'error' event handlers are executed when replication state reaches
  * 'Error'; Possible causes could be incorrect credentials or no network
  * connection.
+ * On Android all 'paused' event handlers are executed, with the number of
+ * documents replicated so far, when a low priority replication is stopped
+ * under critical memory pressure. The replication is started again when the
+ * pressure is relieved and neither 'complete' nor 'error' is fired for the
+ * pause.
  *
- * @param {String} event - The event type. Either 'complete' or 'error'.
- * @param {Replicator~onCompleteHandler|Replicator~onErrorHandler}
- * handler - The handler to register.
+ * @param {String} event - The event type. Either 'complete', 'error' or
+ * 'paused'.
+ * @param {Replicator~onCompleteHandler|Replicator~onErrorHandler|
+ * Replicator~onPausedHandler} handler - The handler to register.
  */
 Replicator.prototype.on = function(event, handler) {
   if (this.handlers.hasOwnProperty(event)) {
@@ -424,6 +805,93 @@ isDatastore = function(datastore) {
   _.isString(datastore.name);
 };
 
+/**
+ * @private
+ * @summary Checks the pull replication filter options.
+ * @param {Object} options - The replicator options.
+ * @throws {Error} if a filter option is invalid, more than one filter option
+ * is given, or a filter option is given for push replication.
+ */
+function validatePullFilter(options) {
+  var filters = ['selector', 'filter', 'doc_ids'].filter(function(name) {
+    return options.hasOwnProperty(name) && options[name] !== undefined;
+  });
+
+  if (filters.length === 0) {
+    return;
+  }
+
+  if (options.type !== 'pull') {
+    throw new Error(filters[0] + ' is only supported for pull replication');
+  }
+
+  if (filters.length > 1) {
+    throw new Error('Only one of selector, filter and doc_ids may be set');
+  }
+
+  if (options.selector !== undefined &&
+    (!_.isObject(options.selector) || _.isArray(options.selector))) {
+    throw new Error('selector must be an Object');
+  }
+
+  if (options.filter !== undefined) {
+    if (!_.isObject(options.filter) || !_.isString(options.filter.name) ||
+      _.isEmpty(options.filter.name)) {
+      throw new Error('filter must be an Object with a name String');
+    }
+
+    var params = options.filter.params || {};
+    for (var key in params) {
+      if (!_.isString(params[key])) {
+        throw new Error('filter params must be Strings');
+      }
+    }
+  }
+
+  var docIds = options['doc_ids'];
+  if (docIds !== undefined) {
+    if (!_.isArray(docIds) || docIds.length === 0) {
+      throw new Error('doc_ids must be a non-empty Array');
+    }
+
+    docIds.forEach(function(docId) {
+      if (!_.isString(docId)) {
+        throw new Error('doc_ids must only contain Strings');
+      }
+    });
+  }
+}
+
+/**
+ * @private
+ * @summary Checks the replication tuning options.
+ * @param {Object} options - The replicator options.
+ * @throws {Error} if a tuning option is invalid.
+ */
+function validateTuning(options) {
+  ['changeLimitPerBatch', 'batchLimitPerRun', 'insertBatchSize']
+    .forEach(function(name) {
+      var value = options[name];
+      if (value !== undefined &&
+        (typeof value !== 'number' || value % 1 !== 0 || value < 1)) {
+        throw new Error(name + ' must be a positive integer');
+      }
+    });
+
+  if (options.priority !== undefined &&
+    (typeof options.priority !== 'number' || options.priority % 1 !== 0)) {
+    throw new Error('priority must be an integer');
+  }
+
+  var inline = options.attachmentsInline;
+  if (inline !== undefined && typeof inline !== 'boolean' &&
+    !(options.type === 'push' && inline === 'small')) {
+    throw new Error(options.type === 'push' ?
+      'attachmentsInline must be a Boolean or \'small\'' :
+      'attachmentsInline must be a Boolean');
+  }
+}
+
 /**
  * Executes all registered handlers or interceptors for the specified
  * replication event.
@@ -552,14 +1020,39 @@ function promiseWrap(interceptor) {
  * @param {String} state - The current replication state.
  */
 
+/**
+ * @callback Replicator~getStatusCallback
+ * @param {?Error} error
+ * @param {Object} status - The replication state and queueing state.
+ */
+
+/**
+ * @callback Replicator~queueMetricsCallback
+ * @param {?Error} error
+ * @param {Object} metrics - The replication queue settings and metrics.
+ */
+
 /**
  * @callback Replicator~stopCallback
  * @param {?Error} error
  */
 
+/**
+ * @callback Replicator~scheduleCallback
+ * @param {?Error} error
+ * @param {Object} schedule - The schedule options and scheduling state.
+ */
+
+/**
+ * @callback Replicator~unscheduleCallback
+ * @param {?Error} error
+ */
+
 /**
  * @callback Replicator~onCompleteHandler
  * @param {Number} numDocs - The number of documents replicated.
+ * @param {Number} [numConflictsResolved] - The number of documents whose
+ * conflicts were resolved, if the replicator has a `conflictResolution`.
  */
 
 /**
@@ -567,6 +1060,12 @@ function promiseWrap(interceptor) {
  * @param {String} message - The replication error message.
  */
 
+/**
+ * @callback Replicator~onPausedHandler
+ * @param {Number} numDocs - The number of documents replicated before the
+ * pause.
+ */
+
 /**
  * @callback Replicator~destroyCallback
  * @param {?Error} error